@@ -102,6 +102,9 @@ class TopologyApiConfig(val conf: Config) extends MinionConfig[TopologyApiServic
     def wsPath = conf.getString("topology_api.ws_path")
     def sessionGracePeriod = conf.getDuration("topology_api.session_grace_period", TimeUnit.MILLISECONDS)
     def sessionBufferSize = conf.getInt("topology_api.session_buffer_size")
+    def epollEnabled = conf.getBoolean("topology_api.epoll_enabled")
+    def writeBufferHighWaterMark = conf.getInt("topology_api.write_buffer_high_water_mark")
+    def writeBufferLowWaterMark = conf.getInt("topology_api.write_buffer_low_water_mark")
 }
 
 class TopologyZoomUpdaterConfig(val conf: Config) {
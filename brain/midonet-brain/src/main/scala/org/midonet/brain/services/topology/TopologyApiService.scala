@@ -54,16 +54,19 @@ class TopologyApiService @Inject()(val nodeContext: ClusterNode.Context,
         val srvHandler = new ApiServerHandler(reqHandler)
 
         // Frontend frameworks
-        if (cfg.topologyApi.socketEnabled) plainSrv = new ServerFrontEnd(
+        val api = cfg.topologyApi
+        if (api.socketEnabled) plainSrv = new ServerFrontEnd(
             new ProtoBufSocketAdapter(
                 srvHandler, Commands.Request.getDefaultInstance),
-            cfg.topologyApi.port
+            api.port, api.epollEnabled, api.writeBufferLowWaterMark,
+            api.writeBufferHighWaterMark
         )
 
-        if (cfg.topologyApi.wsEnabled) wsSrv = new ServerFrontEnd(
+        if (api.wsEnabled) wsSrv = new ServerFrontEnd(
             new ProtoBufWebSocketServerAdapter(
-                srvHandler, Commands.Request.getDefaultInstance, cfg.topologyApi.wsPath),
-            cfg.topologyApi.wsPort
+                srvHandler, Commands.Request.getDefaultInstance, api.wsPath),
+            api.wsPort, api.epollEnabled, api.writeBufferLowWaterMark,
+            api.writeBufferHighWaterMark
         )
 
         try {
@@ -20,7 +20,7 @@ import java.util.UUID
 
 import com.google.protobuf.Message
 import org.slf4j.LoggerFactory
-import rx.{Observer, Subscription}
+import rx.{Observer, Subscriber, Subscription}
 
 import org.midonet.brain.services.topology.server.ServerState.SessionInfo
 import org.midonet.cluster.models.Commons
@@ -187,9 +187,14 @@ class ServerProtocolFactory(private val sMgr: SessionInventory)
                 val session = sMgr.claim(cnxnId)
                 val completionAction =
                     makeAction0 {subscription.foreach({_.unsubscribe()})}
-                val subs = session.observable(start)
-                                  .doOnCompleted(completionAction)
-                                  .subscribe(out)
+                val obs = session.observable(start)
+                                 .doOnCompleted(completionAction)
+                // Subscribe connections as subscribers, so that they can
+                // pause the session output for slow clients
+                val subs = out match {
+                    case s: Subscriber[Message] @unchecked => obs.subscribe(s)
+                    case o => obs.subscribe(o)
+                }
                 ready.success(session)
                 pipe.success(subs)
                 true
@@ -19,7 +19,7 @@ package org.midonet.brain.services.topology.server
 
 import java.util.UUID
 import java.util.concurrent.Executors.{newSingleThreadExecutor, newSingleThreadScheduledExecutor}
-import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicReference}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicLong, AtomicReference}
 import java.util.concurrent.{Callable, ConcurrentHashMap, ExecutorService, Future => JavaFuture, TimeUnit}
 
 import scala.collection.JavaConversions._
@@ -32,7 +32,7 @@ import org.slf4j.LoggerFactory
 import rx.Observable.OnSubscribe
 import rx.schedulers.Schedulers
 import rx.subscriptions.BooleanSubscription
-import rx.{Observable, Observer, Subscriber, Subscription}
+import rx.{Observable, Observer, Producer, Subscriber, Subscription}
 
 import org.midonet.cluster.data.storage.{NotFoundException, Storage}
 import org.midonet.cluster.models.Commons
@@ -246,6 +246,11 @@ protected class StorageTransformer(val reqId: UUID)
 /**
  * A class to buffer zoom updates, associating each one of them to a sequence
  * number.
+ * The buffer honours the requests of its subscriber: the updates are only
+ * pushed while the subscriber has requested them, so a subscriber can pause
+ * the output, e.g. while its client is slow, by delaying its requests. The
+ * updates received meanwhile are kept in the buffer, and the buffer fails
+ * with a BufferFullException when it overflows.
  * @param minCapacity is the minimum size of the buffer
  */
 protected class Buffer(minCapacity: Int, reader: ExecutorService)
@@ -257,6 +262,49 @@ protected class Buffer(minCapacity: Int, reader: ExecutorService)
     @volatile
     private var error: Throwable = null
 
+    // Number of updates requested by the current subscriber, and whether
+    // the consumer thread is allowed to read (used to wake it up when it is
+    // waiting for requests)
+    private val requested = new AtomicLong(0)
+    @volatile
+    private var reading = false
+    private val demand = new Object
+
+    private val producer = new Producer {
+        override def request(n: Long): Unit = if (n > 0) {
+            var done = false
+            while (!done) {
+                val current = requested.get
+                val next =
+                    if (current + n < 0) Long.MaxValue else current + n
+                done = requested.compareAndSet(current, next)
+            }
+            demand.synchronized { demand.notifyAll() }
+        }
+    }
+
+    // Wait until the subscriber requests an update, and take one request;
+    // returns false if the buffer stops reading meanwhile
+    private def awaitRequest(): Boolean = {
+        while (reading) {
+            val current = requested.get
+            if (current == Long.MaxValue) {
+                return true
+            } else if (current > 0) {
+                if (requested.compareAndSet(current, current - 1))
+                    return true
+            } else demand.synchronized {
+                if (reading && requested.get == 0) demand.wait()
+            }
+        }
+        false
+    }
+
+    private def stopReading(): Unit = {
+        reading = false
+        demand.synchronized { demand.notifyAll() }
+    }
+
     override def onNext(v: Response.Builder): Unit = ring.add(v)
     override def onCompleted(): Unit = ring.complete()
     override def onError(exc: Throwable): Unit = {
@@ -274,7 +322,8 @@ protected class Buffer(minCapacity: Int, reader: ExecutorService)
             var terminated = false
             try {
                 while (!terminated) {
-                    (ring.awaitPoll(), subscriber.get) match {
+                    if (!awaitRequest()) terminated = true
+                    else (ring.awaitPoll(), subscriber.get) match {
                         case (_, null) =>
                             terminated = true
                         case (None, dest) if ring.isComplete =>
@@ -301,6 +350,7 @@ protected class Buffer(minCapacity: Int, reader: ExecutorService)
         val termination = threadResult.getAndSet(null)
         if (termination != null) {
             ring.pauseRead()
+            stopReading()
             termination.get()
         }
     }
@@ -313,6 +363,9 @@ protected class Buffer(minCapacity: Int, reader: ExecutorService)
             throw new HermitOversubscribedException
         ring.resumeRead()
         ring.seek(seqno)
+        requested.set(0)
+        reading = true
+        s.setProducer(producer)
         threadResult.set(reader.submit(consumer))
         val subs = BooleanSubscription.create(
             // on unsubscribe:
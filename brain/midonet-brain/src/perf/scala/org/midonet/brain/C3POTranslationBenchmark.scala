@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.brain
+
+import java.util.concurrent.TimeUnit
+
+import com.google.protobuf.Message
+import org.apache.curator.framework.{CuratorFramework, CuratorFrameworkFactory}
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.brain.services.c3po.C3POStorageManager
+import org.midonet.brain.services.c3po.neutron.{Create, Task, Transaction}
+import org.midonet.brain.services.c3po.translators.{NetworkTranslator, PortTranslator}
+import org.midonet.cluster.data.storage.{Storage, StorageWithOwnership, ZookeeperObjectMapper}
+import org.midonet.cluster.models.Commons.UUID
+import org.midonet.cluster.models.Neutron.{NeutronNetwork, NeutronPort}
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.util.UUIDUtil.randomUuidProto
+
+object C3POTranslationBenchmark {
+    final val Networks = 100
+    final val Attempts = 5
+}
+
+/*
+ * Translation and storage of the creation of Neutron VIF ports by C3PO,
+ * against a ZooKeeper server running in the same JVM. Each task stores the
+ * Neutron port, the MidoNet port, its chains and their rules, and updates
+ * the network of the port and the C3PO state, with and without optimistic
+ * ZOOM transactions.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Benchmark)
+class C3POTranslationBenchmark {
+    import org.midonet.brain.C3POTranslationBenchmark._
+
+    @Param(Array("false", "true"))
+    var optimistic: Boolean = _
+
+    var server: TestingServer = _
+    var curator: CuratorFramework = _
+    var manager: C3POStorageManager = _
+    val networks = new Array[UUID](Networks)
+    var taskId = 0
+
+    private def exec[T <: Message](op: Create[T]): Unit = {
+        taskId += 1
+        manager.interpretAndExecTxn(
+            Transaction(taskId.toString, List(Task(taskId, op))))
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        server = new TestingServer
+        curator = CuratorFrameworkFactory.newClient(server.getConnectString,
+                                                    new RetryOneTime(1000))
+        curator.start()
+        curator.blockUntilConnected()
+
+        val zoom = new ZookeeperObjectMapper("/zoom", curator, optimistic,
+                                             Attempts)
+        val backend = new MidonetBackend {
+            override def store: Storage = zoom
+            override def ownershipStore: StorageWithOwnership = zoom
+            override protected def doStart(): Unit = notifyStarted()
+            override protected def doStop(): Unit = notifyStopped()
+        }
+        backend.setupBindings()
+
+        manager = new C3POStorageManager(zoom)
+        manager.registerTranslator(classOf[NeutronNetwork],
+                                   new NetworkTranslator(zoom))
+        manager.registerTranslator(classOf[NeutronPort],
+                                   new PortTranslator(zoom))
+        manager.init()
+
+        for (i <- 0 until Networks) {
+            networks(i) = randomUuidProto
+            exec(Create(NeutronNetwork.newBuilder().setId(networks(i))
+                            .setTenantId("tenant").setName(s"network-$i")
+                            .setAdminStateUp(true).build()))
+        }
+    }
+
+    @TearDown
+    def tearDown(): Unit = {
+        curator.close()
+        server.close()
+    }
+
+    @Benchmark
+    def createPort(): Unit = {
+        exec(Create(NeutronPort.newBuilder().setId(randomUuidProto)
+                        .setNetworkId(networks(taskId % Networks))
+                        .setTenantId("tenant")
+                        .setMacAddress("02:00:00:00:00:01")
+                        .setAdminStateUp(true).build()))
+    }
+}
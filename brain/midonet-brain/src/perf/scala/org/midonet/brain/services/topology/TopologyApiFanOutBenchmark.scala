@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.brain.services.topology
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+
+import scala.collection.mutable.ArrayBuffer
+
+import io.netty.bootstrap.Bootstrap
+import io.netty.channel._
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.SocketChannel
+import io.netty.channel.socket.nio.NioSocketChannel
+import io.netty.handler.codec.protobuf.{ProtobufDecoder, ProtobufEncoder, ProtobufVarint32FrameDecoder, ProtobufVarint32LengthFieldPrepender}
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.brain.services.topology.server.{ServerProtocolFactory, SessionInventory}
+import org.midonet.cluster.data.storage.InMemoryStorage
+import org.midonet.cluster.models.Topology.{Network, Type}
+import org.midonet.cluster.rpc.Commands.{Request, Response, ResponseType}
+import org.midonet.cluster.services.topology.common.{ApiServerHandler, ConnectionManager}
+import org.midonet.cluster.services.topology.server.RequestHandler
+import org.midonet.cluster.util.UUIDUtil.{randomUuidProto, toProto}
+import org.midonet.util.netty.{ProtoBufSocketAdapter, ServerFrontEnd}
+
+object TopologyApiFanOutBenchmark {
+    final val Port = 18088
+    final val Networks = 100
+    final val Updates = 100
+    final val LowWaterMark = 32 * 1024
+    final val HighWaterMark = 64 * 1024
+}
+
+/*
+ * Fan-out of topology updates by the Topology API server to many clients
+ * running in the same JVM and connected through the loopback interface.
+ * Every client watches all networks, and every operation updates a number
+ * of networks and waits until all clients received all the updates. The
+ * server uses the NIO or the native epoll transport, while the clients
+ * share a NIO event loop group.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class TopologyApiFanOutBenchmark {
+    import org.midonet.brain.services.topology.TopologyApiFanOutBenchmark._
+
+    @Param(Array("100", "1000"))
+    var clients: Int = _
+
+    @Param(Array("false", "true"))
+    var epoll: Boolean = _
+
+    var store: InMemoryStorage = _
+    var server: ServerFrontEnd = _
+    var group: EventLoopGroup = _
+    val channels = new ArrayBuffer[Channel]
+    val networks = new Array[UUID](Networks)
+    val received = new AtomicLong(0)
+    var version = 0
+
+    /* A client that handshakes and watches all networks when connected,
+     * and counts the updates received. */
+    class Client extends SimpleChannelInboundHandler[Response] {
+        override def channelActive(ctx: ChannelHandlerContext): Unit = {
+            ctx.write(Request.newBuilder().setHandshake(
+                Request.Handshake.newBuilder()
+                    .setReqId(randomUuidProto)
+                    .setCnxnId(randomUuidProto)).build())
+            ctx.writeAndFlush(Request.newBuilder().setGet(
+                Request.Get.newBuilder()
+                    .setReqId(randomUuidProto)
+                    .setType(Type.NETWORK)
+                    .setSubscribe(true)).build())
+        }
+
+        override def channelRead0(ctx: ChannelHandlerContext,
+                                  rsp: Response): Unit = {
+            if (rsp.getType == ResponseType.UPDATE)
+                received.incrementAndGet()
+        }
+    }
+
+    private def network(i: Int): Network =
+        Network.newBuilder().setId(toProto(networks(i)))
+                            .setName(s"network-$i-$version").build()
+
+    private def awaitUpdates(count: Long): Unit = {
+        while (received.get < count) {
+            LockSupport.parkNanos(100000)
+        }
+        received.set(0)
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        store = new InMemoryStorage
+        store.registerClass(classOf[Network])
+        store.build()
+        for (i <- 0 until Networks) {
+            networks(i) = UUID.randomUUID
+            store.create(network(i))
+        }
+
+        val sessions = new SessionInventory(store)
+        val connMgr = new ConnectionManager(new ServerProtocolFactory(sessions))
+        val handler = new ApiServerHandler(new RequestHandler(connMgr))
+        server = new ServerFrontEnd(
+            new ProtoBufSocketAdapter(handler, Request.getDefaultInstance),
+            Port, epoll, LowWaterMark, HighWaterMark)
+        server.startAsync().awaitRunning()
+
+        group = new NioEventLoopGroup()
+        val boot = new Bootstrap()
+            .group(group)
+            .channel(classOf[NioSocketChannel])
+            .handler(new ChannelInitializer[SocketChannel] {
+                override def initChannel(ch: SocketChannel): Unit = {
+                    ch.pipeline()
+                      .addLast(new ProtobufVarint32FrameDecoder())
+                      .addLast(new ProtobufDecoder(Response.getDefaultInstance))
+                      .addLast(new ProtobufVarint32LengthFieldPrepender())
+                      .addLast(new ProtobufEncoder())
+                      .addLast(new Client)
+                }
+            })
+        for (i <- 0 until clients) {
+            channels += boot.connect("localhost", Port).sync().channel()
+        }
+        awaitUpdates(clients * Networks)
+    }
+
+    @TearDown
+    def tearDown(): Unit = {
+        for (channel <- channels) channel.close().sync()
+        channels.clear()
+        group.shutdownGracefully()
+        server.stopAsync().awaitTerminated()
+    }
+
+    @Benchmark
+    def fanOut(): Unit = {
+        version += 1
+        for (i <- 0 until Updates) {
+            store.update(network(i % Networks))
+        }
+        awaitUpdates(clients * Updates)
+    }
+}
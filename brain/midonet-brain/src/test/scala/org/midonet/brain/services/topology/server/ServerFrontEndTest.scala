@@ -26,6 +26,7 @@ import scala.util.Random
 import com.google.protobuf.Message
 
 import io.netty.channel.{ChannelHandlerContext, ChannelFuture, ChannelFutureListener}
+import io.netty.channel.epoll.Epoll
 
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
@@ -138,6 +139,29 @@ class ServerFrontEndTest extends FeatureSpec with Matchers {
             srv.stopAsync().awaitTerminated()
             srv.isRunning shouldBe false
         }
+
+        scenario("service life cycle - epoll transport") {
+            val reqHandler = new RequestHandler(connMgr)
+            val handler = new ApiServerHandler(reqHandler)
+            val srv = new ServerFrontEnd(new ProtoBufSocketAdapter(handler, expected),
+                                         port, true, 32 * 1024, 64 * 1024)
+
+            // the server falls back to NIO if epoll is not available
+            srv.isEpoll shouldBe Epoll.isAvailable
+            srv.startAsync().awaitRunning()
+            srv.isRunning shouldBe true
+            srv.stopAsync().awaitTerminated()
+            srv.isRunning shouldBe false
+        }
+
+        scenario("invalid water marks") {
+            val reqHandler = new RequestHandler(connMgr)
+            val handler = new ApiServerHandler(reqHandler)
+            intercept[IllegalArgumentException] {
+                new ServerFrontEnd(new ProtoBufSocketAdapter(handler, expected),
+                                   port, false, 64 * 1024, 32 * 1024)
+            }
+        }
     }
 
     feature("plain socket server communication")
@@ -17,6 +17,7 @@
 package org.midonet.brain.services.topology.server
 
 import java.util.UUID
+import java.util.concurrent.TimeoutException
 
 import scala.collection.JavaConversions._
 import scala.concurrent.duration._
@@ -27,6 +28,7 @@ import org.junit.runner.RunWith
 import org.scalatest._
 import org.scalatest.junit.JUnitRunner
 
+import rx.Subscriber
 import rx.observers.TestObserver
 
 import org.midonet.cluster.data.storage.{InMemoryStorage, Storage}
@@ -708,4 +710,46 @@ class SessionInventoryTest extends FeatureSpec
             events.exists(rsp => isBridge(rsp, b1, "bridge1-update1")) shouldBe true
         }
     }
+
+    feature("flow control")
+    {
+        scenario("the session emits only the requested updates")
+        {
+            val sId = UUID.randomUUID()
+            val session = inv.claim(sId)
+            val collector = new TestObserver[Response] with AwaitableObserver[Response]
+            val subscriber = new Subscriber[Response] {
+                override def onStart(): Unit = request(1)
+                override def onNext(rsp: Response): Unit = collector.onNext(rsp)
+                override def onCompleted(): Unit = collector.onCompleted()
+                override def onError(e: Throwable): Unit = collector.onError(e)
+                def requestMore(n: Long): Unit = request(n)
+            }
+            val subs = session.observable().subscribe(subscriber)
+
+            val req = UUID.randomUUID()
+            session.watchAll(classOf[Network], req)
+
+            val b1 = UUID.randomUUID()
+            val b2 = UUID.randomUUID()
+            store.create(bridge(b1, "bridge1"))
+            store.create(bridge(b2, "bridge2"))
+
+            // only the first update is emitted until more are requested
+            collector.awaitOnNext(1, WAIT_TIME)
+            a [TimeoutException] shouldBe thrownBy {
+                collector.awaitOnNext(2, 500 milliseconds)
+            }
+
+            subscriber.requestMore(2)
+            collector.awaitOnNext(3, WAIT_TIME)
+            subs.unsubscribe()
+
+            val events = collectionAsScalaIterable(collector.getOnNextEvents).toArray
+            events.size shouldBe 3
+            isAck(events(0), req) shouldBe true
+            events.exists(rsp => isBridge(rsp, b1, "bridge1")) shouldBe true
+            events.exists(rsp => isBridge(rsp, b2, "bridge2")) shouldBe true
+        }
+    }
 }
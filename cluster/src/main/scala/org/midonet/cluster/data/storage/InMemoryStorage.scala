@@ -27,6 +27,7 @@ import scala.collection.concurrent.TrieMap
 import scala.collection.mutable
 import scala.concurrent.{ExecutionContext, Future}
 import scala.concurrent.duration._
+import scala.util.{Failure, Success}
 
 import com.google.common.collect.ArrayListMultimap
 import com.google.protobuf.Message
@@ -466,6 +467,36 @@ class InMemoryStorage extends StorageWithOwnership {
         classes.get(clazz).asInstanceOf[ClassNode[T]].getAll
     }
 
+    override def getBatches[T](clazz: Class[T], ids: Seq[_ <: ObjId],
+                               batchSize: Int): Observable[Seq[T]] = {
+        assertBuilt()
+        assert(isRegistered(clazz))
+        batches(Future.sequence(getAll(clazz, ids)), batchSize)
+    }
+
+    override def getBatches[T](clazz: Class[T], batchSize: Int)
+    : Observable[Seq[T]] = {
+        assertBuilt()
+        assert(isRegistered(clazz))
+        batches(getAll(clazz), batchSize)
+    }
+
+    /* Reads the objects when subscribed, and emits them in batches on the
+     * IO thread. */
+    private def batches[T](read: => Future[Seq[T]], batchSize: Int)
+    : Observable[Seq[T]] = {
+        Observable.create(new OnSubscribe[Seq[T]] {
+            override def call(child: Subscriber[_ >: Seq[T]]): Unit = {
+                read.onComplete {
+                    case Success(objs) =>
+                        objs.grouped(batchSize).foreach(child.onNext)
+                        child.onCompleted()
+                    case Failure(e) => child.onError(e)
+                }
+            }
+        })
+    }
+
     override def getOwners(clazz: Class[_], id: ObjId): Future[Set[String]] = {
         assertBuilt()
         assert(isRegistered(clazz))
@@ -162,6 +162,25 @@ trait ReadOnlyStorage {
      */
     def getAll[T](clazz: Class[T]): Future[Seq[T]]
 
+    /**
+     * Asynchronous method that gets the specified instances of the specified
+     * class from storage in batches, for callers that load many objects at
+     * once. The objects are read when an observer subscribes to the returned
+     * observable, which emits them in sequences of at most `batchSize`
+     * elements, in no particular order, and completes after the last one.
+     * The observable fails with a [[NotFoundException]] if any of the objects
+     * does not exist.
+     */
+    def getBatches[T](clazz: Class[T], ids: Seq[_ <: ObjId], batchSize: Int)
+    : Observable[Seq[T]]
+
+    /**
+     * Asynchronous method that gets all the instances of the specified class
+     * from storage in batches, as the method above. The objects deleted while
+     * the class is read are not emitted.
+     */
+    def getBatches[T](clazz: Class[T], batchSize: Int): Observable[Seq[T]]
+
     /**
      * Asynchronous method that indicated if the specified object exists in the
      * storage.
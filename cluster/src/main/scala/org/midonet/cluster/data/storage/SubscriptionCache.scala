@@ -93,6 +93,10 @@ class InstanceSubscriptionCache[T](val clazz: Class[T],
     def current: T = DeserializerCache.deserializer(clazz)
                                       .call(nodeCache.current)
 
+    /** Retrieve the last known data and stat of the watched node, or null
+      * if they are not known. */
+    def currentData: ChildData = nodeCache.current
+
     def close() = nodeCache.close()
 
 }
@@ -17,8 +17,8 @@ package org.midonet.cluster.data.storage
 
 import java.io.StringWriter
 import java.lang.{Long => JLong}
-import java.util.concurrent.Executors
-import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicLong}
+import java.util.concurrent.{Executors, LinkedBlockingQueue, ThreadPoolExecutor, TimeUnit, TimeoutException}
 import java.util.{ConcurrentModificationException, List => JList}
 
 import scala.async.Async.async
@@ -26,11 +26,14 @@ import scala.collection.JavaConverters._
 import scala.collection.JavaConversions._
 import scala.collection.concurrent.TrieMap
 import scala.collection.mutable
-import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future, Promise}
+import scala.util.control.NonFatal
 import scala.util.{Failure, Success}
 
 import com.google.common.annotations.VisibleForTesting
 import com.google.common.collect.ArrayListMultimap
+import com.google.common.util.concurrent.ThreadFactoryBuilder
 import com.google.protobuf.{Message, TextFormat}
 
 import org.apache.curator.framework.CuratorFramework
@@ -46,7 +49,9 @@ import org.codehaus.jackson.JsonFactory
 import org.codehaus.jackson.map.ObjectMapper
 import org.slf4j.LoggerFactory
 
-import rx.Observable
+import rx.Observable.OnSubscribe
+import rx.observers.SerializedSubscriber
+import rx.{Observable, Subscriber}
 
 import org.midonet.cluster.data.storage.FieldBinding.DeleteAction
 import org.midonet.cluster.data.storage.OwnershipType.OwnershipType
@@ -112,12 +117,30 @@ import org.midonet.util.reactivex._
  * off. In addition, upon initialization a ZOOM sets a watcher to the version
  * number node and it'd be notified if another ZOOM instances bumps the version
  * number to switch to the new version.
+ *
+ * OPTIMISTIC TRANSACTIONS:
+ * By default, a transaction creates a sequential node to learn the current
+ * ZXID, and reads every object it loads synchronously, failing if any of them
+ * was modified after that ZXID. With optimistic transactions, the objects
+ * that the operations name are read in parallel with background requests, or
+ * taken from the last version seen by the instance subscription caches, and
+ * concurrent modifications are only detected by the version checks of the
+ * final ZooKeeper multi. Every object loaded by a transaction is written by
+ * it with the version that was read, so these checks cover all the objects
+ * the transaction depends on. A transaction that fails because of a
+ * concurrent modification is retried with fresh reads, up to the given
+ * number of attempts.
  */
 class ZookeeperObjectMapper(
     private val basePathPrefix: String,
-    private val curator: CuratorFramework) extends StorageWithOwnership {
+    private val curator: CuratorFramework,
+    private val optimisticTransactions: Boolean,
+    private val transactionAttempts: Int) extends StorageWithOwnership {
 
     import org.midonet.cluster.data.storage.ZookeeperObjectMapper._
+
+    def this(basePathPrefix: String, curator: CuratorFramework) =
+        this(basePathPrefix, curator, false, 1)
     @volatile private var built = false
 
     /* Monotonically increasing version number for the data set path under
@@ -138,6 +161,20 @@ class ZookeeperObjectMapper(
     private implicit val executionContext =
         ExecutionContext.fromExecutorService(executor)
 
+    // Deserializes the objects of batched reads: a bounded pool, so that a
+    // large read does not compete with the rest of the process for all cores.
+    // Its threads are daemons, so that they never keep the process alive.
+    private val deserializerExecutor = {
+        val e = new ThreadPoolExecutor(DeserializerThreads, DeserializerThreads,
+                                       60, TimeUnit.SECONDS,
+                                       new LinkedBlockingQueue[Runnable],
+                                       new ThreadFactoryBuilder()
+                                           .setNameFormat("zoom-deserializer-%d")
+                                           .setDaemon(true).build())
+        e.allowCoreThreadTimeOut(true)
+        e
+    }
+
     private val classInfo =
         new mutable.HashMap[Class[_], ClassInfo]()
     private val simpleNameToClass =
@@ -160,7 +197,9 @@ class ZookeeperObjectMapper(
      * added. Since updates are not incremental, the first backreference will
      * be lost.
      */
-    private class ZoomTransactionManager(val version: Long)
+    private class ZoomTransactionManager(val version: Long,
+                                         optimistic: Boolean,
+                                         useCaches: Boolean)
             extends TransactionManager(classInfo.toMap, allBindings) {
 
         import ZookeeperObjectMapper._
@@ -168,8 +207,11 @@ class ZookeeperObjectMapper(
         // Create an ephemeral node so that we can get Zookeeper's current
         // ZXID. This will allow us to determine if any of the nodes we read
         // have been modified since the TransactionManager was created, allowing
-        // us to ensure a consistent read across multiple nodes.
-        private val (lockPath: String, zxid: Long) = try {
+        // us to ensure a consistent read across multiple nodes. Optimistic
+        // transactions skip this, and rely on the version checks of the commit.
+        private val (lockPath, zxid) = if (optimistic) {
+            (null: String, Long.MaxValue)
+        } else try {
             val path = curator.create().creatingParentsIfNeeded()
                               .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
                               .forPath(locksPath(version))
@@ -181,6 +223,12 @@ class ZookeeperObjectMapper(
                 "Could not acquire current zxid.", ex)
         }
 
+        // Snapshots read ahead by prefetch(), not yet used by the transaction.
+        private val prefetched = new mutable.HashMap[Key, Future[RawSnapshot]]
+
+        /** Whether any snapshot was taken from a subscription cache. */
+        var usedCaches = false
+
         private def getPath(clazz: Class[_], id: ObjId) = {
             ZookeeperObjectMapper.this.getPath(clazz, id, version)
         }
@@ -193,7 +241,148 @@ class ZookeeperObjectMapper(
             ZookeeperObjectMapper.this.isRegistered(clazz)
         }
 
+        /**
+         * Starts reading in the background the objects named by the given
+         * operations, and those referenced by the objects they create or
+         * update, so that the transaction waits for a single round-trip to
+         * load them instead of one per object. Objects loaded later, such as
+         * the references of the objects being deleted, are read on demand.
+         */
+        def prefetch(ops: Seq[PersistenceOp]): Unit = {
+            def keyOf(obj: Obj) =
+                getKey(obj.getClass, classInfo(obj.getClass).idOf(obj))
+
+            val created = ops.collect {
+                case CreateOp(obj) => keyOf(obj)
+                case CreateWithOwnerOp(obj, _) => keyOf(obj)
+            }.toSet
+
+            def read(clazz: Class[_], id: ObjId): Unit = {
+                val key = getKey(clazz, id)
+                if (!created.contains(key) && !prefetched.contains(key))
+                    prefetched(key) = readSnapshot(clazz, id)
+            }
+            def readReferences(obj: Obj): Unit = {
+                for (binding <- allBindings.get(obj.getClass).asScala;
+                     id <- binding.getFwdReferenceAsList(obj).asScala) {
+                    read(binding.getReferencedClass, id)
+                }
+            }
+
+            ops.foreach {
+                case CreateOp(obj) => readReferences(obj)
+                case CreateWithOwnerOp(obj, _) => readReferences(obj)
+                case UpdateOp(obj, _) =>
+                    read(obj.getClass, classInfo(obj.getClass).idOf(obj))
+                    readReferences(obj)
+                case UpdateWithOwnerOp(obj, _, _) =>
+                    read(obj.getClass, classInfo(obj.getClass).idOf(obj))
+                    readReferences(obj)
+                case UpdateOwnerOp(clazz, id, _, _) => read(clazz, id)
+                case DeleteOp(clazz, id, _) => read(clazz, id)
+                case DeleteWithOwnerOp(clazz, id, _) => read(clazz, id)
+                case DeleteOwnerOp(clazz, id, _) => read(clazz, id)
+            }
+        }
+
+        /**
+         * Reads the data, version and owners of an object in the background.
+         * When allowed, an object watched by an instance subscription cache
+         * without owners is taken from the last version seen by the cache:
+         * if that version is stale, the commit fails.
+         */
+        private def readSnapshot(clazz: Class[_], id: ObjId)
+        : Future[RawSnapshot] = {
+            if (useCaches) {
+                val cached = instanceCaches(clazz).get(id.toString)
+                                                  .map(_.currentData).orNull
+                if ((cached ne null) && (cached.getStat ne null) &&
+                    cached.getStat.getNumChildren == 0) {
+                    usedCaches = true
+                    return Future.successful(RawSnapshot(
+                        cached.getData, cached.getStat.getVersion,
+                        Set.empty[String]))
+                }
+            }
+
+            val path = getPath(clazz, id)
+            val p = Promise[RawSnapshot]()
+            def failure(event: CuratorEvent): Throwable = {
+                if (event.getResultCode == Code.NONODE.intValue)
+                    new NotFoundException(clazz, id)
+                else new InternalObjectMapperException(KeeperException.create(
+                    Code.get(event.getResultCode), path))
+            }
+            // The version is that of the data. If the node changes between
+            // the reads of its data and of its children, the data is read
+            // again, so that stale data never goes with a newer version.
+            def readData(attempts: Int): Unit = try {
+                curator.getData.inBackground(dataCallback(attempts))
+                               .forPath(path)
+            } catch {
+                case ex: Exception =>
+                    p.failure(new InternalObjectMapperException(ex))
+            }
+            def dataCallback(attempts: Int) = new BackgroundCallback {
+                override def processResult(client: CuratorFramework,
+                                           event: CuratorEvent): Unit = {
+                    if (event.getResultCode != Code.OK.intValue) {
+                        p.failure(failure(event))
+                    } else if (event.getStat.getNumChildren == 0) {
+                        p.success(RawSnapshot(event.getData,
+                                              event.getStat.getVersion,
+                                              Set.empty[String]))
+                    } else {
+                        val data = event.getData
+                        val version = event.getStat.getVersion
+                        val childrenCallback = new BackgroundCallback {
+                            override def processResult(client: CuratorFramework,
+                                                       e: CuratorEvent)
+                            : Unit = {
+                                if (e.getResultCode != Code.OK.intValue) {
+                                    p.failure(failure(e))
+                                } else if (e.getStat.getVersion == version) {
+                                    p.success(RawSnapshot(
+                                        data, version,
+                                        e.getChildren.asScala.toSet))
+                                } else if (attempts > 1) {
+                                    readData(attempts - 1)
+                                } else {
+                                    p.failure(new ConcurrentModificationException(
+                                        s"${clazz.getSimpleName} with ID " +
+                                        s"$id was modified while being read."))
+                                }
+                            }
+                        }
+                        try {
+                            curator.getChildren.inBackground(childrenCallback)
+                                               .forPath(path)
+                        } catch {
+                            case ex: Exception =>
+                                p.failure(new InternalObjectMapperException(ex))
+                        }
+                    }
+                }
+            }
+            readData(SnapshotReadAttempts)
+            p.future
+        }
+
         override def getSnapshot(clazz: Class[_], id: ObjId): ObjSnapshot = {
+            prefetched.remove(getKey(clazz, id)) match {
+                case Some(future) =>
+                    val raw = try Await.result(future, readTimeout) catch {
+                        case ex: TimeoutException =>
+                            throw new InternalObjectMapperException(
+                                s"Timeout reading ${clazz.getSimpleName} " +
+                                s"with ID $id.", ex)
+                    }
+                    return ObjSnapshot(
+                        deserialize(raw.data, clazz).asInstanceOf[Obj],
+                        raw.version, raw.owners)
+                case None =>
+            }
+
             val stat = new Stat()
             val path = getPath(clazz, id)
             val data = try {
@@ -268,7 +457,7 @@ class ZookeeperObjectMapper(
             }
         }
 
-        def releaseLock(): Unit = try {
+        def releaseLock(): Unit = if (lockPath ne null) try {
             curator.delete().forPath(lockPath)
         } catch {
             // Not much we can do. Fortunately, it's ephemeral.
@@ -309,6 +498,102 @@ class ZookeeperObjectMapper(
         }
     }
 
+    /**
+     * Reads a set of objects of the same class for an observer with pipelined
+     * background requests, keeping at most [[MaxPendingReads]] of them in
+     * flight. The Curator callback only collects the data of the objects,
+     * which are deserialized in batches on the deserializer pool and emitted
+     * as soon as each batch is ready.
+     */
+    private class BatchRead[T](clazz: Class[T], ids: IndexedSeq[_ <: ObjId],
+                               batchSize: Int, skipMissing: Boolean,
+                               child: Subscriber[_ >: Seq[T]])
+            extends BackgroundCallback {
+
+        private val subscriber = new SerializedSubscriber[Seq[T]](
+            child.asInstanceOf[Subscriber[Seq[T]]])
+        private val done = new AtomicBoolean
+        // The batches being deserialized, plus one until all data is read.
+        private val pending = new AtomicInteger(1)
+        private var next = 0
+        private var received = 0
+        private var batch = new mutable.ArrayBuffer[Array[Byte]](batchSize)
+
+        def start(): Unit = synchronized {
+            if (ids.isEmpty) complete()
+            else read(MaxPendingReads)
+        }
+
+        override def processResult(client: CuratorFramework,
+                                   event: CuratorEvent): Unit = synchronized {
+            if (done.get) return
+            received += 1
+            event.getResultCode match {
+                case rc if rc == Code.OK.intValue =>
+                    batch += event.getData
+                case rc if rc == Code.NONODE.intValue && skipMissing =>
+                case rc if rc == Code.NONODE.intValue =>
+                    fail(new NotFoundException(clazz, event.getContext))
+                    return
+                case rc =>
+                    fail(new InternalObjectMapperException(
+                        KeeperException.create(Code.get(rc), event.getPath)))
+                    return
+            }
+            if (batch.size == batchSize ||
+                (received == ids.size && batch.nonEmpty)) {
+                submit(batch)
+                batch = new mutable.ArrayBuffer[Array[Byte]](batchSize)
+            }
+            if (received == ids.size) complete()
+            else read(1)
+        }
+
+        private def read(count: Int): Unit = {
+            var n = count
+            while (n > 0 && next < ids.size && !child.isUnsubscribed) {
+                val id = ids(next)
+                try {
+                    curator.getData.inBackground(this, id.asInstanceOf[AnyRef])
+                           .forPath(getPath(clazz, id))
+                } catch {
+                    case NonFatal(e) =>
+                        fail(new InternalObjectMapperException(e))
+                        return
+                }
+                next += 1
+                n -= 1
+            }
+        }
+
+        private def submit(data: Seq[Array[Byte]]): Unit = {
+            pending.incrementAndGet()
+            deserializerExecutor.execute(new Runnable {
+                override def run(): Unit = {
+                    try {
+                        val objs = data.map(deserialize(_, clazz))
+                        if (!done.get) subscriber.onNext(objs)
+                    } catch {
+                        case NonFatal(e) => fail(e)
+                    }
+                    complete()
+                }
+            })
+        }
+
+        private def complete(): Unit = {
+            if (pending.decrementAndGet() == 0 &&
+                done.compareAndSet(false, true)) {
+                subscriber.onCompleted()
+            }
+        }
+
+        private def fail(e: Throwable): Unit = {
+            if (done.compareAndSet(false, true))
+                subscriber.onError(e)
+        }
+    }
+
     /**
      * Registers the class for use. This method is not thread-safe, and
      * initializes a variety of structures which could not easily be
@@ -531,33 +816,65 @@ class ZookeeperObjectMapper(
     }
 
     /**
-     * Gets all instances of the specified class from Zookeeper.
+     * Gets all instances of the specified class from Zookeeper. The objects
+     * are loaded with the pipelined reads of [[getBatches]], and those
+     * deleted after the class is listed are skipped.
      */
     override def getAll[T](clazz: Class[T]): Future[Seq[T]] = {
         assertBuilt()
         assert(isRegistered(clazz))
 
         val all = Promise[Seq[T]]
-        val cb = new BackgroundCallback {
-            override def processResult(client: CuratorFramework,
-                                       evt: CuratorEvent): Unit = {
-                assert(CuratorEventType.CHILDREN == evt.getType)
-                Future.sequence(getAll(clazz, evt.getChildren)).onComplete {
-                    case Success(l) => all trySuccess l
-                    case Failure(t) => all tryFailure t
-                }
+        getBatches(clazz, GetAllBatchSize).subscribe(new Subscriber[Seq[T]] {
+            private val objs = new mutable.ArrayBuffer[T]
+            override def onNext(batch: Seq[T]): Unit = objs ++= batch
+            override def onCompleted(): Unit = all trySuccess objs
+            override def onError(e: Throwable): Unit = all tryFailure e
+        })
+        all.future
+    }
+
+    override def getBatches[T](clazz: Class[T], ids: Seq[_ <: ObjId],
+                               batchSize: Int): Observable[Seq[T]] = {
+        assertBuilt()
+        assert(isRegistered(clazz))
+        val indexed = ids.toIndexedSeq
+        Observable.create(new OnSubscribe[Seq[T]] {
+            override def call(child: Subscriber[_ >: Seq[T]]): Unit = {
+                new BatchRead(clazz, indexed, batchSize, skipMissing = false,
+                              child).start()
             }
-        }
+        })
+    }
 
-        try {
-            curator.getChildren.inBackground(cb).forPath(getPath(clazz))
-        } catch {
-            case ex: Exception =>
-                // Should have created this during class registration.
-                throw new InternalObjectMapperException(
-                    s"Node ${getPath(clazz)} does not exist in Zookeeper.", ex)
-        }
-        all.future
+    override def getBatches[T](clazz: Class[T], batchSize: Int)
+    : Observable[Seq[T]] = {
+        assertBuilt()
+        assert(isRegistered(clazz))
+        Observable.create(new OnSubscribe[Seq[T]] {
+            override def call(child: Subscriber[_ >: Seq[T]]): Unit = {
+                val cb = new BackgroundCallback {
+                    override def processResult(client: CuratorFramework,
+                                               evt: CuratorEvent): Unit = {
+                        if (evt.getResultCode == Code.OK.intValue) {
+                            val ids = evt.getChildren.asScala.toIndexedSeq
+                            new BatchRead(clazz, ids, batchSize,
+                                          skipMissing = true, child).start()
+                        } else {
+                            child.onError(new InternalObjectMapperException(
+                                KeeperException.create(
+                                    Code.get(evt.getResultCode), evt.getPath)))
+                        }
+                    }
+                }
+                try {
+                    curator.getChildren.inBackground(cb).forPath(getPath(clazz))
+                } catch {
+                    case NonFatal(e) =>
+                        child.onError(new InternalObjectMapperException(e))
+                }
+            }
+        })
     }
 
     @throws[NotFoundException]
@@ -617,7 +934,42 @@ class ZookeeperObjectMapper(
         assertBuilt()
         if (ops.isEmpty) return
 
-        val manager = new ZoomTransactionManager(version.longValue())
+        if (!optimisticTransactions) {
+            val manager = new ZoomTransactionManager(version.longValue(),
+                                                     optimistic = false,
+                                                     useCaches = false)
+            try multi(manager, ops) finally { manager.releaseLock() }
+            return
+        }
+
+        // The subscription caches may lag behind the storage, and a stale
+        // object may fail validation as well as the commit: only the first
+        // attempt uses them.
+        var attempt = 1
+        while (true) {
+            val manager = new ZoomTransactionManager(version.longValue(),
+                                                     optimistic = true,
+                                                     useCaches = attempt == 1)
+            try {
+                if (!onEventThread) manager.prefetch(ops)
+                multi(manager, ops)
+                return
+            } catch {
+                case e: ConcurrentModificationException
+                    if attempt < transactionAttempts =>
+                    log.debug(s"Transaction attempt $attempt failed due to a " +
+                              "concurrent modification, retrying.", e)
+                case e: Exception
+                    if manager.usedCaches && attempt < transactionAttempts =>
+                    log.debug(s"Transaction attempt $attempt with cached " +
+                              "objects failed, retrying with fresh reads.", e)
+            }
+            attempt += 1
+        }
+    }
+
+    private def multi(manager: ZoomTransactionManager,
+                      ops: Seq[PersistenceOp]): Unit = {
         ops.foreach {
             case CreateOp(obj) => manager.create(obj)
             case CreateWithOwnerOp(obj, owner) => manager.create(obj, owner)
@@ -633,8 +985,7 @@ class ZookeeperObjectMapper(
             case DeleteOwnerOp(clazz, id, owner) =>
                 manager.deleteOwner(clazz, id, owner)
         }
-
-        try manager.commit() finally { manager.releaseLock() }
+        manager.commit()
     }
 
     /**
@@ -758,6 +1109,18 @@ class ZookeeperObjectMapper(
         classCaches.get(clazz).map(_.subscriptionCount)
     }
 
+    private def readTimeout =
+        Duration(curator.getZookeeperClient.getConnectionTimeoutMs,
+                 TimeUnit.MILLISECONDS)
+
+    /* Whether the caller runs on ZooKeeper's event thread, for instance in
+     * the callback of a watcher or of a background request. The background
+     * reads of prefetch() complete on that thread, so a transaction running
+     * on it must not wait for them, and reads on demand instead: synchronous
+     * requests complete on the I/O thread. */
+    private def onEventThread: Boolean =
+        Thread.currentThread.getName.endsWith("-EventThread")
+
     private def assertBuilt() {
         if (!built) throw new ServiceUnavailableException(
             "Data operation received before call to build().")
@@ -769,6 +1132,17 @@ object ZookeeperObjectMapper {
     private val VERSION_NODE = "dataset_version"
     private val INITIAL_ZOOM_DATA_SET_VERSION = 1
 
+    /** Maximum number of background reads in flight for a batched read. */
+    private val MaxPendingReads = 1000
+    private val DeserializerThreads = Runtime.getRuntime.availableProcessors
+    /** Objects deserialized per task when getAll loads a whole class. */
+    private val GetAllBatchSize = 256
+    /** Reads of a snapshot before giving up on a node that keeps changing. */
+    private val SnapshotReadAttempts = 3
+
+    private case class RawSnapshot(data: Array[Byte], version: Int,
+                                   owners: Set[String])
+
     private[storage] final class MessageClassInfo(clazz: Class[_],
                                                   ownershipType: OwnershipType)
         extends ClassInfo(clazz, ownershipType) {
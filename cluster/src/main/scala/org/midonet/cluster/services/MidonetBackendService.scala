@@ -104,7 +104,9 @@ class MidonetBackendService @Inject() (cfg: MidonetBackendConfig,
     extends MidonetBackend {
 
     private val zoom =
-        new ZookeeperObjectMapper(cfg.rootKey + "/zoom", curator)
+        new ZookeeperObjectMapper(cfg.rootKey + "/zoom", curator,
+                                  cfg.optimisticTransactions,
+                                  cfg.transactionAttempts)
 
     override def store: Storage = zoom
     override def ownershipStore: StorageWithOwnership = zoom
@@ -71,7 +71,14 @@ class ApiHandler[Expected <: Message](private val observer: Observer[CommEvent])
 }
 
 class ApiServerHandler(observer: Observer[CommEvent])
-    extends ApiHandler[Commands.Request](observer)
+    extends ApiHandler[Commands.Request](observer) {
+
+    override def channelWritabilityChanged(ctx: ChannelHandlerContext)
+    : Unit = {
+        observer.onNext(WritabilityChanged(ctx))
+        super.channelWritabilityChanged(ctx)
+    }
+}
 class ApiClientHandler(observer: Observer[CommEvent])
     extends ApiHandler[Commands.Response](observer)
 
@@ -83,6 +90,7 @@ abstract class CommEvent
 case class Connect(ctx: ChannelHandlerContext) extends CommEvent
 case class Disconnect(ctx: ChannelHandlerContext) extends CommEvent
 case class Error(ctx: ChannelHandlerContext, exc: Throwable) extends CommEvent
+case class WritabilityChanged(ctx: ChannelHandlerContext) extends CommEvent
 
 /**
  * Message events from netty
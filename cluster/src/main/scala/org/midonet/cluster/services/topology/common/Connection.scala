@@ -17,15 +17,24 @@
 package org.midonet.cluster.services.topology.common
 
 import java.util.concurrent.Executors
-import java.util.concurrent.atomic.{AtomicReference, AtomicBoolean}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong, AtomicReference}
 
 import scala.concurrent.{ExecutionContext, Promise, Future}
+import scala.util.Success
 
 import com.google.protobuf.Message
 import io.netty.channel.{ChannelFuture, ChannelHandlerContext}
 import io.netty.util.concurrent.GenericFutureListener
 import org.slf4j.LoggerFactory
-import rx.Observer
+import rx.Subscriber
+
+object Connection {
+    /** Number of messages requested from the session observable at once;
+      * the connection keeps requesting messages while the channel is
+      * writable, i.e. while the data pending in the channel outbound
+      * buffer remains below the channel write buffer water marks. */
+    final val RequestBatch = 128
+}
 
 
 /**
@@ -33,6 +42,10 @@ import rx.Observer
  * Note: this class exposes an observer (a subject) to receive the
  * messages that should be sent back through the associated
  * low-level communication channel.
+ * When subscribed to an observable, the connection requests messages in
+ * batches, and stops requesting them while the netty channel is not
+ * writable, so that a slow client pauses the producer instead of filling
+ * the channel outbound buffer.
  * @param ctx is the low level communication channel
  * @param protocol is the factory generating the start state for the
  *                 communication protocol
@@ -45,7 +58,9 @@ class Connection(private val ctx: ChannelHandlerContext,
                  private val senderFactory: MessageSenderFactory
                     = MessageSender)
                 (implicit val mgr: ConnectionManager)
-    extends Observer[Message] {
+    extends Subscriber[Message] {
+    import Connection._
+
     private val log = LoggerFactory.getLogger(classOf[Connection])
     private val sender: MessageSender = senderFactory.get(ctx)
     private implicit val ec = sender.getWriteExecutionContext
@@ -53,6 +68,11 @@ class Connection(private val ctx: ChannelHandlerContext,
     // Connection has already been disconnected
     private val terminated = new AtomicBoolean(false)
 
+    // Messages received, and messages to request once the channel becomes
+    // writable
+    private val received = new AtomicLong(0)
+    private val deferred = new AtomicLong(0)
+
     // Keep track of last message, to make sure the pipeline is cleared before
     // completion
     private val lastSent =
@@ -73,12 +93,31 @@ class Connection(private val ctx: ChannelHandlerContext,
         mgr.unregister(ctx)
     }
 
+    // Request the deferred messages, if the channel is writable; the
+    // deferred count is updated before checking the writability, so that
+    // a concurrent writability change does not leave messages unrequested
+    private def requestDeferred(): Unit = {
+        if (ctx.channel.isWritable) {
+            val n = deferred.getAndSet(0)
+            if (n > 0) request(n)
+        } else {
+            log.debug("channel not writable: pausing output")
+        }
+    }
+
     // Process the messages on the outgoing stream
+    override def onStart(): Unit = request(2 * RequestBatch)
     override def onCompleted(): Unit =
         lastSent.get.onComplete({case _ => terminate()})
     override def onError(e: Throwable): Unit =
         lastSent.get.onComplete({case _ => terminate()})
-    override def onNext(rsp: Message): Unit = send(rsp)
+    override def onNext(rsp: Message): Unit = {
+        send(rsp)
+        if (received.incrementAndGet() % RequestBatch == 0) {
+            deferred.addAndGet(RequestBatch)
+            requestDeferred()
+        }
+    }
 
     // State engine
     // NOTE: This is not thread-safe, which is currently fine
@@ -116,12 +155,26 @@ class Connection(private val ctx: ChannelHandlerContext,
         log.debug("incoming exception", e)
         state = state.process(e)
     }
+
+    /**
+     * Process a change in the writability of the netty channel, resuming
+     * the output if the channel became writable.
+     */
+    def writabilityChanged() = {
+        requestDeferred()
+    }
 }
 
 /**
  * A class to guarantee that writes to a given netty context are sent one
  * by one, to avoid concurrency issues. Note that sending stops when an
- * error is encountered: all subsequent sends will be cancelled
+ * error is encountered: all subsequent sends will fail with that error.
+ * Messages sent with sendAndFlush are queued in the channel event loop
+ * without waiting for the previous writes to complete, and flushed once
+ * per event loop turn, such that a burst of messages results in a single
+ * flush instead of one system call per message; the messages queued after
+ * a failed write are not written, but messages already handed to the
+ * channel when the failure is reported may still be sent.
  * @param ctx is the netty connection context
  * @param start is a future that must be completed before starting data writes
  */
@@ -134,6 +187,18 @@ class MessageSender(val ctx: ChannelHandlerContext,
     private val log = LoggerFactory.getLogger(classOf[MessageSender])
     private val lastOp = new AtomicReference[Future[Boolean]](start)
 
+    // First write error, after which no more messages are written
+    @volatile private var failure: Throwable = null
+
+    // Flush scheduled in the event loop: only accessed from the event loop
+    private var flushPending = false
+    private val flushTask = new Runnable {
+        override def run(): Unit = {
+            flushPending = false
+            ctx.flush()
+        }
+    }
+
     def getWriteExecutionContext: ExecutionContext = ec
     def ready: Future[Boolean] = lastOp.get()
 
@@ -144,13 +209,84 @@ class MessageSender(val ctx: ChannelHandlerContext,
      */
     def send(msg: Message, flush: Boolean = false): Future[Boolean] =
         doWhenReady({sendNow(msg, _, flush)})
-    def sendAndFlush(msg: Message): Future[Boolean] = send(msg, flush = true)
     def flush() :Future[Boolean] = doWhenReady({flushNow(_)})
 
+    /**
+     * Send a message, coalescing its flush with those of the other messages
+     * written during the same event loop turn. Unlike send, the next
+     * operations wait only until the write is queued in the event loop, and
+     * not until it is complete.
+     * @param msg is the message to send
+     * @return a future that completes when the write is actually done
+     */
+    def sendAndFlush(msg: Message): Future[Boolean] = {
+        val done = Promise[Boolean]()
+        val queued = Promise[Boolean]()
+        val previous = lastOp.getAndSet(queued.future)
+        previous.value match {
+            case Some(Success(_)) =>
+                queueAndFlush(msg, done)
+                queued.success(true)
+            case _ =>
+                previous.onSuccess({case _ =>
+                    queueAndFlush(msg, done)
+                    queued.success(true)
+                })
+                previous.onFailure({case err =>
+                    queued.failure(err)
+                    done.failure(err)
+                })
+        }
+        done.future
+    }
+
+    // Queue the write in the event loop, scheduling a flush after the writes
+    // queued so far, unless there is already a pending flush; netty runs the
+    // event loop tasks in order, so the pending flush will include this
+    // write
+    private def queueAndFlush(msg: Message, done: Promise[Boolean]): Unit = {
+        val loop = ctx.executor()
+        loop.execute(new Runnable {
+            override def run(): Unit = {
+                if (failure ne null) {
+                    log.debug("dropped message after failure: " + msg)
+                    done.failure(failure)
+                    return
+                }
+                log.debug("sending message: " + msg)
+                ctx.write(msg).addListener(listener(msg, done))
+                if (!flushPending) {
+                    flushPending = true
+                    loop.execute(flushTask)
+                }
+            }
+        })
+    }
+
+    private def listener(msg: Message, done: Promise[Boolean])
+        : GenericFutureListener[ChannelFuture] =
+        new GenericFutureListener[ChannelFuture] {
+            override def operationComplete(f: ChannelFuture): Unit = {
+                if (f.isSuccess) {
+                    log.debug("sent message: " + msg)
+                    done.success(true)
+                } else if (f.isCancelled) {
+                    log.debug("canceled message: " + msg)
+                    done.success(false)
+                } else {
+                    log.debug("failed message: " + msg, f.cause)
+                    if (failure eq null) failure = f.cause
+                    done.failure(f.cause)
+                }
+            }
+        }
+
     private def doWhenReady(op: Promise[Boolean] => Unit): Future[Boolean] = {
         val done = Promise[Boolean]()
         val previous = lastOp.getAndSet(done.future)
-        previous.onSuccess({case _ => op(done)})
+        previous.onSuccess({case _ =>
+            if (failure ne null) done.failure(failure) else op(done)
+        })
         previous.onFailure({case err => done.failure(err)})
         done.future
     }
@@ -167,20 +303,7 @@ class MessageSender(val ctx: ChannelHandlerContext,
         log.debug("sending message: " + msg)
         val future: ChannelFuture =
             if (flush) ctx.writeAndFlush(msg) else ctx.write(msg)
-        future.addListener(new GenericFutureListener[ChannelFuture] {
-            override def operationComplete(f: ChannelFuture): Unit = {
-                if (f.isSuccess) {
-                    log.debug("sent message: " + msg)
-                    done.success(true)
-                } else if (f.isCancelled) {
-                    log.debug("canceled message: " + msg)
-                    done.success(false)
-                } else {
-                    log.debug("failed message: " + msg, f.cause)
-                    done.failure(f.cause)
-                }
-            }
-        })
+        future.addListener(listener(msg, done))
         done.future
     }
 
@@ -45,6 +45,8 @@ class RequestHandler(private val connMgr: ConnectionManager)
         case Error(ctx, exc) =>
             connMgr.get(ctx).error(exc)
             log.debug("api connection error", exc)
+        case WritabilityChanged(ctx) =>
+            connMgr.get(ctx).writabilityChanged()
         case Request(ctx, pb) =>
             // WARNING: the reference to the protobuf will be
             // automatically released by the netty back-end;
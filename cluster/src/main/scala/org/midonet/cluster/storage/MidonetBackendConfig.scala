@@ -33,4 +33,6 @@ class MidonetBackendConfig(val conf: Config) {
     def maxRetries = conf.getInt("zookeeper.max_retries")
     def retryMs = conf.getDuration("zookeeper.base_retry", TimeUnit.MILLISECONDS)
     def useNewStack = conf.getBoolean("zookeeper.use_new_stack")
+    def optimisticTransactions = conf.getBoolean("zookeeper.optimistic_transactions")
+    def transactionAttempts = conf.getInt("zookeeper.transaction_attempts")
 }
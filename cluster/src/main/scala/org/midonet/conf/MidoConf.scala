@@ -147,6 +147,8 @@ object MidoNodeConfigurator {
             |    max_retries : 10
             |    base_retry : 1s
             |    use_new_stack : false
+            |    optimistic_transactions : false
+            |    transaction_attempts : 5
             |}
             """.stripMargin)
 
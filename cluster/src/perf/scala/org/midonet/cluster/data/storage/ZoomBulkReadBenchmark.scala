@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+import scala.concurrent.{Await, ExecutionContext, Future}
+import scala.concurrent.duration._
+
+import org.apache.curator.framework.{CuratorFramework, CuratorFrameworkFactory}
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.cluster.models.Topology.Network
+import org.midonet.cluster.util.UUIDUtil._
+
+object ZoomBulkReadBenchmark {
+    final val Objects = 100000
+    final val CreateBatch = 1000
+    final val BatchSize = 1000
+    final val Timeout = 5 minutes
+}
+
+/*
+ * Loads 100k networks from a ZooKeeper server running in the same JVM, with
+ * a future per object, with ZOOM's getAll, which goes through the batched
+ * reads, and with the batched reads of getBatches directly. The
+ * children of the class node exceed the default jute.maxbuffer, which is
+ * raised for the forked JVM.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = Array("-Djute.maxbuffer=16777216"))
+@State(Scope.Benchmark)
+class ZoomBulkReadBenchmark {
+    import org.midonet.cluster.data.storage.ZoomBulkReadBenchmark._
+
+    var server: TestingServer = _
+    var curator: CuratorFramework = _
+    var zoom: ZookeeperObjectMapper = _
+    var ids: Seq[UUID] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        server = new TestingServer
+        curator = CuratorFrameworkFactory.newClient(server.getConnectString,
+                                                    new RetryOneTime(1000))
+        curator.start()
+        curator.blockUntilConnected()
+
+        zoom = new ZookeeperObjectMapper("/zoom", curator)
+        zoom.registerClass(classOf[Network])
+        zoom.build()
+
+        ids = Seq.fill(Objects)(UUID.randomUUID())
+        for (i <- 0 until Objects / CreateBatch) {
+            zoom.multi(for (j <- 0 until CreateBatch) yield {
+                CreateOp(Network.newBuilder()
+                             .setId(ids(i * CreateBatch + j).asProto)
+                             .setTenantId("tenant")
+                             .setName(s"network-${i * CreateBatch + j}")
+                             .setAdminStateUp(true).build())
+            })
+        }
+    }
+
+    @TearDown
+    def tearDown(): Unit = {
+        curator.close()
+        server.close()
+    }
+
+    @Benchmark
+    def getEach(): Int = {
+        implicit val ec = ExecutionContext.global
+        Await.result(Future.sequence(zoom.getAll(classOf[Network], ids)),
+                     Timeout).size
+    }
+
+    @Benchmark
+    def getAll(): Int = {
+        Await.result(zoom.getAll(classOf[Network]), Timeout).size
+    }
+
+    @Benchmark
+    def getBatches(): Int = {
+        zoom.getBatches(classOf[Network], BatchSize).toBlocking.toIterable
+            .asScala.foldLeft(0)(_ + _.size)
+    }
+}
@@ -751,6 +751,19 @@ class InMemoryStorageTest extends FeatureSpec with BeforeAndAfter
                                                                    chain2.id)
         }
 
+        scenario("Test get in batches") {
+            val chains = for (i <- 0 until 5) yield createPojoChain()
+            storage.multi(chains.map(CreateOp))
+
+            val obs = makeObservable[Seq[PojoChain]](storage.assertIoThread)
+            storage.getBatches(classOf[PojoChain], 2).subscribe(obs)
+            obs.awaitCompletion(1 second)
+            obs.getOnNextEvents.asScala.map(_.size) shouldBe Seq(2, 2, 1)
+            obs.getOnNextEvents.asScala.flatten.map(_.id) should
+                contain theSameElementsAs chains.map(_.id)
+            obs.getOnErrorEvents shouldBe empty
+        }
+
         scenario("Test subscriber gets initial value") {
             val chain = createPojoChain()
             storage.create(chain)
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster.data.storage
+
+import java.util.ConcurrentModificationException
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Promise}
+import scala.util.Try
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.api.{BackgroundCallback, CuratorEvent}
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import rx.observers.TestObserver
+
+import org.midonet.cluster.data.storage.ZookeeperObjectMapperTest._
+import org.midonet.util.reactivex.AwaitableObserver
+
+/**
+ * Runs the tests of the object mapper with optimistic transactions, and tests
+ * the retries of the transactions that conflict.
+ */
+@RunWith(classOf[JUnitRunner])
+class ZookeeperObjectMapperOptimisticTests extends ZookeeperObjectMapperTests {
+    import org.midonet.cluster.data.storage.ZookeeperObjectMapperTests._
+
+    private val Attempts = 3
+
+    override protected def newZoom(): ZookeeperObjectMapper =
+        new ZookeeperObjectMapper(ZK_ROOT, curator, true, Attempts)
+
+    /* A validator that renames the rule in another transaction the first
+     * `conflicts` times that it is called. */
+    private class ConflictingValidator(conflicts: Int)
+        extends UpdateValidator[PojoRule] {
+        var calls = 0
+        override def validate(oldObj: PojoRule, newObj: PojoRule): PojoRule = {
+            calls += 1
+            if (calls <= conflicts) {
+                val concurrent = pojoRule(name = s"concurrent-$calls")
+                concurrent.id = oldObj.id
+                zom.update(concurrent)
+            }
+            newObj
+        }
+    }
+
+    def testRetryOnConcurrentModification() {
+        val rule = pojoRule(name = "rule")
+        zom.create(rule)
+
+        rule.name = "updated"
+        val validator = new ConflictingValidator(1)
+        zom.update(rule, validator)
+
+        validator.calls shouldBe 2
+        await(zom.get(classOf[PojoRule], rule.id)).name shouldBe "updated"
+    }
+
+    def testConcurrentModificationAfterAllAttempts() {
+        val rule = pojoRule(name = "rule")
+        zom.create(rule)
+
+        rule.name = "updated"
+        val validator = new ConflictingValidator(Attempts)
+        intercept[ConcurrentModificationException] {
+            zom.update(rule, validator)
+        }
+
+        validator.calls shouldBe Attempts
+        await(zom.get(classOf[PojoRule], rule.id)).name shouldBe
+            s"concurrent-$Attempts"
+    }
+
+    @Test(timeout = 2000)
+    def testUpdateWithSubscribedObjects() {
+        val bridge = pojoBridge(name = "bridge")
+        zom.create(bridge)
+        val obs = new TestObserver[PojoBridge] with AwaitableObserver[PojoBridge]
+        zom.observable(classOf[PojoBridge], bridge.id).subscribe(obs)
+        obs.awaitOnNext(1, 1.second)
+
+        // The bridge is read from the cache.
+        val port1 = pojoPort(bridgeId = bridge.id)
+        zom.create(port1)
+
+        // The cache may not have seen the write yet: the transaction is then
+        // retried with the bridge read from storage.
+        bridge.name = "renamed"
+        bridge.portIds = List(port1.id).asJava
+        curator.setData().forPath(zom.getPath(classOf[PojoBridge], bridge.id),
+                                  ZookeeperObjectMapper.serialize(bridge))
+        val port2 = pojoPort(bridgeId = bridge.id)
+        zom.create(port2)
+
+        val updated = await(zom.get(classOf[PojoBridge], bridge.id))
+        updated.name shouldBe "renamed"
+        updated.portIds.asScala should contain theSameElementsAs
+            List(port1.id, port2.id)
+    }
+
+    @Test(timeout = 2000)
+    def testCreateOnCuratorEventThread() {
+        val bridge = pojoBridge(name = "bridge")
+        zom.create(bridge)
+
+        // The transaction must not wait for background reads, which would
+        // complete on the thread that it blocks.
+        val port = pojoPort(bridgeId = bridge.id)
+        val done = Promise[Unit]()
+        curator.getData.inBackground(new BackgroundCallback {
+            override def processResult(client: CuratorFramework,
+                                       event: CuratorEvent): Unit =
+                done complete Try(zom.create(port))
+        }).forPath(zom.getPath(classOf[PojoBridge], bridge.id))
+        Await.result(done.future, 1.second)
+
+        await(zom.get(classOf[PojoBridge], bridge.id)).portIds.asScala shouldBe
+            List(port.id)
+    }
+}
@@ -43,14 +43,17 @@ class ZookeeperObjectMapperTests extends Suite
                                  with Matchers {
     import org.midonet.cluster.data.storage.ZookeeperObjectMapperTests._
 
-    private var zom: ZookeeperObjectMapper = _
+    protected var zom: ZookeeperObjectMapper = _
 
     override protected def setup(): Unit = {
-        zom = new ZookeeperObjectMapper(ZK_ROOT, curator)
+        zom = newZoom()
         initAndBuildZoom(zom)
     }
 
-    private def initAndBuildZoom(zom: ZookeeperObjectMapper) {
+    protected def newZoom(): ZookeeperObjectMapper =
+        new ZookeeperObjectMapper(ZK_ROOT, curator)
+
+    protected def initAndBuildZoom(zom: ZookeeperObjectMapper) {
         List(classOf[PojoBridge], classOf[PojoRouter], classOf[PojoPort],
              classOf[PojoChain], classOf[PojoRule], classOf[Network],
              classOf[Router], classOf[Port], classOf[Chain],
@@ -447,6 +450,58 @@ class ZookeeperObjectMapperTests extends Suite
         obs.awaitOnNext(2, 1.second)
     }
 
+    @Test(timeout = 2000)
+    def testGetBatches() {
+        val bridges = for (i <- 0 until 25) yield pojoBridge(name = s"br$i")
+        zom.multi(bridges.map(CreateOp))
+
+        val obs = new TestObserver[Seq[PojoBridge]]
+                      with AwaitableObserver[Seq[PojoBridge]]
+        zom.getBatches(classOf[PojoBridge], bridges.map(_.id), 10)
+           .subscribe(obs)
+        obs.awaitCompletion(1.second)
+        obs.getOnErrorEvents shouldBe empty
+        obs.getOnNextEvents.asScala.map(_.size).sorted shouldBe Seq(5, 10, 10)
+        obs.getOnNextEvents.asScala.flatten.map(_.id) should
+            contain theSameElementsAs bridges.map(_.id)
+    }
+
+    @Test(timeout = 2000)
+    def testGetBatchesOfClass() {
+        val chains = for (i <- 0 until 5) yield protoChain(name = s"chain$i")
+        zom.multi(chains.map(CreateOp))
+
+        val obs = new TestObserver[Seq[Chain]] with AwaitableObserver[Seq[Chain]]
+        zom.getBatches(classOf[Chain], 2).subscribe(obs)
+        obs.awaitCompletion(1.second)
+        obs.getOnErrorEvents shouldBe empty
+        obs.getOnNextEvents.asScala.flatten.map(_.getId) should
+            contain theSameElementsAs chains.map(_.getId)
+    }
+
+    @Test(timeout = 2000)
+    def testGetAllOfClass() {
+        val bridges = for (i <- 0 until 300) yield pojoBridge(name = s"br$i")
+        zom.multi(bridges.map(CreateOp))
+
+        Await.result(zom.getAll(classOf[PojoBridge]), 1.second).map(_.id) should
+            contain theSameElementsAs bridges.map(_.id)
+    }
+
+    @Test(timeout = 2000)
+    def testGetBatchesWithMissingObject() {
+        val bridge = pojoBridge()
+        zom.create(bridge)
+
+        val obs = new TestObserver[Seq[PojoBridge]]
+                      with AwaitableObserver[Seq[PojoBridge]]
+        zom.getBatches(classOf[PojoBridge], Seq(bridge.id, UUID.randomUUID), 10)
+           .subscribe(obs)
+        obs.awaitCompletion(1.second)
+        obs.getOnNextEvents shouldBe empty
+        obs.getOnErrorEvents.get(0).getClass shouldBe classOf[NotFoundException]
+    }
+
     def testSubscribeWithGc() = {
         val bridge = createBridge()
         val obs = new TestObserver[PojoBridge]
@@ -18,16 +18,20 @@ package org.midonet.cluster.services.topology.common
 
 import java.util.concurrent.Executor
 
-import scala.concurrent.{ExecutionContext, Promise}
+import scala.collection.mutable.ArrayBuffer
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.util.Failure
 
 import com.google.protobuf.Message
-import io.netty.channel.{ChannelFuture, ChannelHandlerContext}
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.{Channel, ChannelFuture, ChannelHandlerContext, ChannelInboundHandlerAdapter, ChannelOutboundHandlerAdapter, ChannelPromise}
 import io.netty.util.concurrent.GenericFutureListener
 import org.junit.runner.RunWith
 import org.mockito.{ArgumentCaptor, Mockito}
 import org.scalatest.junit.JUnitRunner
 import org.scalatest.{FeatureSpec, Matchers}
-import rx.Observer
+import rx.Observable.OnSubscribe
+import rx.{Observable, Observer, Producer, Subscriber}
 
 import org.midonet.cluster.rpc.Commands
 import org.midonet.cluster.services.topology.common.ProtocolFactory.State
@@ -143,6 +147,46 @@ class ConnectionTest extends FeatureSpec with Matchers {
             Mockito.verify(ctx, Mockito.times(1)).close()
             Mockito.verify(cMgr, Mockito.times(1)).unregister(ctx)
         }
+
+        scenario("output paused while the channel is not writable") {
+            val senderFactory = Mockito.mock(classOf[MessageSenderFactory])
+            val sender = Mockito.mock(classOf[MessageSender])
+            val ctx = Mockito.mock(classOf[ChannelHandlerContext])
+            val channel = Mockito.mock(classOf[Channel])
+            val cMgr = Mockito.mock(classOf[ConnectionManager])
+            val ack = Commands.Response.getDefaultInstance
+            val protocol = new TestLoopProtocolFactory(ack)
+            Mockito.when(senderFactory.get(ctx)).thenReturn(sender)
+            Mockito.when(sender.getWriteExecutionContext).thenReturn(writeEC)
+            Mockito.when(ctx.channel).thenReturn(channel)
+            Mockito.when(channel.isWritable).thenReturn(false)
+
+            val requests = new ArrayBuffer[Long]
+            val producer = new Producer {
+                override def request(n: Long): Unit = requests += n
+            }
+            val conn = new Connection(ctx, protocol, senderFactory)(cMgr)
+            Observable.create(new OnSubscribe[Message] {
+                override def call(s: Subscriber[_ >: Message]): Unit =
+                    s.setProducer(producer)
+            }).subscribe(conn)
+            requests shouldBe Seq[Long](2 * Connection.RequestBatch)
+
+            for (i <- 0 until Connection.RequestBatch) conn.onNext(ack)
+            Mockito.verify(sender, Mockito.times(Connection.RequestBatch))
+                .sendAndFlush(ack)
+            requests shouldBe Seq[Long](2 * Connection.RequestBatch)
+
+            Mockito.when(channel.isWritable).thenReturn(true)
+            conn.writabilityChanged()
+            requests shouldBe Seq[Long](2 * Connection.RequestBatch,
+                                  Connection.RequestBatch)
+
+            for (i <- 0 until Connection.RequestBatch) conn.onNext(ack)
+            requests shouldBe Seq[Long](2 * Connection.RequestBatch,
+                                  Connection.RequestBatch,
+                                  Connection.RequestBatch)
+        }
     }
 
     feature("connection sender")
@@ -280,6 +324,70 @@ class ConnectionTest extends FeatureSpec with Matchers {
 
         }
 
+        scenario("sender operation - coalesced flushes")
+        {
+            var flushes = 0
+            val counter = new ChannelOutboundHandlerAdapter {
+                override def flush(ctx: ChannelHandlerContext): Unit = {
+                    flushes += 1
+                    super.flush(ctx)
+                }
+            }
+            // the sender flushes through the handlers before its own
+            val handler = new ChannelInboundHandlerAdapter
+            val channel = new EmbeddedChannel(counter, handler)
+            val ctx = channel.pipeline().context(handler)
+            val msgs = for (i <- 0 until 3) yield Mockito.mock(classOf[Message])
+
+            val sender = new MessageSender(ctx, Future.successful(true), writeEC)
+            val done = msgs map sender.sendAndFlush
+            flushes shouldBe 0
+            done.exists(_.isCompleted) shouldBe false
+
+            channel.runPendingTasks()
+            flushes shouldBe 1
+            done.forall(_.isCompleted) shouldBe true
+            for (msg <- msgs) channel.readOutbound() shouldBe msg
+
+            sender.sendAndFlush(msgs.head)
+            channel.runPendingTasks()
+            flushes shouldBe 2
+            channel.readOutbound() shouldBe msgs.head
+            channel.finish()
+        }
+
+        scenario("sender operation - coalesced sends stop on failure")
+        {
+            val msgs = for (i <- 0 until 3) yield Mockito.mock(classOf[Message])
+            val error = new Exception("write failure")
+            val failing = new ChannelOutboundHandlerAdapter {
+                override def write(ctx: ChannelHandlerContext, msg: Any,
+                                   promise: ChannelPromise): Unit = {
+                    if (msg == msgs.head) promise.setFailure(error)
+                    else super.write(ctx, msg, promise)
+                }
+            }
+            val handler = new ChannelInboundHandlerAdapter
+            val channel = new EmbeddedChannel(failing, handler)
+            val ctx = channel.pipeline().context(handler)
+
+            val sender = new MessageSender(ctx, Future.successful(true), writeEC)
+            val done = msgs map sender.sendAndFlush
+            channel.runPendingTasks()
+
+            // the messages queued after the failed one are not written
+            for (d <- done) d.value shouldBe Some(Failure(error))
+            channel.readOutbound() shouldBe null
+
+            // and neither are the later messages
+            val later = sender.sendAndFlush(msgs(1))
+            channel.runPendingTasks()
+            later.value shouldBe Some(Failure(error))
+            sender.send(msgs(2)).value shouldBe Some(Failure(error))
+            channel.readOutbound() shouldBe null
+            channel.finish()
+        }
+
     }
 }
 
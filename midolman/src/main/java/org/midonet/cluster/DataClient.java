@@ -23,6 +23,7 @@ import java.util.UUID;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.zookeeper.Watcher;
 
 import org.midonet.cluster.data.AdRoute;
@@ -304,6 +305,15 @@ public interface DataClient {
     List<Subnet> dhcpSubnetsGetByBridgeEnabled(UUID bridgeId)
             throws StateAccessException, SerializationException;
 
+    /**
+     * Gets the enabled DHCP subnets of a bridge, and sets a watcher on the
+     * subnets of the bridge, enabled or not. The watcher runs when a subnet
+     * is added, removed or updated.
+     */
+    List<Subnet> dhcpSubnetsGetByBridgeEnabled(UUID bridgeId,
+                                               Runnable watcher)
+            throws StateAccessException, SerializationException;
+
     void dhcpHostsCreate(@Nonnull UUID bridgeId, @Nonnull IPv4Subnet subnet,
                          org.midonet.cluster.data.dhcp.Host host)
             throws StateAccessException, SerializationException;
@@ -323,6 +333,14 @@ public interface DataClient {
             UUID bridgeId, IPv4Subnet subnet)
             throws StateAccessException, SerializationException;
 
+    /**
+     * Gets the DHCP hosts of a subnet, and sets a watcher on them. The
+     * watcher runs when a host is added, removed or updated.
+     */
+    List<org.midonet.cluster.data.dhcp.Host> dhcpHostsGetBySubnet(
+            UUID bridgeId, IPv4Subnet subnet, Runnable watcher)
+            throws StateAccessException, SerializationException;
+
     /* DHCPV6 related methods */
     void dhcpSubnet6Create(@Nonnull UUID bridgeId, @Nonnull Subnet6 subnet)
             throws StateAccessException, SerializationException;
@@ -807,6 +825,14 @@ public interface DataClient {
     UUID routesCreateEphemeral(@Nonnull Route route)
             throws StateAccessException, SerializationException;
 
+    /**
+     * Creates an ephemeral route with the given id without blocking on the
+     * write, which is batched with other concurrent writes.
+     */
+    ListenableFuture<UUID> routesCreateEphemeralAsync(@Nonnull UUID id,
+                                                      @Nonnull Route route)
+            throws StateAccessException, SerializationException;
+
     List<Route> routesFindByRouter(UUID routerId)
             throws StateAccessException, SerializationException;
 
@@ -34,6 +34,7 @@ import javax.inject.Inject;
 import javax.inject.Named;
 
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.tuple.MutablePair;
@@ -988,6 +989,24 @@ public class LocalDataClientImpl implements DataClient {
         return subnets;
     }
 
+    @Override
+    public List<Subnet> dhcpSubnetsGetByBridgeEnabled(UUID bridgeId,
+                                                      Runnable watcher)
+            throws StateAccessException, SerializationException {
+
+        List<BridgeDhcpZkManager.Subnet> subnetConfigs =
+                dhcpZkManager.getEnabledSubnets(bridgeId, watcher);
+        List<Subnet> subnets = new ArrayList<>(subnetConfigs.size());
+
+        for (BridgeDhcpZkManager.Subnet subnetConfig : subnetConfigs) {
+            Subnet subnet = Converter.fromDhcpSubnetConfig(subnetConfig);
+            subnet.setId(subnetConfig.getSubnetAddr().toZkString());
+            subnets.add(subnet);
+        }
+
+        return subnets;
+    }
+
     @Override
     public void dhcpHostsCreate(
             @Nonnull UUID bridgeId, @Nonnull IPv4Subnet subnet,
@@ -1046,6 +1065,26 @@ public class LocalDataClientImpl implements DataClient {
         return hosts;
     }
 
+    @Override
+    public
+    List<org.midonet.cluster.data.dhcp.Host> dhcpHostsGetBySubnet(
+            UUID bridgeId, IPv4Subnet subnet, Runnable watcher)
+            throws StateAccessException, SerializationException {
+
+        List<BridgeDhcpZkManager.Host> hostConfigs =
+                dhcpZkManager.getHosts(bridgeId, subnet, watcher);
+        List<org.midonet.cluster.data.dhcp.Host> hosts =
+                new ArrayList<>(hostConfigs.size());
+        for (BridgeDhcpZkManager.Host hostConfig : hostConfigs) {
+            org.midonet.cluster.data.dhcp.Host host =
+                Converter.fromDhcpHostConfig(hostConfig);
+            host.setId(hostConfig.getMac());
+            hosts.add(host);
+        }
+
+        return hosts;
+    }
+
     @Override
     public void dhcpSubnet6Create(@Nonnull UUID bridgeId,
                                   @Nonnull Subnet6 subnet)
@@ -2842,6 +2881,14 @@ public class LocalDataClientImpl implements DataClient {
         return routeZkManager.create(Converter.toRouteConfig(route), false);
     }
 
+    @Override
+    public ListenableFuture<UUID> routesCreateEphemeralAsync(
+            @Nonnull UUID id, @Nonnull Route route)
+            throws StateAccessException, SerializationException {
+        return routeZkManager.asyncCreate(id, Converter.toRouteConfig(route),
+                                          false);
+    }
+
     @Override
     public List<Route> routesFindByRouter(UUID routerId)
             throws StateAccessException, SerializationException {
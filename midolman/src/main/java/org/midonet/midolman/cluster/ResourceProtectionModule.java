@@ -24,6 +24,7 @@ import com.google.inject.Singleton;
 
 import org.midonet.midolman.config.MidolmanConfig;
 import org.midonet.midolman.io.TokenBucketPolicy;
+import org.midonet.midolman.io.UpcallAdmission;
 import org.midonet.util.Bucket;
 import org.midonet.util.StatisticalCounter;
 import org.midonet.util.TokenBucket;
@@ -39,6 +40,7 @@ public class ResourceProtectionModule extends PrivateModule {
         requireBinding(MidolmanConfig.class);
         expose(StatisticalCounter.class);
         expose(TokenBucketPolicy.class);
+        expose(UpcallAdmission.class);
     }
 
     @Provides
@@ -82,4 +84,12 @@ public class ResourceProtectionModule extends PrivateModule {
                     }
                 });
     }
+
+    @Provides
+    @Singleton
+    UpcallAdmission provideUpcallAdmission(MidolmanConfig conf,
+                                           TokenBucketPolicy tbPolicy,
+                                           StatisticalCounter counter) {
+        return new UpcallAdmission(conf, tbPolicy, counter);
+    }
 }
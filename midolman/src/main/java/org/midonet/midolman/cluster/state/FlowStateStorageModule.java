@@ -15,6 +15,7 @@
  */
 package org.midonet.midolman.cluster.state;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Inject;
 import com.google.inject.Key;
 import com.google.inject.PrivateModule;
@@ -23,8 +24,10 @@ import com.google.inject.name.Named;
 import com.google.inject.name.Names;
 
 import org.midonet.cluster.backend.cassandra.CassandraClient;
+import org.midonet.midolman.config.CassandraConfig;
 import org.midonet.midolman.config.MidolmanConfig;
 import org.midonet.midolman.cluster.zookeeper.ZkConnectionProvider;
+import org.midonet.midolman.monitoring.metrics.FlowStateStorageMetrics;
 import org.midonet.midolman.state.FlowStateStorage;
 import org.midonet.midolman.state.FlowStateStorage$;
 import org.midonet.midolman.state.FlowStateStorageFactory;
@@ -37,6 +40,7 @@ public class FlowStateStorageModule extends PrivateModule {
         binder().requireExplicitBindings();
 
         requireBinding(MidolmanConfig.class);
+        requireBinding(MetricRegistry.class);
         requireBinding(Key.get(Reactor.class, Names.named(
                 ZkConnectionProvider.DIRECTORY_REACTOR_TAG)));
 
@@ -53,6 +57,9 @@ public class FlowStateStorageModule extends PrivateModule {
         @Named(ZkConnectionProvider.DIRECTORY_REACTOR_TAG)
         Reactor reactor;
 
+        @Inject
+        MetricRegistry metricRegistry;
+
         @Override
         public FlowStateStorageFactory get() {
             CassandraClient cass = new CassandraClient(
@@ -60,20 +67,28 @@ public class FlowStateStorageModule extends PrivateModule {
                     "MidonetFlowState", config.cassandra().replication_factor(),
                     FlowStateStorage$.MODULE$.SCHEMA(), reactor);
             cass.connect();
-            return new FlowStateStorageFactoryImpl(cass);
+            return new FlowStateStorageFactoryImpl(
+                cass, config.cassandra(),
+                new FlowStateStorageMetrics(metricRegistry));
         }
     }
 
     private static class FlowStateStorageFactoryImpl implements FlowStateStorageFactory {
         CassandraClient cass;
+        CassandraConfig config;
+        FlowStateStorageMetrics metrics;
 
-        public FlowStateStorageFactoryImpl(CassandraClient cass) {
+        public FlowStateStorageFactoryImpl(CassandraClient cass,
+                                           CassandraConfig config,
+                                           FlowStateStorageMetrics metrics) {
             this.cass = cass;
+            this.config = config;
+            this.metrics = metrics;
         }
 
         @Override
         public FlowStateStorage create() {
-            return FlowStateStorage$.MODULE$.apply(cass);
+            return FlowStateStorage$.MODULE$.apply(cass, config, metrics);
         }
     }
 }
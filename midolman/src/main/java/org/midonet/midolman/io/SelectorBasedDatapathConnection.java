@@ -23,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.midolman.config.MidolmanConfig;
+import org.midonet.midolman.management.ThreadPlacement;
 import org.midonet.netlink.BufferPool;
 import org.midonet.netlink.Netlink;
 import org.midonet.odp.protos.OvsDatapathConnection;
@@ -47,17 +48,33 @@ public class SelectorBasedDatapathConnection implements ManagedDatapathConnectio
     private OvsDatapathConnection conn = null;
     private final boolean singleThreaded;
     private final Bucket bucket;
+    private final String cpuGroup;
 
+    /**
+     * @param cpuGroup The {@link ThreadPlacement} group of the CPUs where the
+     *                 select loop threads are pinned, or null to leave them
+     *                 unpinned.
+     */
     public SelectorBasedDatapathConnection(String name,
                                            MidolmanConfig config,
                                            boolean singleThreaded,
                                            Bucket bucket,
-                                           BufferPool sendPool) {
+                                           BufferPool sendPool,
+                                           String cpuGroup) {
         this.config = config;
         this.name = name;
         this.singleThreaded = singleThreaded;
         this.bucket = bucket;
         this.sendPool = sendPool;
+        this.cpuGroup = cpuGroup;
+    }
+
+    public SelectorBasedDatapathConnection(String name,
+                                           MidolmanConfig config,
+                                           boolean singleThreaded,
+                                           Bucket bucket,
+                                           BufferPool sendPool) {
+        this(name, config, singleThreaded, bucket, sendPool, null);
     }
 
     public SelectorBasedDatapathConnection(String name,
@@ -164,6 +181,8 @@ public class SelectorBasedDatapathConnection implements ManagedDatapathConnectio
         Thread th = new Thread(new Runnable() {
             @Override
             public void run() {
+                if (cpuGroup != null)
+                    ThreadPlacement.pin(cpuGroup);
                 try {
                     loop.doLoop();
                 } catch (IOException e) {
@@ -25,6 +25,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.midolman.config.MidolmanConfig;
+import org.midonet.midolman.management.ThreadPlacement;
 import org.midonet.netlink.BufferPool;
 import org.midonet.netlink.Netlink;
 import org.midonet.odp.protos.OvsDatapathConnection;
@@ -45,14 +46,26 @@ public class SelectorThreadPair {
     private SelectLoop readLoop;
     private SelectLoop writeLoop;
     private final boolean singleThreaded;
+    private final String cpuGroup;
 
     private Set<ManagedDatapathConnection> conns = new HashSet<>();
 
+    /**
+     * @param cpuGroup The {@link ThreadPlacement} group of the CPUs where the
+     *                 select loop threads are pinned, or null to leave them
+     *                 unpinned.
+     */
     public SelectorThreadPair(String name, MidolmanConfig config,
-                              boolean singleThreaded) {
+                              boolean singleThreaded, String cpuGroup) {
         this.config = config;
         this.name = name;
         this.singleThreaded = singleThreaded;
+        this.cpuGroup = cpuGroup;
+    }
+
+    public SelectorThreadPair(String name, MidolmanConfig config,
+                              boolean singleThreaded) {
+        this(name, config, singleThreaded, null);
     }
 
     public SelectorThreadPair(String name, MidolmanConfig config) {
@@ -187,6 +200,8 @@ public class SelectorThreadPair {
         Thread th = new Thread(new Runnable() {
             @Override
             public void run() {
+                if (cpuGroup != null)
+                    ThreadPlacement.pin(cpuGroup);
                 try {
                     loop.doLoop();
                 } catch (IOException e) {
@@ -16,5 +16,10 @@
 package org.midonet.midolman.management;
 
 public enum LogLevel {
-    DEBUG, TRACE
+    DEBUG, TRACE,
+    /**
+     * Records binary trace events for the matched packets, without changing
+     * their log level.
+     */
+    RECORD
 }
@@ -24,4 +24,12 @@ public interface PacketTracingMXBean {
     int removeTracer(PacketTracer tracer);
     int flush();
     int flushDeadTracers();
+
+    /**
+     * Returns the latest trace events recorded by the packet processing
+     * threads, at most limit. If id is not empty, only the events of the
+     * packets that traversed the device, port or rule with that identifier
+     * are returned.
+     */
+    PacketTraceEvent[] dumpTraceEvents(String id, int limit);
 }
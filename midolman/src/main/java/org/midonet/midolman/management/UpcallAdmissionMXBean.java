@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.management;
+
+import org.midonet.midolman.io.UpcallPortDrops;
+
+public interface UpcallAdmissionMXBean {
+    static String NAME = "org.midonet.midolman:type=UpcallAdmission";
+
+    /**
+     * Returns, for every datapath port that received upcalls, the upcalls
+     * that were admitted and those that were shed, by class.
+     */
+    UpcallPortDrops[] getPortDrops();
+
+    /**
+     * Returns the current limit of upcalls waiting to be processed by the
+     * simulation threads.
+     */
+    int getQueueLimit();
+
+    /**
+     * Returns the number of upcalls currently waiting to be processed by
+     * the simulation threads.
+     */
+    long getQueueDepth();
+
+    /**
+     * Returns the mean simulation latency, in microseconds, measured over
+     * the last control interval.
+     */
+    long getLatencyMicros();
+}
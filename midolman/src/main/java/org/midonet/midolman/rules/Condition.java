@@ -269,6 +269,18 @@ public class Condition extends BaseConfig {
         return !conjunctionInv;
     }
 
+    /**
+     * Tells whether the condition matches on the header fields of the packet,
+     * rather than only on its ports, port groups, direction or the devices it
+     * traversed. The fragment policy, which all conditions have, is ignored.
+     */
+    public boolean readsPacketFields() {
+        return etherType != null || ethSrc != null || ethDst != null ||
+               nwTos != null || nwProto != null || nwSrcIp != null ||
+               nwDstIp != null || tpSrc != null || tpDst != null ||
+               ipAddrGroupIdSrc != null || ipAddrGroupIdDst != null;
+    }
+
     private boolean matchPort(Set<UUID> condPorts, UUID port, boolean negate) {
         // Packet is considered to match if the field is null or empty set.
         if (condPorts == null || condPorts.isEmpty())
@@ -31,6 +31,7 @@ import org.midonet.cluster.data.ZoomField;
 import org.midonet.cluster.models.Topology;
 import org.midonet.cluster.util.IPAddressUtil;
 import org.midonet.midolman.NatTargetUtil;
+import org.midonet.midolman.management.PacketTraceBuffer;
 import org.midonet.midolman.rules.RuleResult.Action;
 import org.midonet.midolman.simulation.PacketContext;
 import org.midonet.packets.*;
@@ -100,8 +101,12 @@ public class ForwardNatRule extends NatRule {
     public void apply(PacketContext pktCtx, RuleResult res, UUID ownerId) {
         boolean gotNat = dnat ? applyDnat(pktCtx, ownerId)
                               : applySnat(pktCtx, ownerId);
-        if (gotNat)
+        if (gotNat) {
             res.action = action;
+            pktCtx.traceEvent(PacketTraceBuffer.NatApplied(), id,
+                              dnat ? PacketTraceBuffer.Dnat()
+                                   : PacketTraceBuffer.Snat());
+        }
     }
 
     protected boolean applyDnat(PacketContext pktCtx, UUID ownerId) {
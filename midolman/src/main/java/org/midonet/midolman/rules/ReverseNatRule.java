@@ -18,6 +18,7 @@ package org.midonet.midolman.rules;
 
 import java.util.UUID;
 
+import org.midonet.midolman.management.PacketTraceBuffer;
 import org.midonet.midolman.rules.RuleResult.Action;
 import org.midonet.midolman.simulation.PacketContext;
 
@@ -43,8 +44,12 @@ public class ReverseNatRule extends NatRule {
         boolean reversed = dnat ? applyReverseDnat(pktCtx, ownerId)
                                 : applyReverseSnat(pktCtx, ownerId);
 
-        if (reversed)
+        if (reversed) {
             res.action = action;
+            pktCtx.traceEvent(PacketTraceBuffer.NatApplied(), id,
+                              dnat ? PacketTraceBuffer.ReverseDnat()
+                                   : PacketTraceBuffer.ReverseSnat());
+        }
     }
 
     protected boolean applyReverseDnat(PacketContext pktCtx, UUID ownerId) {
@@ -34,6 +34,7 @@ import org.midonet.cluster.data.ZoomConvert;
 import org.midonet.cluster.data.ZoomField;
 import org.midonet.cluster.models.Topology;
 import org.midonet.cluster.util.UUIDUtil;
+import org.midonet.midolman.management.PacketTraceBuffer;
 import org.midonet.midolman.rules.RuleResult.Action;
 import org.midonet.midolman.simulation.PacketContext;
 import org.midonet.midolman.state.zkManagers.BaseConfig;
@@ -62,6 +63,8 @@ public abstract class Rule extends BaseConfig {
     @JsonIgnore
     public FlowTagger.UserTag meter;
     private Map<String, String> properties = new HashMap<String, String>();
+    private transient FlowTagger.FlowTag flowTag;
+    private transient boolean flowTagResolved;
 
     public Rule(Condition condition, Action action) {
         this(condition, action, null, -1);
@@ -156,6 +159,7 @@ public abstract class Rule extends BaseConfig {
     @SuppressWarnings("unused")
     private void setCondition(Condition cond) {
         this.condition = cond;
+        this.flowTagResolved = false;
     }
 
     /**
@@ -175,6 +179,8 @@ public abstract class Rule extends BaseConfig {
             pktCtx.jlog().debug(
                     "Condition matched on device {} chain {} with action {}",
                     ownerId, chainId, action);
+            pktCtx.traceEvent(PacketTraceBuffer.RuleMatched(), id,
+                              action.ordinal());
 
             if (meter != null)
                 pktCtx.addFlowTag(meter);
@@ -182,6 +188,24 @@ public abstract class Rule extends BaseConfig {
         }
     }
 
+    /**
+     * Returns the tag of the flows that evaluated this rule, or null if the
+     * flows are not tagged with it: when the rule does not have an identifier
+     * or its condition doesn't read the fields of the packet. Such a rule
+     * treats alike all the packets of a port or a direction, and a change to
+     * it invalidates every flow of its chain, so tagging the flows with it
+     * would only grow their tag sets.
+     */
+    public FlowTagger.FlowTag flowTag() {
+        if (!flowTagResolved) {
+            if (id != null && condition != null &&
+                condition.readsPacketFields())
+                flowTag = FlowTagger.tagForRule(id);
+            flowTagResolved = true;
+        }
+        return flowTag;
+    }
+
     public Condition getCondition() {
         return condition;
     }
@@ -28,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.midolman.host.services.HostService;
+import org.midonet.midolman.topology.VirtualTopology;
 
 /**
  * Basic controller of the internal midolman services.
@@ -55,6 +56,9 @@ public class MidolmanService extends AbstractService {
     @Inject(optional = true)
     HostService hostService;
 
+    @Inject(optional = true)
+    VirtualTopology virtualTopology;
+
     private JmxReporter jmxReporter = null;
 
     @Override
@@ -113,6 +117,14 @@ public class MidolmanService extends AbstractService {
             }
         }
 
+        if (virtualTopology != null) {
+            try {
+                virtualTopology.close();
+            } catch (Exception e) {
+                log.error("Could not close the virtual topology", e);
+            }
+        }
+
         if (state() != State.FAILED)
             notifyStopped();
     }
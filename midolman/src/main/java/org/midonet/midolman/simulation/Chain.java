@@ -111,6 +111,9 @@ public class Chain implements VirtualDevice {
         while (iter.hasNext() && res.action == Action.CONTINUE) {
 
             Rule r = iter.next();
+            FlowTagger.FlowTag ruleTag = r.flowTag();
+            if (ruleTag != null)
+                context.addFlowTag(ruleTag);
             r.process(context, res, ownerId, isPortFilter);
 
             if (res.action == Action.JUMP) {
@@ -15,22 +15,192 @@
  */
 package org.midonet.midolman.simulation
 
-import java.util.UUID
+import java.util.{Arrays, UUID}
+
+import scala.collection.mutable.ArrayBuffer
 
-import org.midonet.packets.IPAddr
 import org.midonet.midolman.topology.VirtualTopology.Device
+import org.midonet.packets.{IPAddr, IPv4Addr, IPv4Subnet}
+
+/**
+ * A group of IP addresses matched by rule conditions.
+ *
+ * IPv4 addresses are kept in a sorted array of integers, and IPv4 subnets as
+ * sorted, disjoint ranges, such that a lookup is a binary search and a group
+ * of many thousand addresses doesn't hold an object per address. Other
+ * addresses are kept in a set. The integers have their sign bit flipped, such
+ * that their signed order is the unsigned order of the addresses.
+ *
+ * A group is immutable: updated() returns a new group with the changes,
+ * merging them into the sorted addresses instead of building the group again.
+ */
+final class IPAddrGroup private(val id: UUID,
+                                ipv4: Array[Int],
+                                rangeStarts: Array[Int],
+                                rangeEnds: Array[Int],
+                                others: Set[IPAddr]) extends Device {
+    import IPAddrGroup._
+
+    def contains(addr: IPAddr): Boolean = addr match {
+        case ip: IPv4Addr =>
+            val key = keyOf(ip.toInt)
+            Arrays.binarySearch(ipv4, key) >= 0 || inRanges(key)
+        case null => false
+        case _ => others.contains(addr)
+    }
+
+    private def inRanges(key: Int): Boolean = {
+        if (rangeStarts.length == 0)
+            return false
+        val i = Arrays.binarySearch(rangeStarts, key)
+        // Otherwise, check the last range starting before the key.
+        i >= 0 || (i < -1 && key <= rangeEnds(-i - 2))
+    }
+
+    /** The number of addresses in the group, not counting the subnets. */
+    def size: Int = ipv4.length + others.size
+
+    /** The addresses in the group, not counting the subnets. */
+    def addrs: Set[IPAddr] = {
+        val builder = Set.newBuilder[IPAddr]
+        var i = 0
+        while (i < ipv4.length) {
+            builder += IPv4Addr.fromInt(addrOf(ipv4(i)))
+            i += 1
+        }
+        builder ++= others
+        builder.result()
+    }
+
+    /** The address ranges of the subnets in the group, first and last. */
+    def ranges: Seq[(IPv4Addr, IPv4Addr)] =
+        for (i <- 0 until rangeStarts.length)
+            yield (IPv4Addr.fromInt(addrOf(rangeStarts(i))),
+                   IPv4Addr.fromInt(addrOf(rangeEnds(i))))
+
+    /**
+     * Returns a group with the given addresses removed and added, in this
+     * order, such that an address both removed and added is kept. The subnets
+     * don't change.
+     */
+    def updated(added: Iterable[IPAddr], removed: Iterable[IPAddr])
+    : IPAddrGroup = {
+        val (addedIpv4, addedOthers) = split(added)
+        val (removedIpv4, removedOthers) = split(removed)
+        new IPAddrGroup(id, merge(ipv4, addedIpv4, removedIpv4), rangeStarts,
+                        rangeEnds, others -- removedOthers ++ addedOthers)
+    }
 
-class IPAddrGroup(val id: UUID, val addrs: Set[IPAddr]) extends Device {
-    def contains(addr: IPAddr) = addrs.contains(addr)
     override def toString =
-        "IPAddrGroup[id=%s, addrs=[%s]]".format(id, addrs.mkString(", "))
+        s"IPAddrGroup[id=$id, addrs=$size, ranges=${rangeStarts.length}]"
 }
 
 object IPAddrGroup {
+
+    private def keyOf(addr: Int): Int = addr ^ Int.MinValue
+
+    private def addrOf(key: Int): Int = key ^ Int.MinValue
+
+    def apply(id: UUID, addrs: Iterable[IPAddr],
+              subnets: Iterable[IPv4Subnet] = Nil): IPAddrGroup = {
+        val (ipv4, others) = split(addrs)
+        val (starts, ends) = rangesOf(subnets)
+        new IPAddrGroup(id, ipv4, starts, ends, others)
+    }
+
     /**
      * Added because initializing an immutable set from Java is a pain.
      */
     def fromAddrs(id: UUID, addrs: Array[IPAddr]): IPAddrGroup = {
-        new IPAddrGroup(id, addrs.toSet)
+        apply(id, addrs)
+    }
+
+    /* Splits the addresses into the sorted keys of the IPv4 addresses, and
+     * the set of other addresses. */
+    private def split(addrs: Iterable[IPAddr]): (Array[Int], Set[IPAddr]) = {
+        val ipv4 = new Array[Int](addrs.size)
+        val others = Set.newBuilder[IPAddr]
+        var n = 0
+        val it = addrs.iterator
+        while (it.hasNext) it.next() match {
+            case ip: IPv4Addr =>
+                ipv4(n) = keyOf(ip.toInt)
+                n += 1
+            case null =>
+            case ip => others += ip
+        }
+        (sortedUnique(ipv4, n), others.result())
+    }
+
+    private def sortedUnique(keys: Array[Int], length: Int): Array[Int] = {
+        Arrays.sort(keys, 0, length)
+        var n = 0
+        var i = 0
+        while (i < length) {
+            if (n == 0 || keys(n - 1) != keys(i)) {
+                keys(n) = keys(i)
+                n += 1
+            }
+            i += 1
+        }
+        if (n == keys.length) keys else Arrays.copyOf(keys, n)
+    }
+
+    /* Merges sorted keys into sorted keys, as (current - removed) ++ added. */
+    private def merge(current: Array[Int], added: Array[Int],
+                      removed: Array[Int]): Array[Int] = {
+        if (added.length == 0 && removed.length == 0)
+            return current
+        val keys = new Array[Int](current.length + added.length)
+        var n = 0
+        var i = 0
+        var j = 0
+        var r = 0
+        while (i < current.length || j < added.length) {
+            if (j == added.length ||
+                (i < current.length && current(i) < added(j))) {
+                val key = current(i)
+                while (r < removed.length && removed(r) < key)
+                    r += 1
+                if (r == removed.length || removed(r) != key) {
+                    keys(n) = key
+                    n += 1
+                }
+                i += 1
+            } else {
+                if (i < current.length && current(i) == added(j))
+                    i += 1
+                keys(n) = added(j)
+                n += 1
+                j += 1
+            }
+        }
+        if (n == keys.length) keys else Arrays.copyOf(keys, n)
+    }
+
+    /* Sorts the subnets into disjoint ranges of keys. A range that starts
+     * within the previous one is merged into it, whichever of two subnets
+     * with the same network address comes first. */
+    private def rangesOf(subnets: Iterable[IPv4Subnet])
+    : (Array[Int], Array[Int]) = {
+        val sorted = subnets.toArray
+            .map(s => {
+                val start = s.toNetworkAddress.toInt
+                val hostMask = if (s.getPrefixLen == 32) 0
+                               else -1 >>> s.getPrefixLen
+                (keyOf(start), keyOf(start | hostMask))
+            })
+            .sortBy(_._1)
+        val starts = new ArrayBuffer[Int](sorted.length)
+        val ends = new ArrayBuffer[Int](sorted.length)
+        for ((start, end) <- sorted) {
+            if (ends.isEmpty || start > ends.last) {
+                starts += start
+                ends += end
+            } else if (end > ends.last) {
+                ends(ends.length - 1) = end
+            }
+        }
+        (starts.toArray, ends.toArray)
     }
 }
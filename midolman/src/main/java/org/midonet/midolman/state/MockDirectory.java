@@ -540,6 +540,19 @@ public class MockDirectory implements Directory {
         public void process(WatchedEvent arg0) {
             watcher.run();
         }
+
+        // Watchers of the same runnable are equal, so that setting it again
+        // on a node that did not fire yet doesn't add another watcher.
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof MyWatcher &&
+                   ((MyWatcher) other).watcher == watcher;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(watcher);
+        }
     }
 
     @Override
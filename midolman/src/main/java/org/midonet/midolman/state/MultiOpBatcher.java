@@ -0,0 +1,345 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.state;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects groups of ZooKeeper operations submitted by many callers and
+ * writes them to a {@link Directory} as combined multi requests.
+ *
+ * Each group is atomic, as if it were written with its own multi, and its
+ * results are delivered through a future. Groups submitted while the
+ * previous batches are being written are committed together in the next
+ * batch, so that N concurrent callers pay for one round-trip rather than N.
+ * Up to maxInFlight batches are written concurrently, which pipelines them
+ * on the ZooKeeper connection. Unless given an executor, a batcher writes
+ * on a pool of daemon threads shared by all batchers.
+ *
+ * When one group in a batch fails, ZooKeeper rolls back the whole multi and
+ * reports the failed operation. The group that owns it fails with that
+ * error and the rest of the batch is written again without it. This relies
+ * on multi being atomic, as it is in ZooKeeper; MockDirectory applies the
+ * operations preceding a failed one, so tests using it should only batch
+ * groups that succeed.
+ *
+ * Order is only kept within a group. Groups that depend on each other, such
+ * as the creation of a node and of its children, must either be submitted
+ * as one group or wait for the future of the first one.
+ */
+public class MultiOpBatcher {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(MultiOpBatcher.class);
+
+    /** Maximum number of operations in a batch. A larger group is written
+     * alone. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+    /** Maximum number of batches being written at any time. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    /* The executor shared by the batchers created with the default
+     * settings, such that the many ZkManager instances of a process don't
+     * each own a pool. Its threads exit when idle, so it needs no
+     * shutdown. */
+    private static class SharedExecutor {
+        static final ThreadPoolExecutor INSTANCE = new ThreadPoolExecutor(
+            DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder().setNameFormat("zk-multi-%d")
+                                      .setDaemon(true).build());
+        static {
+            INSTANCE.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private static class Group {
+        final List<Op> ops;
+        final SettableFuture<List<OpResult>> future = SettableFuture.create();
+
+        Group(List<Op> ops) {
+            this.ops = ops;
+        }
+    }
+
+    private final Directory directory;
+    private final int maxBatchSize;
+    private final int maxInFlight;
+    private final Executor executor;
+
+    private final ConcurrentLinkedQueue<Group> queue =
+        new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong opCount = new AtomicLong();
+
+    private final Runnable flusher = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            // Groups queued after the last poll and before the decrement
+            // would otherwise wait for the next submission.
+            schedule();
+        }
+    };
+
+    public MultiOpBatcher(Directory directory) {
+        this(directory, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_IN_FLIGHT,
+             SharedExecutor.INSTANCE);
+    }
+
+    /**
+     * @param directory    the directory the batches are written to
+     * @param maxBatchSize the maximum number of operations in a batch
+     * @param maxInFlight  the maximum number of batches written concurrently,
+     *                     the executor must be able to run as many tasks
+     * @param executor     the executor on which batches are written
+     */
+    public MultiOpBatcher(Directory directory, int maxBatchSize,
+                          int maxInFlight, Executor executor) {
+        this.directory = directory;
+        this.maxBatchSize = maxBatchSize;
+        this.maxInFlight = maxInFlight;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns a builder for a new group of operations.
+     */
+    public Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Submits a group of operations, to be committed atomically. The future
+     * completes with the results of the operations, in order, or fails with
+     * the KeeperException of the group.
+     */
+    public ListenableFuture<List<OpResult>> submit(List<Op> ops) {
+        if (ops.isEmpty())
+            return Futures.immediateFuture(Collections.<OpResult>emptyList());
+        Group group = new Group(new ArrayList<>(ops));
+        queue.offer(group);
+        schedule();
+        return group.future;
+    }
+
+    /**
+     * Submits a single operation.
+     */
+    public ListenableFuture<OpResult> submit(Op op) {
+        Builder builder = builder();
+        ListenableFuture<OpResult> future = builder.add(op);
+        builder.commit();
+        return future;
+    }
+
+    /** Number of multi requests written to the directory. */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /** Number of operations written to the directory. */
+    public long getOpCount() {
+        return opCount.get();
+    }
+
+    private void schedule() {
+        while (!queue.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= maxInFlight)
+                return;
+            if (inFlight.compareAndSet(current, current + 1)) {
+                executor.execute(flusher);
+                return;
+            }
+        }
+    }
+
+    private void flush() {
+        List<Group> batch = new ArrayList<>();
+        Group next = queue.poll();
+        while (next != null) {
+            int size = 0;
+            do {
+                batch.add(next);
+                size += next.ops.size();
+                next = queue.poll();
+            } while (next != null && size + next.ops.size() <= maxBatchSize);
+
+            write(batch);
+            batch.clear();
+            if (next == null)
+                next = queue.poll();
+        }
+    }
+
+    private void write(List<Group> batch) {
+        List<Op> ops = batch.size() == 1 ? batch.get(0).ops : concat(batch);
+        batchCount.incrementAndGet();
+        opCount.addAndGet(ops.size());
+        try {
+            List<OpResult> results = directory.multi(ops);
+            int start = 0;
+            for (Group group : batch) {
+                int end = start + group.ops.size();
+                group.future.set(
+                    new ArrayList<>(results.subList(start, end)));
+                start = end;
+            }
+        } catch (KeeperException e) {
+            int failed = batch.size() > 1 ? failedGroup(batch, e) : -1;
+            if (failed < 0) {
+                fail(batch, e);
+            } else {
+                batch.remove(failed).future.setException(e);
+                write(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(batch, e);
+        } catch (RuntimeException e) {
+            log.error("Unexpected error writing {} operations", ops.size(), e);
+            fail(batch, e);
+        }
+    }
+
+    /* Finds the group that owns the operation that failed the multi, based
+     * on the per-operation results of the exception. Returns -1 when there
+     * are none, as in a connection loss. */
+    private static int failedGroup(List<Group> batch, KeeperException e) {
+        List<OpResult> results = e.getResults();
+        if (results == null)
+            return -1;
+        int index = 0;
+        for (int g = 0; g < batch.size(); g++) {
+            for (int i = 0; i < batch.get(g).ops.size(); i++, index++) {
+                if (index >= results.size())
+                    return -1;
+                OpResult result = results.get(index);
+                if (result instanceof OpResult.ErrorResult) {
+                    int err = ((OpResult.ErrorResult) result).getErr();
+                    if (err != KeeperException.Code.OK.intValue() &&
+                        err != KeeperException.Code.RUNTIMEINCONSISTENCY
+                                                   .intValue())
+                        return g;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static List<Op> concat(List<Group> batch) {
+        List<Op> ops = new ArrayList<>();
+        for (Group group : batch)
+            ops.addAll(group.ops);
+        return ops;
+    }
+
+    private static void fail(List<Group> batch, Throwable t) {
+        for (Group group : batch)
+            group.future.setException(t);
+    }
+
+    /**
+     * Builds a group of operations that are committed atomically, returning
+     * a future for each of them. A builder is not thread-safe and must be
+     * committed once.
+     */
+    public class Builder {
+        private final List<Op> ops = new ArrayList<>();
+        private final List<SettableFuture<OpResult>> futures =
+            new ArrayList<>();
+
+        private Builder() { }
+
+        /**
+         * Adds an operation to the group, returning the future of its
+         * result. The future completes once the group is committed.
+         */
+        public ListenableFuture<OpResult> add(Op op) {
+            SettableFuture<OpResult> future = SettableFuture.create();
+            ops.add(op);
+            futures.add(future);
+            return future;
+        }
+
+        public ListenableFuture<OpResult> create(String path, byte[] data,
+                                                 CreateMode mode) {
+            return add(Op.create(path, data, Ids.OPEN_ACL_UNSAFE, mode));
+        }
+
+        public ListenableFuture<OpResult> setData(String path, byte[] data) {
+            return add(Op.setData(path, data, -1));
+        }
+
+        public ListenableFuture<OpResult> delete(String path) {
+            return add(Op.delete(path, -1));
+        }
+
+        public int size() {
+            return ops.size();
+        }
+
+        /**
+         * Submits the group, returning the future of all its results.
+         */
+        public ListenableFuture<List<OpResult>> commit() {
+            ListenableFuture<List<OpResult>> future = submit(ops);
+            Futures.addCallback(future, new FutureCallback<List<OpResult>>() {
+                @Override
+                public void onSuccess(List<OpResult> results) {
+                    for (int i = 0; i < futures.size(); i++)
+                        futures.get(i).set(results.get(i));
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    for (SettableFuture<OpResult> f : futures)
+                        f.setException(t);
+                }
+            });
+            return future;
+        }
+    }
+}
@@ -156,6 +156,24 @@ public class ZkDirectory implements Directory {
                 reactor.submit(watcher);
             }
         }
+
+        // Watchers of the same runnable are equal, so that setting it again
+        // on a node that did not fire yet doesn't add another watcher.
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof MyWatcher &&
+                   ((MyWatcher) other).watcher == watcher &&
+                   ((MyWatcher) other).directory() == ZkDirectory.this;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(watcher);
+        }
+
+        private ZkDirectory directory() {
+            return ZkDirectory.this;
+        }
     }
 
     private class MyTypedWatcher implements Watcher, Runnable {
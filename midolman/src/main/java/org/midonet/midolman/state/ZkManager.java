@@ -23,6 +23,9 @@ import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
@@ -57,6 +60,8 @@ public class ZkManager {
 
     private final String basePath;
 
+    private volatile MultiOpBatcher batcher;
+
     public static final int ZK_SEQ_NUM_LEN = 10;
 
     public ZkManager(Directory zk, String basePath) {
@@ -357,6 +362,47 @@ public class ZkManager {
         }
     }
 
+    /**
+     * Returns the batcher that writes the asynchronous multi operations of
+     * this manager, creating it on first use.
+     */
+    public MultiOpBatcher getBatcher() {
+        MultiOpBatcher b = batcher;
+        if (b == null) {
+            synchronized (this) {
+                b = batcher;
+                if (b == null) {
+                    batcher = b = new MultiOpBatcher(zk);
+                }
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Asynchronous version of multi. The operations are committed atomically
+     * in a batch together with those submitted concurrently by other
+     * callers. The future fails with a StateAccessException.
+     */
+    public ListenableFuture<List<OpResult>> asyncMulti(final List<Op> ops) {
+        return Futures.withFallback(
+            getBatcher().submit(ops),
+            new FutureFallback<List<OpResult>>() {
+                @Override
+                public ListenableFuture<List<OpResult>> create(Throwable t) {
+                    if (t instanceof KeeperException) {
+                        KeeperException ex = (KeeperException) t;
+                        t = processException(ex, getMultiErrorMessage(ops, ex));
+                    } else if (t instanceof InterruptedException) {
+                        t = new StateAccessException(
+                            "ZooKeeper thread interrupted while executing " +
+                            "multi ops.", t);
+                    }
+                    return Futures.immediateFailedFuture(t);
+                }
+            });
+    }
+
     private String getMultiErrorMessage(List<Op> ops, KeeperException ex) {
         List<OpResult> results = ex.getResults();
         if (results == null || results.isEmpty()) {
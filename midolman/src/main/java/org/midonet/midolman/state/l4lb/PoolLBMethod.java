@@ -17,5 +17,6 @@
 package org.midonet.midolman.state.l4lb;
 
 public enum PoolLBMethod {
-    ROUND_ROBIN
+    ROUND_ROBIN,
+    SOURCE_HASH
 }
@@ -402,8 +402,14 @@ public class BridgeDhcpZkManager extends BaseZkManager {
 
     public Subnet getSubnet(UUID bridgeId, IPv4Subnet subnetAddr)
             throws StateAccessException, SerializationException {
+        return getSubnet(bridgeId, subnetAddr, null);
+    }
+
+    public Subnet getSubnet(UUID bridgeId, IPv4Subnet subnetAddr,
+                            Runnable watcher)
+            throws StateAccessException, SerializationException {
         String path = paths.getBridgeDhcpSubnetPath(bridgeId, subnetAddr);
-        byte[] data = zk.get(path, null);
+        byte[] data = zk.get(path, watcher);
         return serializer.deserialize(data, Subnet.class);
     }
 
@@ -450,17 +456,36 @@ public class BridgeDhcpZkManager extends BaseZkManager {
 
     public List<Subnet> getSubnets(UUID bridgeId)
             throws StateAccessException, SerializationException {
+        return getSubnets(bridgeId, null);
+    }
+
+    /**
+     * Gets the subnets of a bridge, setting the watcher on the list of
+     * subnets and on each of them.
+     */
+    public List<Subnet> getSubnets(UUID bridgeId, Runnable watcher)
+            throws StateAccessException, SerializationException {
         String path = paths.getBridgeDhcpPath(bridgeId);
         List<Subnet> subnets = new ArrayList<>();
-        for (String addrStr : zk.getChildren(path)) {
-            subnets.add(getSubnet(bridgeId, IPv4Subnet.fromZkString(addrStr)));
+        for (String addrStr : zk.getChildren(path, watcher)) {
+            subnets.add(getSubnet(bridgeId, IPv4Subnet.fromZkString(addrStr),
+                                  watcher));
         }
         return subnets;
     }
 
     public List<Subnet> getEnabledSubnets(UUID bridgeId)
             throws StateAccessException, SerializationException {
-        List<Subnet> subnets = getSubnets(bridgeId);
+        return getEnabledSubnets(bridgeId, null);
+    }
+
+    /**
+     * Gets the enabled subnets of a bridge. The watcher is set on all the
+     * subnets, since a disabled subnet may be enabled later.
+     */
+    public List<Subnet> getEnabledSubnets(UUID bridgeId, Runnable watcher)
+            throws StateAccessException, SerializationException {
+        List<Subnet> subnets = getSubnets(bridgeId, watcher);
         List<Subnet> enabledSubnets = new ArrayList<>(subnets.size());
         for (Subnet subnet : subnets) {
             // This check is because of backward-compatibility with data
@@ -500,9 +525,15 @@ public class BridgeDhcpZkManager extends BaseZkManager {
 
     public Host getHost(UUID bridgeId, IPv4Subnet subnetAddr, String mac)
             throws StateAccessException, SerializationException {
+        return getHost(bridgeId, subnetAddr, mac, null);
+    }
+
+    public Host getHost(UUID bridgeId, IPv4Subnet subnetAddr, String mac,
+                        Runnable watcher)
+            throws StateAccessException, SerializationException {
         String path = paths.getBridgeDhcpHostPath(bridgeId, subnetAddr,
                                                   MAC.fromString(mac));
-        byte[] data = zk.get(path, null);
+        byte[] data = zk.get(path, watcher);
         return serializer.deserialize(data, Host.class);
     }
 
@@ -539,10 +570,20 @@ public class BridgeDhcpZkManager extends BaseZkManager {
 
     public List<Host> getHosts(UUID bridgeId, IPv4Subnet subnetAddr)
             throws StateAccessException, SerializationException {
+        return getHosts(bridgeId, subnetAddr, null);
+    }
+
+    /**
+     * Gets the hosts of a subnet, setting the watcher on the list of hosts
+     * and on each of them.
+     */
+    public List<Host> getHosts(UUID bridgeId, IPv4Subnet subnetAddr,
+                               Runnable watcher)
+            throws StateAccessException, SerializationException {
         String path = paths.getBridgeDhcpHostsPath(bridgeId, subnetAddr);
         List<Host> hosts = new ArrayList<>();
-        for (String macStr : zk.getChildren(path))
-            hosts.add(getHost(bridgeId, subnetAddr, macStr));
+        for (String macStr : zk.getChildren(path, watcher))
+            hosts.add(getHost(bridgeId, subnetAddr, macStr, watcher));
         return hosts;
     }
 }
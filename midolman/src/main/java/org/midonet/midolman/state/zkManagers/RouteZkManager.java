@@ -24,8 +24,11 @@ import java.util.Set;
 import java.util.UUID;
 
 import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.ZooDefs.Ids;
 import org.midonet.packets.IPv4Addr;
 import org.midonet.packets.IPv4Subnet;
@@ -527,6 +530,29 @@ public class RouteZkManager extends AbstractZkManager<UUID, Route> {
         return create(route, true);
     }
 
+    /**
+     * Adds a new route entry without waiting for ZooKeeper. The operations
+     * are prepared on the calling thread and committed atomically, in a
+     * batch with those submitted concurrently by other callers, so that
+     * adding many routes doesn't wait for a round-trip per route.
+     *
+     * @param id The UUID of the new route.
+     * @return A future that completes with the UUID of the new route, or
+     *         fails with a StateAccessException.
+     */
+    public ListenableFuture<UUID> asyncCreate(final UUID id, Route route,
+                                              boolean persistent)
+            throws StateAccessException, SerializationException {
+        return Futures.transform(
+            zk.asyncMulti(prepareRouteCreate(id, route, persistent)),
+            new Function<List<OpResult>, UUID>() {
+                @Override
+                public UUID apply(List<OpResult> results) {
+                    return id;
+                }
+            });
+    }
+
     public void asyncGet(UUID id, final DirectoryCallback<Route> routeDirectoryCallback){
         zk.asyncGet(paths.getRoutePath(id),
                     DirectoryCallbackFactory.transform(
@@ -108,7 +108,13 @@ trait VirtualPortsResolver {
     def getDescForInterface(itfName: String): Option[InterfaceDescription]
 }
 
-trait DatapathState extends VirtualPortsResolver with UnderlayResolver
+trait DatapathState extends VirtualPortsResolver with UnderlayResolver {
+
+    /** Tells whether the datapath port with the given number is the port
+     *  that had this number when the agent started, such that the flows
+     *  found in the datapath that use it are still valid. */
+    def isDpPortUnchanged(num: Int): Boolean = false
+}
 
 object DatapathController extends Referenceable {
 
@@ -283,6 +289,8 @@ class DatapathController extends Actor
 
         case ExistingDatapathPorts_(datapathObj, ports) =>
             this.datapath = datapathObj
+            dpState.initialDpPorts =
+                ports.map(p => p.getPortNo.intValue -> p.getName).toMap
             val conn = new OvsConnectionOps(datapathConnection)
             Future.traverse(ports) { deleteExistingPort(_, conn) } map { _ =>
                 DatapathClear_ } pipeTo self
@@ -496,6 +504,12 @@ class DatapathController extends Actor
      */
     private def readDatapathInformation() {
         def handleExistingDP(dp: Datapath) {
+            if (config.datapath.warmRestart) {
+                log.info("The datapath already existed. Keeping the flows " +
+                         "for adoption.")
+                queryDatapathPorts(dp)
+                return
+            }
             log.info("The datapath already existed. Flushing the flows.")
             datapathConnection.flowsFlush(dp,
                 new Callback[JBoolean] {
@@ -616,6 +630,23 @@ class DatapathStateManager(val controller: DatapathPortEntangler.Controller)
         tunnelOverlayGre.getPortNo == portNumber ||
         tunnelOverlayVxLan.getPortNo == portNumber
 
+    /** The names of the datapath ports found when the agent started, by
+     *  port number. */
+    @volatile var initialDpPorts = Map[Int, String]()
+
+    override def isDpPortUnchanged(num: Int): Boolean =
+        initialDpPorts.get(num) match {
+            case Some(name) => dpPortName(num) == Some(name)
+            case None => false
+        }
+
+    private def dpPortName(num: Int): Option[String] =
+        dpPortNumToInterface.get(num) orElse {
+            Seq(tunnelOverlayGre, tunnelOverlayVxLan, tunnelVtepVxLan) find {
+                p => (p ne null) && p.getPortNo == num
+            } map { _.getName }
+        }
+
     /** reference to the current host information. Used to query this host ip
      *  when adding tunnel routes to peer host for given zone uuid. */
     var host: ResolvedHost = _
@@ -40,13 +40,15 @@ import rx.Observer
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.FlowProcessor
 import org.midonet.midolman.flows.{FlowLifecycle, FlowInvalidation, FlowInvalidator}
+import org.midonet.midolman.flows.FlowAdoption.{AdoptFlows, AdoptedFlowTag, DumpFlows, EndFlowAdoption}
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.metrics.{FlowTablesGauge, FlowTablesMeter}
 import org.midonet.midolman.management.Metering
 import org.midonet.midolman.monitoring.MeterRegistry
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.netlink.exceptions.NetlinkException.ErrorCode
-import org.midonet.odp.{FlowMatch, Datapath}
+import org.midonet.odp.{Flow, FlowMatch, Datapath}
+import org.midonet.sdn.flows.FlowTagger.{DeviceTag, FlowTag, RuleTag}
 import org.midonet.util.collection.{NoOpPool, ArrayObjectPool}
 import org.midonet.util.concurrent.WakerUpper.Parkable
 
@@ -83,6 +85,7 @@ class FlowController @Inject() (midolmanConfig: MidolmanConfig,
     var meters = new MeterRegistry(midolmanConfig.datapath.maxFlowCount)
 
     private val flowExpirationCheckInterval = Duration(10000, TimeUnit.MILLISECONDS)
+    private val flowDumpRetryInterval = Duration(10, TimeUnit.MILLISECONDS)
 
     private val managedFlowPool = new ArrayObjectPool[ManagedFlow](
         maxFlows, new ManagedFlow(_))
@@ -97,6 +100,14 @@ class FlowController @Inject() (midolmanConfig: MidolmanConfig,
 
     private val dpFlows = new HashMap[FlowMatch, ManagedFlow](maxFlows)
 
+    private var dpState: DatapathState = null
+    private var adoption: FlowAdoption = null
+    private val pendingAdoption = new ArrayList[Flow]()
+    private var adoptedFlows = 0
+    // Whether there are adopted flows to invalidate with AdoptedFlowTag
+    private var adoptedFlowsTagged = false
+    private var unaccountedFlows = 0
+
     def getFlow(flowMatch: FlowMatch): ManagedFlow =
         dpFlows.get(flowMatch)
 
@@ -127,6 +138,9 @@ class FlowController @Inject() (midolmanConfig: MidolmanConfig,
                 flowExpirationCheckInterval,
                 self,
                 CheckFlowExpiration_)
+            if (midolmanConfig.datapath.warmRestart) {
+                startFlowAdoption(dpState)
+            }
         }
 
         case pktCtx: PacketContext  =>
@@ -160,6 +174,15 @@ class FlowController @Inject() (midolmanConfig: MidolmanConfig,
         case CheckCompletedRequests =>
             processCompletedFlowOperations()
             flowInvalidator.process(this)
+
+        case DumpFlows if adoption ne null =>
+            dumpFlows()
+
+        case AdoptFlows if adoption ne null =>
+            adoption.drain(adoptOrDefer)
+
+        case EndFlowAdoption if adoption ne null =>
+            endFlowAdoption()
     }
 
     override def registerFlow(flow: ManagedFlow): Unit = {
@@ -169,6 +192,21 @@ class FlowController @Inject() (midolmanConfig: MidolmanConfig,
         dpFlowsMetric.mark()
     }
 
+    /*
+     * Invalidates the flows for a tag. The first invalidation of a device or
+     * a rule also invalidates all the adopted flows, which may have
+     * traversed them.
+     */
+    override def invalidateFlowsFor(tag: FlowTag): Unit = {
+        super.invalidateFlowsFor(tag)
+        if (adoptedFlowsTagged) tag match {
+            case _: DeviceTag | _: RuleTag =>
+                adoptedFlowsTagged = false
+                super.invalidateFlowsFor(AdoptedFlowTag)
+            case _ =>
+        }
+    }
+
     override def removeFlow(flow: ManagedFlow): Unit = {
         val removedFlow = dpFlows.remove(flow.flowMatch)
         if (removedFlow eq flow) {
@@ -181,6 +219,99 @@ class FlowController @Inject() (midolmanConfig: MidolmanConfig,
         }
     }
 
+    /*
+     * Dumps the flows that a previous run of the agent left in the datapath.
+     * They are adopted as they are read, or once their ports are recreated,
+     * and those that can't be adopted within the adoption window are deleted.
+     */
+    private def startFlowAdoption(state: DatapathState): Unit = {
+        log.info("Adopting the flows found in the datapath")
+        dpState = state
+        adoption = new FlowAdoption(log)
+        dumpFlows()
+        context.system.scheduler.scheduleOnce(
+            midolmanConfig.datapath.warmRestartWindow millis,
+            self, EndFlowAdoption)
+    }
+
+    /*
+     * Requests the dump of the datapath flows. When the flow processor has no
+     * free request slot, the request is retried later rather than spinning in
+     * the actor, which would hold off the flows that are being installed.
+     */
+    private def dumpFlows(): Unit = {
+        if (!flowProcessor.tryDump(datapathId, adoption)) {
+            processCompletedFlowOperations()
+            context.system.scheduler.scheduleOnce(flowDumpRetryInterval,
+                                                  self, DumpFlows)
+        }
+    }
+
+    private val adoptOrDefer = (flow: Flow) =>
+        if (!tryAdoptFlow(flow)) pendingAdoption.add(flow)
+
+    /*
+     * Adopts a dumped flow if its ports didn't change, or deletes it if the
+     * flow table is full. Returns false if the flow can't be accounted for
+     * yet.
+     */
+    private def tryAdoptFlow(flow: Flow): Boolean = {
+        val fmatch = flow.getMatch
+        if (dpFlows.containsKey(fmatch)) {
+            // A simulation already installed this flow.
+            true
+        } else if (!FlowAdoption.portsUnchanged(flow, dpState)) {
+            false
+        } else if (dpFlows.size() >= maxFlows) {
+            deleteUnaccountedFlow(flow)
+            true
+        } else {
+            val managedFlow = takeManagedFlow()
+            managedFlow.reset(fmatch, clock.tick)
+            FlowAdoption.tagsFor(flow, dpState, managedFlow.tags)
+            managedFlow.ref()
+            registerFlow(managedFlow)
+            adoptedFlows += 1
+            adoptedFlowsTagged = true
+            true
+        }
+    }
+
+    private def deleteUnaccountedFlow(flow: Flow): Unit = {
+        log.debug(s"Deleting unaccounted datapath flow ${flow.getMatch}")
+        val managedFlow = takeManagedFlow()
+        managedFlow.reset(flow.getMatch, clock.tick)
+        managedFlow.ref()
+        removeFlowFromDatapath(managedFlow)
+        managedFlow.unref()
+        unaccountedFlows += 1
+    }
+
+    private def endFlowAdoption(): Unit = {
+        adoption.drain(adoptOrDefer)
+        if (!adoption.isDumpCompleted) {
+            context.system.scheduler.scheduleOnce(1 second, self,
+                                                  EndFlowAdoption)
+            return
+        }
+        var i = 0
+        while (i < pendingAdoption.size()) {
+            val flow = pendingAdoption.get(i)
+            if (!tryAdoptFlow(flow))
+                deleteUnaccountedFlow(flow)
+            i += 1
+        }
+        pendingAdoption.clear()
+        log.info(s"Adopted $adoptedFlows of the ${adoption.dumped} flows " +
+                 s"found in the datapath, deleted $unaccountedFlows")
+        adoption = null
+    }
+
+    private def takeManagedFlow(): ManagedFlow = {
+        val flow = managedFlowPool.take
+        if (flow eq null) oversubscriptionManagedFlowPool.take else flow
+    }
+
     private def processCompletedFlowOperations(): Unit = {
         var req: FlowOperation = null
         while ({ req = completedFlowOperations.poll(); req } ne null) {
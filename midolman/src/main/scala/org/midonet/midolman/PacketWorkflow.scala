@@ -16,7 +16,7 @@
 
 package org.midonet.midolman
 
-import java.util.UUID
+import java.util.{ArrayList, Arrays, Collections, Comparator, HashMap => JHashMap, UUID}
 
 import scala.concurrent.duration._
 import scala.concurrent.{ExecutionContext, Future}
@@ -35,8 +35,8 @@ import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
 import org.midonet.midolman.flows.{FlowExpiration, FlowInvalidation, FlowInvalidator}
 import org.midonet.midolman.logging.{FlowTracingContext, ActorLogWithoutPath}
-import org.midonet.midolman.management.PacketTracing
-import org.midonet.midolman.topology.{VxLanPortMapper, VirtualTopologyActor}
+import org.midonet.midolman.management.{LogLevel, PacketTraceBuffer, PacketTracing, ThreadPlacement}
+import org.midonet.midolman.topology.{PathPrefetcher, VxLanPortMapper, VirtualTopologyActor}
 import org.midonet.midolman.topology.devices.Port
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.routingprotocols.RoutingWorkflow
@@ -49,6 +49,8 @@ import org.midonet.midolman.state.TraceState.{TraceKey, TraceContext}
 import org.midonet.midolman.state._
 import org.midonet.odp._
 import org.midonet.odp.FlowMatch.Field
+import org.midonet.odp.flows.FlowAction
+import org.midonet.odp.flows.FlowActions.output
 import org.midonet.packets._
 import org.midonet.sdn.flows.FlowTagger
 import org.midonet.sdn.flows.FlowTagger._
@@ -59,6 +61,13 @@ import org.midonet.util.concurrent._
 object PacketWorkflow {
     case class HandlePackets(packet: Array[Packet])
     case class RestartWorkflow(pktCtx: PacketContext, error: Throwable)
+    // Sends the pending messages of the reliable flow state replication.
+    case object PushStateControl
+    // Submits the flow state writes coalesced by the storage.
+    case object FlushStateStorage
+    // Forgets a completed prefetch of the path from a port.
+    case class PrefetchCompleted(portId: UUID,
+                                 prefetch: PathPrefetcher.Prefetch)
 
     trait SimulationResult
     case object NoOp extends SimulationResult
@@ -70,6 +79,14 @@ object PacketWorkflow {
     case object UserspaceFlow extends SimulationResult
     case object FlowCreated extends SimulationResult
     case object GeneratedPacket extends SimulationResult
+
+    // Orders the packets of a batch by ingress port, keeping the order of
+    // the packets of each port.
+    private val ByInputPort = new Comparator[Packet] {
+        override def compare(a: Packet, b: Packet): Int =
+            Integer.compare(a.getMatch.getInputPortNumber,
+                            b.getMatch.getInputPortNumber)
+    }
 }
 
 class CookieGenerator(val start: Int, val increment: Int) {
@@ -147,7 +164,8 @@ class PacketWorkflow(
             val storage: FlowStateStorage,
             val natLeaser: NatLeaser,
             val metrics: PacketPipelineMetrics,
-            val packetOut: Int => Unit)
+            val packetOut: Int => Unit,
+            val replicationChannel: ReliableStateChannel = null)
         extends Actor with ActorLogWithoutPath with Stash with Backchannel
         with UnderlayTrafficHandler with FlowTranslator with RoutingWorkflow {
 
@@ -159,6 +177,11 @@ class PacketWorkflow(
 
     var dpState: DatapathState = null
 
+    // The worker is created on its own thread, which the pinned dispatcher
+    // keeps for the life of the worker: pin it before allocating the buffers
+    // below, so that they are local to the NUMA node of its CPU.
+    ThreadPlacement.pin(ThreadPlacement.Simulation)
+
     implicit val dispatcher = this.context.system.dispatcher
     implicit val system = this.context.system
 
@@ -167,8 +190,31 @@ class PacketWorkflow(
     private val waitingRoom = new WaitingRoom[PacketContext](
                                         (simulationExpireMillis millis).toNanos)
 
+    private val pathPrefetcher = new PathPrefetcher()
+    private val prefetches = new JHashMap[UUID, PathPrefetcher.Prefetch]()
+
     private val cbExecutor = new CallbackExecutor(2048, self)
-    private val genPacketEmitter = new PacketEmitter(new MpscArrayQueue(512), self)
+    private val genPacketPool = PacketEmitter.newBufferPool()
+    private val genPacketEmitter = new PacketEmitter(new MpscArrayQueue(512),
+                                                     self, genPacketPool)
+    metrics.bufferPoolCreated(genPacketPool)
+
+    // The trace events of the traced packets processed by this worker.
+    private val traceBuffer = PacketTracing.newTraceBuffer()
+
+    // Whether the packets of a batch of upcalls are processed as a unit.
+    private val batchSimulation = config.batchSimulation
+    private var inBatch = false
+    // The contexts of the flows created during a batch, sent to the flow
+    // controller once the batch is published and their sequences are set.
+    private val batchedFlows = new ArrayList[PacketContext]()
+    // The vport of the last datapath port resolved during a batch.
+    private var batchInPortNo = -1
+    private var batchInPortId: UUID = null
+
+    // Whether a FlushStateStorage is scheduled for the writes that the
+    // storage holds back, so that they go out even if the worker goes idle.
+    private var storageFlushScheduled = false
 
     protected val connTrackTx = new FlowStateTransaction(connTrackStateTable)
     protected val natTx = new FlowStateTransaction(natStateTable)
@@ -199,17 +245,32 @@ class PacketWorkflow(
                                                  storage,
                                                  dpState,
                                                  flowInvalidator,
-                                                 config.datapath.controlPacketTos)
+                                                 config.datapath.controlPacketTos,
+                                                 replicationChannel)
             context.become(receive)
             system.scheduler.schedule(20 millis, 30 seconds, self, CheckBackchannels)
+            if (replicationChannel ne null) {
+                val interval = config.datapath.stateAckInterval millis
+                system.scheduler.schedule(interval, interval, self,
+                                          PushStateControl)
+            }
             unstashAll()
         case _ => stash()
     }
 
+    override def postStop(): Unit = {
+        PacketTracing.releaseTraceBuffer(traceBuffer)
+        metrics.bufferPoolReleased(genPacketPool)
+        super.postStop()
+    }
+
     override def receive = {
         case m: FlowStateBatch =>
             replicator.importFromStorage(m)
 
+        case HandlePackets(packets) if batchSimulation =>
+            handleBatch(packets)
+
         case HandlePackets(packets) =>
             var i = 0
             while (i < packets.length && packets(i) != null) {
@@ -221,6 +282,18 @@ class PacketWorkflow(
         case CheckBackchannels =>
             process()
 
+        case FlushStateStorage =>
+            storageFlushScheduled = false
+            process()
+
+        case PrefetchCompleted(portId, prefetch) =>
+            // Unless a newer prefetch of the port replaced it.
+            if (prefetches.get(portId) eq prefetch)
+                prefetches.remove(portId)
+
+        case PushStateControl =>
+            replicator.pushControlMessages(dpChannel)
+
         case RestartWorkflow(pktCtx, error) =>
             if (pktCtx.idle) {
                 metrics.packetsOnHold.dec()
@@ -238,7 +311,8 @@ class PacketWorkflow(
 
     override def shouldProcess(): Boolean =
         cbExecutor.shouldWakeUp() ||
-        genPacketEmitter.pendingPackets > 0
+        genPacketEmitter.pendingPackets > 0 ||
+        storage.pendingWrites > 0
 
     override def process(): Unit = {
         cbExecutor.run()
@@ -247,8 +321,19 @@ class PacketWorkflow(
         natStateTable.expireIdleEntries((), invalidateExpiredNatKeys)
         natLeaser.obliterateUnusedBlocks()
         traceStateTable.expireIdleEntries()
+        // Writes of flow state coalesced by the storage are flushed here
+        // too, so that they go out even when no new state is pushed.
+        storage.submit()
+        scheduleStorageFlush()
     }
 
+    private def scheduleStorageFlush(): Unit =
+        if (!storageFlushScheduled && storage.pendingWrites > 0) {
+            storageFlushScheduled = true
+            val window = storage.writeWindow.toMillis max 1L
+            system.scheduler.scheduleOnce(window millis, self, FlushStateStorage)
+        }
+
     protected def packetContext(packet: Packet): PacketContext =
         initialize(packet, packet.getMatch, null)
 
@@ -264,7 +349,15 @@ class PacketWorkflow(
         val context = new PacketContext(cookie, packet, fmatch, egressPort)
         context.reset(cbExecutor, genPacketEmitter)
         context.initialize(connTrackTx, natTx, natLeaser, traceStateTx)
-        context.log = PacketTracing.loggerFor(fmatch)
+        val tracer = PacketTracing.tracerFor(fmatch)
+        if (tracer ne null) {
+            tracer.level match {
+                case LogLevel.DEBUG => context.log = PacketContext.debugLog
+                case LogLevel.TRACE => context.log = PacketContext.traceLog
+                case LogLevel.RECORD =>
+            }
+            context.traceBuffer = traceBuffer
+        }
         context
     }
 
@@ -273,8 +366,12 @@ class PacketWorkflow(
      * a NotYet on the way.
      */
     private def postponeOn(pktCtx: PacketContext, f: Future[_]) {
+        val startPort =
+            if (pktCtx.ingressed) pktCtx.inputPort else pktCtx.egressPort
         pktCtx.postpone()
         val flowMatch = pktCtx.packet.getMatch
+        if (pktCtx.runs == 1)
+            prefetchPath(pktCtx, startPort)
         f.onComplete {
             case Success(_) =>
                 self ! RestartWorkflow(pktCtx, null)
@@ -285,6 +382,56 @@ class PacketWorkflow(
         giveUpWorkflows(waitingRoom enter pktCtx)
     }
 
+    /**
+     * On the first postponement of a packet, starts prefetching the devices
+     * reachable from the port where its simulation starts. The packet is
+     * still resumed as soon as the device it waits for is loaded, while the
+     * walk continues in the background: the devices further along its path
+     * are then loaded, or at least requested, by the time the simulation
+     * reaches them, so that it is postponed on fewer of them.
+     */
+    private def prefetchPath(pktCtx: PacketContext, portId: UUID): Unit = {
+        if (portId eq null)
+            return
+
+        var prefetch = prefetches.get(portId)
+        if ((prefetch eq null) || prefetch.future.isCompleted) {
+            prefetch = pathPrefetcher.prefetch(portId)
+            prefetches.put(portId, prefetch)
+            val missing = prefetch.missing
+            val completed = PrefetchCompleted(portId, prefetch)
+            prefetch.future.onComplete { _ =>
+                metrics.devicesPrefetched.mark(missing.size)
+                self ! completed
+            }(ExecutionContext.callingThread)
+        }
+        pktCtx.prefetchedDevices = prefetch.missing
+    }
+
+    /**
+     * Estimates the re-simulations that the prefetch saved a packet: it
+     * assumes that, without the prefetch, every prefetched device that the
+     * packet traversed would have postponed and restarted its simulation
+     * once, and subtracts the restarts that did happen. This is an upper
+     * bound, a device may have been loaded in time regardless, for instance
+     * because another packet requested it.
+     */
+    private def estimateResimulationsAvoided(pktCtx: PacketContext): Unit = {
+        val devices = pktCtx.prefetchedDevices
+        if (devices ne null) {
+            var traversed = 0
+            val it = devices.iterator
+            while (it.hasNext) {
+                if (pktCtx.flowTags.contains(tagForDevice(it.next())))
+                    traversed += 1
+            }
+            val avoided = traversed - (pktCtx.runs - 1)
+            if (avoided > 0)
+                metrics.resimulationsAvoidedEstimate.inc(avoided)
+            pktCtx.prefetchedDevices = null
+        }
+    }
+
     private def giveUpWorkflows(pktCtxs: IndexedSeq[PacketContext]) {
         var i = 0
         while (i < pktCtxs.size) {
@@ -312,15 +459,22 @@ class PacketWorkflow(
 
     private def complete(pktCtx: PacketContext, simRes: SimulationResult): Unit = {
         pktCtx.log.debug("Packet processed")
-        if (pktCtx.runs > 1)
+        pktCtx.traceEvent(PacketTraceBuffer.ActionsChosen, null,
+                          pktCtx.flowActions.size)
+        if (pktCtx.runs > 1) {
             waitingRoom leave pktCtx
+            estimateResimulationsAvoided(pktCtx)
+        }
         if (pktCtx.ingressed) {
-            val latency = NanoClock.DEFAULT.tick - pktCtx.packet.startTimeNanos
+            val now = NanoClock.DEFAULT.tick
+            val latency = now - pktCtx.packet.startTimeNanos
             metrics.packetsProcessed.mark()
             simRes match {
                 case StateMessage =>
                 case _ => metrics.packetSimulated(latency.toInt)
             }
+            if (!pktCtx.isDrop)
+                metrics.packetForwarded(pktCtx.inputPort, now)
         }
     }
 
@@ -374,6 +528,57 @@ class PacketWorkflow(
             case ex: Throwable => handleErrorOn(pktCtx, ex)
         }
 
+    /*
+     * Processes a batch of upcalls as a unit. The flow state messages are
+     * imported first, in arrival order, so that the packets of the batch
+     * are simulated with the replicated state. The other packets are
+     * grouped by ingress port, so that the packets of a port are simulated
+     * one after the other over the devices and flow state they share, and
+     * the vport of the port is resolved once; the devices on the path are
+     * still looked up per packet, in the topology cache. The flow creations
+     * and packet executions of the batch are published together to the
+     * datapath channel, and the state touched by the batch is submitted to
+     * the storage once.
+     */
+    private def handleBatch(packets: Array[Packet]): Unit = {
+        inBatch = true
+        batchInPortId = null
+        dpChannel.startBatch()
+        try {
+            var n = 0
+            var i = 0
+            while (i < packets.length && packets(i) != null) {
+                val packet = packets(i)
+                packets(i) = null
+                if (FlowStatePackets.isStateMessage(packet.getMatch)) {
+                    handleStateMessage(packetContext(packet))
+                    packetOut(1)
+                } else {
+                    packets(n) = packet
+                    n += 1
+                }
+                i += 1
+            }
+            Arrays.sort(packets, 0, n, ByInputPort)
+
+            i = 0
+            while (i < n) {
+                handlePacket(packets(i))
+                i += 1
+            }
+            process()
+        } finally {
+            inBatch = false
+            dpChannel.endBatch()
+            var i = 0
+            while (i < batchedFlows.size) {
+                FlowController ! batchedFlows.get(i)
+                i += 1
+            }
+            batchedFlows.clear()
+        }
+    }
+
     private def handlePacket(packet: Packet): Unit = {
         val flowMatch = packet.getMatch
         if (FlowStatePackets.isStateMessage(flowMatch)) {
@@ -386,7 +591,39 @@ class PacketWorkflow(
 
     private val runGeneratedPacket = (p: GeneratedPacket) => {
         log.debug(s"Executing generated packet $p")
-        startWorkflow(generatedPacketContext(p.egressPort, p.eth))
+        if (!emitGeneratedPacket(p)) {
+            val eth = p.eth
+            genPacketEmitter.release(p)
+            startWorkflow(generatedPacketContext(p.egressPort, eth))
+        }
+    }
+
+    /*
+     * Emits a generated packet without simulating it when the egress port
+     * is an exterior port bound to the local datapath, up and without an
+     * outbound filter, so that the only action is the output to that port.
+     * Traced packets are always simulated.
+     */
+    private def emitGeneratedPacket(p: GeneratedPacket): Boolean = {
+        val port = VirtualTopologyActor.cached[Port](p.egressPort)
+        if ((port eq null) || !port.isExterior || !port.adminStateUp ||
+            (port.outboundFilter ne null) || PacketTracing.enabled)
+            return false
+
+        val portNo = dpState.getDpPortNumberForVport(p.egressPort)
+        if (portNo.isEmpty || portNo.get == FlowTranslator.NotADpPort)
+            return false
+
+        val actions = Collections.singletonList[FlowAction](output(portNo.get))
+        if (p.data ne null) {
+            dpChannel.executeFrame(p.data, actions)
+            genPacketEmitter.release(p)
+        } else {
+            val eth = p.eth
+            dpChannel.executePacket(
+                new Packet(eth, FlowMatches.fromEthernetPacket(eth)), actions)
+        }
+        true
     }
 
     private def processPacket(packet: Packet): Unit =
@@ -452,7 +689,10 @@ class PacketWorkflow(
                 logResultNewFlow("Will create flow", context)
                 context.log.debug(s"Creating flow $dpFlow")
                 dpChannel.createFlow(dpFlow)
-                FlowController ! context
+                if (inBatch)
+                    batchedFlows.add(context)
+                else
+                    FlowController ! context
                 FlowCreated
             }
         }
@@ -467,7 +707,7 @@ class PacketWorkflow(
                                          context.outPorts,
                                          context.flowTags,
                                          context.flowRemovedCallbacks)
-            replicator.pushState(dpChannel)
+            replicator.pushState(dpChannel, submit = !inBatch)
             context.conntrackTx.commit()
             context.natTx.commit()
             context.traceTx.commit()
@@ -492,9 +732,17 @@ class PacketWorkflow(
     }
 
     private def resolveVport(context: PacketContext, inPortNo: Int): Boolean = {
+        if (inBatch && (batchInPortId ne null) && batchInPortNo == inPortNo) {
+            context.inputPort = batchInPortId
+            return true
+        }
         val inPortId = dpState getVportForDpPortNumber inPortNo
         if (inPortId.isDefined) {
             context.inputPort = inPortId.get
+            if (inBatch) {
+                batchInPortNo = inPortNo
+                batchInPortId = inPortId.get
+            }
             true
         } else {
             false
@@ -574,7 +822,7 @@ class PacketWorkflow(
                             dhcp: DHCP, mtu: Short): Boolean = {
         val srcMac = context.origMatch.getEthSrc
         val optMtu = Option(mtu)
-        DhcpImpl(clusterDataClient, inPort, dhcp, srcMac, optMtu, context.log) match {
+        DhcpImpl(inPort, dhcp, srcMac, optMtu, context.log) match {
             case Some(dhcpReply) =>
                 context.log.debug(
                     "sending DHCP reply {} to port {}", dhcpReply, inPort.id)
@@ -16,7 +16,11 @@
 
 package org.midonet.midolman
 
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
 import scala.collection.immutable
+import scala.concurrent.ExecutionContext
 
 import akka.actor._
 import akka.event.LoggingReceive
@@ -30,12 +34,14 @@ import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
 import org.midonet.midolman.flows.FlowInvalidator
+import org.midonet.midolman.io.UpcallAdmission
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
-import org.midonet.midolman.state.{FlowStateStorageFactory, NatBlockAllocator, NatLeaser}
+import org.midonet.midolman.state.{FlowStateStorageFactory, NatBlockAllocator, NatLeaser, ReliableStateChannel}
 import org.midonet.midolman.state.TraceState.{TraceKey, TraceContext}
+import org.midonet.midolman.topology.{LocalPortActive, PathPrefetcher}
 import org.midonet.sdn.state.ShardedFlowStateTable
 import org.midonet.util.StatisticalCounter
 import org.midonet.util.concurrent.NanoClock
@@ -45,11 +51,12 @@ object PacketsEntryPoint extends Referenceable {
 
     case object GetWorkers
 
-    case class Workers(list: IndexedSeq[ActorRef])
+    case class Workers(list: IndexedSeq[ActorRef],
+                       admission: UpcallAdmission = null)
 }
 
 class PacketsEntryPoint extends Actor with ActorLogWithoutPath
-        with DatapathReadySubscriberActor {
+        with SubscriberActor {
     import org.midonet.midolman.DatapathController.DatapathReady
     import org.midonet.midolman.PacketsEntryPoint._
 
@@ -83,12 +90,22 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
 
     private var metrics: PacketPipelineMetrics = null
 
+    override def subscribedClasses =
+        Seq(classOf[DatapathReady], classOf[LocalPortActive])
+
+    // Loads the devices reachable from the ports bound to this host, before
+    // their first packets need them.
+    private lazy val pathPrefetcher = new PathPrefetcher()
+
     protected var workers = immutable.IndexedSeq[ActorRef]()
     private var rrIndex = 0
 
     @Inject
     var counter: StatisticalCounter = null
 
+    @Inject
+    var admission: UpcallAdmission = null
+
     @Inject
     var storageFactory: FlowStateStorageFactory = null
 
@@ -105,11 +122,14 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
     var natStateTable: ShardedFlowStateTable[NatKey, NatBinding] = _
     var natLeaser: NatLeaser = _
     var traceStateTable: ShardedFlowStateTable[TraceKey, TraceContext] = _
+    var replicationChannel: ReliableStateChannel = _
 
     override def preStart(): Unit = {
         super.preStart()
         NUM_WORKERS = config.simulationThreads
         metrics = new PacketPipelineMetrics(metricsRegistry)
+        if (admission ne null)
+            admission.monitor(NUM_WORKERS, metrics)
 
         connTrackStateTable = new ShardedFlowStateTable(clock)
         natStateTable = new ShardedFlowStateTable(clock)
@@ -119,6 +139,13 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
             val clock = PacketsEntryPoint.this.clock
         }
         traceStateTable = new ShardedFlowStateTable(clock)
+        if (config.datapath.reliableStateReplication) {
+            replicationChannel = new ReliableStateChannel(
+                config.datapath.stateRetransmitBuffer,
+                TimeUnit.MILLISECONDS.toNanos(
+                    config.datapath.stateDigestInterval),
+                clock)
+        }
 
         for (i <- 0 until NUM_WORKERS) {
             workers :+= startWorker(i)
@@ -148,7 +175,27 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
             storageFactory.create(),
             natLeaser,
             metrics,
-            counter.addAndGet(index, _: Int))
+            packetOut(index),
+            replicationChannel)
+    }
+
+    private def packetOut(index: Int): Int => Unit =
+        if ((admission eq null) || !admission.enabled) {
+            counter.addAndGet(index, _: Int)
+        } else {
+            n: Int =>
+                counter.addAndGet(index, n)
+                admission.completed(index, n)
+        }
+
+    private def prefetch(portId: UUID): Unit = {
+        val prefetch = pathPrefetcher.prefetch(portId)
+        prefetch.future.onComplete { _ =>
+            val loaded = prefetch.missing.size
+            log.debug("Prefetched {} devices for port {}", Int.box(loaded),
+                      portId)
+            metrics.devicesPrefetched.mark(loaded)
+        }(ExecutionContext.callingThread)
     }
 
     private def broadcast(m: Any) { workers foreach ( _ ! m ) }
@@ -168,6 +215,13 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
 
         case CheckBackchannels => broadcast(CheckBackchannels)
 
-        case GetWorkers => sender ! Workers(workers)
+        case LocalPortActive(portId, true) =>
+            metrics.portBound(portId, clock.tick)
+            prefetch(portId)
+
+        case LocalPortActive(portId, false) =>
+            metrics.portUnbound(portId)
+
+        case GetWorkers => sender ! Workers(workers, admission)
     }
 }
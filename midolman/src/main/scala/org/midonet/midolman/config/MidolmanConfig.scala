@@ -78,6 +78,12 @@ class MidolmanConfig(_conf: Config, val schema: Config = ConfigFactory.empty())
     def outputChannels = getInt("midolman.output_channels")
     def inputChannelThreading = getString("midolman.input_channel_threading")
     def datapathName = Try(getString("midolman.datapath")).getOrElse("midonet")
+    def topologySnapshotFile = getString("midolman.topology_snapshot_file")
+    def topologySnapshotInterval = getDuration("midolman.topology_snapshot_interval", TimeUnit.MILLISECONDS)
+    def simulationCpus = getString("midolman.simulation_cpus")
+    def outputCpus = getString("midolman.output_cpus")
+    def inputCpus = getString("midolman.input_cpus")
+    def batchSimulation = getBoolean("midolman.batch_simulation")
 
     val bridge = new BridgeConfig(conf, schema)
     val router = new RouterConfig(conf, schema)
@@ -97,6 +103,8 @@ class HostConfig(val conf: Config, val schema: Config) extends TypeFailureFallba
 
 class BridgeConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
     def macPortMappingExpiry = conf.getDuration("bridge.mac_port_mapping_expire", TimeUnit.MILLISECONDS).toInt
+    def macTableAging = conf.getDuration("bridge.mac_table_aging", TimeUnit.MILLISECONDS)
+    def macTableFlushInterval = conf.getDuration("bridge.mac_table_flush_interval", TimeUnit.MILLISECONDS)
 }
 
 class RouterConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -107,6 +115,11 @@ class CassandraConfig(val conf: Config, val schema: Config) extends TypeFailureF
     def servers = getString("cassandra.servers")
     def cluster = getString("cassandra.cluster")
     def replication_factor = getInt("cassandra.replication_factor")
+    def flowStateWriteWindow = getDuration("cassandra.flow_state_write_window", TimeUnit.MILLISECONDS)
+    def flowStateRefreshRatio = getDouble("cassandra.flow_state_refresh_ratio")
+    def flowStateMaxBatchSize = getInt("cassandra.flow_state_max_batch_size")
+    def flowStateMaxInFlight = getInt("cassandra.flow_state_max_in_flight")
+    def flowStateMaxPending = getInt("cassandra.flow_state_max_pending")
 }
 
 class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -124,7 +137,19 @@ class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFa
     def tunnelIncomingBurstCapacity = getInt("datapath.tunnel_incoming_burst_capacity")
     def vtepIncomingBurstCapacity = getInt("datapath.vtep_incoming_burst_capacity")
 
+    def upcallAdmission = getBoolean("datapath.upcall_admission")
+    def upcallQueueLimit = getInt("datapath.upcall_queue_limit")
+    def upcallLatencyTarget = getDuration("datapath.upcall_latency_target", TimeUnit.MICROSECONDS)
+
     def controlPacketTos: Byte = getInt("datapath.control_packet_tos").toByte
+
+    def reliableStateReplication = getBoolean("datapath.flow_state_reliable_replication")
+    def stateRetransmitBuffer = getInt("datapath.flow_state_retransmit_buffer")
+    def stateAckInterval = getDuration("datapath.flow_state_ack_interval", TimeUnit.MILLISECONDS)
+    def stateDigestInterval = getDuration("datapath.flow_state_digest_interval", TimeUnit.MILLISECONDS)
+
+    def warmRestart = getBoolean("datapath.warm_restart")
+    def warmRestartWindow = getDuration("datapath.warm_restart_window", TimeUnit.MILLISECONDS)
 }
 
 class ArpTableConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -132,6 +157,8 @@ class ArpTableConfig(val conf: Config, val schema: Config) extends TypeFailureFa
     def timeout = getDuration("arptable.arp_timeout", TimeUnit.SECONDS)
     def stale = getDuration("arptable.arp_stale", TimeUnit.SECONDS)
     def expiration = getDuration("arptable.arp_expiration", TimeUnit.SECONDS)
+    def negativeTtl = getDuration("arptable.arp_negative_ttl", TimeUnit.MILLISECONDS)
+    def maxRequestsPerPort = getInt("arptable.arp_max_requests_per_port")
 }
 
 class HealthMonitorConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -139,6 +166,7 @@ class HealthMonitorConfig(val conf: Config, val schema: Config) extends TypeFail
     def namespaceCleanup = getBoolean("haproxy_health_monitor.namespace_cleanup")
     def namespaceSuffix = getString("haproxy_health_monitor.namespace_suffix")
     def haproxyFileLoc = getString("haproxy_health_monitor.haproxy_file_loc")
+    def healthCheckEngine = getString("haproxy_health_monitor.health_check_engine")
 }
 
 
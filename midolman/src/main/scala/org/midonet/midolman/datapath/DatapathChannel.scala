@@ -22,6 +22,7 @@ import com.lmax.disruptor._
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.midolman.datapath.DisruptorDatapathChannel.DatapathEvent
+import org.midonet.midolman.management.ThreadPlacement
 import org.midonet.netlink._
 import org.midonet.odp._
 import org.midonet.odp.flows.FlowAction
@@ -29,8 +30,18 @@ import org.slf4j.LoggerFactory
 
 trait DatapathChannel {
     def executePacket(packet: Packet, actions: JList[FlowAction]): Unit
+    /** Executes a serialized frame, copying it before returning. */
+    def executeFrame(frame: ByteBuffer, actions: JList[FlowAction]): Unit
     def createFlow(flow: Flow): Unit
 
+    /**
+     * Starts a batch of the operations of the calling thread, which are
+     * published together when the batch ends. The sequence of a flow created
+     * during a batch is only set when the batch ends.
+     */
+    def startBatch(): Unit = { }
+    def endBatch(): Unit = { }
+
     def start(datapath: Datapath): Unit
     def stop(): Unit
 }
@@ -39,11 +50,30 @@ object DisruptorDatapathChannel {
     val PACKET_EXECUTION: Byte = 0
     val FLOW_CREATE: Byte = 1
 
+    // The maximum number of operations of a batch published at once.
+    val BatchCapacity = 64
+
     sealed class DatapathEvent(var bb: ByteBuffer, var op: Byte)
 
     object Factory extends EventFactory[DatapathEvent] {
         override def newInstance(): DatapathEvent =
-            new DatapathEvent(BytesUtil.instance.allocateDirect(8*1024), -1)
+            new DatapathEvent(newEventBuffer(), -1)
+    }
+
+    private def newEventBuffer(): ByteBuffer =
+        BytesUtil.instance.allocateDirect(8*1024)
+
+    /* The operations of a thread. During a batch, they are prepared in the
+     * buffers of the batch, which are swapped with those of the ring events
+     * claimed for them when the batch is published. Otherwise, they are
+     * prepared in the buffer of the ring event claimed for each of them. */
+    private final class Batch(capacity: Int) {
+        val bufs = Array.fill(capacity)(newEventBuffer())
+        val ops = new Array[Byte](capacity)
+        val matches = new Array[FlowMatch](capacity)
+        var size = 0
+        var active = false
+        var seq = -1L
     }
 }
 
@@ -56,6 +86,11 @@ class DisruptorDatapathChannel(ovsFamilies: OvsNetlinkFamilies,
     private var supportsMegaflow: Boolean = _
     private val protocol = new OvsProtocol(0, ovsFamilies)
 
+    private val batches = new ThreadLocal[Batch] {
+        override def initialValue(): Batch =
+            new Batch(math.min(BatchCapacity, ringBuffer.getBufferSize))
+    }
+
     def start(datapath: Datapath): Unit = {
         datapathId = datapath.getIndex
         supportsMegaflow = datapath.supportsMegaflow()
@@ -67,6 +102,7 @@ class DisruptorDatapathChannel(ovsFamilies: OvsNetlinkFamilies,
         processors.zipWithIndex foreach { case (proc, idx) =>
             val t = new Thread("datapath-output-" + idx) {
                 override def run() {
+                    ThreadPlacement.pin(ThreadPlacement.Output)
                     proc.run()
                 }
             }
@@ -84,24 +120,89 @@ class DisruptorDatapathChannel(ovsFamilies: OvsNetlinkFamilies,
             return
         }
 
-        val seq = ringBuffer.next()
-        val event = ringBuffer.get(seq)
-        event.bb.clear()
+        val batch = batches.get()
+        protocol.preparePacketExecute(datapathId, packet, actions,
+                                      claim(batch))
+        commit(batch, PACKET_EXECUTION, null)
+    }
+
+    def executeFrame(frame: ByteBuffer,
+                     actions: JList[FlowAction]): Unit = {
+        if (actions.isEmpty) {
+            return
+        }
 
-        protocol.preparePacketExecute(datapathId, packet, actions, event.bb)
-        event.op = PACKET_EXECUTION
-        ringBuffer.publish(seq)
+        val batch = batches.get()
+        protocol.prepareFrameExecute(datapathId, frame, actions, claim(batch))
+        commit(batch, PACKET_EXECUTION, null)
     }
 
     def createFlow(flow: Flow): Unit = {
-        val seq = ringBuffer.next()
-        flow.getMatch.setSequence(seq)
+        val batch = batches.get()
+        protocol.prepareFlowCreate(datapathId, supportsMegaflow, flow,
+                                   claim(batch))
+        commit(batch, FLOW_CREATE, flow.getMatch)
+    }
 
-        val event = ringBuffer.get(seq)
-        event.bb.clear()
+    override def startBatch(): Unit =
+        batches.get().active = true
 
-        protocol.prepareFlowCreate(datapathId, supportsMegaflow, flow, event.bb)
-        event.op = FLOW_CREATE
-        ringBuffer.publish(seq)
+    override def endBatch(): Unit = {
+        val batch = batches.get()
+        publish(batch)
+        batch.active = false
+    }
+
+    /* Returns the cleared buffer where to prepare the next operation. */
+    private def claim(batch: Batch): ByteBuffer = {
+        val bb = if (batch.active) {
+            batch.bufs(batch.size)
+        } else {
+            batch.seq = ringBuffer.next()
+            ringBuffer.get(batch.seq).bb
+        }
+        bb.clear()
+        bb
+    }
+
+    private def commit(batch: Batch, op: Byte, fmatch: FlowMatch): Unit =
+        if (batch.active) {
+            batch.ops(batch.size) = op
+            batch.matches(batch.size) = fmatch
+            batch.size += 1
+            if (batch.size == batch.bufs.length)
+                publish(batch)
+        } else {
+            if (fmatch ne null)
+                fmatch.setSequence(batch.seq)
+            ringBuffer.get(batch.seq).op = op
+            ringBuffer.publish(batch.seq)
+        }
+
+    /* Publishes the operations of a batch with a single claim of the ring. */
+    private def publish(batch: Batch): Unit = {
+        val n = batch.size
+        if (n == 0)
+            return
+
+        val hi = ringBuffer.next(n)
+        val lo = hi - n + 1
+        var i = 0
+        while (i < n) {
+            val seq = lo + i
+            val event = ringBuffer.get(seq)
+            val bb = event.bb
+            event.bb = batch.bufs(i)
+            event.op = batch.ops(i)
+            batch.bufs(i) = bb
+            val fmatch = batch.matches(i)
+            if (fmatch ne null) {
+                fmatch.setSequence(seq)
+                batch.matches(i) = null
+            }
+            i += 1
+        }
+        ringBuffer.publish(lo, hi)
+        batch.size = 0
     }
 }
@@ -105,7 +105,8 @@ trait DatapathPortEntangler {
 
     var interfaceToDescription = Map[String, InterfaceDescription]()
     var interfaceToDpPort = Map[String, DpPort]()
-    var dpPortNumToInterface = Map[Integer, String]()
+    // Read by DatapathState.isDpPortUnchanged, from the FlowController.
+    @volatile var dpPortNumToInterface = Map[Integer, String]()
     var interfaceToVport = new Bimap[String, UUID]()
     var bindings = Map[String, PortBinding]()
     var keysForLocalPorts = Map[Long, DpPort]()
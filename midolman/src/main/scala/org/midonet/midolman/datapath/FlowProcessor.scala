@@ -25,6 +25,7 @@ import org.slf4j.LoggerFactory
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.midolman.datapath.DisruptorDatapathChannel._
+import org.midonet.midolman.management.ThreadPlacement
 import org.midonet.netlink._
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.odp.{FlowMatch, OvsNetlinkFamilies, OvsProtocol}
@@ -131,6 +132,25 @@ class FlowProcessor(families: OvsNetlinkFamilies,
         }
     }
 
+    /**
+     * Tries to dump the flows of the datapath. The observer receives each
+     * flow as it is read, on the thread processing the replies.
+     */
+    def tryDump(datapathId: Int, obs: Observer[ByteBuffer]): Boolean = {
+        var seq = 0
+        if ({ seq = broker.nextSequence(); seq } != NetlinkRequestBroker.FULL) {
+            try {
+                protocol.prepareFlowEnum(datapathId, broker.get(seq))
+                broker.publishRequest(seq, obs)
+            } catch { case e: Throwable =>
+                obs.onError(e)
+            }
+            true
+        } else {
+            false
+        }
+    }
+
     override def shouldProcess(): Boolean =
         broker.hasRequestsToWrite
 
@@ -155,6 +175,7 @@ class FlowProcessor(families: OvsNetlinkFamilies,
     val replies = new Thread("flow-processor-replies") {
         override def run(): Unit =
             try {
+                ThreadPlacement.pin(ThreadPlacement.Output)
                 while (channel.isOpen) {
                     broker.readReply(defaultObserver)
                 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.flows
+
+import java.nio.ByteBuffer
+import java.util.{List => JList}
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+
+import akka.actor.ActorSystem
+import com.typesafe.scalalogging.Logger
+import rx.Observer
+
+import org.midonet.midolman.{DatapathState, FlowController}
+import org.midonet.odp.{Flow, FlowMatch}
+import org.midonet.odp.flows.FlowActionOutput
+import org.midonet.sdn.flows.FlowTagger
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+object FlowAdoption {
+    /** Tells the FlowController to retry the dump of the datapath flows. */
+    case object DumpFlows
+
+    /** Tells the FlowController that there are dumped flows to adopt. */
+    case object AdoptFlows
+
+    /** Tells the FlowController that the adoption window has passed. */
+    case object EndFlowAdoption
+
+    /**
+     * Tag of all the adopted flows. The devices and rules that an adopted
+     * flow traversed are unknown, so the adopted flows are invalidated
+     * together on the first invalidation of a device or a rule.
+     */
+    case object AdoptedFlowTag extends FlowTag
+
+    /**
+     * Adds to the given list the tags of an adopted flow: the tag of all the
+     * adopted flows, and the tags of the datapath ports it uses and of
+     * their vports, which a simulated flow would have too.
+     */
+    def tagsFor(flow: Flow, dpState: DatapathState,
+                tags: JList[FlowTag]): Unit = {
+        tags.add(AdoptedFlowTag)
+        val fmatch = flow.getMatch
+        if (fmatch.isUsed(FlowMatch.Field.InputPortNumber))
+            addPortTags(fmatch.getInputPortNumber, dpState, tags)
+        val actions = flow.getActions
+        var i = 0
+        while (i < actions.size()) {
+            actions.get(i) match {
+                case output: FlowActionOutput =>
+                    addPortTags(output.getPortNumber, dpState, tags)
+                case _ =>
+            }
+            i += 1
+        }
+    }
+
+    private def addPortTags(portNo: Int, dpState: DatapathState,
+                            tags: JList[FlowTag]): Unit = {
+        tags.add(FlowTagger.tagForDpPort(portNo))
+        dpState.getVportForDpPortNumber(portNo) match {
+            case Some(vport) => tags.add(FlowTagger.tagForDevice(vport))
+            case None =>
+        }
+    }
+
+    /**
+     * Tells whether all the datapath ports that a flow uses, as its input
+     * port or in its output actions, are the ports that had those numbers
+     * when the agent started.
+     */
+    def portsUnchanged(flow: Flow, dpState: DatapathState): Boolean = {
+        val fmatch = flow.getMatch
+        if (fmatch.isUsed(FlowMatch.Field.InputPortNumber) &&
+            !dpState.isDpPortUnchanged(fmatch.getInputPortNumber))
+            return false
+        val actions = flow.getActions
+        var i = 0
+        while (i < actions.size()) {
+            actions.get(i) match {
+                case output: FlowActionOutput
+                    if !dpState.isDpPortUnchanged(output.getPortNumber) =>
+                    return false
+                case _ =>
+            }
+            i += 1
+        }
+        true
+    }
+}
+
+/**
+ * Receives the flows dumped from the datapath when the agent starts, on the
+ * thread processing the datapath replies, and hands them over to the
+ * FlowController. The FlowController is told there are flows to adopt at
+ * most once until it drains them, and once more when the dump completes.
+ */
+final class FlowAdoption(log: Logger)(implicit actorSystem: ActorSystem)
+    extends Observer[ByteBuffer] {
+
+    import FlowAdoption._
+
+    private val flows = new ConcurrentLinkedQueue[Flow]()
+    private val notified = new AtomicBoolean(false)
+    @volatile private var completed = false
+    @volatile var dumped = 0
+
+    /** Whether the datapath has no more flows to dump. */
+    def isDumpCompleted = completed
+
+    /** Passes the dumped flows received so far to the given function. */
+    def drain(adopt: Flow => Unit): Unit = {
+        notified.set(false)
+        var flow: Flow = null
+        while ({ flow = flows.poll(); flow } ne null) {
+            adopt(flow)
+        }
+    }
+
+    override def onNext(buf: ByteBuffer): Unit = {
+        try {
+            flows.offer(Flow.buildFrom(buf))
+            dumped += 1
+        } catch { case e: Throwable =>
+            log.warn("Failed to read a dumped datapath flow", e)
+        }
+        if (notified.compareAndSet(false, true)) {
+            FlowController ! AdoptFlows
+        }
+    }
+
+    override def onCompleted(): Unit = {
+        log.debug(s"Dumped $dumped datapath flows")
+        completed = true
+        FlowController ! AdoptFlows
+    }
+
+    override def onError(e: Throwable): Unit = {
+        log.warn(s"Failed to dump the datapath flows after $dumped flows", e)
+        completed = true
+        FlowController ! AdoptFlows
+    }
+}
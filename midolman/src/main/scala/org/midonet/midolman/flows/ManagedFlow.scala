@@ -18,6 +18,7 @@ package org.midonet.midolman.flows
 import java.util.ArrayList
 
 import org.midonet.midolman.CallbackExecutor
+import org.midonet.midolman.flows.FlowExpiration.FLOW_EXPIRATION
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.odp.FlowMatch
 import org.midonet.sdn.flows.FlowTagger.FlowTag
@@ -51,6 +52,19 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
         callbacks.addAll(pktCtx.flowRemovedCallbacks)
     }
 
+    /**
+     * Resets this flow to a datapath flow that the agent didn't simulate,
+     * such as one found in the datapath at start-up, which expires like a
+     * new flow and has no callbacks. The caller adds its tags.
+     */
+    def reset(fmatch: FlowMatch, now: Long): Unit = {
+        flowMatch.reset(fmatch)
+        expirationType = FLOW_EXPIRATION.typeId
+        creationTimeNanos = now
+        absoluteExpirationNanos = now + FLOW_EXPIRATION.value
+        cbExecutor = CallbackExecutor.Immediate
+    }
+
     override def clear(): Unit = {
         flowMatch.clear()
         callbacks.clear()
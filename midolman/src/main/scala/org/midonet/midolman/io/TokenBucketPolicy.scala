@@ -16,6 +16,7 @@
 
 package org.midonet.midolman.io
 
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.locks.ReentrantLock
 
 import scala.collection.mutable
@@ -30,6 +31,10 @@ import org.midonet.util.{Bucket, TokenBucketFillRate, TokenBucket}
  * This class contains a policy to assign token buckets to datapath ports.
  * Depending on the port type, token buckets are linked at different levels
  * in the hierarchy.
+ *
+ * Once a port is bound to its datapath port number, the capacity of its
+ * bucket can be throttled below the configured one, to give the tokens of a
+ * port whose upcalls are being shed to the other ports, and restored.
  */
 class TokenBucketPolicy(config: MidolmanConfig,
                         tbRate: TokenBucketFillRate,
@@ -47,8 +52,12 @@ class TokenBucketPolicy(config: MidolmanConfig,
     private val vmBuckets = root.link(0, "vms")
 
     private val tokenBuckets = mutable.Map[String, Bucket]()
+    private val portBuckets = new ConcurrentHashMap[Integer, PortBucket]()
     private val lock = new ReentrantLock
 
+    private case class PortBucket(name: String, tb: TokenBucket,
+                                  configured: Int)
+
     def calculateMinimumSystemTokens: Int =
         tokenBuckets.foldLeft(0)(_ + _._2.underlyingTokenBucket().getCapacity)
 
@@ -91,6 +100,9 @@ class TokenBucketPolicy(config: MidolmanConfig,
         try {
             tokenBuckets.remove(port.getName) match {
                 case Some(tb) =>
+                    val portNo = port.getPortNo
+                    if (portNo ne null)
+                        portBuckets.remove(portNo)
                     val tokens = tb.underlyingTokenBucket().unlink()
                     val newMax = calculateMinimumSystemTokens
                     if (newMax >= adjust(config.datapath.globalIncomingBurstCapacity))
@@ -108,5 +120,89 @@ class TokenBucketPolicy(config: MidolmanConfig,
         }
     }
 
+    /**
+     * Binds the bucket of a linked port to its datapath port number, which
+     * is only known once the port is created.
+     */
+    def bind(port: DpPort, portNo: Int): Unit = {
+        lock.lock()
+        try {
+            tokenBuckets.get(port.getName) match {
+                case Some(b) =>
+                    val tb = b.underlyingTokenBucket()
+                    portBuckets.put(portNo,
+                                    PortBucket(port.getName, tb, tb.getCapacity))
+                case _ =>
+            }
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /** The name of the port bound to a datapath port number, or null. */
+    def portName(portNo: Int): String = {
+        val pb = portBuckets.get(portNo)
+        if (pb eq null) null else pb.name
+    }
+
+    /** The current capacity of the bucket of a port, or 0 if it has none. */
+    def capacity(portNo: Int): Int = {
+        val pb = portBuckets.get(portNo)
+        if (pb eq null) 0 else pb.tb.getCapacity
+    }
+
+    /**
+     * The weight of a port when sharing the upcall queues: the configured
+     * capacity of its bucket, or 1 if it has none.
+     */
+    def weight(portNo: Int): Int = {
+        val pb = portBuckets.get(portNo)
+        if (pb eq null) 1 else pb.configured
+    }
+
+    /**
+     * Halves the capacity of the bucket of a port, down to one token, and
+     * returns the tokens it held above the new capacity to the root so that
+     * they are distributed to the other ports.
+     */
+    def throttle(portNo: Int): Unit = {
+        lock.lock()
+        try {
+            val pb = portBuckets.get(portNo)
+            if ((pb ne null) && pb.tb.getCapacity > 1) {
+                val capacity = pb.tb.getCapacity / 2
+                val excess = pb.tb.setCapacity(capacity)
+                if (excess > 0)
+                    root.addTokens(excess)
+                log.debug("Throttled bucket of port {} to {} tokens",
+                          pb.name, Int.box(capacity))
+            }
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * Doubles the capacity of the bucket of a throttled port, up to the
+     * configured capacity. Returns whether the port is still throttled.
+     */
+    def restore(portNo: Int): Boolean = {
+        lock.lock()
+        try {
+            val pb = portBuckets.get(portNo)
+            if ((pb ne null) && pb.tb.getCapacity < pb.configured) {
+                val capacity = Math.min(pb.configured, pb.tb.getCapacity * 2)
+                pb.tb.setCapacity(capacity)
+                log.debug("Restored bucket of port {} to {} tokens",
+                          pb.name, Int.box(capacity))
+                capacity < pb.configured
+            } else {
+                false
+            }
+        } finally {
+            lock.unlock()
+        }
+    }
+
     private def adjust(tokens: Int): Int = Math.max(1, tokens / multiplier)
 }
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.io
+
+import java.beans.ConstructorProperties
+import java.lang.management.ManagementFactory
+import java.util.{ArrayDeque, ArrayList, HashMap}
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong, AtomicLongArray}
+import javax.management.ObjectName
+
+import scala.beans.BeanProperty
+import scala.collection.JavaConversions._
+
+import org.slf4j.LoggerFactory
+
+import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.management.UpcallAdmissionMXBean
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
+import org.midonet.midolman.state.FlowStatePackets
+import org.midonet.odp.{FlowMatch, Packet}
+import org.midonet.packets.{ARP, IPv4, UDP}
+import org.midonet.util.StatisticalCounter
+import org.midonet.util.concurrent.NanoClock
+
+/**
+ * The upcalls of a datapath port that were admitted and shed, by class.
+ */
+case class UpcallPortDrops @ConstructorProperties(
+        Array("portNumber", "portName", "admitted", "controlDrops",
+              "tunnelDrops", "newFlowDrops", "bucketCapacity")) (
+        @BeanProperty portNumber: Int,
+        @BeanProperty portName: String,
+        @BeanProperty admitted: Long,
+        @BeanProperty controlDrops: Long,
+        @BeanProperty tunnelDrops: Long,
+        @BeanProperty newFlowDrops: Long,
+        @BeanProperty bucketCapacity: Int) {
+
+    override def toString =
+        s"$portNumber $portName admitted:$admitted control:$controlDrops " +
+        s"tunnel:$tunnelDrops new_flow:$newFlowDrops capacity:$bucketCapacity"
+}
+
+object UpcallAdmission {
+
+    // The classes of upcalls, in order of priority
+    final val State = 0
+    final val Control = 1
+    final val Tunnel = 2
+    final val NewFlow = 3
+    final val NumClasses = 4
+
+    // Interval at which the queue limit and the buckets are adapted
+    final val ControlInterval = TimeUnit.MILLISECONDS.toNanos(10)
+    // Time without any processed upcall after which the upcalls accounted
+    // as queued are considered lost
+    final val ResyncInterval = TimeUnit.SECONDS.toNanos(1)
+    // Bounds and additive increase of the fraction of the queue limit
+    final val MinScale = 1.0 / 16
+    final val ScaleIncrement = 1.0 / 16
+    // ARP and DHCP upcalls admitted in each round even over the limit
+    final val ControlReserve = 16
+
+    private final val DhcpServerPort = 67
+    private final val DhcpClientPort = 68
+
+    /* this flag prevents multiple registrations on the same jvm. this would
+     * happen on unit tests */
+    private var registered = false
+
+    private[io] final class PortStats(val portNo: Int) {
+        val admitted = new AtomicLong()
+        val drops = new AtomicLongArray(NumClasses)
+        // Whether upcalls of the port were shed in the current interval
+        @volatile var shed = false
+        // Whether the bucket of the port is throttled, only accessed when
+        // adapting the buckets
+        var throttled = false
+    }
+
+    /**
+     * Classifies an upcall by its flow match, without marking the fields
+     * that it reads as seen.
+     */
+    def classify(fmatch: FlowMatch): Int = {
+        fmatch.doNotTrackSeenFields()
+        try {
+            if (FlowStatePackets.isStateMessage(fmatch)) State
+            else if (fmatch.getEtherType == ARP.ETHERTYPE || isDhcp(fmatch)) Control
+            else if (fmatch.isFromTunnel) Tunnel
+            else NewFlow
+        } finally {
+            fmatch.doTrackSeenFields()
+        }
+    }
+
+    private def isDhcp(fmatch: FlowMatch): Boolean =
+        fmatch.getEtherType == IPv4.ETHERTYPE &&
+        fmatch.getNetworkProto == UDP.PROTOCOL_NUMBER && {
+            val src = fmatch.getSrcPort
+            val dst = fmatch.getDstPort
+            (src == DhcpClientPort && dst == DhcpServerPort) ||
+            (src == DhcpServerPort && dst == DhcpClientPort)
+        }
+}
+
+/**
+ * Admission control of the upcalls that passed the HTB, which sheds them
+ * before they queue up in the simulation threads when these fall behind.
+ *
+ * The number of upcalls that may be waiting for the simulation threads is
+ * limited. The limit follows the simulation latency, from the reception of
+ * an upcall to the end of its simulation: it is halved while the latency is
+ * above the target and grows back additively once it is under it. Within
+ * the limit, the upcall handlers serve the upcalls of each round of the
+ * select loop by class, see [[UpcallQueues]], and shed the rest, returning
+ * their tokens to the HTB. The buckets of the ports whose upcalls are shed
+ * are halved, so that their tokens go to the other ports, and are restored
+ * once the port is no longer shed.
+ */
+class UpcallAdmission(config: MidolmanConfig,
+                      tbPolicy: TokenBucketPolicy,
+                      counter: StatisticalCounter,
+                      clock: NanoClock) extends UpcallAdmissionMXBean {
+    import UpcallAdmission._
+
+    def this(config: MidolmanConfig, tbPolicy: TokenBucketPolicy,
+             counter: StatisticalCounter) =
+        this(config, tbPolicy, counter, NanoClock.DEFAULT)
+
+    private val log = LoggerFactory.getLogger("org.midonet.io.admission")
+
+    val enabled = config.datapath.upcallAdmission
+    private val queueLimit = Math.max(1, config.datapath.upcallQueueLimit)
+    private val latencyTarget =
+        TimeUnit.MICROSECONDS.toNanos(config.datapath.upcallLatencyTarget)
+    // The slot of the counter where the channels return unused tokens
+    private val tokenSlot = config.simulationThreads
+
+    private val ports = new ConcurrentHashMap[Integer, PortStats]()
+
+    @volatile private var metrics: PacketPipelineMetrics = null
+    @volatile private var completions: StatisticalCounter = null
+    private val dispatchedCount = new AtomicLong()
+    private var workers = 1
+
+    @volatile private var limit = Int.MaxValue
+    @volatile private var latency = 0L
+    private var scale = 1.0
+    private val adapting = new AtomicBoolean(false)
+    @volatile private var lastControl = 0L
+    private var lastProgress = 0L
+    private var lastSimulated = 0L
+    private var lastSimulationTime = 0L
+    private var lastCompleted = 0L
+
+    /**
+     * Starts monitoring the simulation threads, given their number and the
+     * metrics where they record the latency of the simulations. Until then,
+     * all upcalls are admitted.
+     */
+    def monitor(workers: Int, metrics: PacketPipelineMetrics): Unit = {
+        if (!enabled)
+            return
+        this.workers = workers
+        completions = new StatisticalCounter(workers)
+        dispatchedCount.set(0)
+        scale = 1.0
+        limit = queueLimit * workers
+        lastControl = clock.tick
+        lastProgress = lastControl
+        lastSimulated = metrics.packetsSimulated.getCount
+        lastSimulationTime = metrics.simulationAccumulatedTime.getCount
+        lastCompleted = 0
+        this.metrics = metrics
+        log.info(s"Admitting up to $queueLimit upcalls per simulation " +
+                 s"thread with a latency target of " +
+                 s"${TimeUnit.NANOSECONDS.toMicros(latencyTarget)} us")
+        registerAsMXBean()
+    }
+
+    /** Records upcalls dispatched to the simulation threads. */
+    def dispatched(n: Int): Unit = dispatchedCount.addAndGet(n)
+
+    /** Records upcalls processed by a simulation thread. */
+    def completed(worker: Int, n: Int): Unit = {
+        val c = completions
+        if (c ne null)
+            c.addAndGet(worker, n)
+    }
+
+    /** The number of upcalls waiting to be processed. */
+    def queueDepth: Long = {
+        val c = completions
+        if (c eq null) 0L
+        else Math.max(0L, dispatchedCount.get - c.getValue)
+    }
+
+    /**
+     * The number of upcalls that may be dispatched to the simulation threads,
+     * adapting the limit first if it is due.
+     */
+    def budget(): Int = {
+        if (metrics eq null)
+            return Int.MaxValue
+        val now = clock.tick
+        if (now - lastControl >= ControlInterval &&
+            adapting.compareAndSet(false, true)) {
+            try {
+                if (now - lastControl >= ControlInterval)
+                    adapt(now)
+            } finally {
+                adapting.set(false)
+            }
+        }
+        Math.max(0L, limit - queueDepth).toInt
+    }
+
+    /**
+     * Sheds an upcall of the given class, returning the token it consumed.
+     */
+    private[io] def shed(stats: PortStats, cls: Int): Unit = {
+        stats.drops.incrementAndGet(cls)
+        stats.shed = true
+        counter.addAndGetAtomic(tokenSlot, 1)
+    }
+
+    private[io] def portStats(portNo: Int): PortStats = {
+        var stats = ports.get(portNo)
+        if (stats eq null) {
+            stats = new PortStats(portNo)
+            val prev = ports.putIfAbsent(portNo, stats)
+            if (prev ne null)
+                stats = prev
+        }
+        stats
+    }
+
+    private[io] def weight(portNo: Int): Int = tbPolicy.weight(portNo)
+
+    private def adapt(now: Long): Unit = {
+        val m = metrics
+        val simulated = m.packetsSimulated.getCount
+        val simulationTime = m.simulationAccumulatedTime.getCount
+        val completed = completions.getValue
+
+        if (simulated > lastSimulated) {
+            latency = (simulationTime - lastSimulationTime) /
+                      (simulated - lastSimulated)
+            scale = if (latency > latencyTarget) Math.max(MinScale, scale / 2)
+                    else Math.min(1.0, scale + ScaleIncrement)
+        }
+        if (completed != lastCompleted) {
+            lastProgress = now
+        } else if (now - lastProgress >= ResyncInterval) {
+            // The upcalls that were dispatched but never processed were
+            // lost, e.g. with a failed simulation thread
+            dispatchedCount.set(completed)
+            lastProgress = now
+        }
+
+        lastSimulated = simulated
+        lastSimulationTime = simulationTime
+        lastCompleted = completed
+        lastControl = now
+        limit = Math.max(workers, (queueLimit * workers * scale).toInt)
+        reallocate()
+    }
+
+    private def reallocate(): Unit = {
+        val it = ports.values.iterator
+        while (it.hasNext) {
+            val stats = it.next()
+            if (stats.shed) {
+                stats.shed = false
+                tbPolicy.throttle(stats.portNo)
+                stats.throttled = true
+            } else if (stats.throttled) {
+                stats.throttled = tbPolicy.restore(stats.portNo)
+            }
+        }
+    }
+
+    override def getPortDrops: Array[UpcallPortDrops] =
+        ports.values.map { stats =>
+            UpcallPortDrops(stats.portNo, tbPolicy.portName(stats.portNo),
+                            stats.admitted.get, stats.drops.get(Control),
+                            stats.drops.get(Tunnel), stats.drops.get(NewFlow),
+                            tbPolicy.capacity(stats.portNo))
+        }.toArray.sortBy(_.portNumber)
+
+    override def getQueueLimit: Int = limit
+
+    override def getQueueDepth: Long = queueDepth
+
+    override def getLatencyMicros: Long =
+        TimeUnit.NANOSECONDS.toMicros(latency)
+
+    def registerAsMXBean(): Unit = UpcallAdmission.synchronized {
+        try {
+            if (!registered) {
+                ManagementFactory.getPlatformMBeanServer.registerMBean(this,
+                    new ObjectName(UpcallAdmissionMXBean.NAME))
+                registered = true
+            }
+        } catch {
+            case e: Exception =>
+                log.error("Failed to register upcall admission JMX bean", e)
+        }
+    }
+}
+
+/**
+ * The upcalls read by an upcall handler in a round of the select loop,
+ * queued by class and by input port until the end of the round. They are
+ * then dispatched in order of priority, within the budget of the admission:
+ * flow state messages are never shed, ARP and DHCP are admitted at least up
+ * to a reserve, followed by the packets from tunnels and, last, the first
+ * packets of the flows of the local ports. Within a class, the ports are
+ * served round robin, each taking as many upcalls per round as its weight.
+ * The upcalls over the budget are shed.
+ *
+ * This class is not thread-safe: each upcall handler owns its queues.
+ */
+class UpcallQueues(admission: UpcallAdmission) {
+    import UpcallAdmission._
+
+    private final class PortQueue(val stats: PortStats) {
+        val packets = new ArrayDeque[Packet]()
+        var weight = 1
+    }
+
+    private final class ClassQueue(cls: Int) {
+        private val byPort = new HashMap[Integer, PortQueue]()
+        private val active = new ArrayList[PortQueue]()
+        private var first = 0
+
+        def add(portNo: Int, packet: Packet): Unit = {
+            var q = byPort.get(portNo)
+            if (q eq null) {
+                q = new PortQueue(admission.portStats(portNo))
+                byPort.put(portNo, q)
+            }
+            if (q.packets.isEmpty) {
+                q.weight = Math.max(1, admission.weight(portNo))
+                active.add(q)
+            }
+            q.packets.add(packet)
+        }
+
+        def drain(limit: Int, dispatch: Packet => Unit): Int = {
+            val n = active.size
+            if (n == 0)
+                return 0
+
+            if (first >= n)
+                first = 0
+            var admitted = 0
+            var remaining = n
+            while (remaining > 0 && admitted < limit) {
+                var i = 0
+                while (i < n && admitted < limit) {
+                    val q = active.get((first + i) % n)
+                    var quantum = q.weight
+                    while (quantum > 0 && admitted < limit &&
+                           !q.packets.isEmpty) {
+                        dispatch(q.packets.poll())
+                        q.stats.admitted.incrementAndGet()
+                        admitted += 1
+                        quantum -= 1
+                        if (q.packets.isEmpty)
+                            remaining -= 1
+                    }
+                    i += 1
+                }
+            }
+
+            var i = 0
+            while (i < n) {
+                val q = active.get(i)
+                while (!q.packets.isEmpty) {
+                    q.packets.poll()
+                    admission.shed(q.stats, cls)
+                }
+                i += 1
+            }
+            active.clear()
+            first = (first + 1) % n
+            admitted
+        }
+    }
+
+    private val queues = Array.tabulate(NumClasses)(new ClassQueue(_))
+    private var pending = 0
+
+    def isEmpty = pending == 0
+
+    def add(packet: Packet): Unit = {
+        val fmatch = packet.getMatch
+        queues(classify(fmatch)).add(fmatch.getInputPortNumber, packet)
+        pending += 1
+    }
+
+    def drain(dispatch: Packet => Unit): Unit = {
+        if (pending == 0)
+            return
+        pending = 0
+        var budget = admission.budget()
+        budget -= queues(State).drain(Int.MaxValue, dispatch)
+        budget -= queues(Control).drain(Math.max(budget, ControlReserve),
+                                        dispatch)
+        budget -= queues(Tunnel).drain(Math.max(budget, 0), dispatch)
+        queues(NewFlow).drain(Math.max(budget, 0), dispatch)
+    }
+}
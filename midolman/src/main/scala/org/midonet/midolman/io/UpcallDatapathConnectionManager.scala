@@ -25,6 +25,7 @@ import akka.actor.ActorSystem
 import akka.util.Timeout
 import org.midonet.midolman.PacketsEntryPoint.{GetWorkers, Workers}
 import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.management.ThreadPlacement
 import org.midonet.midolman.state.FlowStatePackets
 import org.midonet.midolman.{PacketWorkflow, NetlinkCallbackDispatcher, PacketsEntryPoint}
 import org.midonet.netlink.BufferPool
@@ -110,6 +111,7 @@ abstract class UpcallDatapathConnectionManagerBase(
         } andThen {
             case Success((createdPort, _)) =>
                 portToChannel.put((datapath, createdPort.getPortNo.intValue), conn)
+                tbPolicy.bind(port, createdPort.getPortNo.intValue)
             case Failure(e) =>
                 log.error("failed to create or retrieve datapath port "
                           + port.getName, e)
@@ -170,6 +172,24 @@ abstract class UpcallDatapathConnectionManagerBase(
             var cursors = Array.fill[Int](NUM_WORKERS)(0)
             val log = LoggerFactory.getLogger("PacketInHook")
 
+            val admission = workers.admission
+            val queues =
+                if ((admission ne null) && admission.enabled)
+                    new UpcallQueues(admission)
+                else null
+            val dispatch = (data: Packet) => {
+                if (FlowStatePackets.isStateMessage(data.getMatch)) {
+                    var i = 0
+                    while (i < NUM_WORKERS) {
+                        addToWorkerBatch(i, data)
+                        i += 1
+                    }
+                } else {
+                    val worker = Math.abs(data.getMatch.connectionHash) % NUM_WORKERS
+                    addToWorkerBatch(worker, data)
+                }
+            }
+
             def endBatch(worker: Int) {
                 if (cursors(worker) > 0) {
                     workers.list(worker) ! PacketWorkflow.HandlePackets(packets(worker))
@@ -179,6 +199,8 @@ abstract class UpcallDatapathConnectionManagerBase(
             }
 
             override def endBatch() {
+                if (queues ne null)
+                    queues.drain(dispatch)
                 var i = 0
                 while (i < NUM_WORKERS) {
                     endBatch(i)
@@ -191,21 +213,17 @@ abstract class UpcallDatapathConnectionManagerBase(
 
                 data.startTimeNanos = NanoClock.DEFAULT.tick
 
-                if (FlowStatePackets.isStateMessage(data.getMatch)) {
-                    var i = 0
-                    while (i < NUM_WORKERS) {
-                        addToWorkerBatch(i, data)
-                        i += 1
-                    }
-                } else {
-                    val worker = Math.abs(data.getMatch.connectionHash) % NUM_WORKERS
-                    addToWorkerBatch(worker, data)
-                }
+                if (queues ne null)
+                    queues.add(data)
+                else
+                    dispatch(data)
             }
 
             private def addToWorkerBatch(worker: Int, data: Packet): Unit = {
                 packets(worker)(cursors(worker)) = data
                 cursors(worker) += 1
+                if (queues ne null)
+                    admission.dispatched(1)
                 if (cursors(worker) == BATCH_SIZE)
                     endBatch(worker)
             }
@@ -223,7 +241,9 @@ class OneToOneDpConnManager(c: MidolmanConfig,
     protected override val log = LoggerFactory.getLogger(this.getClass)
 
     override def makeConnection(name: String, bucket: Bucket) =
-        new SelectorBasedDatapathConnection(name, config, true, bucket, makeBufferPool())
+        new SelectorBasedDatapathConnection(name, config, true, bucket,
+                                            makeBufferPool(),
+                                            ThreadPlacement.Input)
 
     override def stopConnection(conn: ManagedDatapathConnection) {
         conn.stop()
@@ -244,7 +264,8 @@ class OneToManyDpConnManager(c: MidolmanConfig,
                              tbPolicy: TokenBucketPolicy)
         extends UpcallDatapathConnectionManagerBase(c, tbPolicy) {
 
-    val threadPair = new SelectorThreadPair("upcall", config, false)
+    val threadPair = new SelectorThreadPair("upcall", config, false,
+                                            ThreadPlacement.Input)
 
     private val lock = new ReentrantLock()
 
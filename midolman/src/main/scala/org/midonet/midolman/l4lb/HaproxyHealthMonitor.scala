@@ -71,6 +71,8 @@ object HaproxyHealthMonitor {
     case object RouterRemoved
     // Tells this actor that it now has a router
     case class RouterAdded(newRouterId: UUID)
+    // Tells this actor that the health of a pool member has changed
+    case class MemberStatusChanged(memberId: UUID, status: LBStatus)
 
     // Constants for linking namespace to router port
     val NameSpaceIp = "169.254.17.45"
@@ -101,7 +103,7 @@ class HaproxyHealthMonitor(var config: PoolConfig,
 
     private var currentUpNodes = Set[UUID]()
     private var currentDownNodes = Set[UUID]()
-    private val healthMonitorName = config.id.toString.substring(0,8) +
+    protected val healthMonitorName = config.id.toString.substring(0,8) +
                                     config.nsPostFix
     private var routerPortId: UUID = null
     private var routeId: UUID = null
@@ -109,13 +111,10 @@ class HaproxyHealthMonitor(var config: PoolConfig,
 
     override def preStart(): Unit = {
         try {
-            writeConf(config)
             namespaceName = createNamespace(healthMonitorName,
                                                 config.vip.ip)
             hookNamespaceToRouter()
-            restartHaproxy(healthMonitorName, config.haproxyConfFileLoc,
-                           config.haproxyPidFileLoc)
-            system.scheduler.scheduleOnce(1 second, self, CheckHealth)
+            startHealthChecks()
             setPoolMapStatus(PoolHealthMonitorMappingStatus.ACTIVE)
         } catch {
             case e: Exception =>
@@ -127,6 +126,7 @@ class HaproxyHealthMonitor(var config: PoolConfig,
     }
 
     override def postStop(): Unit = {
+        stopHealthChecks()
         unhookNamespaceFromRouter()
         HealthMonitor.cleanAndDeleteNamespace(healthMonitorName,
                                               config.nsPostFix,
@@ -137,14 +137,7 @@ class HaproxyHealthMonitor(var config: PoolConfig,
     def receive = {
         case ConfigUpdate(conf) =>
             try {
-                writeConf(conf)
-                if (conf.isConfigurable){
-                    startHaproxy(healthMonitorName)
-                } else {
-                    killHaproxyIfRunning(healthMonitorName,
-                                         conf.haproxyConfFileLoc,
-                                         conf.haproxyPidFileLoc)
-                }
+                updateHealthChecks(conf)
                 // The vip may have changed. If so, we need to change the
                 // routes on the router.
                 if (config.vip != conf.vip) {
@@ -191,6 +184,9 @@ class HaproxyHealthMonitor(var config: PoolConfig,
             }
             system.scheduler.scheduleOnce(1 second, self, CheckHealth)
 
+        case MemberStatusChanged(memberId, status) =>
+            dataClient.poolMemberUpdateStatus(memberId, status)
+
         case RouterAdded(newRouterId) =>
             routerId = newRouterId
             hookNamespaceToRouter()
@@ -202,6 +198,37 @@ class HaproxyHealthMonitor(var config: PoolConfig,
             setPoolMapStatus(PoolHealthMonitorMappingStatus.INACTIVE)
     }
 
+    /*
+     * Starts checking the health of the pool members once the namespace is
+     * set up. By default, this runs haproxy and polls its statistics.
+     */
+    protected def startHealthChecks(): Unit = {
+        writeConf(config)
+        restartHaproxy(healthMonitorName, config.haproxyConfFileLoc,
+                       config.haproxyPidFileLoc)
+        system.scheduler.scheduleOnce(1 second, self, CheckHealth)
+    }
+
+    /*
+     * Applies a new pool configuration to the health checks.
+     */
+    protected def updateHealthChecks(conf: PoolConfig): Unit = {
+        writeConf(conf)
+        if (conf.isConfigurable){
+            startHaproxy(healthMonitorName)
+        } else {
+            killHaproxyIfRunning(healthMonitorName,
+                                 conf.haproxyConfFileLoc,
+                                 conf.haproxyPidFileLoc)
+        }
+    }
+
+    /*
+     * Stops the health checks before the namespace is removed. Haproxy is
+     * killed with the namespace.
+     */
+    protected def stopHealthChecks(): Unit = { }
+
     /*
      * Take the output from the haproxy response and turn it into a set
      * of UP member ids. Assumes the following:
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.l4lb
+
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.nio.channels.{SelectionKey, Selector, SocketChannel}
+import java.util.concurrent.{ConcurrentLinkedQueue, TimeUnit}
+import java.util.{Comparator, PriorityQueue, UUID}
+
+import scala.collection.mutable
+
+import com.sun.jna.Native
+import org.slf4j.LoggerFactory
+
+import org.midonet.midolman.state.l4lb.LBStatus
+import org.midonet.netlink.clib.cLibrary
+import org.midonet.util.functors.makeRunnable
+
+object HealthCheckEngine {
+
+    /** Receives the status changes of the members of a pool. */
+    trait StatusListener {
+        /** Called on the engine thread when the status of a member changes. */
+        def memberStatusChanged(memberId: UUID, status: LBStatus): Unit
+    }
+
+    /** Consecutive successful checks that bring an inactive member up. */
+    val Rise = 2
+
+    private val NetNsDir = "/var/run/netns/"
+    private val HostNetNs = "/proc/self/ns/net"
+
+    private final class Timer(val deadline: Long, val probe: Probe)
+
+    private val TimerOrder = new Comparator[Timer] {
+        override def compare(a: Timer, b: Timer): Int =
+            java.lang.Long.compare(a.deadline, b.deadline)
+    }
+
+    private final class Pool(val id: UUID, val namespace: String,
+                             val listener: StatusListener) {
+        var nsFd = -1
+        var delay = 0L
+        var timeout = 0L
+        var maxRetries = 0
+        val members = new mutable.HashMap[UUID, Probe]
+    }
+
+    private final class Probe(val pool: Pool, val memberId: UUID,
+                              val address: InetSocketAddress) {
+        var status: LBStatus = null
+        var successes = 0
+        var failures = 0
+        var channel: SocketChannel = null
+        var timer: Timer = null
+        var cancelled = false
+    }
+}
+
+/**
+ * A health checking engine that probes the members of the load balancer
+ * pools from a single thread, as an alternative to running one haproxy
+ * process per pool and polling its statistics socket.
+ *
+ * Every member is checked with a non-blocking TCP connection once every
+ * `delay` of the health monitor of its pool: the check fails if the
+ * connection is refused or doesn't complete within `timeout`. A member
+ * becomes inactive after `maxRetries` consecutive failed checks, and active
+ * after its first successful check, or after [[HealthCheckEngine.Rise]]
+ * consecutive ones once it was inactive. Status changes are notified to the
+ * listener of the pool as soon as they happen.
+ *
+ * The connections are opened in the network namespace of the pool, which
+ * routes them through the pool's router, by switching the engine thread into
+ * the namespace while the socket is created. A socket remains in the
+ * namespace where it was created, so all sockets share the engine selector.
+ *
+ * The delay and timeout of the health monitors are in the given time unit,
+ * seconds unless in tests.
+ */
+class HealthCheckEngine(unit: TimeUnit = TimeUnit.SECONDS) {
+
+    import HealthCheckEngine._
+
+    private val log = LoggerFactory.getLogger("org.midonet.l4lb.health-check")
+
+    private val selector = Selector.open()
+    private val commands = new ConcurrentLinkedQueue[Runnable]()
+    private val timers = new PriorityQueue[Timer](64, TimerOrder)
+    private val pools = new mutable.HashMap[UUID, Pool]
+    private var hostNsFd = -1
+
+    @volatile private var running = false
+    private val thread = new Thread(makeRunnable(loop()), "health-check")
+    thread.setDaemon(true)
+
+    def start(): Unit = {
+        running = true
+        thread.start()
+    }
+
+    def stop(): Unit = {
+        running = false
+        selector.wakeup()
+        thread.join()
+    }
+
+    /**
+     * Starts or updates the checks of the members of a pool. The checks of
+     * members whose address did not change keep their status. A null
+     * namespace checks the members from the namespace of the agent.
+     */
+    def watch(poolId: UUID, namespace: String, config: PoolConfig,
+              listener: StatusListener): Unit = execute {
+        val pool = pools.get(poolId) match {
+            case Some(p) if p.namespace == namespace => p
+            case Some(p) =>
+                removePool(p)
+                addPool(poolId, namespace, listener)
+            case None =>
+                addPool(poolId, namespace, listener)
+        }
+        pool.delay = unit.toNanos(config.healthMonitor.delay)
+        pool.timeout = unit.toNanos(config.healthMonitor.timeout)
+        pool.maxRetries = config.healthMonitor.maxRetries
+
+        val members = config.members.filter(_.isConfigurable)
+                                    .map(m => m.id -> m).toMap
+        for ((id, probe) <- pool.members.toList
+             if !members.get(id).exists(m => sameAddress(probe, m))) {
+            cancel(probe)
+            pool.members -= id
+        }
+        for ((id, member) <- members if !pool.members.contains(id)) {
+            val probe = new Probe(pool, id, new InetSocketAddress(
+                member.address, member.port))
+            pool.members += id -> probe
+            schedule(probe, System.nanoTime())
+        }
+    }
+
+    /** Stops the checks of the members of a pool. */
+    def unwatch(poolId: UUID): Unit = execute {
+        pools.remove(poolId) foreach removePool
+    }
+
+    private def sameAddress(probe: Probe, member: PoolMemberConfig) =
+        probe.address.getPort == member.port &&
+        probe.address.getHostString == member.address
+
+    private def execute(f: => Unit): Unit = {
+        commands.add(makeRunnable(f))
+        selector.wakeup()
+    }
+
+    private def addPool(poolId: UUID, namespace: String,
+                        listener: StatusListener): Pool = {
+        val pool = new Pool(poolId, namespace, listener)
+        if (namespace ne null) {
+            pool.nsFd = openNamespace(NetNsDir + namespace)
+        }
+        pools += poolId -> pool
+        pool
+    }
+
+    private def removePool(pool: Pool): Unit = {
+        pool.members.values foreach cancel
+        pool.members.clear()
+        if (pool.nsFd >= 0) {
+            cLibrary.lib.close(pool.nsFd)
+            pool.nsFd = -1
+        }
+    }
+
+    private def loop(): Unit = {
+        while (running) {
+            try {
+                var command = commands.poll()
+                while (command ne null) {
+                    command.run()
+                    command = commands.poll()
+                }
+                expireTimers(System.nanoTime())
+                selector.select(waitMillis(System.nanoTime()))
+                val keys = selector.selectedKeys().iterator()
+                while (keys.hasNext) {
+                    val key = keys.next()
+                    keys.remove()
+                    connected(key.attachment().asInstanceOf[Probe])
+                }
+            } catch {
+                case e: Exception =>
+                    log.error("Unexpected error in the health check loop", e)
+            }
+        }
+        pools.values foreach removePool
+        pools.clear()
+        selector.close()
+    }
+
+    private def waitMillis(now: Long): Long = {
+        val next = timers.peek()
+        if (next eq null) 0L
+        else Math.max(1L, TimeUnit.NANOSECONDS.toMillis(
+            next.deadline - now + 999999L))
+    }
+
+    private def expireTimers(now: Long): Unit = {
+        var next = timers.peek()
+        while ((next ne null) && next.deadline <= now) {
+            timers.poll()
+            val probe = next.probe
+            if (!probe.cancelled && (probe.timer eq next)) {
+                probe.timer = null
+                if (probe.channel eq null) check(probe, now)
+                else completed(probe, success = false, now)
+            }
+            next = timers.peek()
+        }
+    }
+
+    private def schedule(probe: Probe, deadline: Long): Unit = {
+        val timer = new Timer(deadline, probe)
+        probe.timer = timer
+        timers.add(timer)
+    }
+
+    /** Starts a check, which completes on connection or on timeout. */
+    private def check(probe: Probe, now: Long): Unit = {
+        try {
+            val channel = openSocket(probe.pool)
+            probe.channel = channel
+            channel.configureBlocking(false)
+            if (channel.connect(probe.address)) {
+                completed(probe, success = true, now)
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, probe)
+                schedule(probe, now + probe.pool.timeout)
+            }
+        } catch {
+            case e: IOException =>
+                log.debug("Health check of member {} failed", probe.memberId, e)
+                completed(probe, success = false, now)
+        }
+    }
+
+    private def connected(probe: Probe): Unit = {
+        if (probe.cancelled || (probe.channel eq null))
+            return
+        val success = try probe.channel.finishConnect() catch {
+            case e: IOException => false
+        }
+        completed(probe, success, System.nanoTime())
+    }
+
+    private def completed(probe: Probe, success: Boolean, now: Long): Unit = {
+        closeChannel(probe)
+        val pool = probe.pool
+        if (success) {
+            probe.successes += 1
+            probe.failures = 0
+            if ((probe.status ne LBStatus.ACTIVE) &&
+                ((probe.status eq null) || probe.successes >= Rise)) {
+                changeStatus(probe, LBStatus.ACTIVE)
+            }
+        } else {
+            probe.failures += 1
+            probe.successes = 0
+            if ((probe.status ne LBStatus.INACTIVE) &&
+                probe.failures >= pool.maxRetries) {
+                changeStatus(probe, LBStatus.INACTIVE)
+            }
+        }
+        schedule(probe, now + pool.delay)
+    }
+
+    private def changeStatus(probe: Probe, status: LBStatus): Unit = {
+        log.debug("Member {} of pool {} is now {}", probe.memberId,
+                  probe.pool.id, status)
+        probe.status = status
+        try probe.pool.listener.memberStatusChanged(probe.memberId, status)
+        catch {
+            case e: Exception =>
+                log.warn("Failed to notify the status of member {}",
+                         probe.memberId, e)
+        }
+    }
+
+    private def cancel(probe: Probe): Unit = {
+        probe.cancelled = true
+        probe.timer = null
+        closeChannel(probe)
+    }
+
+    private def closeChannel(probe: Probe): Unit = {
+        if (probe.channel ne null) {
+            try probe.channel.close() catch { case e: IOException => }
+            probe.channel = null
+        }
+    }
+
+    /**
+     * Opens a socket in the namespace of the pool. The namespace applies to
+     * the calling thread only, which returns to the agent namespace before
+     * any other socket is opened.
+     */
+    @throws[IOException]
+    private def openSocket(pool: Pool): SocketChannel = {
+        if (pool.nsFd < 0) {
+            if (pool.namespace ne null)
+                throw new IOException(s"Namespace ${pool.namespace} not open")
+            return SocketChannel.open()
+        }
+        if (hostNsFd < 0) {
+            hostNsFd = openNamespace(HostNetNs)
+        }
+        enterNamespace(pool.nsFd, pool.namespace)
+        try SocketChannel.open()
+        finally enterNamespace(hostNsFd, HostNetNs)
+    }
+
+    private def openNamespace(path: String): Int = {
+        val fd = cLibrary.lib.open(path, cLibrary.O_RDONLY)
+        if (fd < 0) {
+            log.warn("Cannot open namespace {}: {}", path,
+                     cLibrary.lib.strerror(Native.getLastError))
+        }
+        fd
+    }
+
+    @throws[IOException]
+    private def enterNamespace(fd: Int, name: String): Unit = {
+        if (cLibrary.lib.setns(fd, cLibrary.CLONE_NEWNET) < 0) {
+            throw new IOException(s"Cannot enter namespace $name: " +
+                cLibrary.lib.strerror(Native.getLastError))
+        }
+    }
+}
@@ -190,6 +190,8 @@ class HealthMonitor extends Actor with ActorLogWithoutPath {
 
     private var watcher: ActorRef = null
 
+    private var engine: HealthCheckEngine = null
+
     override def preStart(): Unit = {
 
         fileLocation =  config.healthMonitor.haproxyFileLoc
@@ -205,6 +207,11 @@ class HealthMonitor extends Actor with ActorLogWithoutPath {
         log.info("Starting Health Monitor")
         hostId = HostIdGenerator.getIdFromPropertiesFile()
 
+        if (config.healthMonitor.healthCheckEngine == "native") {
+            engine = new HealthCheckEngine()
+            engine.start()
+        }
+
         watcher = context.actorOf(HealthMonitorConfigWatcher.props(
                 fileLocation, namespaceSuffix, self))
 
@@ -213,6 +220,12 @@ class HealthMonitor extends Actor with ActorLogWithoutPath {
         })
     }
 
+    override def postStop(): Unit = {
+        if (engine ne null) {
+            engine.stop()
+        }
+    }
+
     def receive = {
         case ConfigUpdated(poolId, config, routerId) =>
             context.child(poolId.toString) match {
@@ -300,9 +313,13 @@ class HealthMonitor extends Actor with ActorLogWithoutPath {
 
     def startChildHaproxyMonitor(poolId: UUID, config: PoolConfig,
                                  routerId: UUID) = {
-        context.actorOf(HaproxyHealthMonitor.props(config, self, routerId,
-            client, hostId).withDispatcher("actors.pinned-dispatcher"),
-                 config.id.toString)
+        val props =
+            if (engine eq null) HaproxyHealthMonitor.props(config, self,
+                                    routerId, client, hostId)
+            else NativeHealthMonitor.props(config, self, routerId, client,
+                                           hostId, engine)
+        context.actorOf(props.withDispatcher("actors.pinned-dispatcher"),
+                        config.id.toString)
     }
 
     def cleanupNamespaces() = {
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.l4lb
+
+import java.util.UUID
+
+import akka.actor.{ActorRef, Props}
+
+import org.midonet.cluster.DataClient
+import org.midonet.midolman.l4lb.HaproxyHealthMonitor.MemberStatusChanged
+import org.midonet.midolman.state.l4lb.LBStatus
+
+object NativeHealthMonitor {
+    def props(config: PoolConfig, manager: ActorRef, routerId: UUID,
+              dataClient: DataClient, hostId: UUID, engine: HealthCheckEngine):
+        Props = Props(new NativeHealthMonitor(config, manager, routerId,
+                                              dataClient, hostId, engine))
+}
+
+/**
+ * A health monitor that checks the pool members with the agent's
+ * [[HealthCheckEngine]] instead of a haproxy process. The namespace and its
+ * link to the router are set up as for haproxy, and the engine opens the
+ * check connections inside the namespace. Status changes are written to the
+ * storage as soon as the engine notifies them, rather than on the next poll.
+ */
+class NativeHealthMonitor(poolConfig: PoolConfig,
+                          managerRef: ActorRef,
+                          poolRouterId: UUID,
+                          client: DataClient,
+                          localHostId: UUID,
+                          engine: HealthCheckEngine)
+    extends HaproxyHealthMonitor(poolConfig, managerRef, poolRouterId, client,
+                                 localHostId) {
+
+    private val listener = new HealthCheckEngine.StatusListener {
+        override def memberStatusChanged(memberId: UUID,
+                                         status: LBStatus): Unit =
+            self ! MemberStatusChanged(memberId, status)
+    }
+
+    protected override def startHealthChecks(): Unit = {
+        engine.watch(config.id, healthMonitorName, config, listener)
+    }
+
+    protected override def updateHealthChecks(conf: PoolConfig): Unit = {
+        if (conf.isConfigurable) {
+            engine.watch(conf.id, healthMonitorName, conf, listener)
+        } else {
+            engine.unwatch(conf.id)
+        }
+    }
+
+    protected override def stopHealthChecks(): Unit = {
+        engine.unwatch(config.id)
+    }
+}
@@ -50,6 +50,8 @@ abstract class Matcher(name: String) extends Subcommand(name) {
             descr = "logs at debug level")
     val trace = opt[Boolean]("trace", short = 't',
             descr = "logs at trace level")
+    val record = opt[Boolean]("record", short = 'r',
+            descr = "records binary trace events only, see the dump command")
     val etherType = opt[Short]("ethertype", noshort = true,
             descr = "match on ethertype")
     val macSrc = opt[String]("mac-src", noshort = true,
@@ -68,13 +70,15 @@ abstract class Matcher(name: String) extends Subcommand(name) {
             descr = "match on TCP/UDP destination port")
     val limit = opt[Int]("limit", short = 'l',
             descr = "number of packets to match before disabling this trace")
-    requireOne(debug, trace)
-    mutuallyExclusive(debug, trace)
+    requireOne(debug, trace, record)
+    mutuallyExclusive(debug, trace, record)
 
     def makeTracer: PacketTracer =
         PacketTracer(etherType, macSrc, macDst, ipProto,
                      ipSrc, ipDst, srcPort, dstPort,
-                     if (debug.get.isDefined) LogLevel.DEBUG else LogLevel.TRACE,
+                     if (debug.get.isDefined) LogLevel.DEBUG
+                     else if (trace.get.isDefined) LogLevel.TRACE
+                     else LogLevel.RECORD,
                      limit)
 }
 
@@ -132,6 +136,25 @@ object ListTraces extends Subcommand("list") with TraceCommand {
     }
 }
 
+object DumpTraces extends Subcommand("dump") with TraceCommand {
+    descr("print the latest trace events recorded for the traced packets")
+
+    val id = opt[String]("id", short = 'i',
+        descr = "print only the packets that traversed this device, port " +
+                "or rule")
+    val limit = opt[Int]("limit", short = 'l', default = Option(1000),
+        descr = "maximum number of events to print")
+
+    override def run(tracingProxy: PacketTracingMXBean) = {
+        val events = tracingProxy.dumpTraceEvents(id.get.orNull,
+                                                  limit.get.getOrElse(1000))
+        for (e <- events) {
+            System.out.println(e)
+        }
+        TraceCommand.SUCCESS
+    }
+}
+
 object MidolmanTrace extends App {
     private def getTracingBean(host: String, port: Int): Try[PacketTracingMXBean] = {
         try {
@@ -161,6 +184,7 @@ object MidolmanTrace extends App {
         val remove = RemoveTrace
         val flush = FlushTraces
         val list = ListTraces
+        val dump = DumpTraces
 
         printedName = "mm-trace"
         footer("Copyright (c) 2014 Midokura SARL, All Rights Reserved.")
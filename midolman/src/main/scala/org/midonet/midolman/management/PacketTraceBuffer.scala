@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.management
+
+import java.beans.ConstructorProperties
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicLong
+
+import scala.beans.BeanProperty
+import scala.collection.mutable.ArrayBuffer
+
+object PacketTraceBuffer {
+    // The number of longs of an event: time, header, id msb and id lsb.
+    private final val EventSize = 4
+
+    // Event types. The value of an event depends on its type.
+    /** A simulation of the packet starts, at the ingress or egress port; the
+      * value is the simulation run. */
+    final val Simulation = 1
+    /** The packet ingresses a port. */
+    final val PortIngress = 2
+    /** The packet is processed by a bridge or router. */
+    final val DeviceVisited = 3
+    /** The packet egresses a port. */
+    final val PortEgress = 4
+    /** A rule matched the packet; the value is the rule action ordinal. */
+    final val RuleMatched = 5
+    /** A NAT rule translated the packet; the value is one of the Nat* kinds. */
+    final val NatApplied = 6
+    /** The simulation completed; the value is the number of flow actions,
+      * zero meaning the packet is dropped. */
+    final val ActionsChosen = 7
+
+    final val Snat = 0
+    final val Dnat = 1
+    final val ReverseSnat = 2
+    final val ReverseDnat = 3
+
+    private val EventNames = Array("", "SIMULATION", "PORT_INGRESS",
+                                   "DEVICE_VISITED", "PORT_EGRESS",
+                                   "RULE_MATCHED", "NAT_APPLIED",
+                                   "ACTIONS_CHOSEN")
+
+    def eventName(event: Int): String =
+        if (event > 0 && event < EventNames.length) EventNames(event)
+        else event.toString
+}
+
+/**
+ * A trace event read from a [[PacketTraceBuffer]].
+ */
+case class PacketTraceEvent @ConstructorProperties(
+        Array("time", "cookie", "event", "id", "value")) (
+        @BeanProperty time: Long,
+        @BeanProperty cookie: Int,
+        @BeanProperty event: String,
+        @BeanProperty id: String,
+        @BeanProperty value: Int) {
+
+    override def toString: String =
+        s"$time [cookie:$cookie] $event" +
+        (if (id ne null) s" $id" else "") + s" $value"
+}
+
+/**
+ * A ring buffer of binary packet trace events, written by a single packet
+ * processing thread and read on demand by any other thread.
+ *
+ * Every event takes four longs in a pre-allocated array: the time, a header
+ * with the packet cookie, the event type and a value, and the two halves of
+ * a device or rule identifier. The writer publishes an event with an ordered
+ * store of its position, without locking. When the buffer wraps around, the
+ * oldest events are overwritten. A reader copies the events published so
+ * far and discards those that the writer may have overwritten while it was
+ * copying them.
+ *
+ * @param capacity The number of events, a power of two.
+ */
+class PacketTraceBuffer(capacity: Int) {
+
+    import org.midonet.midolman.management.PacketTraceBuffer._
+
+    require(capacity > 0 && (capacity & (capacity - 1)) == 0,
+            "The capacity must be a power of two")
+
+    private val mask = capacity - 1
+    private val events = new Array[Long](capacity * EventSize)
+    private val position = new AtomicLong(0L)
+
+    /**
+     * Records an event. This method must be called by the owner thread only.
+     */
+    def record(cookie: Int, event: Int, value: Int, id: UUID): Unit = {
+        val pos = position.get
+        val index = (pos & mask).toInt * EventSize
+        events(index) = System.currentTimeMillis()
+        events(index + 1) = (cookie.toLong << 32) |
+                            ((event & 0xff).toLong << 24) |
+                            (value & 0xffffff).toLong
+        if (id ne null) {
+            events(index + 2) = id.getMostSignificantBits
+            events(index + 3) = id.getLeastSignificantBits
+        } else {
+            events(index + 2) = 0L
+            events(index + 3) = 0L
+        }
+        position.lazySet(pos + 1)
+    }
+
+    /** The number of events recorded since the buffer was created. */
+    def recorded: Long = position.get
+
+    /**
+     * Reads the events currently in the buffer, from the oldest to the
+     * latest.
+     */
+    def read(): Seq[PacketTraceEvent] = {
+        val end = position.get
+        val start = math.max(0L, end - capacity)
+        val copy = new Array[Long]((end - start).toInt * EventSize)
+        var pos = start
+        while (pos < end) {
+            System.arraycopy(events, (pos & mask).toInt * EventSize, copy,
+                             (pos - start).toInt * EventSize, EventSize)
+            pos += 1
+        }
+
+        // The writer may be writing over the oldest events, including the
+        // event at the current position that is not yet published.
+        val valid = math.max(start, position.get - capacity + 1)
+        val result = new ArrayBuffer[PacketTraceEvent]((end - valid).toInt)
+        pos = valid
+        while (pos < end) {
+            val index = (pos - start).toInt * EventSize
+            val header = copy(index + 1)
+            val msb = copy(index + 2)
+            val lsb = copy(index + 3)
+            result += PacketTraceEvent(
+                copy(index), (header >>> 32).toInt,
+                eventName((header >>> 24).toInt & 0xff),
+                if (msb == 0L && lsb == 0L) null else new UUID(msb, lsb).toString,
+                (header & 0xffffff).toInt)
+            pos += 1
+        }
+        result
+    }
+}
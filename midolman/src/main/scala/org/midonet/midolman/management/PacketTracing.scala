@@ -23,53 +23,144 @@ import com.typesafe.scalalogging.Logger
 import org.midonet.odp.FlowMatch
 import org.slf4j.LoggerFactory
 
-import org.midonet.midolman.simulation.PacketContext
+import org.midonet.packets.IPAddr
+
+/**
+ * An index of the packet tracers, compiled whenever the tracers change, that
+ * looks up the tracers by their destination port or destination address,
+ * such that a packet is only checked against the tracers that may match it.
+ * The tracers that match neither field are checked for every packet.
+ */
+private[management] class TracerIndex(tracers: List[PacketTracer]) {
+
+    private val byDstPort = tracers.filter(_.dstPort ne null)
+                                   .groupBy(_.dstPort.intValue)
+                                   .map { case (k, v) => k -> v.toArray }
+    private val byIpDst = tracers.filter(t => (t.dstPort eq null) &&
+                                              (t.ipDst ne null))
+                                 .groupBy(t => IPAddr.fromString(t.ipDst))
+                                 .map { case (k, v) => k -> v.toArray }
+    private val others = tracers.filter(t => (t.dstPort eq null) &&
+                                             (t.ipDst eq null)).toArray
+
+    val isEmpty = tracers.isEmpty
+
+    /** Returns the first tracer that matches the packet, or null. */
+    def find(fmatch: FlowMatch): PacketTracer = {
+        var tracer: PacketTracer = null
+        if (byDstPort.nonEmpty) {
+            tracer = first(byDstPort.getOrElse(fmatch.getDstPort, null), fmatch)
+        }
+        if ((tracer eq null) && byIpDst.nonEmpty) {
+            tracer = first(byIpDst.getOrElse(fmatch.getNetworkDstIP, null),
+                           fmatch)
+        }
+        if (tracer eq null) {
+            tracer = first(others, fmatch)
+        }
+        tracer
+    }
+
+    private def first(tracers: Array[PacketTracer],
+                      fmatch: FlowMatch): PacketTracer = {
+        if (tracers ne null) {
+            var i = 0
+            while (i < tracers.length) {
+                if (tracers(i).matches(fmatch))
+                    return tracers(i)
+                i += 1
+            }
+        }
+        null
+    }
+}
 
 object PacketTracing extends PacketTracingMXBean {
     val log = Logger(LoggerFactory.getLogger("org.midonet.midolman.management"))
 
-    var tracers: List[PacketTracer] = List.empty
+    /** The number of trace events kept by each packet processing thread. */
+    final val TraceBufferCapacity = 1 << 16
+
+    @volatile private var tracers: List[PacketTracer] = List.empty
+    @volatile private var index = new TracerIndex(tracers)
+    @volatile private var buffers = List.empty[PacketTraceBuffer]
+
+    private def update(newTracers: List[PacketTracer]): Unit = {
+        tracers = newTracers
+        index = new TracerIndex(newTracers)
+    }
 
     override def getLiveTracers = tracers.filter(_.isAlive).toArray
 
     override def getTracers = tracers.toArray
 
-    override def addTracer(tracer: PacketTracer) {
-        tracers ::= tracer
+    override def addTracer(tracer: PacketTracer) = synchronized {
+        update(tracer :: tracers)
     }
 
-    override def removeTracer(tracer: PacketTracer) = {
+    override def removeTracer(tracer: PacketTracer) = synchronized {
         val oldSize = tracers.size
-        tracers = tracers filterNot { _ == tracer }
+        update(tracers filterNot { _ == tracer })
         oldSize - tracers.size
     }
 
-    override def flush() = {
+    override def flush() = synchronized {
         val num = tracers.size
-        tracers = List.empty
+        update(List.empty)
         num
     }
 
-    override def flushDeadTracers() = {
+    override def flushDeadTracers() = synchronized {
         val oldSize = tracers.size
-        tracers = tracers filter { _.isAlive }
+        update(tracers filter { _.isAlive })
         oldSize - tracers.size
     }
 
-    def loggerFor(wcmatch: FlowMatch): Logger = {
-        val it = tracers.iterator
-        while (it.hasNext) {
-            val tracer = it.next()
-            if (tracer.matches(wcmatch)) {
-                tracer.matched()
-                return tracer.level match {
-                    case LogLevel.DEBUG => PacketContext.debugLog
-                    case LogLevel.TRACE => PacketContext.traceLog
-                }
+    override def dumpTraceEvents(id: String, limit: Int) = {
+        val events = buffers.flatMap(_.read()).sortBy(_.time)
+        val filtered =
+            if ((id eq null) || id.isEmpty) {
+                events
+            } else {
+                val cookies = events.filter(_.id == id).map(_.cookie).toSet
+                events.filter(e => cookies.contains(e.cookie))
             }
-        }
+        filtered.takeRight(limit).toArray
+    }
+
+    /** Whether any tracer is set. */
+    def enabled: Boolean = !index.isEmpty
+
+    /**
+     * Returns the tracer matching the packet with the given match, or null if
+     * no tracer matches the packet. While tracers are set, the lookup marks
+     * the fields it reads as seen, so that the datapath flows of the packets
+     * that are not traced don't wildcard the fields of the tracers, and the
+     * packets that match a tracer still reach userspace.
+     */
+    def tracerFor(fmatch: FlowMatch): PacketTracer = {
+        val idx = index
+        if (idx.isEmpty)
+            return null
+
+        val tracer = idx.find(fmatch)
+        if (tracer ne null)
+            tracer.matched()
+        tracer
+    }
+
+    /**
+     * Creates the trace buffer of a packet processing thread, whose events
+     * are included in the dumps until it is released.
+     */
+    def newTraceBuffer(): PacketTraceBuffer = synchronized {
+        val buffer = new PacketTraceBuffer(TraceBufferCapacity)
+        buffers ::= buffer
+        buffer
+    }
 
-        PacketContext.defaultLog
+    def releaseTraceBuffer(buffer: PacketTraceBuffer): Unit = synchronized {
+        buffers = buffers filterNot { _ eq buffer }
     }
 
     /* this flag prevents multiple registrations on the same jvm. this would
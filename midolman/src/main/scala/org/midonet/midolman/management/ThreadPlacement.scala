@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.management
+
+import java.beans.ConstructorProperties
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import javax.management.ObjectName
+
+import scala.beans.BeanProperty
+import scala.collection.JavaConversions._
+import scala.io.Source
+import scala.util.control.NonFatal
+
+import com.sun.jna.Native
+import com.typesafe.scalalogging.Logger
+import org.slf4j.LoggerFactory
+
+import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.netlink.clib.cLibrary
+
+/**
+ * The placement of a thread pinned to a CPU.
+ */
+case class ThreadPlacementInfo @ConstructorProperties(
+        Array("thread", "group", "cpu", "node")) (
+        @BeanProperty thread: String,
+        @BeanProperty group: String,
+        @BeanProperty cpu: Int,
+        @BeanProperty node: Int) {
+
+    override def toString = s"$thread $group cpu:$cpu node:$node"
+}
+
+/**
+ * Pins the packet processing threads to the CPU sets configured for their
+ * group: the simulation threads, the datapath output threads and the
+ * datapath input (upcall) threads. Every thread calls pin() when it starts,
+ * before allocating its buffers, and is pinned to the next CPU of its group
+ * in round-robin order. Since Linux allocates the pages of a thread on the
+ * NUMA node where it runs, as does the JVM for the heap with -XX:+UseNUMA,
+ * the buffers and flow state that a pinned thread allocates are local to
+ * the node of its CPU.
+ *
+ * The CPU sets are lists of CPU numbers and ranges, as in "0-3,8"; a group
+ * with an empty CPU set is not pinned.
+ */
+object ThreadPlacement extends ThreadPlacementMXBean {
+    val log = Logger(LoggerFactory.getLogger("org.midonet.midolman.management"))
+
+    final val Simulation = "simulation"
+    final val Output = "output"
+    final val Input = "input"
+
+    // Size of the CPU affinity mask, in 64 bit words
+    private final val MaskWords = 16
+    final val MaxCpus = MaskWords * 64
+
+    private final val NodesPath = "/sys/devices/system/node"
+
+    private case class Group(cpus: Array[Int]) {
+        val next = new AtomicInteger(0)
+        def nextCpu: Int =
+            cpus((next.getAndIncrement & Int.MaxValue) % cpus.length)
+    }
+
+    @volatile private var groups = Map.empty[String, Group]
+    private lazy val nodes = readNodes()
+    private val placements = new ConcurrentHashMap[Thread, ThreadPlacementInfo]
+
+    /* this flag prevents multiple registrations on the same jvm. this would
+     * happen on unit tests */
+    private var registered = false
+
+    /**
+     * Parses a list of CPU numbers and ranges, as in "0-3,8".
+     */
+    @throws[IllegalArgumentException]
+    def parseCpuList(list: String): Array[Int] = {
+        val cpus = list.split(',').map(_.trim).filter(_.nonEmpty).flatMap {
+            range => try {
+                range.split('-') match {
+                    case Array(cpu) => Seq(cpu.toInt)
+                    case Array(from, to) if from.toInt <= to.toInt =>
+                        from.toInt to to.toInt
+                    case _ => throw new NumberFormatException
+                }
+            } catch {
+                case e: NumberFormatException =>
+                    throw new IllegalArgumentException(
+                        s"Invalid CPU range $range in CPU list $list")
+            }
+        }
+        for (cpu <- cpus if cpu < 0 || cpu >= MaxCpus) {
+            throw new IllegalArgumentException(
+                s"Invalid CPU $cpu in CPU list $list")
+        }
+        cpus.distinct
+    }
+
+    /**
+     * Sets the CPU sets of the thread groups from the agent configuration,
+     * and registers the placement MXBean.
+     */
+    def configure(config: MidolmanConfig): Unit = {
+        configure(Map(Simulation -> config.simulationCpus,
+                      Output -> config.outputCpus,
+                      Input -> config.inputCpus))
+        registerAsMXBean()
+    }
+
+    /**
+     * Sets the CPU sets of the thread groups. This only affects the threads
+     * pinned afterwards.
+     */
+    def configure(cpuSets: Map[String, String]): Unit = this.synchronized {
+        groups = for ((group, list) <- cpuSets
+                      if (list ne null) && list.trim.nonEmpty)
+                 yield group -> Group(parseCpuList(list))
+        for ((group, cpus) <- groups) {
+            log.info(s"Threads of group $group placed on CPUs " +
+                     cpus.cpus.mkString(","))
+        }
+    }
+
+    /**
+     * Pins the calling thread to the next CPU of the given group, returning
+     * the CPU, or -1 if the thread is not pinned because the group has no
+     * CPU set or because the affinity could not be set. A thread that is
+     * already pinned keeps its CPU.
+     */
+    def pin(group: String): Int = {
+        val thread = Thread.currentThread()
+        val current = placements.get(thread)
+        if (current ne null)
+            return current.cpu
+
+        val cpus = groups.getOrElse(group, null)
+        if (cpus eq null)
+            return -1
+
+        val cpu = cpus.nextCpu
+        if (setAffinity(cpu)) {
+            val info = ThreadPlacementInfo(thread.getName, group, cpu,
+                                           nodeOf(cpu))
+            placements.put(thread, info)
+            log.info(s"Pinned thread ${thread.getName} to CPU $cpu, " +
+                     s"NUMA node ${info.node}")
+            cpu
+        } else {
+            -1
+        }
+    }
+
+    /** The NUMA node of a CPU, or 0 if unknown. */
+    def nodeOf(cpu: Int): Int = nodes.getOrElse(cpu, 0)
+
+    override def getPlacement: Array[ThreadPlacementInfo] = {
+        for (thread <- placements.keySet() if !thread.isAlive) {
+            placements.remove(thread)
+        }
+        placements.values().toArray(new Array[ThreadPlacementInfo](0))
+                  .sortBy(info => (info.group, info.cpu, info.thread))
+    }
+
+    override def dumpPlacement: String = {
+        val placement = getPlacement
+        if (placement.isEmpty) "No pinned threads"
+        else placement.mkString("\n")
+    }
+
+    def registerAsMXBean(): Unit = this.synchronized {
+        try {
+            if (!registered) {
+                ManagementFactory.getPlatformMBeanServer.registerMBean(this,
+                    new ObjectName(ThreadPlacementMXBean.NAME))
+                registered = true
+            }
+        } catch {
+            case e: Exception =>
+                log.error("Failed to register thread placement JMX bean", e)
+        }
+    }
+
+    private def setAffinity(cpu: Int): Boolean = {
+        val mask = new Array[Long](MaskWords)
+        mask(cpu >> 6) = 1L << (cpu & 63)
+        try {
+            if (cLibrary.lib.sched_setaffinity(0, MaskWords * 8, mask) == 0) {
+                true
+            } else {
+                log.warn(s"Failed to pin thread ${Thread.currentThread.getName}" +
+                         s" to CPU $cpu: " +
+                         cLibrary.lib.strerror(Native.getLastError))
+                false
+            }
+        } catch {
+            case e: LinkageError =>
+                log.warn("Thread CPU affinity not supported", e)
+                false
+        }
+    }
+
+    // Reads the CPUs of the NUMA nodes of this host
+    private def readNodes(): Map[Int, Int] = try {
+        val dirs = new File(NodesPath).listFiles()
+        if (dirs eq null) {
+            Map.empty
+        } else {
+            (for (dir <- dirs if dir.getName.matches("node\\d+");
+                  cpu <- readCpuList(new File(dir, "cpulist")))
+                yield cpu -> dir.getName.stripPrefix("node").toInt).toMap
+        }
+    } catch {
+        case NonFatal(e) =>
+            log.warn("Failed to read the NUMA nodes", e)
+            Map.empty
+    }
+
+    private def readCpuList(file: File): Array[Int] = {
+        val source = Source.fromFile(file)
+        try parseCpuList(source.mkString.trim) finally source.close()
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.monitoring.metrics
+
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
+
+/**
+ * Metrics for the write-behind stage of the flow state storage. A single
+ * instance is shared by the storage objects of all packet processing threads.
+ */
+class FlowStateStorageMetrics(val registry: MetricRegistry) {
+
+    val pendingWrites = registry.counter(name(
+        classOf[FlowStateStorageGauge], "pendingWrites"))
+
+    val inFlightBatches = registry.counter(name(
+        classOf[FlowStateStorageGauge], "inFlightBatches"))
+
+    val writesCoalesced = registry.meter(name(
+        classOf[FlowStateStorageMeter], "writesCoalesced", "rows"))
+
+    val writesSuppressed = registry.meter(name(
+        classOf[FlowStateStorageMeter], "writesSuppressed", "rows"))
+
+    val writesDropped = registry.meter(name(
+        classOf[FlowStateStorageMeter], "writesDropped", "rows"))
+
+    val writesSubmitted = registry.meter(name(
+        classOf[FlowStateStorageMeter], "writesSubmitted", "rows"))
+
+    val batchesSubmitted = registry.meter(name(
+        classOf[FlowStateStorageMeter], "batchesSubmitted", "batches"))
+
+    val batchesFailed = registry.meter(name(
+        classOf[FlowStateStorageMeter], "batchesFailed", "batches"))
+}
@@ -16,9 +16,16 @@
 
 package org.midonet.midolman.monitoring.metrics
 
+import java.lang.{Long => JLong}
+import java.lang.management.ManagementFactory
+import java.util.UUID
+import java.util.concurrent.{ConcurrentHashMap, CopyOnWriteArrayList}
+
 import com.codahale.metrics.{Gauge, MetricRegistry}
 import com.codahale.metrics.MetricRegistry.name
 
+import org.midonet.netlink.BufferPool
+
 class PacketPipelineMetrics(val registry: MetricRegistry) {
 
     val pendedPackets = registry.counter(name(
@@ -42,6 +49,13 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
     val packetsDropped = registry.meter(name(
         classOf[PacketPipelineCounter], "packetsDropped", "packets"))
 
+    val devicesPrefetched = registry.meter(name(
+        classOf[PacketPipelineMeter], "devicesPrefetched", "devices"))
+
+    // An estimate, see PacketWorkflow.estimateResimulationsAvoided
+    val resimulationsAvoidedEstimate = registry.counter(name(
+        classOf[PacketPipelineCounter], "resimulationsAvoidedEstimate"))
+
     val liveSimulations = registry.register(name(
         classOf[PacketPipelineGauge], "liveSimulations"),
         new Gauge[Long]{ override def getValue = 0 })
@@ -60,6 +74,36 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
         classOf[PacketPipelineAccumulatedTime],
         "simulationAccumulatedTime"))
 
+    val portBindingToFirstPacketLatency = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "portBindingToFirstPacketLatency"))
+
+    // The time when the local ports that haven't forwarded a packet yet were
+    // bound.
+    private val boundPorts = new ConcurrentHashMap[UUID, JLong]()
+
+    // The milliseconds from the start of the agent to the first packet that
+    // was forwarded, or -1 until then.
+    @volatile private var firstForwardedPacketTime = -1L
+
+    val startToFirstForwardedPacket = registry.register(name(
+        classOf[PacketPipelineGauge], "startToFirstForwardedPacket"),
+        new Gauge[Long]{ override def getValue = firstForwardedPacketTime })
+
+    // The buffer pools of the packets generated by the packet workflows.
+    private val bufferPools = new CopyOnWriteArrayList[BufferPool]()
+
+    // The temporary buffers allocated because a pool was exhausted, for all
+    // the pools of the workflows, see BufferPool.exhausted.
+    val bufferPoolsExhausted = registry.register(name(
+        classOf[PacketPipelineGauge], "bufferPoolsExhausted"),
+        new Gauge[Long]{ override def getValue = {
+            var exhausted = 0L
+            val it = bufferPools.iterator()
+            while (it.hasNext)
+                exhausted += it.next().exhausted()
+            exhausted
+        }})
+
     def wildcardTableHit(latency: Int) {
         wildcardTableHits.mark()
         wildcardTableHitLatency.update(latency)
@@ -72,6 +116,39 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
         simulationAccumulatedTime.inc(latency)
     }
 
+    def portBound(portId: UUID, time: Long) {
+        boundPorts.put(portId, time)
+    }
+
+    def portUnbound(portId: UUID) {
+        boundPorts.remove(portId)
+    }
+
+    /**
+     * Records the time from the binding of a port to the first packet that
+     * ingressed at the port and was forwarded, and the time from the start of
+     * the agent to the first forwarded packet.
+     */
+    def packetForwarded(portId: UUID, time: Long) {
+        if (firstForwardedPacketTime < 0) {
+            firstForwardedPacketTime = System.currentTimeMillis -
+                ManagementFactory.getRuntimeMXBean.getStartTime
+        }
+        if (!boundPorts.isEmpty && (portId ne null)) {
+            val bindTime = boundPorts.remove(portId)
+            if (bindTime ne null)
+                portBindingToFirstPacketLatency.update(time - bindTime)
+        }
+    }
+
+    def bufferPoolCreated(pool: BufferPool) {
+        bufferPools.add(pool)
+    }
+
+    def bufferPoolReleased(pool: BufferPool) {
+        bufferPools.remove(pool)
+    }
+
     def packetPostponed() {
         packetsPostponed.mark()
         packetsOnHold.inc()
@@ -23,6 +23,7 @@ import scala.collection.mutable
 
 import akka.actor.{Actor, ActorRef, Stash}
 import akka.pattern.pipe
+import com.google.common.util.concurrent.{FutureCallback, Futures}
 
 import org.midonet.cluster.client.BGPListBuilder
 import org.midonet.cluster.data.{AdRoute, BGP, Route}
@@ -85,6 +86,8 @@ object RoutingHandler {
     private case class DpPortDeleteSuccess(port: DpPort)
     private case class DpPortError(port: String, ex: Throwable)
 
+    private case class PeerRouteWritten(routeId: UUID, error: Throwable)
+
     // For testing
     case class BGPD_STATUS(port: UUID, isActive: Boolean)
 
@@ -156,6 +159,10 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
     private val bgps = mutable.Map[UUID, BGP]()
     private val adRoutes = mutable.Set[AdRoute]()
     private val peerRoutes = mutable.Map[Route, UUID]()
+    // Peer routes whose creation hasn't completed yet, and those of them
+    // that must be deleted once it does.
+    private val peerRouteWrites = mutable.Set[UUID]()
+    private val peerRouteDeletes = mutable.Set[UUID]()
     private var socketAddress: AfUnix.Address = null
 
     // At this moment we only support one bgpd process
@@ -408,6 +415,22 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                               "Starting")
             }
 
+        case PeerRouteWritten(routeId, error) =>
+            peerRouteWrites -= routeId
+            val deleted = peerRouteDeletes.remove(routeId)
+            if (error ne null) {
+                log.error(s"($phase) Failed to add peer route $routeId", error)
+                peerRoutes.retain((_, id) => id != routeId)
+            } else if (deleted) {
+                deleteRoute(routeId)
+            } else {
+                peerRoutes find (_._2 == routeId) foreach { case (route, _) =>
+                    log.debug("({}) announcing we've added a peer route", phase)
+                    context.system.eventStream.publish(
+                        new PEER_ROUTE_ADDED(rport.deviceId, route))
+                }
+            }
+
         case DpPortError(port, ex) =>
             // Only log errors, do nothing
             log.error(s"($phase) Datapath port operation failed: $port", ex)
@@ -540,11 +563,9 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                     route.setNextHop(org.midonet.midolman.layer3.Route.NextHop.PORT)
                     route.setNextHopPort(rport.id)
                     route.setWeight(distance)
-                    val routeId = dataClient.routesCreateEphemeral(route)
+                    val routeId = UUID.randomUUID()
                     peerRoutes.put(route, routeId)
-                    log.debug("({}) announcing we've added a peer route", phase)
-                    context.system.eventStream.publish(
-                        new PEER_ROUTE_ADDED(rport.deviceId, route))
+                    createRoute(routeId, route)
 
                 case _ =>
                     log.debug("({}) AddPeerRoute: ignoring", phase)
@@ -658,7 +679,32 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
         }
     }
 
+    /* Peer routes are written asynchronously, so that a peer announcing
+     * many routes doesn't block this actor for a ZooKeeper round-trip per
+     * route, and their writes are batched. */
+    private def createRoute(routeId: UUID, route: Route): Unit = {
+        peerRouteWrites += routeId
+        try {
+            Futures.addCallback(
+                dataClient.routesCreateEphemeralAsync(routeId, route),
+                new FutureCallback[UUID] {
+                    override def onSuccess(id: UUID): Unit =
+                        self ! PeerRouteWritten(routeId, null)
+                    override def onFailure(t: Throwable): Unit =
+                        self ! PeerRouteWritten(routeId, t)
+                })
+        } catch {
+            case e: StateAccessException =>
+                self ! PeerRouteWritten(routeId, e)
+        }
+    }
+
     def deleteRoute(routeId: UUID) {
+        if (peerRouteWrites contains routeId) {
+            // Deleted once the route is written.
+            peerRouteDeletes += routeId
+            return
+        }
         try {
             dataClient.routesDelete(routeId)
         } catch {
@@ -32,7 +32,7 @@ import org.slf4j.LoggerFactory
 import org.midonet.midolman._
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.l4lb.HealthMonitor
-import org.midonet.midolman.management.PacketTracing
+import org.midonet.midolman.management.{PacketTracing, ThreadPlacement}
 import org.midonet.midolman.routingprotocols.RoutingManagerActor
 import org.midonet.midolman.topology.VirtualToPhysicalMapper
 import org.midonet.midolman.topology.VirtualTopologyActor
@@ -85,6 +85,7 @@ class MidolmanActorsService extends AbstractService {
             log.info("Booting up actors service")
 
             PacketTracing.registerAsMXBean()
+            ThreadPlacement.configure(config)
             _system = createActorSystem()
             supervisorActor = startTopActor(
                                 propsFor(classOf[SupervisorActor]),
@@ -15,23 +15,26 @@
  */
 package org.midonet.midolman.simulation
 
-import java.util.concurrent.TimeUnit
+import java.lang.{Long => JLong}
+import java.nio.ByteBuffer
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
 
-import scala.collection.mutable
 import scala.concurrent._
 import scala.concurrent.duration.Duration
 
-import akka.actor.ActorSystem
+import akka.actor.{ActorSystem, Cancellable}
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.cluster.client.ArpCache
 import org.midonet.midolman._
 import org.midonet.midolman.config.MidolmanConfig
-import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
 import org.midonet.midolman.state.ArpCacheEntry
 import org.midonet.midolman.topology.devices.RouterPort
-import org.midonet.packets.{ARP, Ethernet, IPv4Addr, MAC}
+import org.midonet.packets.{IPv4Addr, MAC, PacketTemplates}
 import org.midonet.util.UnixClock
+import org.midonet.util.concurrent.TimerWheel
 import org.midonet.util.functors.Callback3
 
 /* The ArpTable is called from the Coordinators' actors and
@@ -45,26 +48,53 @@ trait ArpTable {
     def stop()
 }
 
-/* MultiMap isn't thread-safe and the SynchronizedMap trait does not
- * help either. See: https://issues.scala-lang.org/browse/SI-6087
- * and/or the MultiMap and SynchronizedMap source files.
- */
-trait SynchronizedMultiMap[A, B] extends mutable.MultiMap[A, B] with
-        mutable.SynchronizedMap[A, mutable.Set[B]] {
-    override def addBinding(k: A, v: B): this.type = synchronized[this.type] {
-        super.addBinding(k, v)
-    }
-
-    override def removeBinding(k: A, v: B): this.type = synchronized[this.type] {
-        super.removeBinding(k, v)
+object ArpTableImpl {
+    /** Resolution of the timer wheel that drives retries and expirations. */
+    val TickMillis = 100L
+    /** Number of slots in the timer wheel, one revolution spans a minute. */
+    val WheelSlots = 600
+
+    /* Counts the ARP requests sent out of a port in the current second.
+     * Racing threads may reset the window more than once, which only lets a
+     * few extra requests through. */
+    private final class PortArpLimiter(maxPerSecond: Int) {
+        @volatile private var window = 0L
+        private val sent = new AtomicInteger()
+
+        def tryAcquire(now: Long): Boolean = {
+            val w = now / 1000
+            if (window != w) {
+                window = w
+                sent.set(0)
+            }
+            sent.incrementAndGet() <= maxPerSecond
+        }
     }
 }
 
+/**
+ * Resolves the MAC addresses of the next hops of a router.
+ *
+ * The packets waiting for an address share the promise of its resolution,
+ * kept in a concurrent map, so a miss doesn't allocate its own promise and
+ * callers don't contend on a lock. Only the caller that starts a resolution
+ * sends an ARP request, so there is at most one request loop per address for
+ * the router. Retries, timeouts and the expiration of entries are driven by
+ * a timer wheel that the actor system scheduler ticks, rather than by a
+ * scheduler task per address.
+ *
+ * ARP requests are rate limited per port. If enabled, an address whose
+ * resolution timed out is negatively cached for a while: packets to it are
+ * dropped without new requests until it expires, or until the address is
+ * learned.
+ */
 class ArpTableImpl(val arpCache: ArpCache, cfg: MidolmanConfig,
                    val observer: (IPv4Addr, MAC, MAC) => Unit)
                   (implicit system: ActorSystem,
                             ec: ExecutionContext) extends ArpTable {
 
+    import ArpTableImpl._
+
     val clock = UnixClock.get
 
     private val log = Logger(org.slf4j.LoggerFactory.getLogger(
@@ -73,9 +103,19 @@ class ArpTableImpl(val arpCache: ArpCache, cfg: MidolmanConfig,
     private val ARP_TIMEOUT_MILLIS = cfg.arptable.timeout * 1000
     private val ARP_STALE_MILLIS = cfg.arptable.stale * 1000
     private val ARP_EXPIRATION_MILLIS = cfg.arptable.expiration * 1000
-    private val arpWaiters = new mutable.HashMap[IPv4Addr,
-                                            mutable.Set[Promise[MAC]]] with
-            SynchronizedMultiMap[IPv4Addr, Promise[MAC]]
+    private val ARP_NEGATIVE_MILLIS = cfg.arptable.negativeTtl
+    private val ARP_MAX_PER_PORT = cfg.arptable.maxRequestsPerPort
+
+    private class Resolution(val ip: IPv4Addr) {
+        val promise = Promise[MAC]()
+        @volatile var timeout: TimerWheel.Timeout = null
+    }
+
+    private val resolutions = new ConcurrentHashMap[IPv4Addr, Resolution]()
+    private val unreachable = new ConcurrentHashMap[IPv4Addr, JLong]()
+    private val limiters = new ConcurrentHashMap[UUID, PortArpLimiter]()
+    private val timers = new TimerWheel(TickMillis, WheelSlots)
+    private var ticker: Cancellable = null
     private var arpCacheCallback: Callback3[IPv4Addr, MAC, MAC] = null
 
     override def start() {
@@ -90,15 +130,15 @@ class ArpTableImpl(val arpCache: ArpCache, cfg: MidolmanConfig,
                  * request invalid. */
                 if (oldMac != null)
                     observer(ip, oldMac, newMac)
-                arpWaiters.remove(ip) match {
-                    case Some(waiters)  =>
-                        log.debug(s"notify ${waiters.size} waiters for $ip at $newMac")
-                        waiters map { _ success newMac }
-                    case _ =>
-                }
+                unreachable.remove(ip)
+                resolved(ip, newMac)
             }
         }
         arpCache.notify(arpCacheCallback)
+        val tick = Duration(TickMillis, TimeUnit.MILLISECONDS)
+        ticker = system.scheduler.schedule(tick, tick, new Runnable {
+            override def run(): Unit = timers.advance(clock.time)
+        })
     }
 
     override def stop() {
@@ -106,81 +146,99 @@ class ArpTableImpl(val arpCache: ArpCache, cfg: MidolmanConfig,
             arpCache.unsubscribe(arpCacheCallback)
             arpCacheCallback = null
         }
+        if (ticker != null) {
+            ticker.cancel()
+            ticker = null
+        }
     }
 
-    /**
-     * Schedule promise to fail with a TimeoutException at a given time.
-     *
-     * @param promise
-     * @param onExpire If the promise is expired, onExpire will be executed
-     *                 with the promise as an argument.
-     * @tparam T
-     * @return
-     */
-    private def promiseOnExpire[T](promise: Promise[T],
-                                   timeout: Long,
-                                   onExpire: (Promise[T]) => Unit,
-                                   expiration: () => ArpTimeoutException): Promise[T] = {
-        val when = Duration.create(timeout, TimeUnit.MILLISECONDS)
-        val exp = system.scheduler.scheduleOnce(when) {
-            if (promise tryFailure expiration())
-                onExpire(promise)
+    private def schedule(delay: Long)(task: => Unit): TimerWheel.Timeout =
+        timers.schedule(clock.time + delay, new Runnable {
+            override def run(): Unit = task
+        })
+
+    private def resolved(ip: IPv4Addr, mac: MAC): Unit = {
+        val resolution = resolutions.remove(ip)
+        if (resolution ne null) {
+            log.debug(s"notify waiters for $ip at $mac")
+            if (resolution.timeout ne null)
+                resolution.timeout.cancel()
+            resolution.promise trySuccess mac
         }
-        promise.future onComplete {
-            case _ =>
-                if (!exp.isCancelled)
-                    exp.cancel()
+    }
+
+    private def timedOut(resolution: Resolution): Unit = {
+        val ip = resolution.ip
+        if (resolutions.remove(ip, resolution) &&
+            resolution.promise.tryFailure(
+                ArpTimeoutException(arpCache.getRouterId, ip)) &&
+            ARP_NEGATIVE_MILLIS > 0) {
+            log.debug("ARP for {} timed out, caching as unreachable", ip)
+            val until = JLong.valueOf(clock.time + ARP_NEGATIVE_MILLIS)
+            unreachable.put(ip, until)
+            schedule(ARP_NEGATIVE_MILLIS) { unreachable.remove(ip, until) }
         }
-        promise
     }
 
-    private def removeArpWaiter(ip: IPv4Addr, promise: Promise[MAC]) {
-        arpWaiters.removeBinding(ip, promise)
+    private def isUnreachable(ip: IPv4Addr, now: Long): Boolean = {
+        val until = unreachable.get(ip)
+        (until ne null) && until.longValue > now
     }
 
-    def waitForArpEntry(ip: IPv4Addr, timeout: Long): Promise[MAC] = {
-        val p = Promise[MAC]()
-        arpWaiters.addBinding(ip, p)
-        promiseOnExpire[MAC](p, timeout, removeArpWaiter(ip, _),
-                             () => ArpTimeoutException(arpCache.getRouterId, ip))
+    /**
+     * Returns the pending resolution of an address, starting one if there
+     * is none. The second element tells whether this call started it.
+     */
+    private def resolutionFor(ip: IPv4Addr): (Resolution, Boolean) = {
+        val current = resolutions.get(ip)
+        if (current ne null)
+            return (current, false)
+        val resolution = new Resolution(ip)
+        val previous = resolutions.putIfAbsent(ip, resolution)
+        if (previous ne null)
+            return (previous, false)
+
+        resolution.timeout = schedule(ARP_TIMEOUT_MILLIS) { timedOut(resolution) }
+        // The entry may have been learned after the caller looked it up and
+        // before the resolution was visible to the cache callback.
+        val entry = arpCache.get(ip)
+        if (entry != null && entry.macAddr != null &&
+            entry.expiry >= clock.time)
+            resolved(ip, entry.macAddr)
+        (resolution, true)
     }
 
     def get(ip: IPv4Addr, port: RouterPort)
            (implicit pktContext: PacketContext): MAC = {
         pktContext.log.debug("Resolving MAC for {}", ip)
         /*
-         * We used to waitForArpEntry() before requesting the ArpCacheEntry
-         * before we had pauseless simulations to avoid a race between the
-         * get() asking for the cached entry, the get receiving it as empty,
-         * then a reply arriving and being notified just too late missig the
-         * notification.
-         *
-         * Since simulations will run now without stop, this race becomes
-         * irrelevant, if we don't have the data right now, the simulation must
-         * be postponed (on a future that waits for the mac's notification).
+         * If we don't have the data right now, the simulation must be
+         * postponed on a future that waits for the mac's notification.
          */
         val arpCacheEntry = arpCache.get(ip)
         val now = clock.time
 
-        if (arpCacheEntry == null
-            || (arpCacheEntry.stale < now &&
-                arpCacheEntry.lastArp+ARP_RETRY_MILLIS < now)
-            || arpCacheEntry.macAddr == null) {
-            arpForAddress(ip, arpCacheEntry, port)
-        }
-
         if (arpCacheEntry != null && arpCacheEntry.macAddr != null &&
-            arpCacheEntry.expiry >= clock.time) {
+            arpCacheEntry.expiry >= now) {
+            // Refresh stale entries in the background.
+            if (arpCacheEntry.stale < now &&
+                arpCacheEntry.lastArp + ARP_RETRY_MILLIS < now)
+                arpForAddress(ip, arpCacheEntry, port)
             arpCacheEntry.macAddr
+        } else if (isUnreachable(ip, now)) {
+            throw new NotYetException(
+                Future.failed(ArpTimeoutException(arpCache.getRouterId, ip)),
+                s"IP $ip recently unreachable, dropping")
         } else {
-            throw new NotYetException(waitForArpEntry(ip, ARP_TIMEOUT_MILLIS).future,
+            val (resolution, started) = resolutionFor(ip)
+            if (started)
+                arpForAddress(ip, arpCacheEntry, port)
+            throw new NotYetException(resolution.promise.future,
                                       s"MAC for IP $ip unknown, suspending during ARP")
         }
     }
 
     def setAndGet(ip: IPv4Addr, mac: MAC, port: RouterPort): Future[MAC] = {
-        val macFuture = waitForArpEntry(ip, ARP_TIMEOUT_MILLIS).future
-
         set(ip, mac)
         val entry = arpCache.get(ip)
 
@@ -188,7 +246,9 @@ class ArpTableImpl(val arpCache: ArpCache, cfg: MidolmanConfig,
                 entry.expiry >= clock.time) {
             Future.successful(entry.macAddr)
         } else {
-            macFuture
+            // The write hasn't been applied to the cache yet, wait for its
+            // notification.
+            resolutionFor(ip)._1.promise.future
         }
     }
 
@@ -204,30 +264,18 @@ class ArpTableImpl(val arpCache: ArpCache, cfg: MidolmanConfig,
             log.debug("Got address for {}: {}", ip, mac)
             val entry = new ArpCacheEntry(mac, now + ARP_EXPIRATION_MILLIS,
                 now + ARP_STALE_MILLIS, 0)
+            unreachable.remove(ip)
             arpCache.add(ip, entry)
-            val when = Duration.create(ARP_EXPIRATION_MILLIS,
-                TimeUnit.MILLISECONDS)
-            system.scheduler.scheduleOnce(when){ expireCacheEntry(ip) }
+            schedule(ARP_EXPIRATION_MILLIS) { expireCacheEntry(ip) }
         }
     }
 
-    private def makeArpRequest(srcMac: MAC, srcIP: IPv4Addr, dstIP: IPv4Addr):
-    Ethernet = {
-        val arp = new ARP()
-        arp.setHardwareType(ARP.HW_TYPE_ETHERNET)
-        arp.setProtocolType(ARP.PROTO_TYPE_IP)
-        arp.setHardwareAddressLength(6.asInstanceOf[Byte])
-        arp.setProtocolAddressLength(4.asInstanceOf[Byte])
-        arp.setOpCode(ARP.OP_REQUEST)
-        arp.setSenderHardwareAddress(srcMac)
-        arp.setTargetHardwareAddress(MAC.fromString("00:00:00:00:00:00"))
-        arp.setSenderProtocolAddress(IPv4Addr.intToBytes(srcIP.toInt))
-        arp.setTargetProtocolAddress(IPv4Addr.intToBytes(dstIP.toInt))
-        val pkt: Ethernet = new Ethernet
-        pkt.setPayload(arp)
-        pkt.setSourceMACAddress(srcMac)
-        pkt.setDestinationMACAddress(MAC.fromString("ff:ff:ff:ff:ff:ff"))
-        pkt.setEtherType(ARP.ETHERTYPE)
+    private def makeArpRequest(port: RouterPort, dstIP: IPv4Addr,
+                               packetEmitter: PacketEmitter): ByteBuffer = {
+        val frame = packetEmitter.frame(PacketTemplates.ARP_FRAME_LEN)
+        PacketTemplates.arpRequest(frame, port.portMac,
+                                   port.portAddr.getAddress.toInt, dstIP.toInt)
+        frame
     }
 
     // XXX cancel scheduled expires when an entry is refreshed?
@@ -243,49 +291,6 @@ class ArpTableImpl(val arpCache: ArpCache, cfg: MidolmanConfig,
     private def arpForAddress(ip: IPv4Addr, entry: ArpCacheEntry,
                               port: RouterPort)
                              (implicit pktContext: PacketContext) {
-        val packetEmitter = pktContext.packetEmitter
-        def retryLoopBottomHalf(cacheEntry: ArpCacheEntry, arp: Ethernet,
-                                previous: Long) {
-            val now = clock.time
-            // expired, no retries left.
-            if (cacheEntry == null || cacheEntry.expiry <= now)
-                return
-            // another node took over, give up. Waiters will be notified.
-            if (previous > 0 && cacheEntry.lastArp != previous)
-                return
-            // now up to date, entry was updated while the top half
-            // of the retry loop waited for the arp cache entry, waiters
-            // will be notified naturally, do nothing.
-            if (cacheEntry.macAddr != null && cacheEntry.stale > now)
-                return
-
-            cacheEntry.lastArp = now
-            arpCache.add(ip, cacheEntry)
-            log.debug("generateArpRequest: sending {}", arp)
-
-            // If the queue of pending generated packets is full, we'll
-            // retry later.
-            packetEmitter.schedule(GeneratedPacket(port.id, arp))
-
-            // we don't retry for stale entries.
-            if (cacheEntry.macAddr == null) {
-                waitForArpEntry(ip, ARP_RETRY_MILLIS).future onFailure {
-                    case ex: TimeoutException =>
-                        retryLoopTopHalf(arp, now)
-                    case ex =>
-                        log.error("waitForArpEntry unexpected exception {}", ex)
-                }
-            }
-        }
-
-        def retryLoopTopHalf(arp: Ethernet, previous: Long) {
-            val entry = arpCache.get(ip)
-            if (entry == null)
-                retryLoopBottomHalf(null, arp, previous)
-            else
-                retryLoopBottomHalf(entry.clone(), arp, previous)
-        }
-
         val now = clock.time
         // this is open to races with other nodes
         // for now we take over sending ARPs if no ARP has been sent
@@ -306,16 +311,64 @@ class ArpTableImpl(val arpCache: ArpCache, cfg: MidolmanConfig,
         if (entry == null || now > entry.expiry) {
             newEntry = new ArpCacheEntry(null, now + ARP_TIMEOUT_MILLIS,
                                          now + ARP_RETRY_MILLIS, now)
-            val when = Duration.create(ARP_TIMEOUT_MILLIS,
-                                       TimeUnit.MILLISECONDS)
-            system.scheduler.scheduleOnce(when){ expireCacheEntry(ip) }
+            schedule(ARP_TIMEOUT_MILLIS) { expireCacheEntry(ip) }
         } else {
             // XXX race: when this key is re-added to the map someone else
             // may have written to it.
             newEntry = entry.clone()
         }
 
-        val pkt = makeArpRequest(port.portMac, port.portAddr.getAddress, ip)
-        retryLoopBottomHalf(newEntry, pkt, 0)
+        sendArp(ip, newEntry, port, pktContext.packetEmitter, 0)
+    }
+
+    private def sendArp(ip: IPv4Addr, cacheEntry: ArpCacheEntry,
+                        port: RouterPort, packetEmitter: PacketEmitter,
+                        previous: Long) {
+        val now = clock.time
+        // expired, no retries left.
+        if (cacheEntry == null || cacheEntry.expiry <= now)
+            return
+        // another node took over, give up. Waiters will be notified.
+        if (previous > 0 && cacheEntry.lastArp != previous)
+            return
+        // now up to date, entry was updated while the retry was waiting
+        // in the timer wheel, waiters will be notified naturally, do nothing.
+        if (cacheEntry.macAddr != null && cacheEntry.stale > now)
+            return
+
+        cacheEntry.lastArp = now
+        arpCache.add(ip, cacheEntry)
+
+        if (portLimiter(port.id).tryAcquire(now)) {
+            log.debug("generateArpRequest: sending request for {} on port {}",
+                      ip, port.id)
+            // If the queue of pending generated packets is full, we'll
+            // retry later.
+            packetEmitter.schedule(port.id,
+                                   makeArpRequest(port, ip, packetEmitter))
+        } else {
+            log.debug("ARP requests on port {} over the limit, skipping {}",
+                      port.id, ip)
+        }
+
+        // we don't retry for stale entries.
+        if (cacheEntry.macAddr == null) {
+            schedule(ARP_RETRY_MILLIS) {
+                val entry = arpCache.get(ip)
+                sendArp(ip, if (entry == null) null else entry.clone(),
+                        port, packetEmitter, now)
+            }
+        }
+    }
+
+    private def portLimiter(portId: UUID): PortArpLimiter = {
+        val limiter = limiters.get(portId)
+        if (limiter ne null) {
+            limiter
+        } else {
+            val newLimiter = new PortArpLimiter(ARP_MAX_PER_PORT)
+            val previous = limiters.putIfAbsent(portId, newLimiter)
+            if (previous ne null) previous else newLimiter
+        }
     }
 }
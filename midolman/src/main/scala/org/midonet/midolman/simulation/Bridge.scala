@@ -586,10 +586,12 @@ class Bridge(val id: UUID,
     private def processArpRequest(arpReq: ARP, mac: MAC, inPortId: UUID)
                                  (implicit actorSystem: ActorSystem,
                                            originalPktContex: PacketContext) {
-        // Construct the reply, reversing src/dst fields from the request.
-        val eth = ARP.makeArpReply(mac, arpReq.getSenderHardwareAddress,
-                                   arpReq.getTargetProtocolAddress,
-                                   arpReq.getSenderProtocolAddress)
-        originalPktContex.addGeneratedPacket(inPortId, eth)
+        // Write the reply, reversing src/dst fields from the request.
+        val frame = originalPktContex.packetEmitter.frame(
+            PacketTemplates.ARP_FRAME_LEN)
+        PacketTemplates.arpReply(frame, mac, arpReq.getSenderHardwareAddress,
+                                 IPv4Addr.bytesToInt(arpReq.getTargetProtocolAddress),
+                                 IPv4Addr.bytesToInt(arpReq.getSenderProtocolAddress))
+        originalPktContex.addGeneratedPacket(inPortId, frame)
     }
 }
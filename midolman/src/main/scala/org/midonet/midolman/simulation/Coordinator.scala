@@ -24,6 +24,7 @@ import akka.actor.ActorSystem
 
 import org.midonet.midolman.PacketWorkflow
 import org.midonet.midolman.PacketWorkflow._
+import org.midonet.midolman.management.PacketTraceBuffer
 import org.midonet.midolman.rules.RuleResult
 import org.midonet.midolman.simulation.Icmp.IPv4Icmp._
 import org.midonet.midolman.topology.VirtualTopologyActor._
@@ -109,6 +110,9 @@ class Coordinator(context: PacketContext)
      */
     def simulate(): SimulationResult = {
         log.debug("Simulating a packet")
+        context.traceEvent(PacketTraceBuffer.Simulation,
+                           if (context.ingressed) context.inputPort
+                           else context.egressPort, context.runs)
         if (context.ingressed) {
             packetIngressesPort(context.inputPort, getPortGroups = true)
         } else {
@@ -124,6 +128,7 @@ class Coordinator(context: PacketContext)
         }
         numDevicesSimulated += 1
         log.debug(s"packet ingresses port: ${port.id} at device ${port.deviceId}")
+        context.traceEvent(PacketTraceBuffer.DeviceVisited, port.deviceId, 0)
         handleAction(device.process(context))
     }
 
@@ -199,6 +204,7 @@ class Coordinator(context: PacketContext)
             val port = tryAsk[Port](portID)
             context.addFlowTag(port.deviceTag)
             context.addFlowTag(port.rxTag)
+            context.traceEvent(PacketTraceBuffer.PortIngress, portID, 0)
             port match {
                 case p if !p.adminStateUp =>
                     processAdminStateDown(p, isIngress = true)
@@ -239,6 +245,7 @@ class Coordinator(context: PacketContext)
         val port = tryAsk[Port](portID)
         context.addFlowTag(port.deviceTag)
         context.addFlowTag(port.txTag)
+        context.traceEvent(PacketTraceBuffer.PortEgress, portID, 0)
 
         port match {
             case p if !p.adminStateUp =>
@@ -280,6 +287,7 @@ class Coordinator(context: PacketContext)
         if (port.isExterior && port.adminStateUp &&
             port.isActive && port.id != context.inPortId) {
 
+            context.traceEvent(PacketTraceBuffer.PortEgress, portId, 0)
             if (port.outboundFilter ne null) {
                 context.outPortId = portId
                 val chain = tryAsk[Chain](port.outboundFilter)
@@ -339,9 +347,9 @@ class Coordinator(context: PacketContext)
     }
 
     private def sendIcmpProhibited(port: RouterPort): Unit = {
-        val ethOpt = unreachableProhibitedIcmp(port, context.wcmatch, context.ethernet)
-        if (ethOpt.nonEmpty) {
-            context.addGeneratedPacket(port.id, ethOpt.get)
+        val frame = unreachableProhibitedIcmp(port, context.wcmatch, context.ethernet)
+        if (frame.nonEmpty) {
+            context.addGeneratedPacket(port.id, frame.get)
         }
     }
 }
@@ -23,9 +23,11 @@ import scala.concurrent.duration._
 
 import com.typesafe.scalalogging.Logger
 
-import org.midonet.cluster.DataClient
-import org.midonet.cluster.data.dhcp.{Subnet, Host, Opt121}
-import org.midonet.midolman.topology.devices.{RouterPort, BridgePort, Port}
+import org.midonet.cluster.data.dhcp.{Host, Opt121}
+import org.midonet.midolman.NotYetException
+import org.midonet.midolman.topology.VirtualTopology
+import org.midonet.midolman.topology.devices.{BridgePort, DhcpConfig, Port}
+import org.midonet.midolman.topology.devices.DhcpConfig.Assignment
 import org.midonet.packets._
 
 /**
@@ -410,9 +412,10 @@ object DhcpValueParser {
 }
 
 object DhcpImpl {
-    def apply(dataClient: DataClient, inPort: Port, request: DHCP,
-              sourceMac: MAC, mtu: Option[Short], log: Logger) =
-        new DhcpImpl(dataClient, request, sourceMac, mtu, log).handleDHCP(inPort)
+    @throws[NotYetException]
+    def apply(inPort: Port, request: DHCP, sourceMac: MAC, mtu: Option[Short],
+              log: Logger) =
+        new DhcpImpl(request, sourceMac, mtu, log).handleDHCP(inPort)
 }
 
 class DhcpException extends Exception {
@@ -422,8 +425,7 @@ class DhcpException extends Exception {
 object UnsupportedDhcpRequestException extends DhcpException {}
 object MalformedDhcpRequestException extends DhcpException {}
 
-class DhcpImpl(val dataClient: DataClient,
-               val request: DHCP, val sourceMac: MAC,
+class DhcpImpl(val request: DHCP, val sourceMac: MAC,
                val mtu: Option[Short], val log: Logger) {
     import DhcpValueParser._
 
@@ -437,6 +439,7 @@ class DhcpImpl(val dataClient: DataClient,
 
     private var interfaceMTU : Short = 0
 
+    @throws[NotYetException]
     def handleDHCP(port: Port) : Option[Ethernet] = {
         // These fields are decided based on the port configuration.
         // DHCP is handled differently for bridge and router ports.
@@ -455,37 +458,23 @@ class DhcpImpl(val dataClient: DataClient,
         }
     }
 
-    private type HostAndSubnetOptPair = (Option[Host], Option[Subnet])
-
-    private
-    def getHostAndAssignedSubnet(port: BridgePort): HostAndSubnetOptPair = {
-        // TODO(pino): use an async API
-        val subnets = dataClient.dhcpSubnetsGetByBridgeEnabled(port.deviceId)
-
-        // Look for the DHCP's source MAC in the list of hosts in each subnet
-        var host: Option[Host] = None
-        val assignment = subnets.find { sub =>
-            log.debug("Looking up assignment for MAC {} on subnet {} ",
-                      sourceMac, sub.getId)
-            if (sub.isReplyReady) {
-                // TODO(pino): make this asynchronous?
-                host = Option(dataClient.dhcpHostsGet(port.deviceId,
-                                                    sub.getSubnetAddr,
-                                                    sourceMac.toString))
-                host.isDefined && (host.get.getIp != null)
-            } else {
-                log.warn("Can not create DHCP reply because the subnet" +
-                         s" ${sub.getId} does not have all necessary " +
-                         "information.")
-                false
-            }
-        }
-        (host, assignment)
+    /**
+     * Gets the static assignment for the source MAC from the DHCP
+     * configuration of the bridge, which is kept in memory by the virtual
+     * topology. Throws a [[NotYetException]] if the configuration is not
+     * loaded yet.
+     */
+    @throws[NotYetException]
+    private def getAssignment(port: BridgePort): Option[Assignment] = {
+        val config = VirtualTopology.tryGet[DhcpConfig](
+            DhcpConfig.idOf(port.deviceId))
+        log.debug("Looking up assignment for MAC {} in {}", sourceMac, config)
+        config.assignment(sourceMac)
     }
 
     private def dhcpFromBridgePort(port: BridgePort): Option[Ethernet] = {
-        getHostAndAssignedSubnet(port) match {
-            case (Some(host: Host), Some(sub: Subnet)) =>
+        getAssignment(port) match {
+            case Some(Assignment(host, sub)) =>
                 log.debug(s"Found DHCP static assignment for MAC $sourceMac => "+
                           s"${host.getName} @ ${host.getIp}")
 
@@ -15,6 +15,8 @@
  */
 package org.midonet.midolman.simulation
 
+import java.nio.ByteBuffer
+
 import org.midonet.midolman.topology.devices.RouterPort
 import org.midonet.odp.FlowMatch
 import org.midonet.packets.ICMP.{EXCEEDED_CODE, UNREACH_CODE}
@@ -30,13 +32,15 @@ object Icmp {
          *            The flow match that caused the message to be generated
          * @param packet
          *            The original packet that started the simulation
+         * @return The frame of the message, written in a buffer of the
+         *         packet emitter of the context, if an error may be sent.
          */
         protected def icmpAnswer(inPort: RouterPort,
                                  ingressMatch: FlowMatch,
                                  packet: Ethernet,
                                  icmpType: Byte,
                                  icmpCode: Any)
-                                (implicit context: PacketContext): Option[Ethernet]
+                                (implicit context: PacketContext): Option[ByteBuffer]
 
         /**
          * Will be called whenever an ICMP unreachable is needed for the given
@@ -98,7 +102,7 @@ object Icmp {
                                 icmpType: Byte,
                                 icmpCode: Any)
                                (implicit context: PacketContext)
-        : Option[Ethernet] = {
+        : Option[ByteBuffer] = {
             context.log.debug("Prepare an ICMP response")
             // Check whether the original packet is allowed to trigger ICMP.
             if (inPort == null) {
@@ -109,54 +113,35 @@ object Icmp {
                 context.log.debug("ICMP not allowed for this packet.")
                 return None
             }
-            // Build the ICMP packet from inside-out: ICMP, IPv4, Ethernet headers.
-            context.log.debug(s"Generating ICMP error $icmpType:$icmpCode")
-            val icmp = buildError(icmpType, icmpCode, ingressMatch, packet)
-            if (icmp == null)
-                return None
-
-            val ip = new IPv4()
-            ip.setPayload(icmp)
-            ip.setProtocol(ICMP.PROTOCOL_NUMBER)
-            // The nwDst is the source of triggering IPv4 as seen by this router.
-            ip.setDestinationAddress(ingressMatch.getNetworkSrcIP
-                    .asInstanceOf[IPv4Addr])
-            // The nwSrc is the address of the ingress port.
-            ip.setSourceAddress(inPort.portAddr.getAddress)
-            val eth = new Ethernet()
-            eth.setPayload(ip)
-            eth.setEtherType(IPv4.ETHERTYPE)
-            eth.setSourceMACAddress(inPort.portMac)
-            eth.setDestinationMACAddress(ingressMatch.getEthSrc)
-
-            // TODO(pino): check with Guillermo about match's vs.
-            // device's inPort. ingressMatch.getInputPortUUID, eth)
-            Some(eth)
-        }
-
-        private def buildError(icmpType: Byte, icmpCode: Any,
-                               forMatch: FlowMatch, forPacket: Ethernet)
-        : ICMP = {
             // TODO(pino, guillermo, jlm): original or modified trigger pkt?
-            val pktHere = forPacket //forMatch.apply(forPacket)
-            var ipPkt: IPv4 = null
-            pktHere.getPayload match {
-                case ip: IPv4 => ipPkt = ip
-                case _ => return null
+            val ipPkt = packet.getPayload match {
+                case ip: IPv4 => ip
+                case _ => return None
             }
-
-            icmpCode match {
+            val code = icmpCode match {
                 case c: ICMP.EXCEEDED_CODE if icmpType == ICMP.TYPE_TIME_EXCEEDED =>
-                    val icmp = new ICMP()
-                    icmp.setTimeExceeded(c, ipPkt)
-                    icmp
+                    c.toByte
                 case c: ICMP.UNREACH_CODE if icmpType == ICMP.TYPE_UNREACH =>
-                    val icmp = new ICMP()
-                    icmp.setUnreachable(c, ipPkt)
-                    icmp
+                    c.toByte
                 case _ =>
-                    null
+                    return None
             }
+
+            // Write the frame from the ICMP error template: the nwDst is the
+            // source of triggering IPv4 as seen by this router, and the nwSrc
+            // is the address of the ingress port.
+            context.log.debug(s"Generating ICMP error $icmpType:$icmpCode")
+            val frame = context.packetEmitter.frame(
+                PacketTemplates.ICMP_ERROR_MAX_LEN)
+            PacketTemplates.icmpError(
+                frame, inPort.portMac, ingressMatch.getEthSrc,
+                inPort.portAddr.getAddress.toInt,
+                ingressMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr].toInt,
+                icmpType, code, ipPkt)
+
+            // TODO(pino): check with Guillermo about match's vs.
+            // device's inPort. ingressMatch.getInputPortUUID, eth)
+            Some(frame)
         }
 
         /**
@@ -16,6 +16,7 @@
 
 package org.midonet.midolman.simulation
 
+import java.nio.ByteBuffer
 import java.util.{Arrays, ArrayList, HashSet, Set => JSet, UUID}
 import scala.collection.JavaConversions._
 
@@ -24,6 +25,7 @@ import org.midonet.midolman.flows.FlowExpiration
 import org.slf4j.LoggerFactory
 
 import org.midonet.midolman.CallbackExecutor
+import org.midonet.midolman.management.PacketTraceBuffer
 import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
 import org.midonet.midolman.state.FlowStatePackets
 import org.midonet.odp.{FlowMatch, Packet}
@@ -206,12 +208,19 @@ class PacketContext(val cookie: Int,
 
     def jlog = log.underlying
 
+    // The buffer where the trace events of this packet are recorded, or null
+    // if the packet is not traced.
+    var traceBuffer: PacketTraceBuffer = null
+
     var portGroups: JSet[UUID] = null
 
     var lastInvalidation: Long = _
 
     var idle: Boolean = true
     var runs: Int = 0
+    // Devices that were missing from the topology cache when the simulation
+    // was first postponed, and that are prefetched while it runs again.
+    var prefetchedDevices: JSet[UUID] = null
 
     var inPortId: UUID = _
     var outPortId: UUID = _
@@ -277,8 +286,23 @@ class PacketContext(val cookie: Int,
         inputPort = null
     }
 
+    /**
+     * Records a trace event for this packet, if it is traced. See the event
+     * types in [[PacketTraceBuffer]].
+     */
+    def traceEvent(event: Int, id: UUID, value: Int): Unit =
+        if (traceBuffer ne null)
+            traceBuffer.record(cookie, event, value, id)
+
     def addGeneratedPacket(uuid: UUID, ethernet: Ethernet): Unit =
         packetEmitter.schedule(GeneratedPacket(uuid, ethernet))
 
+    /**
+     * Emits a frame written from a template in a buffer taken from the
+     * packet emitter.
+     */
+    def addGeneratedPacket(uuid: UUID, frame: ByteBuffer): Unit =
+        packetEmitter.schedule(uuid, frame)
+
     override def toString = s"PacketContext[$cookieStr]"
 }
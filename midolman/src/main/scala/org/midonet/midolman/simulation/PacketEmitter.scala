@@ -16,31 +16,105 @@
 
 package org.midonet.midolman.simulation
 
+import java.nio.ByteBuffer
 import java.util.{Queue, UUID}
 
 import akka.actor.ActorRef
 
 import org.midonet.midolman.CheckBackchannels
+import org.midonet.netlink.BufferPool
 import org.midonet.packets.Ethernet
 
 object PacketEmitter {
-    case class GeneratedPacket(egressPort: UUID, eth: Ethernet)
+
+    // Buffer sizes of the frames written from templates: ARP requests and
+    // replies and ICMP errors, and ICMP echo replies up to a standard MTU.
+    // Larger frames get a temporary buffer.
+    final val SmallFrame = 128
+    final val LargeFrame = 2048
+
+    def newBufferPool(): BufferPool =
+        new BufferPool(Array(0, 0), Array(512, 128),
+                       Array(SmallFrame, LargeFrame))
+
+    /**
+     * A packet generated by the simulation, to be emitted from a port. The
+     * frame is either an Ethernet packet or, when written from a template,
+     * a buffer taken from the emitter, from which the Ethernet packet is
+     * only deserialized if needed.
+     */
+    class GeneratedPacket(val egressPort: UUID, private var ethernet: Ethernet,
+                          val data: ByteBuffer) {
+
+        def eth: Ethernet = {
+            if (ethernet eq null) {
+                ethernet = new Ethernet()
+                ethernet.deserialize(data.duplicate())
+            }
+            ethernet
+        }
+
+        override def toString =
+            s"GeneratedPacket($egressPort, " +
+            (if (ethernet ne null) ethernet else s"${data.remaining} bytes") + ")"
+    }
+
+    object GeneratedPacket {
+        def apply(egressPort: UUID, eth: Ethernet): GeneratedPacket =
+            new GeneratedPacket(egressPort, eth, null)
+
+        def apply(egressPort: UUID, data: ByteBuffer): GeneratedPacket =
+            new GeneratedPacket(egressPort, null, data)
+
+        def unapply(genPacket: GeneratedPacket): Option[(UUID, Ethernet)] =
+            Some((genPacket.egressPort, genPacket.eth))
+    }
 }
 
 class PacketEmitter(queue: Queue[PacketEmitter.GeneratedPacket],
-                    alert: ActorRef) {
+                    alert: ActorRef,
+                    pool: BufferPool = PacketEmitter.newBufferPool()) {
     import PacketEmitter._
 
     def pendingPackets = queue.size()
 
+    /**
+     * Takes a buffer to write a frame of up to the given size from a
+     * template. The buffer is released when the packet is emitted, or
+     * dropped.
+     */
+    def frame(size: Int): ByteBuffer = {
+        val buf = pool.take(size)
+        buf.clear()
+        buf
+    }
+
+    /**
+     * Schedules the frame written in a buffer taken from this emitter.
+     */
+    def schedule(egressPort: UUID, frame: ByteBuffer): Boolean = {
+        frame.flip()
+        schedule(GeneratedPacket(egressPort, frame))
+    }
+
     def schedule(genPacket: GeneratedPacket): Boolean =
         if (queue.offer(genPacket)) {
             alert ! CheckBackchannels
             true
         } else {
+            release(genPacket)
             false
         }
 
+    /**
+     * Returns the buffer of a generated packet to the pool, once the packet
+     * is emitted or deserialized.
+     */
+    def release(genPacket: GeneratedPacket): Unit =
+        if (genPacket.data ne null) {
+            pool.release(genPacket.data)
+        }
+
     def process(emit: GeneratedPacket => Unit): Unit = {
         var genPacket: GeneratedPacket = null
         while ({ genPacket = queue.poll(); genPacket } ne null) {
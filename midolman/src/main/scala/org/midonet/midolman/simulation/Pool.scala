@@ -23,9 +23,10 @@ import akka.event.LoggingBus
 import org.midonet.midolman.state.l4lb.PoolLBMethod
 import org.midonet.midolman.state.NatState
 import org.midonet.midolman.state.NatState.NatKey
+import org.midonet.odp.FlowMatch
 import org.midonet.packets.{IPAddr, ICMP}
 import org.midonet.sdn.flows.FlowTagger
-import org.midonet.util.collection.WeightedSelector
+import org.midonet.util.collection.{MaglevSelector, WeightedSelector}
 
 object Pool {
     def findPoolMember(ip: IPAddr, port: Int, pmArray: Array[PoolMember])
@@ -39,18 +40,74 @@ object Pool {
         }
         false
     }
+
+    private val memberKey = (pm: PoolMember) =>
+        pm.id.getMostSignificantBits ^ pm.id.getLeastSignificantBits
+
+    /**
+     * The hash of a flow for source hashing: the source IP address for sticky
+     * source IP, and otherwise also the source port and protocol, which
+     * identify the connection to the VIP.
+     */
+    def flowHash(fmatch: FlowMatch, stickySourceIP: Boolean): Int = {
+        var key = fmatch.getNetworkSrcIP.hashCode.toLong
+        if (!stickySourceIP) {
+            key = (key << 32) | ((fmatch.getSrcPort & 0xffff) << 8) |
+                  (fmatch.getNetworkProto & 0xff)
+        }
+        MaglevSelector.mix(key).toInt
+    }
+
+    /* Whether two sets of members select the same members for every hash:
+     * the same members, with the same addresses, ports and weights. */
+    private def sameMembers(a: Array[PoolMember],
+                            b: Array[PoolMember]): Boolean = {
+        if (a.length != b.length)
+            return false
+        var i = 0
+        while (i < a.length) {
+            val pm = a(i)
+            if (!b.exists(other => other.id == pm.id &&
+                                   other.address == pm.address &&
+                                   other.protocolPort == pm.protocolPort &&
+                                   other.weight == pm.weight))
+                return false
+            i += 1
+        }
+        true
+    }
 }
 
+/**
+ * @param previous The previous version of this pool, if any, whose member
+ *                 table is reused when the active members haven't changed.
+ */
 class Pool(val id: UUID, val adminStateUp: Boolean, val lbMethod: PoolLBMethod,
            val activePoolMembers: Array[PoolMember],
-           val disabledPoolMembers: Array[PoolMember]) {
+           val disabledPoolMembers: Array[PoolMember],
+           previous: Pool = null) {
 
     val deviceTag = FlowTagger.tagForDevice(id)
 
     val isUp = adminStateUp && activePoolMembers.nonEmpty
 
-    private val memberSelector = if (!isUp) null
-                                 else WeightedSelector(activePoolMembers)
+    private val sourceHash = lbMethod == PoolLBMethod.SOURCE_HASH
+
+    private val memberSelector =
+        if (!isUp || sourceHash) null
+        else WeightedSelector(activePoolMembers)
+
+    // Source hashing selects the members from a consistent hash table, such
+    // that a flow goes to the same member even without its NAT entry, and
+    // changes of membership only move the flows of the changed members.
+    // Building the table is costly, so it's kept across the updates of the
+    // pool that don't change its active members.
+    private[simulation] val memberTable =
+        if (!isUp || !sourceHash) null
+        else if ((previous ne null) && (previous.memberTable ne null) &&
+                 Pool.sameMembers(previous.activePoolMembers,
+                                  activePoolMembers)) previous.memberTable
+        else MaglevSelector(activePoolMembers, Pool.memberKey)
 
     /**
      * Choose an active pool member and apply DNAT to the packetContext
@@ -70,7 +127,10 @@ class Pool(val id: UUID, val adminStateUp: Boolean, val lbMethod: PoolLBMethod,
         context.addFlowTag(deviceTag)
 
         if (isUp) {
-            val member = memberSelector.select()
+            val member =
+                if (sourceHash) memberTable.select(
+                    Pool.flowHash(context.wcmatch, stickySourceIP))
+                else memberSelector.select()
             if (context.log.underlying.isDebugEnabled) {
                 context.log.debug(s"Selected member $member out of {}",
                                   activePoolMembers.mkString(", "))
@@ -26,7 +26,6 @@ import org.midonet.midolman.topology.devices.{Port, RouterPort}
 import org.midonet.midolman.NotYetException
 import org.midonet.midolman.layer3.Route
 import org.midonet.midolman.rules.RuleResult
-import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
 import org.midonet.midolman.topology.VirtualTopologyActor._
 import org.midonet.midolman.topology._
 import org.midonet.odp.flows.FlowKeys
@@ -121,10 +120,12 @@ class Router(override val id: UUID,
             context.log.debug(s"replying to ARP request from $spa for $tpa " +
                               s"with own mac ${inPort.portMac}")
 
-            // Construct the reply, reversing src/dst fields from the request.
-            val eth = ARP.makeArpReply(inPort.portMac, sha,
-                pkt.getTargetProtocolAddress, pkt.getSenderProtocolAddress)
-            packetEmitter.schedule(GeneratedPacket(inPort.id, eth))
+            // Write the reply, reversing src/dst fields from the request.
+            val frame = packetEmitter.frame(PacketTemplates.ARP_FRAME_LEN)
+            PacketTemplates.arpReply(frame, inPort.portMac, sha,
+                                     IPv4Addr.bytesToInt(pkt.getTargetProtocolAddress),
+                                     IPv4Addr.bytesToInt(pkt.getSenderProtocolAddress))
+            packetEmitter.schedule(inPort.id, frame)
         }(ExecutionContext.callingThread)
     }
 
@@ -191,12 +192,41 @@ class Router(override val id: UUID,
         if (echo == null)
             return true
 
+        val srcIp = ingressMatch.getNetworkDstIP.asInstanceOf[IPv4Addr]
+        val dstIp = ingressMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr]
+        if (cfg.outboundFilter eq null) {
+            // Without a post-routing chain to apply, the reply is written
+            // directly from its template.
+            val rt = localRoute(srcIp, dstIp)
+            if (rt eq null)
+                return false
+            val outPort = tryAsk[RouterPort](rt.nextHopPort)
+            return nextHopMacForLocal(outPort, rt, dstIp) match {
+                case null => false
+                case mac =>
+                    val frame = context.packetEmitter.frame(
+                        PacketTemplates.icmpEchoReplyLength(echo))
+                    PacketTemplates.icmpEchoReply(frame, outPort.portMac, mac,
+                                                  srcIp.toInt, dstIp.toInt,
+                                                  echo)
+                    context.addGeneratedPacket(rt.nextHopPort, frame)
+                    true
+            }
+        }
+
         val reply = new ICMP()
         reply.setEchoReply(echo.getIdentifier, echo.getSequenceNum, echo.getData)
+        if (echo.getChecksum != 0) {
+            // The reply only changes the type and code of the request.
+            reply.setChecksum(PacketTemplates.updateChecksum(
+                echo.getChecksum,
+                ((echo.getType << 8) | (echo.getCode & 0xff)).toShort,
+                (ICMP.TYPE_ECHO_REPLY << 8).toShort))
+        }
         val ip = new IPv4()
         ip.setProtocol(ICMP.PROTOCOL_NUMBER)
-        ip.setDestinationAddress(ingressMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr])
-        ip.setSourceAddress(ingressMatch.getNetworkDstIP.asInstanceOf[IPv4Addr])
+        ip.setDestinationAddress(dstIp)
+        ip.setSourceAddress(srcIp)
         ip.setPayload(reply)
 
         sendIPPacket(ip)
@@ -305,19 +335,8 @@ class Router(override val id: UUID,
         }
 
         def _sendIPPacket(outPort: RouterPort, rt: Route): Boolean = {
-            if (packet.getDestinationIPAddress == outPort.portAddr.getAddress) {
-                /* should never happen: it means we are trying to send a packet
-                 * to ourselves, probably means that somebody sent an IP packet
-                 * with a forged source address belonging to this router.
-                 */
-                context.log.warn("Router {} trying to send a packet {} to itself.",
-                          id, packet)
-                return false
-            }
-
-            getNextHopMac(outPort, rt, packet.getDestinationIPAddress) match {
+            nextHopMacForLocal(outPort, rt, packet.getDestinationIPAddress) match {
                 case null =>
-                    context.log.warn("Failed to get MAC to emit local packet")
                     false
                 case mac =>
                     val eth = new Ethernet().setEtherType(IPv4.ETHERTYPE)
@@ -351,15 +370,47 @@ class Router(override val id: UUID,
             }
         }
 
-        val ipMatch = new FlowMatch()
-                      .setNetworkDst(packet.getDestinationIPAddress)
-                      .setNetworkSrc(packet.getSourceIPAddress)
-        val rt: Route = routeBalancer.lookup(ipMatch, context.log)
-        if (rt == null || rt.nextHop != Route.NextHop.PORT)
-            return false
-        if (rt.nextHopPort == null)
+        val rt = localRoute(packet.getSourceIPAddress,
+                            packet.getDestinationIPAddress)
+        if (rt eq null)
             return false
 
         _sendIPPacket(tryAsk[RouterPort](rt.nextHopPort), rt)
     }
+
+    /**
+     * Looks up the route of a locally generated packet, returning null if
+     * the packet is not routed through a port.
+     */
+    private def localRoute(src: IPv4Addr, dst: IPv4Addr)
+                          (implicit context: PacketContext): Route = {
+        val ipMatch = new FlowMatch().setNetworkDst(dst).setNetworkSrc(src)
+        val rt: Route = routeBalancer.lookup(ipMatch, context.log)
+        if (rt == null || rt.nextHop != Route.NextHop.PORT ||
+            rt.nextHopPort == null) null
+        else rt
+    }
+
+    /**
+     * Gets the MAC of the next hop of a locally generated packet, returning
+     * null if it is unknown or the packet would be sent to the router itself.
+     */
+    @throws[NotYetException]
+    private def nextHopMacForLocal(outPort: RouterPort, rt: Route,
+                                   dst: IPv4Addr)
+                                  (implicit context: PacketContext): MAC = {
+        if (dst == outPort.portAddr.getAddress) {
+            /* should never happen: it means we are trying to send a packet
+             * to ourselves, probably means that somebody sent an IP packet
+             * with a forged source address belonging to this router.
+             */
+            context.log.warn("Router {} trying to send a packet to itself {}.",
+                             id, dst)
+            return null
+        }
+        val mac = getNextHopMac(outPort, rt, dst)
+        if (mac eq null)
+            context.log.warn("Failed to get MAC to emit local packet")
+        mac
+    }
 }
@@ -15,6 +15,7 @@
  */
 package org.midonet.midolman.simulation
 
+import java.nio.ByteBuffer
 import java.util.UUID
 
 import akka.actor.ActorSystem
@@ -360,10 +361,10 @@ abstract class RouterBase[IP <: IPAddr](val id: UUID,
 
     }
 
-    def sendAnswer(portId: UUID, eth: Option[Ethernet])
+    def sendAnswer(portId: UUID, frame: Option[ByteBuffer])
                   (implicit context: PacketContext): Unit =
-        if (eth.nonEmpty) {
-            context.addGeneratedPacket(portId, eth.get)
+        if (frame.nonEmpty) {
+            context.addGeneratedPacket(portId, frame.get)
         }
 
     /**
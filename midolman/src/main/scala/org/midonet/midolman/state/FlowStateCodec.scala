@@ -0,0 +1,680 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.UUID
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState._
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
+import org.midonet.odp.flows.FlowKeyEtherType
+import org.midonet.packets.{IPAddr, IPv4Addr, IPv6Addr, MAC}
+
+/**
+ * Wire format of the flow state messages, as defined by flowstate.proto.
+ *
+ * The encoder and decoder below read and write the protobuf encoding of the
+ * messages directly from and to the flow state keys, without the builders
+ * and intermediate messages of the generated code. They must be kept in sync
+ * with flowstate.proto: the encoder writes the fields in the same order and
+ * encoding as the generated code, and the decoder skips unknown fields.
+ */
+object FlowStateCodec {
+
+    final val WireVarint = 0
+    final val WireFixed64 = 1
+    final val WireDelimited = 2
+    final val WireFixed32 = 5
+
+    /** Bytes reserved for a length prefix that is written last. */
+    final val LengthPrefixSize = 5
+
+    final val UuidSize = 18
+    final val UuidFieldSize = 2 + UuidSize
+
+    final val EtherTypeNone =
+        FlowKeyEtherType.Type.ETH_P_NONE.value.toShort
+
+    /* All the fields have numbers lower than 16, so their tags are one
+     * byte long. */
+    @inline def tag(field: Int, wireType: Int): Int = (field << 3) | wireType
+
+    /* The encoding of uint32 fields set from signed integers. */
+    @inline def unsigned(value: Int): Long = value & 0xFFFFFFFFL
+
+    def varintSize(value: Long): Int = {
+        var v = value
+        var size = 1
+        while ((v & ~0x7FL) != 0L) {
+            v >>>= 7
+            size += 1
+        }
+        size
+    }
+
+    def delimitedSize(size: Int): Int = 1 + varintSize(size) + size
+
+    def ipSize(ip: IPAddr): Int = ip match {
+        case v4: IPv4Addr =>
+            3 + varintSize(unsigned(v4.addr))
+        case v6: IPv6Addr =>
+            6 + varintSize(unsigned(v6.lowerWord.toInt)) +
+            varintSize(unsigned((v6.lowerWord >> 32).toInt)) +
+            varintSize(unsigned(v6.upperWord.toInt)) +
+            varintSize(unsigned((v6.upperWord >> 32).toInt))
+        case _ => throw new IllegalArgumentException()
+    }
+
+    def connTrackKeySize(k: ConnTrackKey): Int =
+        3 + varintSize(unsigned(k.networkProtocol)) +
+        delimitedSize(ipSize(k.networkSrc)) +
+        varintSize(unsigned(k.icmpIdOrTransportSrc)) +
+        delimitedSize(ipSize(k.networkDst)) +
+        varintSize(unsigned(k.icmpIdOrTransportDst)) +
+        UuidFieldSize
+
+    def natKeySize(k: NatKey): Int =
+        4 + varintSize(natKeyTypeToWire(k.keyType)) +
+        varintSize(unsigned(k.networkProtocol)) +
+        delimitedSize(ipSize(k.networkSrc)) +
+        delimitedSize(ipSize(k.networkDst)) +
+        varintSize(unsigned(k.transportSrc)) +
+        varintSize(unsigned(k.transportDst)) +
+        UuidFieldSize
+
+    def natBindingSize(v: NatBinding): Int =
+        1 + delimitedSize(ipSize(v.networkAddress)) +
+        varintSize(unsigned(v.transportPort))
+
+    def traceEntrySize(k: TraceKey, ctx: TraceContext): Int = {
+        var size = 0
+        if (k.ethSrc ne null) size += 1 + varintSize(k.ethSrc.asLong)
+        if (k.ethDst ne null) size += 1 + varintSize(k.ethDst.asLong)
+        if (k.etherType != EtherTypeNone)
+            size += 1 + varintSize(unsigned(k.etherType))
+        if (k.networkSrc ne null) size += delimitedSize(ipSize(k.networkSrc))
+        if (k.networkDst ne null) size += delimitedSize(ipSize(k.networkDst))
+        if (k.networkProto != 0)
+            size += 1 + varintSize(unsigned(k.networkProto))
+        if (k.srcPort != 0) size += 1 + varintSize(unsigned(k.srcPort))
+        if (k.dstPort != 0) size += 1 + varintSize(unsigned(k.dstPort))
+        if (ctx.flowTraceId ne null) size += UuidFieldSize
+        size + ctx.requests.size * UuidFieldSize
+    }
+
+    def natKeyTypeToWire(t: KeyType): Int = t match {
+        case FWD_DNAT => 0
+        case FWD_STICKY_DNAT => 1
+        case REV_DNAT => 2
+        case REV_STICKY_DNAT => 3
+        case FWD_SNAT => 4
+        case REV_SNAT => 5
+    }
+
+    def natKeyTypeFromWire(t: Int): KeyType = t match {
+        case 0 => FWD_DNAT
+        case 1 => FWD_STICKY_DNAT
+        case 2 => REV_DNAT
+        case 3 => REV_STICKY_DNAT
+        case 4 => FWD_SNAT
+        case 5 => REV_SNAT
+        case _ => throw new IllegalArgumentException(s"Unknown NAT key type $t")
+    }
+}
+
+/**
+ * Encodes flow state messages into a byte array, one after another, each of
+ * them prefixed by its length as done by writeDelimitedTo(). A message is
+ * started with startMessage(), filled with the keys of a single FlowState and
+ * completed with endMessage().
+ *
+ * The encoder doesn't allocate: the sizes of the keys are computed upfront,
+ * and the length prefixes of the FlowState and of the message are written
+ * into a reserved slot when they are complete, moving their contents back
+ * over the unused bytes of the slot.
+ *
+ * It is NOT thread-safe.
+ */
+final class FlowStateEncoder(val buffer: Array[Byte]) {
+    import FlowStateCodec._
+
+    private var position = 0
+    private var messageStart = 0
+    private var stateStart = 0
+    private var entries = 0
+    private var overflow = false
+
+    /** The number of bytes of the messages encoded since the last reset. */
+    def length: Int = position
+
+    /** Discards all the encoded messages. */
+    def reset(): Unit = {
+        position = 0
+        messageStart = 0
+    }
+
+    def startMessage(seq: Long, sender: UUID, epoch: Long): Unit = {
+        messageStart = position
+        entries = 0
+        overflow = false
+        if (reserve(2 * LengthPrefixSize + 3 + varintSize(seq) +
+                    UuidFieldSize + varintSize(epoch))) {
+            position += LengthPrefixSize
+            writeUInt64(1, seq)
+            writeUuid(2, sender)
+            writeUInt64(3, epoch)
+            writeTag(4, WireDelimited)
+            stateStart = position
+            position += LengthPrefixSize
+        }
+    }
+
+    def conntrackKey(k: ConnTrackKey): Unit = {
+        val size = connTrackKeySize(k)
+        if (reserve(delimitedSize(size))) {
+            writeTag(1, WireDelimited)
+            writeVarint(size)
+            writeUInt32(1, k.networkProtocol)
+            writeIp(2, k.networkSrc)
+            writeUInt32(3, k.icmpIdOrTransportSrc)
+            writeIp(4, k.networkDst)
+            writeUInt32(5, k.icmpIdOrTransportDst)
+            writeUuid(6, k.deviceId)
+            entries += 1
+        }
+    }
+
+    def natEntry(k: NatKey, v: NatBinding): Unit = {
+        val keySize = natKeySize(k)
+        val valueSize = natBindingSize(v)
+        val size = delimitedSize(keySize) + delimitedSize(valueSize)
+        if (reserve(delimitedSize(size))) {
+            writeTag(2, WireDelimited)
+            writeVarint(size)
+            writeTag(1, WireDelimited)
+            writeVarint(keySize)
+            writeUInt64(1, natKeyTypeToWire(k.keyType))
+            writeUInt32(2, k.networkProtocol)
+            writeIp(3, k.networkSrc)
+            writeIp(4, k.networkDst)
+            writeUInt32(5, k.transportSrc)
+            writeUInt32(6, k.transportDst)
+            writeUuid(7, k.deviceId)
+            writeTag(2, WireDelimited)
+            writeVarint(valueSize)
+            writeIp(1, v.networkAddress)
+            writeUInt32(2, v.transportPort)
+            entries += 1
+        }
+    }
+
+    /** Sets the ingress port, after the conntrack key and the NAT entries. */
+    def ingressPort(id: UUID): Unit =
+        if (reserve(UuidFieldSize)) {
+            writeUuid(3, id)
+        }
+
+    def traceEntry(k: TraceKey, ctx: TraceContext): Unit = {
+        val size = traceEntrySize(k, ctx)
+        if (reserve(delimitedSize(size))) {
+            writeTag(6, WireDelimited)
+            writeVarint(size)
+            if (k.ethSrc ne null) writeUInt64(1, k.ethSrc.asLong)
+            if (k.ethDst ne null) writeUInt64(2, k.ethDst.asLong)
+            if (k.etherType != EtherTypeNone) writeUInt32(3, k.etherType)
+            if (k.networkSrc ne null) writeIp(4, k.networkSrc)
+            if (k.networkDst ne null) writeIp(5, k.networkDst)
+            if (k.networkProto != 0) writeUInt32(6, k.networkProto)
+            if (k.srcPort != 0) writeUInt32(7, k.srcPort)
+            if (k.dstPort != 0) writeUInt32(8, k.dstPort)
+            if (ctx.flowTraceId ne null) writeUuid(10, ctx.flowTraceId)
+            var i = 0
+            while (i < ctx.requests.size) {
+                writeUuid(11, ctx.requests.get(i))
+                i += 1
+            }
+            entries += 1
+        }
+    }
+
+    /**
+     * Completes the current message and returns its length, including its
+     * length prefix. If the message has no flow state, it is discarded and
+     * the length is 0; if it didn't fit in the buffer, it is discarded and
+     * the length is -1.
+     */
+    def endMessage(): Int = {
+        if (overflow || entries == 0) {
+            position = messageStart
+            return if (overflow) -1 else 0
+        }
+        position = prefixLength(stateStart)
+        position = prefixLength(messageStart)
+        position - messageStart
+    }
+
+    /* Writes the length of the contents that follow the slot reserved at
+     * start, and moves them next to it. Returns their new end. */
+    private def prefixLength(start: Int): Int = {
+        val contents = start + LengthPrefixSize
+        val size = position - contents
+        position = start
+        writeVarint(size)
+        System.arraycopy(buffer, contents, buffer, position, size)
+        position + size
+    }
+
+    private def reserve(size: Int): Boolean = {
+        if (position + size > buffer.length)
+            overflow = true
+        !overflow
+    }
+
+    private def writeTag(field: Int, wireType: Int): Unit = {
+        buffer(position) = tag(field, wireType).toByte
+        position += 1
+    }
+
+    private def writeVarint(value: Long): Unit = {
+        var v = value
+        while ((v & ~0x7FL) != 0L) {
+            buffer(position) = ((v & 0x7F) | 0x80).toByte
+            position += 1
+            v >>>= 7
+        }
+        buffer(position) = v.toByte
+        position += 1
+    }
+
+    private def writeFixed64(value: Long): Unit = {
+        var i = 0
+        while (i < 8) {
+            buffer(position + i) = (value >>> (i * 8)).toByte
+            i += 1
+        }
+        position += 8
+    }
+
+    private def writeUInt32(field: Int, value: Int): Unit = {
+        writeTag(field, WireVarint)
+        writeVarint(unsigned(value))
+    }
+
+    private def writeUInt64(field: Int, value: Long): Unit = {
+        writeTag(field, WireVarint)
+        writeVarint(value)
+    }
+
+    private def writeUuid(field: Int, id: UUID): Unit = {
+        writeTag(field, WireDelimited)
+        writeVarint(UuidSize)
+        writeTag(1, WireFixed64)
+        writeFixed64(id.getMostSignificantBits)
+        writeTag(2, WireFixed64)
+        writeFixed64(id.getLeastSignificantBits)
+    }
+
+    private def writeIp(field: Int, ip: IPAddr): Unit = {
+        writeTag(field, WireDelimited)
+        writeVarint(ipSize(ip))
+        ip match {
+            case v4: IPv4Addr =>
+                writeUInt64(1, 0)
+                writeUInt32(2, v4.addr)
+            case v6: IPv6Addr =>
+                writeUInt64(1, 1)
+                writeUInt32(2, v6.lowerWord.toInt)
+                writeUInt32(3, (v6.lowerWord >> 32).toInt)
+                writeUInt32(4, v6.upperWord.toInt)
+                writeUInt32(5, (v6.upperWord >> 32).toInt)
+        }
+    }
+}
+
+object FlowStateDecoder {
+
+    /** Receives the flow state keys of the decoded messages. */
+    trait Handler {
+        def conntrackKey(k: ConnTrackKey): Unit
+        def natEntry(k: NatKey, v: NatBinding): Unit
+        def traceEntry(k: TraceKey, ctx: TraceContext): Unit
+    }
+}
+
+/**
+ * Decodes a flow state message prefixed by its length, handing its keys to a
+ * [[FlowStateDecoder.Handler]] as they are decoded. Only the keys, which the
+ * handler is expected to keep in the flow state tables, are allocated. The
+ * header of the last decoded message is kept in the decoder.
+ *
+ * It is NOT thread-safe.
+ */
+final class FlowStateDecoder {
+    import FlowStateCodec._
+    import FlowStateDecoder.Handler
+
+    private var data: Array[Byte] = _
+    private var position = 0
+    private var limit = 0
+    private var uuidMsb = 0L
+    private var uuidLsb = 0L
+
+    var seq = 0L
+    var epoch = 0L
+    var senderMsb = 0L
+    var senderLsb = 0L
+
+    def sender: UUID = new UUID(senderMsb, senderLsb)
+
+    /**
+     * Decodes the message at the given offset of the array. Returns false if
+     * the message is malformed, in which case the handler may have received
+     * some of its keys.
+     */
+    def decodeDelimited(bytes: Array[Byte], offset: Int, length: Int,
+                        handler: Handler): Boolean = {
+        data = bytes
+        position = offset
+        limit = offset + length
+        seq = 0L
+        epoch = 0L
+        senderMsb = 0L
+        senderLsb = 0L
+        try {
+            val end = pushLimit(readLength())
+            while (position < limit) {
+                val tag = readTag()
+                (tag >>> 3) match {
+                    case 1 if (tag & 7) == WireVarint => seq = readVarint()
+                    case 2 if (tag & 7) == WireDelimited =>
+                        readUuidBits()
+                        senderMsb = uuidMsb
+                        senderLsb = uuidLsb
+                    case 3 if (tag & 7) == WireVarint => epoch = readVarint()
+                    case 4 if (tag & 7) == WireDelimited =>
+                        readFlowState(handler)
+                    case _ => skip(tag)
+                }
+            }
+            popLimit(end)
+            true
+        } catch {
+            case e: IllegalArgumentException => false
+        } finally {
+            data = null
+        }
+    }
+
+    private def readFlowState(handler: Handler): Unit = {
+        val end = pushLimit(readLength())
+        while (position < limit) {
+            val tag = readTag()
+            (tag >>> 3) match {
+                case 1 if (tag & 7) == WireDelimited =>
+                    handler.conntrackKey(readConnTrackKey())
+                case 2 if (tag & 7) == WireDelimited => readNatEntry(handler)
+                case 6 if (tag & 7) == WireDelimited => readTraceEntry(handler)
+                case _ => skip(tag)
+            }
+        }
+        popLimit(end)
+    }
+
+    private def readConnTrackKey(): ConnTrackKey = {
+        val end = pushLimit(readLength())
+        var protocol = 0
+        var srcIp: IPAddr = null
+        var srcPort = 0
+        var dstIp: IPAddr = null
+        var dstPort = 0
+        var device: UUID = null
+        while (position < limit) {
+            val tag = readTag()
+            (tag >>> 3) match {
+                case 1 if (tag & 7) == WireVarint => protocol = readUInt32()
+                case 2 if (tag & 7) == WireDelimited => srcIp = readIp()
+                case 3 if (tag & 7) == WireVarint => srcPort = readUInt32()
+                case 4 if (tag & 7) == WireDelimited => dstIp = readIp()
+                case 5 if (tag & 7) == WireVarint => dstPort = readUInt32()
+                case 6 if (tag & 7) == WireDelimited => device = readUuid()
+                case _ => skip(tag)
+            }
+        }
+        popLimit(end)
+        ConnTrackKey(srcIp, srcPort, dstIp, dstPort, protocol.toByte, device)
+    }
+
+    private def readNatEntry(handler: Handler): Unit = {
+        val end = pushLimit(readLength())
+        var k: NatKey = null
+        var v: NatBinding = null
+        while (position < limit) {
+            val tag = readTag()
+            (tag >>> 3) match {
+                case 1 if (tag & 7) == WireDelimited => k = readNatKey()
+                case 2 if (tag & 7) == WireDelimited => v = readNatBinding()
+                case _ => skip(tag)
+            }
+        }
+        popLimit(end)
+        if ((k eq null) || (v eq null))
+            throw new IllegalArgumentException("Incomplete NAT entry")
+        handler.natEntry(k, v)
+    }
+
+    private def readNatKey(): NatKey = {
+        val end = pushLimit(readLength())
+        var keyType = 0
+        var protocol = 0
+        var srcIp: IPv4Addr = null
+        var dstIp: IPv4Addr = null
+        var srcPort = 0
+        var dstPort = 0
+        var device: UUID = null
+        while (position < limit) {
+            val tag = readTag()
+            (tag >>> 3) match {
+                case 1 if (tag & 7) == WireVarint => keyType = readUInt32()
+                case 2 if (tag & 7) == WireVarint => protocol = readUInt32()
+                case 3 if (tag & 7) == WireDelimited => srcIp = readIpv4()
+                case 4 if (tag & 7) == WireDelimited => dstIp = readIpv4()
+                case 5 if (tag & 7) == WireVarint => srcPort = readUInt32()
+                case 6 if (tag & 7) == WireVarint => dstPort = readUInt32()
+                case 7 if (tag & 7) == WireDelimited => device = readUuid()
+                case _ => skip(tag)
+            }
+        }
+        popLimit(end)
+        // The key type determines the expiration of the key, so the key is
+        // built once all of its fields are known.
+        NatKey(natKeyTypeFromWire(keyType), srcIp, srcPort, dstIp, dstPort,
+               protocol.toByte, device)
+    }
+
+    private def readNatBinding(): NatBinding = {
+        val end = pushLimit(readLength())
+        var ip: IPv4Addr = null
+        var port = 0
+        while (position < limit) {
+            val tag = readTag()
+            (tag >>> 3) match {
+                case 1 if (tag & 7) == WireDelimited => ip = readIpv4()
+                case 2 if (tag & 7) == WireVarint => port = readUInt32()
+                case _ => skip(tag)
+            }
+        }
+        popLimit(end)
+        NatBinding(ip, port)
+    }
+
+    private def readTraceEntry(handler: Handler): Unit = {
+        val end = pushLimit(readLength())
+        var ethSrc: MAC = null
+        var ethDst: MAC = null
+        var etherType = EtherTypeNone
+        var ipSrc: IPAddr = null
+        var ipDst: IPAddr = null
+        var ipProto = 0
+        var tpSrc = 0
+        var tpDst = 0
+        val ctx = new TraceContext
+        while (position < limit) {
+            val tag = readTag()
+            (tag >>> 3) match {
+                case 1 if (tag & 7) == WireVarint =>
+                    ethSrc = new MAC(readVarint())
+                case 2 if (tag & 7) == WireVarint =>
+                    ethDst = new MAC(readVarint())
+                case 3 if (tag & 7) == WireVarint =>
+                    etherType = readUInt32().toShort
+                case 4 if (tag & 7) == WireDelimited => ipSrc = readIp()
+                case 5 if (tag & 7) == WireDelimited => ipDst = readIp()
+                case 6 if (tag & 7) == WireVarint => ipProto = readUInt32()
+                case 7 if (tag & 7) == WireVarint => tpSrc = readUInt32()
+                case 8 if (tag & 7) == WireVarint => tpDst = readUInt32()
+                case 10 if (tag & 7) == WireDelimited => ctx.enable(readUuid())
+                case 11 if (tag & 7) == WireDelimited =>
+                    ctx.addRequest(readUuid())
+                case _ => skip(tag)
+            }
+        }
+        popLimit(end)
+        handler.traceEntry(TraceKey(ethSrc, ethDst, etherType, ipSrc, ipDst,
+                                    ipProto.toByte, tpSrc, tpDst), ctx)
+    }
+
+    private def readIpv4(): IPv4Addr = readIp() match {
+        case ip: IPv4Addr => ip
+        case _ => throw new IllegalArgumentException("Expected an IPv4 address")
+    }
+
+    private def readIp(): IPAddr = {
+        val end = pushLimit(readLength())
+        var version = 0
+        var quad0, quad1, quad2, quad3 = 0
+        while (position < limit) {
+            val tag = readTag()
+            (tag >>> 3) match {
+                case 1 if (tag & 7) == WireVarint => version = readUInt32()
+                case 2 if (tag & 7) == WireVarint => quad0 = readUInt32()
+                case 3 if (tag & 7) == WireVarint => quad1 = readUInt32()
+                case 4 if (tag & 7) == WireVarint => quad2 = readUInt32()
+                case 5 if (tag & 7) == WireVarint => quad3 = readUInt32()
+                case _ => skip(tag)
+            }
+        }
+        popLimit(end)
+        if (version == 0) {
+            new IPv4Addr(quad0)
+        } else {
+            val lower = unsigned(quad0) | (quad1.toLong << 32)
+            val upper = unsigned(quad2) | (quad3.toLong << 32)
+            new IPv6Addr(upper, lower)
+        }
+    }
+
+    private def readUuid(): UUID = {
+        readUuidBits()
+        new UUID(uuidMsb, uuidLsb)
+    }
+
+    private def readUuidBits(): Unit = {
+        val end = pushLimit(readLength())
+        uuidMsb = 0L
+        uuidLsb = 0L
+        while (position < limit) {
+            val tag = readTag()
+            (tag >>> 3) match {
+                case 1 if (tag & 7) == WireFixed64 => uuidMsb = readFixed64()
+                case 2 if (tag & 7) == WireFixed64 => uuidLsb = readFixed64()
+                case _ => skip(tag)
+            }
+        }
+        popLimit(end)
+    }
+
+    private def pushLimit(length: Int): Int = {
+        val previous = limit
+        limit = position + length
+        previous
+    }
+
+    private def popLimit(previous: Int): Unit = {
+        limit = previous
+    }
+
+    private def readByte(): Int = {
+        if (position >= limit)
+            throw new IllegalArgumentException("Truncated flow state message")
+        val b = data(position)
+        position += 1
+        b
+    }
+
+    private def readTag(): Int = readUInt32()
+
+    private def readUInt32(): Int = readVarint().toInt
+
+    private def readVarint(): Long = {
+        var result = 0L
+        var shift = 0
+        while (shift < 64) {
+            val b = readByte()
+            result |= (b & 0x7F).toLong << shift
+            if ((b & 0x80) == 0)
+                return result
+            shift += 7
+        }
+        throw new IllegalArgumentException("Malformed varint")
+    }
+
+    private def readFixed64(): Long = {
+        var result = 0L
+        var i = 0
+        while (i < 8) {
+            result |= (readByte() & 0xFFL) << (i * 8)
+            i += 1
+        }
+        result
+    }
+
+    private def readFixed32(): Int = {
+        var result = 0
+        var i = 0
+        while (i < 4) {
+            result |= (readByte() & 0xFF) << (i * 8)
+            i += 1
+        }
+        result
+    }
+
+    private def readLength(): Int = {
+        val length = readVarint()
+        if (length < 0 || length > limit - position)
+            throw new IllegalArgumentException("Truncated flow state message")
+        length.toInt
+    }
+
+    private def skip(tag: Int): Unit = (tag & 7) match {
+        case WireVarint => readVarint()
+        case WireFixed64 => readFixed64()
+        case WireDelimited => position += readLength()
+        case WireFixed32 => readFixed32()
+        case _ => throw new IllegalArgumentException(
+                      s"Unknown wire type in tag $tag")
+    }
+}
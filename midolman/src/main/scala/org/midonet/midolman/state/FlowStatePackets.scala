@@ -88,8 +88,10 @@ object FlowStatePackets {
         if (proto.getVersion == Proto.IpAddress.IpVersion.V4) {
             new IPv4Addr(proto.getQuad0)
         } else {
-            val lower = proto.getQuad0.toLong | (proto.getQuad1.toLong << 32)
-            val upper = proto.getQuad2.toLong | (proto.getQuad3.toLong << 32)
+            val lower = (proto.getQuad0 & 0xFFFFFFFFL) |
+                        (proto.getQuad1.toLong << 32)
+            val upper = (proto.getQuad2 & 0xFFFFFFFFL) |
+                        (proto.getQuad3.toLong << 32)
             new IPv6Addr(upper, lower)
         }
     }
@@ -205,7 +207,19 @@ object FlowStatePackets {
                  if (proto.hasTpSrc) proto.getTpSrc else 0,
                  if (proto.hasTpDst) proto.getTpDst else 0)
 
-    def parseDatagram(p: Ethernet): Proto.StateMessage  = {
+    def parseDatagram(p: Ethernet): Proto.StateMessage = {
+        val data = datagramPayload(p)
+        if (data eq null) null
+        else Proto.StateMessage.parseDelimitedFrom(
+                 new ByteArrayInputStream(data))
+    }
+
+    /**
+     * Returns the payload of a state replication packet, a state message
+     * prefixed by its length, or null if the addresses or the ports of the
+     * packet are not those of a state packet.
+     */
+    def datagramPayload(p: Ethernet): Array[Byte] = {
         if (p.getDestinationMACAddress != DST_MAC ||
             p.getSourceMACAddress != SRC_MAC) {
             return null
@@ -218,9 +232,7 @@ object FlowStatePackets {
                     case udp: UDP if udp.getDestinationPort == UDP_PORT &&
                         udp.getSourcePort == UDP_PORT =>
                         udp.getPayload match {
-                            case d: Data =>
-                                val input = new ByteArrayInputStream(d.getData)
-                                Proto.StateMessage.parseDelimitedFrom(input)
+                            case d: Data => d.getData
                             case _ => null
                         }
 
@@ -16,7 +16,7 @@
 
 package org.midonet.midolman.state
 
-import java.util.{ArrayList, HashSet => JHashSet, Iterator => JIterator, List => JList, Set => JSet, UUID}
+import java.util.{ArrayList, Arrays, HashSet => JHashSet, Iterator => JIterator, List => JList, Set => JSet, UUID}
 
 import akka.actor.ActorSystem
 import com.google.protobuf.{CodedOutputStream, MessageLite}
@@ -63,6 +63,15 @@ import org.midonet.util.functors.Callback0
  * replicator.accept(packet)
  * </code>
  *
+ * Without a [[ReliableStateChannel]], the messages are written with a
+ * [[FlowStateEncoder]] straight into the buffer of the packet that is sent,
+ * and the received ones are read with a [[FlowStateDecoder]], so that the
+ * replication doesn't allocate beyond the keys that are received.
+ *
+ * With a [[ReliableStateChannel]], every peer receives its own numbered copy
+ * of a message, and pushControlMessages() must be called periodically to send
+ * the acknowledgements, digests and retransmissions of the channel.
+ *
  *          NOTES ON THREAD SAFETY
  *          **********************
  *
@@ -97,7 +106,8 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
                                        storage: FlowStateStorage,
                                        underlay: UnderlayResolver,
                                        flowInvalidator: FlowInvalidator,
-                                       tos: Byte) {
+                                       tos: Byte,
+                                       channel: ReliableStateChannel = null) {
     import FlowStatePackets._
 
     protected def log: Logger
@@ -113,15 +123,25 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
     private[this] val txPeers: JSet[UUID] = new JHashSet[UUID]()
     private[this] val txPorts: JSet[UUID] = new JHashSet[UUID]()
 
-    private[this] val pendingMessages = new ArrayList[(JSet[UUID], MessageLite)]()
-    private[this] val hostId = uuidToProto(underlay.host.id)
+    private[this] val pendingMessages =
+        new ArrayList[(JSet[UUID], Proto.StateMessage)]()
+    private[this] val hostUuid = underlay.host.id
+    private[this] val hostId = uuidToProto(hostUuid)
 
     /* Used for packet building
      * FIXME(guillermo) - use MTU
+     *
+     * The buffer has room for several messages: those accumulated before a
+     * push are encoded one after another and sent from its start.
      */
     private[this] val buffer =
-        new Array[Byte](FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH)
+        new Array[Byte](4 * FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH)
     private[this] val stream = new FixedArrayOutputStream(buffer)
+    private[this] val encoder = new FlowStateEncoder(buffer)
+    private[this] val decoder = new FlowStateDecoder
+    private[this] var txConntrackKey: ConnTrackKey = _
+    private[this] var pendingLengths = new Array[Int](4)
+    private[this] val pendingActions = new ArrayList[JList[FlowAction]]()
     private[this] val udpShell: FlowStateEthernet =
         makeFlowStateUdpShell(buffer)
     private[this] val packet: Packet =
@@ -131,7 +151,10 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
                            v: ConnTrackValue): ArrayList[Callback0] = {
             if (txPeers.size() > 0) {
                 log.debug("push conntrack key: {}", k)
-                txState.setConntrackKey(connTrackKeyToProto(k))
+                if (channel eq null)
+                    txConntrackKey = k
+                else
+                    txState.setConntrackKey(connTrackKeyToProto(k))
             }
             log.debug("touch conntrack key: {}", k)
             storage.touchConnTrackKey(k, txIngressPort, txPorts.iterator())
@@ -148,9 +171,14 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
                            v: NatBinding): ArrayList[Callback0] = {
             if (txPeers.size() > 0) {
                 log.debug("push nat key: {}", k)
-                txNatEntry.clear()
-                txNatEntry.setK(natKeyToProto(k)).setV(natBindingToProto(v))
-                txState.addNatEntries(txNatEntry.build())
+                if (channel eq null) {
+                    encoder.natEntry(k, v)
+                } else {
+                    txNatEntry.clear()
+                    txNatEntry.setK(natKeyToProto(k))
+                              .setV(natBindingToProto(v))
+                    txState.addNatEntries(txNatEntry.build())
+                }
             }
             log.debug("touch nat key: {}", k)
             storage.touchNatKey(k, v, txIngressPort, txPorts.iterator())
@@ -169,15 +197,19 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
                 : ArrayList[Callback0] = {
             if (txPeers.size() > 0) {
                 log.debug("push trace key: {}", k)
-                txTraceEntry.clear()
-
-                traceKeyToProto(k, txTraceEntry)
-                txTraceEntry.setFlowTraceId(ctx.flowTraceId)
-                val iter = ctx.requests.iterator
-                while (iter.hasNext) {
-                    txTraceEntry.addRequestId(iter.next())
+                if (channel eq null) {
+                    encoder.traceEntry(k, ctx)
+                } else {
+                    txTraceEntry.clear()
+
+                    traceKeyToProto(k, txTraceEntry)
+                    txTraceEntry.setFlowTraceId(ctx.flowTraceId)
+                    val iter = ctx.requests.iterator
+                    while (iter.hasNext) {
+                        txTraceEntry.addRequestId(iter.next())
+                    }
+                    txState.addTraceEntry(txTraceEntry.build())
                 }
-                txState.addTraceEntry(txTraceEntry.build())
             }
 
             callbacks.add(new Callback0 {
@@ -260,14 +292,24 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         resolvePeers(ingressPort, egressPorts, txPeers, txPorts, tags)
         val hasPeers = !txPeers.isEmpty
 
-        if (hasPeers) {
+        if (hasPeers && (channel eq null)) {
+            encoder.startMessage(0x1, hostUuid, 0L)
+        } else if (hasPeers) {
             txState.clear()
             resetCurrentMessage()
         }
 
         txIngressPort = ingressPort
+        txConntrackKey = null
         conntrackTx.fold(callbacks, _conntrackAdder)
+        // The encoder writes the fields of the FlowState in order: the last
+        // conntrack key folded, the NAT entries, the ingress port and the
+        // trace entries.
+        if (txConntrackKey ne null)
+            encoder.conntrackKey(txConntrackKey)
         natTx.fold(callbacks, _natAdder)
+        if (hasPeers && (channel eq null))
+            encoder.ingressPort(ingressPort)
         traceTx.fold(callbacks, _traceAdder)
 
         if (hasPeers)
@@ -275,8 +317,21 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
     }
 
     def buildMessage(ingressPort: UUID): Unit =
-        if (txState.hasConntrackKey || txState.getNatEntriesCount > 0 ||
-                txState.getTraceEntryCount > 0) {
+        if (channel eq null) {
+            val length = encoder.endMessage()
+            if (length > 0) {
+                val count = pendingActions.size()
+                if (count == pendingLengths.length)
+                    pendingLengths = Arrays.copyOf(pendingLengths, 2 * count)
+                pendingLengths(count) = length
+                pendingActions.add(hostsToActions(txPeers))
+            } else if (length < 0) {
+                log.warn("Skipping state message of ingress port {}, too " +
+                         "large", ingressPort)
+            }
+        } else if (txState.hasConntrackKey ||
+                   txState.getNatEntriesCount > 0 ||
+                   txState.getTraceEntryCount > 0) {
             txState.setIngressPort(uuidToProto(ingressPort))
             currentMessage.addNewState(txState.build())
             pendingMessages.add((txPeers, currentMessage.build()))
@@ -284,21 +339,46 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
 
     private def hostsToActions(hosts: JSet[UUID]): JList[FlowAction] = {
         val actions = new ArrayList[FlowAction]()
-        var i = 0
         val hostsIt = hosts.iterator
         while (hostsIt.hasNext) {
-            underlay.peerTunnelInfo(hostsIt.next()) match {
-                case Some(route) =>
-                    val key = setKey(tunnel(TUNNEL_KEY, route.srcIp, route.dstIp, tos))
-                    actions.add(key)
-                    actions.add(route.output)
-                case None =>
-            }
-            i += 1
+            addHostActions(hostsIt.next(), actions)
+        }
+        actions
+    }
+
+    private def hostToActions(host: UUID): JList[FlowAction] =
+        addHostActions(host, new ArrayList[FlowAction]())
+
+    private def addHostActions(host: UUID, actions: JList[FlowAction])
+    : JList[FlowAction] = {
+        underlay.peerTunnelInfo(host) match {
+            case Some(route) =>
+                val key = setKey(tunnel(TUNNEL_KEY, route.srcIp, route.dstIp, tos))
+                actions.add(key)
+                actions.add(route.output)
+            case None =>
         }
         actions
     }
 
+    private def send(dpChannel: DatapathChannel, message: MessageLite,
+                     actions: JList[FlowAction]): Unit = {
+        val messageSizeVariantLength: Int =
+            CodedOutputStream.computeRawVarint32Size(
+                message.getSerializedSize)
+        val messageLength: Int =
+            message.getSerializedSize + messageSizeVariantLength
+        if (messageLength <= FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH) {
+            stream.reset()
+            message.writeDelimitedTo(stream)
+            udpShell.setElasticDataLength(messageLength)
+            dpChannel.executePacket(packet, actions)
+        } else {
+            // TODO(guillermo) partition messages
+            log.warn(s"Skipping state message, too large: $message")
+        }
+    }
+
     /**
      * Pushes all of the messages that were previously prepared by natRemover,
      * conntrackRemover and accumulateNewKeys() to their destinations, using the
@@ -307,31 +387,89 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
      * Packets will be tunneled to their destinations using the usual TunnelZone
      * information and with tunnel key FlowStatePackets.TUNNEL_KEY
      *
+     * The state touched in the storage is submitted, unless the caller defers
+     * it to submit the state of several packets at once.
+     *
      * EXPECTED CALLING THREADS: only the packet processing thread that owns
      * this replicator.
      */
-    def pushState(dpChannel: DatapathChannel) {
+    def pushState(dpChannel: DatapathChannel, submit: Boolean = true) {
+        if (channel eq null)
+            pushEncodedMessages(dpChannel)
+
         var i = pendingMessages.size() - 1
         while (i >= 0) {
             val (hosts, message) = pendingMessages.remove(i)
-            val messageSizeVariantLength: Int =
-                CodedOutputStream.computeRawVarint32Size(
-                    message.getSerializedSize)
-            val messageLength: Int =
-                message.getSerializedSize + messageSizeVariantLength
-            if (messageLength <= buffer.length) {
-                stream.reset()
-                message.writeDelimitedTo(stream)
-                udpShell.setElasticDataLength(messageLength)
-                dpChannel.executePacket(packet, hostsToActions(hosts))
+            if (channel eq null) {
+                send(dpChannel, message, hostsToActions(hosts))
             } else {
-                // TODO(guillermo) partition messages
-                log.warn(s"Skipping state message, too large: $message")
+                val hostsIt = hosts.iterator
+                while (hostsIt.hasNext) {
+                    val host = hostsIt.next()
+                    send(dpChannel, channel.sequence(host, message.toBuilder),
+                         hostToActions(host))
+                }
             }
             i -= 1
         }
 
-        storage.submit()
+        if (submit)
+            storage.submit()
+    }
+
+    private def pushEncodedMessages(dpChannel: DatapathChannel): Unit = {
+        var offset = 0
+        var i = 0
+        while (i < pendingActions.size()) {
+            val length = pendingLengths(i)
+            if (length <= FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH) {
+                // The datapath channel serializes the packet right away, so
+                // the next message can be moved over this one.
+                if (offset > 0)
+                    System.arraycopy(buffer, offset, buffer, 0, length)
+                udpShell.setElasticDataLength(length)
+                dpChannel.executePacket(packet, pendingActions.get(i))
+            } else {
+                // TODO(guillermo) partition messages
+                log.warn(s"Skipping state message, too large: $length bytes")
+            }
+            offset += length
+            i += 1
+        }
+        pendingActions.clear()
+        encoder.reset()
+    }
+
+    /**
+     * Sends the acknowledgements, digests and retransmissions due to the
+     * peers of this host, when replicating through a reliable channel.
+     *
+     * EXPECTED CALLING THREADS: any packet processing thread, on the
+     * replicator that it owns.
+     */
+    def pushControlMessages(dpChannel: DatapathChannel): Unit =
+        if (channel ne null) {
+            channel.poll(hostId, (host: UUID, message: Proto.StateMessage) =>
+                send(dpChannel, message, hostToActions(host)))
+        }
+
+    private[this] val stateHandler = new FlowStateDecoder.Handler {
+        override def conntrackKey(k: ConnTrackKey): Unit = {
+            log.debug("got new conntrack key: {}", k)
+            conntrackTable.touch(k, ConnTrackState.RETURN_FLOW)
+            flowInvalidator.scheduleInvalidationFor(k)
+        }
+
+        override def natEntry(k: NatKey, v: NatBinding): Unit = {
+            log.debug("Got new nat mapping: {} -> {}", k, v)
+            natTable.touch(k, v)
+            flowInvalidator.scheduleInvalidationFor(k)
+        }
+
+        override def traceEntry(k: TraceKey, ctx: TraceContext): Unit = {
+            log.debug("Got new trace state: {} -> {}", k, ctx)
+            traceTable.touch(k, ctx)
+        }
     }
 
     private def acceptNewState(msg: Proto.StateMessage) {
@@ -339,34 +477,27 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         while (newStates.hasNext) {
             val state = newStates.next()
             if (state.hasConntrackKey) {
-                val k = connTrackKeyFromProto(state.getConntrackKey)
-                log.debug("got new conntrack key: {}", k)
-                conntrackTable.touch(k, ConnTrackState.RETURN_FLOW)
-                flowInvalidator.scheduleInvalidationFor(k)
+                stateHandler.conntrackKey(
+                    connTrackKeyFromProto(state.getConntrackKey))
             }
 
             val natEntries = state.getNatEntriesList.iterator
             while (natEntries.hasNext) {
                 val nat = natEntries.next()
-                val k = natKeyFromProto(nat.getK)
-                val v = natBindingFromProto(nat.getV)
-                log.debug("Got new nat mapping: {} -> {}", k, v)
-                natTable.touch(k, v)
-                flowInvalidator.scheduleInvalidationFor(k)
+                stateHandler.natEntry(natKeyFromProto(nat.getK),
+                                      natBindingFromProto(nat.getV))
             }
 
             val traceEntries = state.getTraceEntryList.iterator
             while (traceEntries.hasNext) {
                 val trace = traceEntries.next
-                val k = traceKeyFromProto(trace)
                 val ctx = new TraceContext
                 ctx.enable(trace.getFlowTraceId)
                 val iter = trace.getRequestIdList.iterator
                 while (iter.hasNext) {
                     ctx.addRequest(iter.next)
                 }
-                log.debug("Got new trace state: {} -> {}", k, ctx)
-                traceTable.touch(k, ctx)
+                stateHandler.traceEntry(traceKeyFromProto(trace), ctx)
             }
         }
     }
@@ -384,6 +515,21 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
      */
     @throws(classOf[NotYetException])
     def accept(p: Ethernet) {
+        if (channel eq null) {
+            val data = datagramPayload(p)
+            if (data eq null) {
+                log.info("Ignoring unexpected packet: {}", p)
+            } else if (decoder.decodeDelimited(data, 0, data.length,
+                                               stateHandler)) {
+                log.debug("Got state replication message from: {}",
+                          decoder.sender)
+            } else {
+                log.warn("Ignoring malformed state message from: {}",
+                         decoder.sender)
+            }
+            return
+        }
+
         val msg = parseDatagram(p)
         if (msg == null) {
             log.info("Ignoring unexpected packet: {}", p)
@@ -391,7 +537,8 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         }
 
         log.debug("Got state replication message from: {}", msg.getSender)
-        acceptNewState(msg)
+        if (channel.receive(msg))
+            acceptNewState(msg)
     }
 
     @throws(classOf[NotYetException])
@@ -451,10 +598,11 @@ class FlowStateReplicator(
         storage: FlowStateStorage,
         underlay: UnderlayResolver,
         flowInvalidator: FlowInvalidator,
-        tso: Byte)(implicit as: ActorSystem)
+        tso: Byte,
+        channel: ReliableStateChannel = null)(implicit as: ActorSystem)
         extends BaseFlowStateReplicator(conntrackTable, natTable, traceTable,
                                         storage, underlay,
-                                        flowInvalidator, tso) {
+                                        flowInvalidator, tso, channel) {
     override val log = Logger(LoggerFactory.getLogger("org.midonet.state.replication"))
 
     @throws(classOf[NotYetException])
@@ -16,23 +16,29 @@
 
 package org.midonet.midolman.state
 
-import java.lang.{Integer => JInt}
+import java.lang.{Integer => JInt, Long => JLong}
 import java.net.InetAddress
-import java.util.{UUID, Set => JSet, Map => JMap, HashMap => JHashMap,
-                  HashSet => JHashSet, Iterator => JIterator}
-import java.util.concurrent.{TimeoutException, TimeUnit}
+import java.util.{ArrayList, UUID, Set => JSet, Map => JMap, HashMap => JHashMap,
+                  HashSet => JHashSet, Iterator => JIterator,
+                  LinkedHashMap => JLinkedHashMap}
+import java.util.concurrent.{ConcurrentLinkedQueue, TimeoutException, TimeUnit}
+import java.util.concurrent.atomic.AtomicInteger
 import scala.concurrent.{ExecutionContext, Promise, Future}
 import scala.concurrent.duration.Duration
 
 import akka.actor.ActorSystem
+import com.codahale.metrics.MetricRegistry
 import com.datastax.driver.core._
 import com.google.common.util.concurrent.{FutureCallback, Futures}
 import org.slf4j.{Logger, LoggerFactory}
 import org.midonet.cluster.backend.cassandra.CassandraClient
+import org.midonet.midolman.config.CassandraConfig
+import org.midonet.midolman.monitoring.metrics.FlowStateStorageMetrics
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
 import org.midonet.midolman.state.NatState.{KeyType, NatKey, NatBinding}
 import org.midonet.packets.{IPv4Addr, IPAddr}
 import org.midonet.util.collection.Bimap
+import org.midonet.util.concurrent.NanoClock
 
 object FlowStateStorage {
     val KEYSPACE_NAME = "MidonetFlowState"
@@ -122,7 +128,45 @@ object FlowStateStorage {
             networkAddress = inetToIPAddr(r.getInet("translateIp")).asInstanceOf[IPv4Addr],
             transportPort = r.getInt("translatePort"))
 
-    def apply(client: CassandraClient): FlowStateStorage = new FlowStateStorageImpl(client)
+    /**
+     * Settings for the write-behind stage that sits between the touch*()
+     * methods and Cassandra.
+     *
+     * @param window Rows touched within this interval are coalesced and
+     *               written together. A zero window writes on every submit().
+     * @param refreshRatio A row is not re-written while more than this
+     *                     fraction of its TTL is known to remain in Cassandra.
+     * @param maxBatchSize Maximum number of rows in a single batch.
+     * @param maxInFlight Maximum number of batches awaiting a response from
+     *                    Cassandra, per storage instance.
+     * @param maxPending Maximum number of rows waiting to be written, per
+     *                   storage instance. Rows beyond this limit are dropped.
+     */
+    case class WriteBehind(window: Duration, refreshRatio: Double,
+                           maxBatchSize: Int, maxInFlight: Int,
+                           maxPending: Int)
+
+    object WriteBehind {
+        val DEFAULT = WriteBehind(Duration.Zero, 0.5, 64, 32, 16384)
+
+        def apply(config: CassandraConfig): WriteBehind = WriteBehind(
+            Duration(config.flowStateWriteWindow, TimeUnit.MILLISECONDS),
+            config.flowStateRefreshRatio,
+            config.flowStateMaxBatchSize,
+            config.flowStateMaxInFlight,
+            config.flowStateMaxPending)
+    }
+
+    def apply(client: CassandraClient): FlowStateStorage =
+        new FlowStateStorageImpl(client)
+
+    def apply(client: CassandraClient, writeBehind: WriteBehind,
+              metrics: FlowStateStorageMetrics): FlowStateStorage =
+        new FlowStateStorageImpl(client, writeBehind, metrics)
+
+    def apply(client: CassandraClient, config: CassandraConfig,
+              metrics: FlowStateStorageMetrics): FlowStateStorage =
+        apply(client, WriteBehind(config), metrics)
 }
 
 trait FlowStateStorage {
@@ -142,6 +186,19 @@ trait FlowStateStorage {
     def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID, weakRefs: JIterator[UUID])
 
     def submit()
+
+    /**
+     * The number of rows touched but not yet handed over to Cassandra. While
+     * this is non-zero, submit() must be called again once the write window
+     * elapses, even if no more rows are touched.
+     */
+    def pendingWrites: Int = 0
+
+    /**
+     * The interval over which touched rows are coalesced before submit()
+     * writes them.
+     */
+    def writeWindow: Duration = Duration.Zero
 }
 
 
@@ -150,20 +207,50 @@ trait FlowStateStorage {
  *
  * This class is *NOT* thread safe, each thread that needs to submit or fetch
  * state keys from Cassandra should get its own instance. The only reason it
- * is not thread safe is because write operations are batched, a batch is
- * prepared by a series of touch*() method calls and it's then fired
+ * is not thread safe is because write operations are batched, rows are
+ * queued by a series of touch*() method calls and they're then fired
  * by invoking submit.
  *
+ * Writes go through a write-behind stage: rows touched within the configured
+ * window are de-duplicated and grouped by port into unlogged batches, rows
+ * that were written recently enough that most of their TTL remains are not
+ * written again, and the number of batches awaiting a response is bounded.
+ * Rows that don't fit in the pending queue are dropped.
+ *
  * All operations are asynchronous, submit is meant to be fire-and-forget with
  * no error control and for this reason, returns Unit.
  */
-class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage {
+class FlowStateStorageImpl(val client: CassandraClient,
+                           writeBehind: FlowStateStorage.WriteBehind =
+                                FlowStateStorage.WriteBehind.DEFAULT,
+                           metrics: FlowStateStorageMetrics =
+                                new FlowStateStorageMetrics(new MetricRegistry),
+                           clock: NanoClock = NanoClock.DEFAULT)
+        extends FlowStateStorage {
     private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorage])
 
     import FlowStateStorage._
 
-    var batch: BatchStatement = new BatchStatement()
     val ASYNC_REQUEST_TIMEOUT = Duration.create(3, TimeUnit.SECONDS)
+    val SWEEP_INTERVAL = Duration.create(10, TimeUnit.SECONDS)
+
+    private case class RowKey(table: String, port: UUID, key: AnyRef)
+
+    /* Rows waiting to be written, grouped by port. */
+    private val pending =
+        new JLinkedHashMap[UUID, JLinkedHashMap[RowKey, Statement]]()
+    private var pendingCount = 0
+    private var windowStart = 0L
+    private val windowNanos = writeBehind.window.toNanos
+
+    /* Instants, in clock ticks, until which rows that were handed over to
+     * Cassandra are expected to live there. */
+    private val persisted = new JHashMap[RowKey, JLong]()
+    private var nextSweep = 0L
+
+    /* Rows of failed batches, filled in by the driver's threads. */
+    private val failedRows = new ConcurrentLinkedQueue[RowKey]()
+    private val inFlight = new AtomicInteger()
 
     class Prepared(query: String) {
         var _statement: PreparedStatement = null
@@ -235,10 +322,18 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
     override def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID,
             weakRefs: JIterator[UUID]): Unit = withSession {
         s =>
-            if (strongRef ne null)
-                batch.add(bind(touchIngressConnTrack(s), strongRef, k))
+            forgetFailedRows()
+            val ttl = k.expiresAfter.toNanos
+            if (strongRef ne null) {
+                val row = RowKey(CONNTRACK_BY_INGRESS_TABLE, strongRef, k)
+                if (shouldWrite(row, ttl))
+                    enqueue(row, ttl, bind(touchIngressConnTrack(s), strongRef, k))
+            }
             while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressConnTrack(s), weakRefs.next(), k))
+                val port = weakRefs.next()
+                val row = RowKey(CONNTRACK_BY_EGRESS_TABLE, port, k)
+                if (shouldWrite(row, ttl))
+                    enqueue(row, ttl, bind(touchEgressConnTrack(s), port, k))
             }
     }
 
@@ -253,22 +348,147 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
     override def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID,
             weakRefs: JIterator[UUID]): Unit = withSession {
         s =>
-            if (strongRef ne null)
-                batch.add(bind(touchIngressNat(s), strongRef, k, v))
+            forgetFailedRows()
+            val ttl = k.expiresAfter.toNanos
+            if (strongRef ne null) {
+                val row = RowKey(NAT_BY_INGRESS_TABLE, strongRef, k)
+                if (shouldWrite(row, ttl))
+                    enqueue(row, ttl, bind(touchIngressNat(s), strongRef, k, v))
+            }
             while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressNat(s), weakRefs.next(), k, v))
+                val port = weakRefs.next()
+                val row = RowKey(NAT_BY_EGRESS_TABLE, port, k)
+                if (shouldWrite(row, ttl))
+                    enqueue(row, ttl, bind(touchEgressNat(s), port, k, v))
             }
     }
 
     /**
-     * Sends all state accumulated through touchConnTrackKey() and touchNatKey()
-     * to Cassandra, asynchronously. Errors will be logged but ignored.
+     * Sends the state accumulated through touchConnTrackKey() and touchNatKey()
+     * to Cassandra, asynchronously, once the write window has elapsed. Rows
+     * that do not fit within the in-flight limit stay queued for the next
+     * call. Errors will be logged but ignored.
      */
-    override def submit(): Unit = withSession {
-        s =>
-            val result = s.executeAsync(batch)
-            Futures.addCallback(result, touchCallback)
-            batch = new BatchStatement()
+    override def submit(): Unit = {
+        val now = clock.tick
+        if (now >= nextSweep) {
+            sweepPersisted(now)
+            nextSweep = now + SWEEP_INTERVAL.toNanos
+        }
+        if (pendingCount > 0 && now - windowStart >= windowNanos) {
+            flush()
+            windowStart = now
+        }
+    }
+
+    override def pendingWrites: Int = pendingCount
+
+    override def writeWindow: Duration = writeBehind.window
+
+    /**
+     * The number of batches awaiting a response from Cassandra.
+     */
+    def inFlightBatches: Int = inFlight.get
+
+    /**
+     * A row needs to be written unless it is already waiting to be written,
+     * or a previous write for it is expected to live in Cassandra for more
+     * than the refresh ratio of its TTL.
+     */
+    private def shouldWrite(row: RowKey, ttl: Long): Boolean = {
+        val rows = pending.get(row.port)
+        if ((rows ne null) && rows.containsKey(row)) {
+            metrics.writesCoalesced.mark()
+            return false
+        }
+        val deadline = persisted.get(row)
+        if ((deadline ne null) &&
+            deadline - clock.tick > (ttl * writeBehind.refreshRatio).toLong) {
+            metrics.writesSuppressed.mark()
+            return false
+        }
+        true
+    }
+
+    private def enqueue(row: RowKey, ttl: Long, st: Statement): Unit = {
+        if (pendingCount >= writeBehind.maxPending) {
+            metrics.writesDropped.mark()
+            return
+        }
+        var rows = pending.get(row.port)
+        if (rows eq null) {
+            rows = new JLinkedHashMap[RowKey, Statement]()
+            pending.put(row.port, rows)
+        }
+        rows.put(row, st)
+        if (pendingCount == 0)
+            windowStart = clock.tick
+        pendingCount += 1
+        metrics.pendingWrites.inc()
+        persisted.put(row, clock.tick + ttl)
+    }
+
+    private def flush(): Unit = withSession { s =>
+        val groups = pending.values.iterator
+        while (groups.hasNext && inFlight.get < writeBehind.maxInFlight) {
+            val rows = groups.next().entrySet.iterator
+            while (rows.hasNext && inFlight.get < writeBehind.maxInFlight) {
+                val batch = new BatchStatement(BatchStatement.Type.UNLOGGED)
+                val keys = new ArrayList[RowKey](writeBehind.maxBatchSize)
+                while (rows.hasNext && keys.size < writeBehind.maxBatchSize) {
+                    val row = rows.next()
+                    rows.remove()
+                    batch.add(row.getValue)
+                    keys.add(row.getKey)
+                }
+                pendingCount -= keys.size
+                metrics.pendingWrites.dec(keys.size)
+                execute(s, batch, keys)
+            }
+            if (!rows.hasNext)
+                groups.remove()
+        }
+    }
+
+    private def execute(s: Session, batch: BatchStatement,
+                        keys: ArrayList[RowKey]): Unit = {
+        inFlight.incrementAndGet()
+        metrics.inFlightBatches.inc()
+        metrics.batchesSubmitted.mark()
+        metrics.writesSubmitted.mark(keys.size)
+        Futures.addCallback(s.executeAsync(batch), new FutureCallback[ResultSet] {
+            override def onSuccess(result: ResultSet): Unit = {
+                inFlight.decrementAndGet()
+                metrics.inFlightBatches.dec()
+                log.debug("key touch success: {}", result)
+            }
+
+            override def onFailure(t: Throwable): Unit = {
+                failedRows.addAll(keys)
+                inFlight.decrementAndGet()
+                metrics.inFlightBatches.dec()
+                metrics.batchesFailed.mark()
+                log.warn("failed to touch keys", t)
+            }
+        })
+    }
+
+    /* Rows of failed batches are no longer known to be in Cassandra, so the
+     * next touch must write them again. */
+    private def forgetFailedRows(): Unit = {
+        var row = failedRows.poll()
+        while (row ne null) {
+            persisted.remove(row)
+            row = failedRows.poll()
+        }
+    }
+
+    private def sweepPersisted(now: Long): Unit = {
+        val it = persisted.values.iterator
+        while (it.hasNext) {
+            if (it.next() - now <= 0)
+                it.remove()
+        }
     }
 
     /**
@@ -327,16 +547,6 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
         })
     }
 
-    private val touchCallback = new FutureCallback[ResultSet] {
-        override def onSuccess(result: ResultSet): Unit = {
-            log.debug("key touch success: {}", result)
-        }
-
-        override def onFailure(t: Throwable): Unit = {
-            log.warn("failed to touch keys", t)
-        }
-    }
-
     private def toScalaFuture(f: ResultSetFuture)
             (implicit ec: ExecutionContext,
                       as: ActorSystem): Future[ResultSet] = {
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.{BitSet, Random, UUID}
+
+import org.midonet.midolman.state.FlowStatePackets.uuidFromProto
+import org.midonet.rpc.{FlowStateProto => Proto}
+import org.midonet.util.concurrent.NanoClock
+
+object ReliableStateChannel {
+
+    /** Maximum number of missing messages reported in a single message. */
+    final val MaxNacks = 64
+
+    private final class Sent(val message: Proto.StateMessage) {
+        var resend = false
+    }
+
+    private final class Peer(bufferSize: Int) {
+        // Messages sent to the peer that it did not acknowledge yet, in the
+        // range [firstSeq, nextSeq) and indexed by sequence number.
+        val sent = new Array[Sent](bufferSize)
+        var firstSeq = 1L
+        var nextSeq = 1L
+        var nextDigest = Long.MinValue
+
+        // Messages received from the peer: all of them up to acked, those
+        // set in received beyond it, and others that may exist up to highest.
+        var rxEpoch = 0L
+        var acked = 0L
+        var highest = 0L
+        var received = new BitSet(bufferSize)
+        var ackPending = false
+
+        def slot(seq: Long): Int = (seq % sent.length).toInt
+    }
+}
+
+/**
+ * Makes the replication of flow state to the peers of this host reliable.
+ *
+ * The messages to each peer are numbered with their own sequence and kept
+ * in a bounded retransmission buffer until the peer acknowledges them. The
+ * acknowledgements are batched: a peer reports the number up to which it
+ * received all messages, and the numbers missing beyond it, piggybacked on
+ * its own state messages or in a control message sent when `poll` is called.
+ * Periodically, a host also sends to each peer with unacknowledged messages
+ * a digest of the range it can still retransmit, so that the peer detects
+ * lost messages even if no further message follows them, and skips those
+ * that were evicted from the buffer. The state of these is only recovered
+ * from the flow state storage.
+ *
+ * The sequences restart with a random epoch when the agent restarts. A
+ * message with epoch zero comes from a peer that doesn't replicate reliably,
+ * and is always accepted.
+ *
+ * The channel is shared by the packet processing threads, and is safe to use
+ * from any of them: the state of each peer is synchronized on it.
+ */
+class ReliableStateChannel(bufferSize: Int, digestInterval: Long,
+                           clock: NanoClock) {
+    import ReliableStateChannel._
+
+    val epoch = {
+        val random = new Random
+        var e = 0L
+        while (e == 0L) e = random.nextLong()
+        e
+    }
+
+    private val peers = new ConcurrentHashMap[UUID, Peer]()
+
+    /** Messages with flow state sent for the first time. */
+    val sentMessages = new AtomicLong
+    /** Messages with flow state sent again after a peer reported them lost. */
+    val retransmittedMessages = new AtomicLong
+    /** Acknowledgement and digest messages without flow state. */
+    val controlMessages = new AtomicLong
+    /** Messages received more than once. */
+    val duplicateMessages = new AtomicLong
+    /** Messages that were lost and can no longer be retransmitted. */
+    val lostMessages = new AtomicLong
+
+    private def peerOf(id: UUID): Peer = {
+        var peer = peers.get(id)
+        if (peer eq null) {
+            peer = new Peer(bufferSize)
+            val prev = peers.putIfAbsent(id, peer)
+            if (prev ne null) peer = prev
+        }
+        peer
+    }
+
+    /**
+     * Numbers a message for a peer, adds to it the acknowledgements for that
+     * peer, and keeps it for retransmission. If the buffer is full, the
+     * oldest message is evicted.
+     */
+    def sequence(peerId: UUID,
+                 message: Proto.StateMessage.Builder): Proto.StateMessage = {
+        val peer = peerOf(peerId)
+        peer.synchronized {
+            if (peer.nextSeq - peer.firstSeq == bufferSize) {
+                peer.sent(peer.slot(peer.firstSeq)) = null
+                peer.firstSeq += 1
+            }
+            val seq = peer.nextSeq
+            peer.nextSeq += 1
+            message.setEpoch(epoch).setSeq(seq)
+            addAcks(peer, message)
+            val built = message.build()
+            peer.sent(peer.slot(seq)) = new Sent(built)
+            sentMessages.incrementAndGet()
+            built
+        }
+    }
+
+    /**
+     * Processes the sequence number, acknowledgements and digest of a
+     * received message. Returns whether the message has flow state that was
+     * not received before.
+     */
+    def receive(message: Proto.StateMessage): Boolean = {
+        if (message.getEpoch == 0L)
+            return true
+
+        val peer = peerOf(uuidFromProto(message.getSender))
+        peer.synchronized {
+            if (peer.rxEpoch != message.getEpoch) {
+                // The peer restarted, and so did its sequence.
+                peer.rxEpoch = message.getEpoch
+                peer.acked = 0L
+                peer.highest = 0L
+                peer.received.clear()
+            }
+
+            if (message.hasAck && message.getAckEpoch == epoch) {
+                release(peer, message.getAck)
+                var i = 0
+                while (i < message.getNackCount) {
+                    val seq = message.getNack(i)
+                    if (seq >= peer.firstSeq && seq < peer.nextSeq)
+                        peer.sent(peer.slot(seq)).resend = true
+                    i += 1
+                }
+            }
+
+            if (message.hasLastSeq) {
+                if (message.getFirstSeq - 1 > peer.acked)
+                    skipTo(peer, message.getFirstSeq - 1)
+                if (message.getLastSeq > peer.highest)
+                    peer.highest = message.getLastSeq
+                peer.ackPending = true
+            }
+
+            val seq = message.getSeq
+            if (seq == 0L)
+                return false
+            if (seq - peer.acked > bufferSize)
+                skipTo(peer, seq - bufferSize)
+            if (seq <= peer.acked ||
+                peer.received.get((seq - peer.acked - 1).toInt)) {
+                duplicateMessages.incrementAndGet()
+                peer.ackPending = true
+                false
+            } else {
+                peer.received.set((seq - peer.acked - 1).toInt)
+                advance(peer)
+                if (seq > peer.highest)
+                    peer.highest = seq
+                peer.ackPending = true
+                true
+            }
+        }
+    }
+
+    /**
+     * Calls `send` with the messages due to every peer: the retransmissions
+     * of the messages reported lost, and a control message with the pending
+     * acknowledgements and, every digest interval, the digest.
+     */
+    def poll(sender: Proto.UUID,
+             send: (UUID, Proto.StateMessage) => Unit): Unit = {
+        val now = clock.tick
+        val it = peers.entrySet().iterator()
+        while (it.hasNext) {
+            val entry = it.next()
+            val peer = entry.getValue
+            peer.synchronized {
+                var seq = peer.firstSeq
+                while (seq < peer.nextSeq) {
+                    val sent = peer.sent(peer.slot(seq))
+                    if (sent.resend) {
+                        sent.resend = false
+                        retransmittedMessages.incrementAndGet()
+                        send(entry.getKey, sent.message)
+                    }
+                    seq += 1
+                }
+
+                val digest = peer.firstSeq < peer.nextSeq &&
+                             now >= peer.nextDigest
+                if (digest || peer.ackPending) {
+                    val message = Proto.StateMessage.newBuilder()
+                        .setSender(sender).setEpoch(epoch).setSeq(0L)
+                    addAcks(peer, message)
+                    if (digest) {
+                        message.setFirstSeq(peer.firstSeq)
+                               .setLastSeq(peer.nextSeq - 1)
+                        peer.nextDigest = now + digestInterval
+                    }
+                    controlMessages.incrementAndGet()
+                    send(entry.getKey, message.build())
+                }
+            }
+        }
+    }
+
+    private def addAcks(peer: Peer, message: Proto.StateMessage.Builder)
+    : Unit = {
+        peer.ackPending = false
+        if (peer.rxEpoch == 0L)
+            return
+        message.setAck(peer.acked).setAckEpoch(peer.rxEpoch)
+        var seq = peer.acked + 1
+        var nacks = 0
+        while (seq <= peer.highest && nacks < MaxNacks) {
+            if (!peer.received.get((seq - peer.acked - 1).toInt)) {
+                message.addNack(seq)
+                nacks += 1
+            }
+            seq += 1
+        }
+    }
+
+    /* Releases the messages acknowledged by a peer. */
+    private def release(peer: Peer, ack: Long): Unit = {
+        while (peer.firstSeq <= ack && peer.firstSeq < peer.nextSeq) {
+            peer.sent(peer.slot(peer.firstSeq)) = null
+            peer.firstSeq += 1
+        }
+    }
+
+    /* Gives up on the messages from a peer up to a sequence number. */
+    private def skipTo(peer: Peer, seq: Long): Unit = {
+        val count = (seq - peer.acked).toInt
+        lostMessages.addAndGet(
+            count - peer.received.get(0, count).cardinality())
+        peer.received = peer.received.get(count, Math.max(count,
+                                                  peer.received.length()))
+        peer.acked = seq
+        advance(peer)
+    }
+
+    private def advance(peer: Peer): Unit = {
+        val count = peer.received.nextClearBit(0)
+        if (count > 0) {
+            peer.received = peer.received.get(count, Math.max(count,
+                                                      peer.received.length()))
+            peer.acked += count
+        }
+    }
+}
@@ -69,6 +69,8 @@ object BridgeManager {
 
     case class CheckExpiredMacPorts()
 
+    case class FlushMacTable()
+
     case class MacPortMapping(mac: MAC, vlan: JShort, port: UUID) {
         override def toString = s"{vlan=$vlan mac=$mac port=$port}"
     }
@@ -80,35 +82,63 @@ object BridgeManager {
  * tuples to/from the underlying replicated map. The callbacks guarantee
  * the required happens-before relationship because all zookeeper requests
  * are served by a single threaded reactor.
+ *
+ * The associations are learned in a [[LocalMacTable]], which the simulations
+ * see through the tables in vlanMacTableMap, and written to the replicated
+ * maps when the manager is flushed.
  */
-class MacLearningManager(log: Logger, ttlMillis: Duration) {
+class MacLearningManager(log: Logger, ttlMillis: Duration,
+                         agingMillis: Duration = Duration.Zero) {
 
     val map = new TimedExpirationMap[BridgeManager.MacPortMapping, AnyRef](log, _ => ttlMillis)
 
-    @volatile var vlanMacTableMap: Map[Short, MacLearningTable] = null
+    val local = new LocalMacTable(agingMillis.toMillis)
+
+    @volatile private var replicatedTables: Map[Short, MacLearningTable] = null
+    @volatile private var localTables: Map[Short, MacLearningTable] = null
 
     val reducer = new Reducer[BridgeManager.MacPortMapping, Any, Unit] {
         override def apply(acc: Unit, key: MacPortMapping, value: Any): Unit =
-            vlanMacTableOperation(key.vlan, _.remove(key.mac, key.port))
+            local.forget(key.mac, key.vlan, key.port, Platform.currentTime)
     }
 
-    private def vlanMacTableOperation(vlanId: JShort, fun: MacLearningTable => Unit) {
-        vlanMacTableMap.get(vlanId) match {
-            case Some(macLearningTable) => fun(macLearningTable)
-            case None => log.warn(s"Mac learning table not found for VLAN $vlanId")
-        }
+    /** The MAC learning tables of the bridge, which look up the MACs learned
+      * locally before the replicated maps. */
+    def vlanMacTableMap: Map[Short, MacLearningTable] = localTables
+
+    def vlanMacTableMap_=(tables: Map[Short, MacLearningTable]): Unit = {
+        replicatedTables = tables
+        localTables =
+            if (tables eq null) null
+            else tables map { case (vlan, table) =>
+                vlan -> local.table(vlan, table) }
     }
 
     def incRefCount(e: BridgeManager.MacPortMapping): Unit =
         if (map.putIfAbsentAndRef(e, e) eq null) {
-            vlanMacTableOperation(e.vlan, _.add(e.mac, e.port))
+            local.learn(e.mac, e.vlan, e.port, Platform.currentTime)
         }
 
     def decRefCount(key: BridgeManager.MacPortMapping, currentTime: Long): Unit =
         map.unref(key, currentTime)
 
-    def expireEntries(currentTime: Long): Unit =
+    /** Expires the idle associations. Pending associations are written
+      * first, so that a removal always follows the addition it undoes. */
+    def expireEntries(currentTime: Long): Unit = {
+        flush(currentTime)
         map.obliterateIdleEntries(currentTime, (), reducer)
+        flush(currentTime)
+    }
+
+    /** Writes the associations learned and expired since the last flush. */
+    def flush(currentTime: Long): Unit = {
+        val tables = replicatedTables
+        if (tables ne null) {
+            val writes = local.flush(currentTime, tables)
+            if (writes > 0)
+                log.debug(s"Wrote $writes MAC-port mappings")
+        }
+    }
 }
 
 class BridgeManager(id: UUID, val clusterClient: Client,
@@ -134,7 +164,8 @@ import org.midonet.midolman.topology.BridgeManager._
 
     private val macPortExpiration: Int = config.bridge.macPortMappingExpiry
     private val learningMgr = new MacLearningManager(
-        log, config.bridge.macPortMappingExpiry millis)
+        log, config.bridge.macPortMappingExpiry millis,
+        config.bridge.macTableAging millis)
 
     private var exteriorPorts: List[UUID] = List.empty
 
@@ -162,6 +193,11 @@ import org.midonet.midolman.topology.BridgeManager._
         context.system.scheduler.schedule(
             Duration(macPortExpiration, TimeUnit.MILLISECONDS),
             Duration(2000, TimeUnit.MILLISECONDS), self, CheckExpiredMacPorts())
+        // Schedule the writes of the learned mac-port associations.
+        val flushInterval = Duration(config.bridge.macTableFlushInterval,
+                                     TimeUnit.MILLISECONDS)
+        context.system.scheduler.schedule(
+            flushInterval, flushInterval, self, FlushMacTable())
     }
 
     override def receive = super.receive orElse {
@@ -169,6 +205,9 @@ import org.midonet.midolman.topology.BridgeManager._
         case CheckExpiredMacPorts() =>
             learningMgr.expireEntries(Platform.currentTime)
 
+        case FlushMacTable() =>
+            learningMgr.flush(Platform.currentTime)
+
         case TriggerUpdate(newCfg, vlanMacTableMap, newIp4MacMap,
                            newMacToLogicalPortId, newRtrIpToMac,
                            newVlanBridgePeerPortId, newExteriorVxlanPortIds,
@@ -42,6 +42,7 @@ import org.midonet.midolman.state.ReplicatedMap.Watcher
 import org.midonet.midolman.state.{ReplicatedMap, StateAccessException}
 import org.midonet.midolman.topology.devices.{RouterPort, BridgePort, Port}
 import org.midonet.packets.{IPv4Addr, IPAddr, MAC}
+import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.sdn.flows.FlowTagger.{tagForArpRequests, tagForBridgePort, tagForBroadcast, tagForFloodedFlowsByDstMac, tagForVlanPort}
 import org.midonet.util.collection.Reducer
 import org.midonet.util.concurrent.TimedExpirationMap
@@ -276,6 +277,11 @@ final class BridgeMapper(bridgeId: UUID, implicit val vt: VirtualTopology)
     private val exteriorPorts = new mutable.HashSet[UUID]
     private var oldExteriorPorts = Set.empty[UUID]
     private var oldRouterMacPortMap = Map.empty[MAC, UUID]
+    private var oldVlanPorts = Map.empty[Short, UUID]
+    private var oldVlanBridgePeerPortId: Option[UUID] = None
+    // Indicates whether the next notification must invalidate all flows of
+    // the bridge, rather than the port and MAC tags computed on update.
+    private var fullInvalidation = true
     private val macLearningTables = new TrieMap[Short, BridgeMacLearningTable]
     private val macLearning =
         new MacLearning(macLearningTables, log,
@@ -341,11 +347,11 @@ final class BridgeMapper(bridgeId: UUID, implicit val vt: VirtualTopology)
         .merge(portsSubject)
         .filter(makeFunc1(isPortKnown))
         .map[TopologyBridge](makeFunc1(portUpdated))
-    private lazy val bridgeObservable = vt.store
-        .observable(classOf[TopologyBridge], bridgeId)
-        .observeOn(vt.scheduler)
-        .doOnCompleted(makeAction0(bridgeDeleted()))
-        .doOnNext(makeAction1(bridgeUpdated))
+    private lazy val bridgeObservable =
+        vt.objectObservable(classOf[TopologyBridge], bridgeId)
+            .observeOn(vt.scheduler)
+            .doOnCompleted(makeAction0(bridgeDeleted()))
+            .doOnNext(makeAction1(bridgeUpdated))
 
     protected override lazy val observable = Observable
         .merge[TopologyBridge](connectionObservable, portsObservable,
@@ -424,6 +430,11 @@ final class BridgeMapper(bridgeId: UUID, implicit val vt: VirtualTopology)
         assert(!macUpdatesSubscription.isUnsubscribed)
         assert(!timerSubscription.isUnsubscribed)
 
+        // Changes to the bridge other than its port list, such as the admin
+        // state, the filters or the VXLAN ports, may affect any flow.
+        if ((bridge eq null) || withoutPorts(bridge) != withoutPorts(br)) {
+            fullInvalidation = true
+        }
         bridge = br
 
         val portIds = bridge.getPortIdsList.asScala.map(id => id.asJava).toSet
@@ -435,6 +446,7 @@ final class BridgeMapper(bridgeId: UUID, implicit val vt: VirtualTopology)
             portState.complete()
             localPorts -= portId
             exteriorPorts -= portId
+            fullInvalidation = true
         }
 
         // Create observables for the new ports of this bridge, and notify them
@@ -488,6 +500,26 @@ final class BridgeMapper(bridgeId: UUID, implicit val vt: VirtualTopology)
         bridge
     }
 
+    /**
+     * Invalidates all flows of the bridge only when the bridge itself, its
+     * port list or its VLAN mappings changed. Otherwise, `deviceUpdated`
+     * already invalidated the port and MAC tags of the changed ports, and the
+     * chains invalidate the tags of their changed rules.
+     */
+    protected override def invalidationTags(device: SimulationBridge)
+    : Iterable[FlowTag] = {
+        if (fullInvalidation) {
+            fullInvalidation = false
+            Seq(device.deviceTag)
+        } else {
+            Seq.empty
+        }
+    }
+
+    /** Returns the bridge without its port list, to compare updates. */
+    private def withoutPorts(br: TopologyBridge): TopologyBridge =
+        br.toBuilder.clearPortIds().build()
+
     /** Handles updates for the chains. */
     private def chainUpdated(chain: Chain): TopologyBridge = {
         assertThread()
@@ -612,6 +644,7 @@ final class BridgeMapper(bridgeId: UUID, implicit val vt: VirtualTopology)
         assertThread()
 
         val vlanPortMap = new VlanPortMapImpl
+        val vlanPorts = new mutable.HashMap[Short, UUID]
         val vlanSet = new mutable.HashSet[Short]
         var vlanBridgePeerPortId: Option[UUID] = None
         val routerMacToPortMap = new mutable.HashMap[MAC, UUID]
@@ -635,6 +668,7 @@ final class BridgeMapper(bridgeId: UUID, implicit val vt: VirtualTopology)
                         log.debug("Local port {} mapped to VLAN ID {}",
                                   localPort.id, Short.box(localPort.vlanId))
                         vlanPortMap.add(localPort.vlanId, localPort.id)
+                        vlanPorts += localPort.vlanId -> localPort.id
                         vlanSet += localPort.vlanId
                     } else if (UntaggedVlanId != peerPort.vlanId) {
                         // The peer is the VLAN aware bridge.
@@ -669,10 +703,19 @@ final class BridgeMapper(bridgeId: UUID, implicit val vt: VirtualTopology)
             removeMacLearningTable(vlanId)
         }
 
+        // The VLAN mappings select the output port of any flow.
+        if (vlanPorts != oldVlanPorts ||
+            vlanBridgePeerPortId != oldVlanBridgePeerPortId) {
+            fullInvalidation = true
+            oldVlanPorts = vlanPorts.toMap
+            oldVlanBridgePeerPortId = vlanBridgePeerPortId
+        }
+
         // If the bridge is ARP-enabled initialize the IPv4-MAC map.
         if (vt.config.bridgeArpEnabled && (ipv4MacMap eq null)) {
             try {
                 ipv4MacMap = new BridgeIpv4MacMap(vt, bridgeId)
+                fullInvalidation = true
             } catch {
                 case e: StateAccessException =>
                     log.warn("Error retrieving ARP table")
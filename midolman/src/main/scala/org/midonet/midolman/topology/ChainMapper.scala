@@ -31,6 +31,7 @@ import org.midonet.midolman.logging.MidolmanLogging
 import org.midonet.midolman.rules.{JumpRule, Rule => SimRule}
 import org.midonet.midolman.simulation.{Chain => SimChain, IPAddrGroup => SimIPAddrGroup}
 import org.midonet.midolman.topology.ChainMapper.{IPAddrGroupState, RuleState}
+import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.util.functors.{makeAction0, makeAction1, makeFunc1}
 
 object ChainMapper {
@@ -64,7 +65,7 @@ object ChainMapper {
         def isReady = (currentRule ne null) && (currentRule.chainId ne null)
         private val mark = PublishSubject.create[SimRule]()
         /** The observable emitting Rule updates. */
-        val observable = vt.store.observable(classOf[TopologyRule],ruleId)
+        val observable = vt.objectObservable(classOf[TopologyRule],ruleId)
             .observeOn(vt.scheduler)
             .takeUntil(mark)
             .map[SimRule](makeFunc1(ruleUpdated))
@@ -107,6 +108,24 @@ object ChainMapper {
     }
 }
 
+/**
+ * A device mapper that exposes the simulation [[SimChain]] for a chain, with
+ * its rules, jump chains and IP address groups.
+ *
+ * Rather than invalidating all flows that traversed the chain on every
+ * notification, the mapper tracks which rules changed since the last
+ * notification and invalidates only the tags of those rules. Since a flow is
+ * tagged with every rule it evaluated whose condition reads the packet
+ * fields, a changed rule can only affect the flows tagged with it, and a rule
+ * inserted in the chain only the flows that evaluated the rule that now
+ * follows it. Reordering the rules of the chain, or changing a rule that
+ * doesn't tag the flows, invalidates all its flows.
+ *
+ * Each notification still emits a new chain, but the chain only holds the
+ * rule list: the rules that did not change, and the jump chains, are the same
+ * objects as in the previous chain. The cost of an update is therefore in the
+ * flows it invalidates rather than in rebuilding the device.
+ */
 final class ChainMapper(chainId: UUID, vt: VirtualTopology)
     extends DeviceWithChainsMapper[SimChain](chainId, vt)
     with MidolmanLogging {
@@ -129,6 +148,11 @@ final class ChainMapper(chainId: UUID, vt: VirtualTopology)
         .create[Observable[SimIPAddrGroup]]()
     private val ipAddrGroups = new mutable.HashMap[UUID, IPAddrGroupState]()
 
+    // The tags to invalidate with the next notification, unless all flows of
+    // the chain must be invalidated.
+    private val changedTags = new mutable.ArrayBuffer[FlowTag]()
+    private var fullInvalidation = true
+
     private def subscribeToJumpChain(jumpChainId: UUID): Unit = {
         if (!jumpChainRefCount.contains(jumpChainId)) {
             log.debug("Subscribing to jump chain: {}", jumpChainId)
@@ -176,7 +200,9 @@ final class ChainMapper(chainId: UUID, vt: VirtualTopology)
         log.debug("Received update for chain: {}", chainId)
 
         // Store the rule order in the chain.
+        val oldRuleIds = ruleIds
         ruleIds = chain.getRuleIdsList.asScala.map(_.asJava)
+        rulesChanged(oldRuleIds, ruleIds)
 
         // Subscribe to all rules we are not subscribed to yet.
         for (ruleId <- ruleIds if !rules.contains(ruleId)) {
@@ -214,6 +240,58 @@ final class ChainMapper(chainId: UUID, vt: VirtualTopology)
         chainProto
     }
 
+    /**
+     * Computes the tags invalidated by a change of the rule list: the tags of
+     * the removed rules, and for every inserted rule the tag of the old rule
+     * that now follows it, or of the last old rule if it is appended. If the
+     * relative order of the remaining rules changed, all flows are
+     * invalidated.
+     */
+    private def rulesChanged(oldRuleIds: Seq[UUID], newRuleIds: Seq[UUID])
+    : Unit = {
+        if (oldRuleIds == newRuleIds) {
+            return
+        }
+        val oldSet = oldRuleIds.toSet
+        val newSet = newRuleIds.toSet
+        val common = newRuleIds.filter(oldSet.contains)
+        if (oldRuleIds.isEmpty || common != oldRuleIds.filter(newSet.contains)) {
+            fullInvalidation = true
+            return
+        }
+        for (ruleId <- oldRuleIds if !newSet.contains(ruleId)) {
+            invalidateRule(ruleId)
+        }
+        var next = 0
+        for (ruleId <- newRuleIds) {
+            if (oldSet.contains(ruleId)) {
+                next += 1
+            } else if (next < common.size) {
+                invalidateRule(common(next))
+            } else if (common.nonEmpty) {
+                invalidateRule(common.last)
+            } else {
+                // All rules were replaced.
+                fullInvalidation = true
+            }
+        }
+    }
+
+    /**
+     * Invalidates the flows that evaluated the given rule: those tagged with
+     * the rule or, if the rule does not tag the flows, all flows of the chain.
+     */
+    private def invalidateRule(rule: SimRule): Unit = {
+        val tag = if (rule ne null) rule.flowTag() else null
+        if (tag ne null) changedTags += tag
+        else fullInvalidation = true
+    }
+
+    private def invalidateRule(ruleId: UUID): Unit = rules.get(ruleId) match {
+        case Some(ruleState) => invalidateRule(ruleState.curRule)
+        case None => fullInvalidation = true
+    }
+
     private def ruleUpdated(rule: SimRule): TopologyChain = {
         assertThread()
         log.debug("Received updated rule: {}", rule)
@@ -248,6 +326,13 @@ final class ChainMapper(chainId: UUID, vt: VirtualTopology)
             }
         }
 
+        // A new rule is covered by the tags computed for the rule list. The
+        // flows that evaluated an updated rule are tagged as per its previous
+        // version.
+        if (ruleState.prevRule ne null) {
+            invalidateRule(ruleState.prevRule)
+        }
+
         // Handle IP address groups. We only subscribe to an IP address group
         // the first time we receive the rule. A rule's IP address groups are
         // assumed to remain unchanged.
@@ -264,6 +349,21 @@ final class ChainMapper(chainId: UUID, vt: VirtualTopology)
         chainProto
     }
 
+    private def ipAddrGroupUpdated(ipAddrGroup: SimIPAddrGroup): SimIPAddrGroup = {
+        assertThread()
+        log.debug("Received updated IP address group: {}", ipAddrGroup.id)
+
+        // Invalidate the flows of the rules matching on the group.
+        for (rule <- rules.values if rule.curRule ne null) {
+            val cond = rule.curRule.getCondition
+            if (cond.ipAddrGroupIdSrc == ipAddrGroup.id ||
+                cond.ipAddrGroupIdDst == ipAddrGroup.id) {
+                invalidateRule(rule.curRule)
+            }
+        }
+        ipAddrGroup
+    }
+
     private def chainReady(update: Any): Boolean = {
         assertThread()
         val ready = rules.forall(_._2.isReady) && areChainsReady &&
@@ -287,14 +387,15 @@ final class ChainMapper(chainId: UUID, vt: VirtualTopology)
     }
 
     private def buildChain(update: Any): SimChain = {
-        // Set IPAddrGroup source and destination addresses in the rules.
+        // Set IPAddrGroup source and destination addresses in the rules,
+        // such that updated groups replace the previous ones.
         for (rule <- rules.values) {
             val cond = rule.curRule.getCondition
-            if ((cond.ipAddrGroupIdSrc ne null) && (cond.ipAddrGroupSrc eq null)) {
+            if (cond.ipAddrGroupIdSrc ne null) {
                 cond.ipAddrGroupSrc = ipAddrGroups(cond.ipAddrGroupIdSrc)
                     .ipAddrGroup
             }
-            if ((cond.ipAddrGroupIdDst ne null) && (cond.ipAddrGroupDst eq null)) {
+            if (cond.ipAddrGroupIdDst ne null) {
                 cond.ipAddrGroupDst = ipAddrGroups(cond.ipAddrGroupIdDst)
                     .ipAddrGroup
             }
@@ -305,8 +406,23 @@ final class ChainMapper(chainId: UUID, vt: VirtualTopology)
         chain
     }
 
+    /**
+     * Returns the tags of the rules changed since the last notification, or
+     * the chain tag if all flows of the chain must be invalidated. Updates of
+     * the jump chains do not invalidate any tag of this chain, since their
+     * flows are tagged with the rules of the jump chain.
+     */
+    protected override def invalidationTags(chain: SimChain)
+    : Iterable[FlowTag] = {
+        val tags =
+            if (fullInvalidation) Seq(chain.deviceTag) else changedTags.toList
+        fullInvalidation = false
+        changedTags.clear()
+        tags
+    }
+
     private lazy val chainObservable =
-        vt.store.observable(classOf[TopologyChain], chainId)
+        vt.objectObservable(classOf[TopologyChain], chainId)
             .observeOn(vt.scheduler)
             .map[TopologyChain](makeFunc1(chainUpdated))
             .doOnCompleted(makeAction0(chainDeleted()))
@@ -340,7 +456,9 @@ final class ChainMapper(chainId: UUID, vt: VirtualTopology)
         // such as the chain observable, which ensures they are subscribed to
         // before emitting any updates.
         Observable.merge[Any](chainsObservable,
-                              Observable.merge(ipAddrGroupStream),
+                              Observable.merge(ipAddrGroupStream)
+                                  .map[SimIPAddrGroup](
+                                      makeFunc1(ipAddrGroupUpdated)),
                               Observable.merge(ruleStream)
                                   .map[TopologyChain](makeFunc1(ruleUpdated)),
                               chainObservable)
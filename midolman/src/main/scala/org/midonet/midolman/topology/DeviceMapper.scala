@@ -88,7 +88,7 @@ abstract class DeviceMapper[D <: Device](id: UUID, vt: VirtualTopology)
     override final def onCompleted() = {
         log.debug("Device {}/{} deleted", tag, id)
         vt.devices.remove(id) match {
-            case device: D => onDeviceChanged(device)
+            case device: D => onDeviceDeleted(device)
             case _ =>
         }
         vt.observables.remove(id)
@@ -98,7 +98,7 @@ abstract class DeviceMapper[D <: Device](id: UUID, vt: VirtualTopology)
         log.error("Device {}/{} error", tag, id, e)
         error.set(e)
         vt.devices.remove(id) match {
-            case device: D => onDeviceChanged(device)
+            case device: D => onDeviceDeleted(device)
             case _ =>
         }
         vt.observables.remove(id)
@@ -112,6 +112,12 @@ abstract class DeviceMapper[D <: Device](id: UUID, vt: VirtualTopology)
 
     protected def onDeviceChanged(device: D): Unit = {}
 
+    /**
+     * Called when the device is deleted or its observable fails, with the
+     * last device. By default, this is the same as a device change.
+     */
+    protected def onDeviceDeleted(device: D): Unit = onDeviceChanged(device)
+
     /**
      * Checks that this method is executed on the same thread as the one used
      * during the initialization of the mapper.
@@ -23,12 +23,14 @@ import javax.annotation.concurrent.NotThreadSafe
 import scala.collection.mutable
 import scala.reflect.ClassTag
 
-import rx.Observable
+import rx.Observable.Operator
 import rx.subjects.PublishSubject
+import rx.{Observable, Subscriber}
 
 import org.midonet.midolman.simulation.Chain
 import org.midonet.midolman.topology.DeviceWithChainsMapper.ChainState
 import org.midonet.midolman.topology.VirtualTopology.VirtualDevice
+import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.util.functors.makeAction1
 
 object DeviceWithChainsMapper {
@@ -42,18 +44,26 @@ object DeviceWithChainsMapper {
     private class ChainState(val chainId: UUID) {
 
         private var currentChain: Chain = null
+        private var previousChain: Chain = null
         private val mark = PublishSubject.create[Chain]()
 
         val observable = VirtualTopology.observable[Chain](chainId)
-            .doOnNext(makeAction1(currentChain = _))
+            .doOnNext(makeAction1(chainUpdated))
             .takeUntil(mark)
 
+        private def chainUpdated(chain: Chain): Unit = {
+            previousChain = currentChain
+            currentChain = chain
+        }
+
         /** Completes the observable corresponding to this chain state. */
         def complete(): Unit = mark.onCompleted()
         /** Get the chain for this chain state. */
         def chain: Chain = currentChain
         /** Indicates whether the chain state has received the chain data. */
         def isReady: Boolean = currentChain ne null
+        /** Indicates whether the last notification updated a known chain. */
+        def isUpdate: Boolean = previousChain ne null
     }
 
 }
@@ -70,6 +80,7 @@ abstract class DeviceWithChainsMapper[D <: VirtualDevice](deviceId: UUID,
 
     private val chainsSubject = PublishSubject.create[Observable[Chain]]
     private val chains = new mutable.HashMap[UUID, ChainState]
+    private var chainUpdate = false
 
     /**
      * Requests the set of chains for the current device. The argument must
@@ -144,9 +155,39 @@ abstract class DeviceWithChainsMapper[D <: VirtualDevice](deviceId: UUID,
     }
 
     /**
-     * An observable that emits notifications for the chains.
+     * Indicates whether the device notification being processed was caused
+     * by an update of a chain that the device already had. This method must
+     * only be called from the VT thread.
+     */
+    @NotThreadSafe
+    protected final def isChainUpdate: Boolean = chainUpdate
+
+    /**
+     * A notification caused only by the update of a chain does not invalidate
+     * the device tag, since the chain mapper already invalidated the tags of
+     * the changed rules.
+     */
+    protected override def invalidationTags(device: D): Iterable[FlowTag] = {
+        if (isChainUpdate) Seq.empty else super.invalidationTags(device)
+    }
+
+    /**
+     * An observable that emits notifications for the chains. The device
+     * notifications are processed synchronously on the VT thread, such that
+     * the chain update flag is set while the chain notification propagates
+     * to the device.
      */
     protected final val chainsObservable: Observable[Chain] =
-        Observable.merge(chainsSubject)
+        Observable.merge(chainsSubject).lift(new Operator[Chain, Chain] {
+            override def call(child: Subscriber[_ >: Chain])
+            : Subscriber[_ >: Chain] = new Subscriber[Chain](child) {
+                override def onNext(chain: Chain): Unit = {
+                    chainUpdate = chains.get(chain.id).exists(_.isUpdate)
+                    try child.onNext(chain) finally chainUpdate = false
+                }
+                override def onCompleted(): Unit = child.onCompleted()
+                override def onError(e: Throwable): Unit = child.onError(e)
+            }
+        })
 
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology
+
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicBoolean
+
+import scala.collection.JavaConverters._
+
+import rx.Observable
+import rx.subjects.BehaviorSubject
+
+import org.midonet.midolman.serialization.SerializationException
+import org.midonet.midolman.state.{NoStatePathException, StateAccessException}
+import org.midonet.midolman.topology.devices.DhcpConfig
+import org.midonet.util.functors.makeRunnable
+
+/**
+ * A device mapper that exposes the DHCP configuration of a bridge, read from
+ * the DHCP subnets and hosts of the bridge in the legacy storage.
+ *
+ * The configuration is read on the virtual topology thread, setting a watcher
+ * on every subnet and host. When any of them changes, the whole configuration
+ * is read again; changes that arrive while a read is pending are coalesced
+ * into that read. Every read sets the same watcher instance, which the
+ * directory sets only once on a node that did not fire yet, so the nodes
+ * that did not change don't accumulate watchers across reads. The device
+ * completes when the bridge is deleted.
+ */
+final class DhcpConfigMapper(id: UUID, vt: VirtualTopology)
+    extends DeviceMapper[DhcpConfig](id, vt) {
+
+    private val bridgeId = DhcpConfig.bridgeIdOf(id)
+
+    override def logSource = s"org.midonet.devices.dhcp.dhcp-$bridgeId"
+
+    private val subject = BehaviorSubject.create[DhcpConfig]()
+    private val pending = new AtomicBoolean(false)
+
+    private val reload = makeRunnable {
+        pending.set(false)
+        load()
+    }
+
+    private val watcher = makeRunnable {
+        if (pending.compareAndSet(false, true)) {
+            vt.executor.execute(reload)
+        }
+    }
+
+    private def load(): Unit = {
+        assertThread()
+        try {
+            val subnets = vt.dataClient
+                .dhcpSubnetsGetByBridgeEnabled(bridgeId, watcher).asScala
+            val config = DhcpConfig(bridgeId, subnets.map { subnet =>
+                subnet -> vt.dataClient.dhcpHostsGetBySubnet(
+                    bridgeId, subnet.getSubnetAddr, watcher).asScala
+            })
+            for (subnet <- config.subnets if !subnet.isReplyReady) {
+                log.warn("Cannot create DHCP replies for subnet {} because " +
+                         "it does not have all necessary information",
+                         subnet.getId)
+            }
+            log.debug("DHCP configuration updated: {}", config)
+            subject onNext config
+        } catch {
+            case e: NoStatePathException if isBridgeDeleted =>
+                log.debug("Bridge {} deleted", bridgeId)
+                subject.onCompleted()
+            case e: NoStatePathException =>
+                // A subnet or host was deleted while reading: the watcher
+                // already requested a new read.
+                log.debug("DHCP configuration changed while reading")
+            case e: StateAccessException =>
+                log.warn("Error reading the DHCP configuration", e)
+                vt.connectionWatcher.handleError(bridgeId.toString, watcher, e)
+            case e: SerializationException =>
+                log.error("Cannot deserialize the DHCP configuration", e)
+                subject onError e
+        }
+    }
+
+    private def isBridgeDeleted: Boolean =
+        try !vt.dataClient.bridgeExists(bridgeId)
+        catch { case e: StateAccessException => false }
+
+    protected override lazy val observable: Observable[DhcpConfig] = {
+        watcher.run()
+        subject.asObservable()
+    }
+}
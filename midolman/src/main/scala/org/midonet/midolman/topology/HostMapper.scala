@@ -189,7 +189,7 @@ final class HostMapper(hostId: UUID, vt: VirtualTopology)
     // Ownership changes modify the version of the host and will thus
     // trigger a host update, hence the 'distinctUntilChanged'.
     private lazy val hostObservable =
-        vt.store.observable(classOf[TopologyHost], hostId)
+        vt.objectObservable(classOf[TopologyHost], hostId)
             .observeOn(vt.scheduler)
             .distinctUntilChanged
             .doOnCompleted(makeAction0(hostDeleted()))
@@ -42,7 +42,7 @@ class IPAddrGroupManager(val id: UUID, val clusterClient: Client)
     }
 
     private def updateAddrs(addrs: JSet[IPAddr]): Unit = {
-        VirtualTopologyActor ! new IPAddrGroup(id, addrs.asScala.toSet)
+        VirtualTopologyActor ! IPAddrGroup(id, addrs.asScala)
     }
 }
 
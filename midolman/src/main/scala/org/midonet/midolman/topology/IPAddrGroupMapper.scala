@@ -13,32 +13,73 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package org.midonet.midolman.topology
 
-import java.util.UUID
+import java.util.{Collections, List => JList, UUID}
 
 import scala.collection.JavaConverters._
 
+import org.midonet.cluster.models.Topology.IpAddrGroup.IpAddrPorts
 import org.midonet.cluster.models.Topology.{IpAddrGroup => TopologyIPAddrGroup}
 import org.midonet.cluster.util.IPAddressUtil._
 import org.midonet.cluster.util.UUIDUtil._
 import org.midonet.midolman.simulation.{IPAddrGroup => SimIPAddrGroup}
+import org.midonet.packets.IPAddr
 import org.midonet.util.functors.makeFunc1
 
+/**
+ * A device mapper that exposes an IP address group. The first notification
+ * builds the group, while every update after it applies to the current group
+ * the addresses that were added and removed. These are found between the
+ * common head and tail of the previous and current address lists, which for
+ * the usual update of a single address is a scan of both lists without any
+ * allocation.
+ */
 class IPAddrGroupMapper(addrGroupId: UUID, vt: VirtualTopology) extends
     DeviceMapper[SimIPAddrGroup](addrGroupId, vt) {
 
-    private def toSimIPAddrGroup(ipAddGroup: TopologyIPAddrGroup)
+    private var addrGroup: SimIPAddrGroup = null
+    private var ipAddrPorts: JList[IpAddrPorts] = Collections.emptyList()
+
+    private def toSimIPAddrGroup(ipAddrGroup: TopologyIPAddrGroup)
     : SimIPAddrGroup = {
-        val addrs = ipAddGroup.getIpAddrPortsList.asScala.map(ipAddrPort =>
-            toIPAddr(ipAddrPort.getIpAddress)
-        ).toSet
-        new SimIPAddrGroup(ipAddGroup.getId.asJava, addrs)
+        assertThread()
+        val current = ipAddrGroup.getIpAddrPortsList
+        addrGroup = if (addrGroup eq null) {
+            SimIPAddrGroup(ipAddrGroup.getId.asJava,
+                           addrsOf(current, 0, current.size))
+        } else {
+            val previous = ipAddrPorts
+            val common = math.min(previous.size, current.size)
+            var head = 0
+            while (head < common &&
+                   sameAddress(previous, head, current, head)) {
+                head += 1
+            }
+            var tail = 0
+            while (tail < common - head &&
+                   sameAddress(previous, previous.size - 1 - tail,
+                               current, current.size - 1 - tail)) {
+                tail += 1
+            }
+            addrGroup.updated(
+                added = addrsOf(current, head, current.size - tail),
+                removed = addrsOf(previous, head, previous.size - tail))
+        }
+        ipAddrPorts = current
+        addrGroup
     }
 
+    private def sameAddress(a: JList[IpAddrPorts], i: Int,
+                            b: JList[IpAddrPorts], j: Int): Boolean =
+        a.get(i).getIpAddress == b.get(j).getIpAddress
+
+    private def addrsOf(list: JList[IpAddrPorts], from: Int, until: Int)
+    : Iterable[IPAddr] =
+        list.subList(from, until).asScala.map(p => toIPAddr(p.getIpAddress))
+
     protected override lazy val observable =
-        vt.store.observable(classOf[TopologyIPAddrGroup], addrGroupId)
-            .map[SimIPAddrGroup](makeFunc1(toSimIPAddrGroup))
+        vt.objectObservable(classOf[TopologyIPAddrGroup], addrGroupId)
             .observeOn(vt.scheduler)
+            .map[SimIPAddrGroup](makeFunc1(toSimIPAddrGroup))
 }
@@ -44,7 +44,7 @@ object LoadBalancerMapper {
 
         private val mark = PublishSubject.create[TopologyVIP]
         /** The vip observable, notifications on the VT thread. */
-        val observable = vt.store.observable(classOf[TopologyVIP], vipId)
+        val observable = vt.objectObservable(classOf[TopologyVIP], vipId)
             .map[SimVip](makeFunc1(ZoomConvert.fromProto(_, classOf[SimVip])))
             .observeOn(vt.scheduler)
             .doOnNext(makeAction1(currentVip = _))
@@ -121,7 +121,7 @@ final class LoadBalancerMapper(lbId: UUID, vt: VirtualTopology)
     }
 
     private lazy val loadBalancerObservable =
-        vt.store.observable[TopologyLB](classOf[TopologyLB], lbId)
+        vt.objectObservable[TopologyLB](classOf[TopologyLB], lbId)
             .observeOn(vt.scheduler)
             .doOnCompleted(makeAction0(loadBalancerDeleted()))
 
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology
+
+import java.lang.{Long => JLong}
+import java.util.{ArrayDeque, UUID}
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentLinkedQueue}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+
+import scala.collection.{Map => ROMap}
+
+import org.midonet.cluster.client.MacLearningTable
+import org.midonet.packets.MAC
+import org.midonet.util.functors.Callback3
+
+object LocalMacTable {
+
+    /* The states of an entry. A pending entry waits for its mapping to be
+     * written, a replicated entry stays until the aging window passes and a
+     * removing entry waits for the aging window before its mapping is
+     * deleted. An evicted entry is being removed from the table. */
+    private final val Pending = 0
+    private final val Replicated = 1
+    private final val Removing = 2
+    private final val Evicted = 3
+
+    /** Packs a MAC and a VLAN into the key of the local table. */
+    @inline def key(mac: MAC, vlanId: Short): Long =
+        ((vlanId & 0xFFFFL) << 48) | mac.asLong
+
+    @inline def macOf(key: Long): MAC = new MAC(key & MAC.MAC_MASK)
+
+    @inline def vlanOf(key: Long): Short = (key >>> 48).toShort
+
+    private final class Entry(val portId: UUID, initial: Int, now: Long) {
+        val state = new AtomicInteger(initial)
+        @volatile var written = false
+        @volatile var writtenAt = now
+        @volatile var removeAt = now
+    }
+}
+
+/**
+ * A local MAC learning table for a bridge, which sits in front of the
+ * replicated MAC learning tables of its VLANs.
+ *
+ * MACs learned by this agent are visible to the simulations as soon as they
+ * are learned, and their mappings are written to the replicated tables in
+ * batches by flush(). The table is keyed by the MAC and VLAN packed into a
+ * long, and readers and learners never lock.
+ *
+ * A written mapping is kept for the aging window, during which learning it
+ * again doesn't write anything. Removals are delayed by the same window, and
+ * are cancelled if the mapping is learned again meanwhile, so that a MAC
+ * whose flows come and go doesn't write a removal and an addition to the
+ * storage each time. Past the window, lookups go to the replicated tables,
+ * which see the changes made by other agents.
+ *
+ * flush() must be called from one thread at a time.
+ */
+final class LocalMacTable(agingMillis: Long) {
+
+    import LocalMacTable._
+
+    private val entries = new ConcurrentHashMap[JLong, Entry]()
+    private val pending = new ConcurrentLinkedQueue[JLong]()
+    // The entries waiting out their aging window, owned by the flusher.
+    private val aging = new ArrayDeque[JLong]()
+
+    private val writes = new AtomicLong()
+    private val suppressed = new AtomicLong()
+
+    /** Returns the entry of a MAC in the local table, or null. */
+    private def lookup(mac: MAC, vlanId: Short): Entry =
+        entries.get(key(mac, vlanId))
+
+    /**
+     * Learns that a MAC is at a port. Returns true if the mapping will be
+     * written, and false if it's already written or about to be.
+     */
+    def learn(mac: MAC, vlanId: Short, portId: UUID, now: Long): Boolean = {
+        val k: JLong = key(mac, vlanId)
+        while (true) {
+            val e = entries.get(k)
+            if (e eq null) {
+                if (entries.putIfAbsent(k, new Entry(portId, Pending, now))
+                    eq null) {
+                    pending.offer(k)
+                    return true
+                }
+            } else if (e.portId == portId) {
+                val state = e.state.get
+                if (state == Pending || state == Replicated) {
+                    suppressed.incrementAndGet()
+                    return false
+                } else if (state == Removing &&
+                           e.state.compareAndSet(Removing,
+                                                 if (e.written) Replicated
+                                                 else Pending)) {
+                    // The removal is cancelled, there's nothing to write.
+                    e.writtenAt = now
+                    if (!e.written) pending.offer(k)
+                    suppressed.incrementAndGet()
+                    return false
+                } else if (state == Evicted && entries.replace(
+                               k, e, new Entry(portId, Pending, now))) {
+                    pending.offer(k)
+                    return true
+                }
+            } else if (entries.replace(k, e, new Entry(portId, Pending, now))) {
+                pending.offer(k)
+                return true
+            }
+        }
+        false
+    }
+
+    /**
+     * Forgets that a MAC is at a port. The mapping is removed from the
+     * replicated table once the aging window passes, unless it's learned
+     * again before.
+     */
+    def forget(mac: MAC, vlanId: Short, portId: UUID, now: Long): Unit = {
+        val k: JLong = key(mac, vlanId)
+        while (true) {
+            val e = entries.get(k)
+            if ((e eq null) || e.state.get == Evicted) {
+                val removing = new Entry(portId, Removing, now)
+                removing.written = true
+                removing.removeAt = now + agingMillis
+                if (if (e eq null) entries.putIfAbsent(k, removing) eq null
+                    else entries.replace(k, e, removing)) {
+                    pending.offer(k)
+                    return
+                }
+            } else if (e.portId != portId) {
+                // The MAC was learned at another port since, and that
+                // mapping replaces this one.
+                return
+            } else {
+                e.removeAt = now + agingMillis
+                val state = e.state.get
+                if (state == Removing) {
+                    return
+                } else if (state != Evicted &&
+                           e.state.compareAndSet(state, Removing)) {
+                    pending.offer(k)
+                    return
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the learned mappings and the removals whose aging window has
+     * passed to the replicated tables, and evicts the entries that have aged.
+     * Returns the number of writes.
+     */
+    def flush(now: Long, tables: ROMap[Short, MacLearningTable]): Int = {
+        var count = 0
+        var n = aging.size
+        while (n > 0) {
+            count += process(aging.poll(), now, tables)
+            n -= 1
+        }
+        var k = pending.poll()
+        while (k ne null) {
+            count += process(k, now, tables)
+            k = pending.poll()
+        }
+        writes.addAndGet(count)
+        count
+    }
+
+    private def process(k: JLong, now: Long,
+                        tables: ROMap[Short, MacLearningTable]): Int = {
+        val e = entries.get(k)
+        if (e eq null) return 0
+        e.state.get match {
+            case Pending if e.state.compareAndSet(Pending, Replicated) =>
+                e.writtenAt = now
+                e.written = true
+                aging.offer(k)
+                write(k, tables, _.add(macOf(k), e.portId))
+            case Replicated if now - e.writtenAt < agingMillis =>
+                aging.offer(k)
+                0
+            case Replicated if e.state.compareAndSet(Replicated, Evicted) =>
+                entries.remove(k, e)
+                0
+            case Removing if now < e.removeAt =>
+                aging.offer(k)
+                0
+            case Removing if e.state.compareAndSet(Removing, Evicted) =>
+                entries.remove(k, e)
+                write(k, tables, _.remove(macOf(k), e.portId))
+            case Evicted =>
+                0
+            case _ =>
+                // The entry changed concurrently, look at it again.
+                process(k, now, tables)
+        }
+    }
+
+    private def write(k: Long, tables: ROMap[Short, MacLearningTable],
+                      op: MacLearningTable => Unit): Int =
+        tables.get(vlanOf(k)) match {
+            case Some(table) => op(table); 1
+            case None => 0
+        }
+
+    /** The number of entries in the local table. */
+    def size: Int = entries.size
+
+    /** The number of writes to the replicated tables. */
+    def writeCount: Long = writes.get
+
+    /** The number of writes that were not needed because of the aging. */
+    def suppressedCount: Long = suppressed.get
+
+    /**
+     * Returns a MAC learning table for a VLAN, which looks up MACs in the
+     * local table before the replicated one. Mappings added or removed
+     * through it are written to the replicated table right away.
+     */
+    def table(vlanId: Short, replicated: MacLearningTable): MacLearningTable =
+        new MacLearningTable {
+            override def get(mac: MAC): UUID = {
+                val e = lookup(mac, vlanId)
+                if (e eq null) replicated.get(mac)
+                else e.state.get match {
+                    case Pending | Replicated => e.portId
+                    case Removing => null
+                    case _ => replicated.get(mac)
+                }
+            }
+
+            override def add(mac: MAC, portId: UUID): Unit = {
+                entries.remove(key(mac, vlanId))
+                replicated.add(mac, portId)
+            }
+
+            override def remove(mac: MAC, portId: UUID): Unit = {
+                val k: JLong = key(mac, vlanId)
+                val e = entries.get(k)
+                if ((e ne null) && e.portId == portId)
+                    entries.remove(k, e)
+                replicated.remove(mac, portId)
+            }
+
+            override def notify(cb: Callback3[MAC, UUID, UUID]): Unit =
+                replicated.notify(cb)
+        }
+}
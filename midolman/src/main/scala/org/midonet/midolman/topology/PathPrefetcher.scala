@@ -0,0 +1,251 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology
+
+import java.lang.{Boolean => JBoolean}
+import java.util.concurrent.{ConcurrentHashMap, PriorityBlockingQueue}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.{Collections, Set => JSet, UUID}
+
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.reflect.ClassTag
+import scala.util.control.NonFatal
+import scala.util.{Failure, Success}
+
+import akka.actor.ActorSystem
+
+import org.midonet.midolman.NotYetException
+import org.midonet.midolman.simulation.{Bridge, Chain, LoadBalancer, Pool, PortGroup, Router}
+import org.midonet.midolman.topology.devices.{BridgePort, Port, RouterPort, VxLanPort}
+import org.midonet.util.functors.makeRunnable
+
+object PathPrefetcher {
+    /** Maximum number of hops, counting every device, from the start port. */
+    val MaxDepth = 24
+    /** Maximum number of devices visited by a single prefetch. */
+    val MaxDevices = 256
+    /** Maximum number of device requests of a prefetch awaiting a reply. */
+    val MaxRequests = 16
+
+    /**
+     * An ongoing prefetch. The future completes, and never fails, once
+     * every missing device found by the walk has been loaded or has failed
+     * to load. The ids of those devices are kept in the missing set.
+     */
+    class Prefetch(val missing: JSet[UUID], val future: Future[Unit],
+                   peak: AtomicInteger) {
+        /** The largest number of device requests of the walk that awaited
+          * a reply at the same time. */
+        def peakRequests: Int = peak.get
+    }
+
+    /* A device request waiting for a free request slot. Requests are issued
+     * by increasing depth, and in the order they were queued for the same
+     * depth. */
+    private class QueuedRequest(val depth: Int, val order: Long,
+                                val run: Runnable)
+        extends Comparable[QueuedRequest] {
+        override def compareTo(that: QueuedRequest): Int =
+            if (depth != that.depth) Integer.compare(depth, that.depth)
+            else java.lang.Long.compare(order, that.order)
+    }
+}
+
+/**
+ * Loads the virtual devices that a simulation may traverse from a given port.
+ * When the simulation of a packet is postponed because a device is missing
+ * from the local cache, the rest of its path is loaded in the background, so
+ * that the packet, which is resumed as soon as that device is loaded, is less
+ * likely to be postponed again on every other device missing along its path.
+ *
+ * The walk follows the adjacency of the devices that are cached: a port leads
+ * to its device, filters, port groups and peer; a bridge to its filters and
+ * its exterior, logical, VLAN and VxLAN ports; a router to its filters and
+ * load balancer, and this to the pools of its VIPs; a stateful port group to
+ * its members. Chains are loaded with
+ * their jump targets and IP address groups. Each missing device is requested
+ * from the VirtualTopologyActor and the walk resumes from it once it is
+ * loaded. Routers don't know their ports, so those are only reached through
+ * the peers of bridge ports.
+ *
+ * A walk keeps at most maxRequests device requests awaiting a reply, the
+ * other missing devices are requested as the replies arrive, such that
+ * prefetching a large topology, for instance when a port is bound, doesn't
+ * flood the device managers. The queued requests are prioritized by their
+ * distance from the start port, so that the devices that the first packets
+ * traverse first are also loaded first.
+ *
+ * Walks may continue on the threads that complete the device requests, all
+ * the state they share is thread safe.
+ */
+class PathPrefetcher(maxDepth: Int = PathPrefetcher.MaxDepth,
+                     maxDevices: Int = PathPrefetcher.MaxDevices,
+                     maxRequests: Int = PathPrefetcher.MaxRequests)
+                    (implicit system: ActorSystem) {
+
+    import PathPrefetcher._
+
+    /**
+     * Starts loading the devices reachable from the given port.
+     */
+    def prefetch(portId: UUID): Prefetch = {
+        val walk = new Walk
+        walk.port(portId, 0)
+        walk.done()
+        new Prefetch(walk.missing, walk.promise.future, walk.peakInFlight)
+    }
+
+    private class Walk {
+        val missing = Collections.newSetFromMap(
+            new ConcurrentHashMap[UUID, JBoolean]())
+        val promise = Promise[Unit]()
+
+        private val visited = Collections.newSetFromMap(
+            new ConcurrentHashMap[UUID, JBoolean]())
+        private val visitCount = new AtomicInteger()
+        // Missing devices not loaded yet, plus one for the initial walk
+        private val outstanding = new AtomicInteger(1)
+        // Device requests awaiting a reply, and requests waiting for a slot
+        private val inFlight = new AtomicInteger()
+        private val queued = new PriorityBlockingQueue[QueuedRequest]()
+        private val queuedCount = new AtomicLong()
+        val peakInFlight = new AtomicInteger()
+
+        def done(): Unit =
+            if (outstanding.decrementAndGet() == 0)
+                promise.trySuccess(())
+
+        private def visit[D <: AnyRef](id: UUID, depth: Int)(expand: D => Unit)
+                                      (implicit tag: ClassTag[D]): Unit = {
+            if ((id eq null) || depth > maxDepth || !visited.add(id) ||
+                visitCount.incrementAndGet() > maxDevices)
+                return
+
+            val device = VirtualTopologyActor.cached[D](id)
+            if (device ne null) {
+                expand(device)
+            } else {
+                missing.add(id)
+                outstanding.incrementAndGet()
+                val run = makeRunnable { request(id, expand) }
+                queued.add(new QueuedRequest(depth,
+                                             queuedCount.getAndIncrement, run))
+                drain()
+            }
+        }
+
+        /* Requests a device holding a request slot, which is released once
+         * the device is expanded or failed to load. */
+        private def request[D <: AnyRef](id: UUID, expand: D => Unit)
+                                        (implicit tag: ClassTag[D]): Unit = {
+            val device = try VirtualTopologyActor.tryAsk[D](id) catch {
+                case NotYetException(f, _) =>
+                    f.onComplete {
+                        case Success(device) =>
+                            try expand(device.asInstanceOf[D]) finally release()
+                        case Failure(_) =>
+                            release()
+                    }(ExecutionContext.callingThread)
+                    return
+                case NonFatal(e) =>
+                    release()
+                    return
+            }
+            try expand(device) finally release()
+        }
+
+        private def release(): Unit = {
+            inFlight.decrementAndGet()
+            drain()
+            done()
+        }
+
+        /**
+         * Issues the queued requests while there are free request slots. A
+         * thread that takes a slot and finds the queue empty gives it back and
+         * checks the queue again, so that a request queued meanwhile by a
+         * thread that found no free slot is not left behind.
+         */
+        private def drain(): Unit = {
+            while (!queued.isEmpty) {
+                val count = inFlight.get
+                if (count >= maxRequests)
+                    return
+                if (inFlight.compareAndSet(count, count + 1)) {
+                    val next = queued.poll()
+                    if (next ne null) {
+                        updatePeak(count + 1)
+                        next.run.run()
+                    } else {
+                        inFlight.decrementAndGet()
+                    }
+                }
+            }
+        }
+
+        private def updatePeak(count: Int): Unit = {
+            var peak = peakInFlight.get
+            while (count > peak && !peakInFlight.compareAndSet(peak, count)) {
+                peak = peakInFlight.get
+            }
+        }
+
+        def port(id: UUID, depth: Int): Unit = visit[Port](id, depth) { p =>
+            chain(p.inboundFilter, depth + 1)
+            chain(p.outboundFilter, depth + 1)
+            val groups = p.portGroups.iterator
+            while (groups.hasNext) {
+                portGroup(groups.next(), depth + 1)
+            }
+            p match {
+                case _: BridgePort | _: VxLanPort => bridge(p.deviceId, depth + 1)
+                case _: RouterPort => router(p.deviceId, depth + 1)
+                case _ =>
+            }
+            if (p.isInterior)
+                port(p.peerId, depth + 1)
+        }
+
+        def bridge(id: UUID, depth: Int): Unit = visit[Bridge](id, depth) { b =>
+            chain(b.inFilterId.orNull, depth + 1)
+            chain(b.outFilterId.orNull, depth + 1)
+            b.vlanPortId foreach (port(_, depth + 1))
+            b.vxlanPortIds foreach (port(_, depth + 1))
+            b.macToLogicalPortId.values foreach (port(_, depth + 1))
+            b.exteriorPorts foreach (port(_, depth + 1))
+        }
+
+        def router(id: UUID, depth: Int): Unit = visit[Router](id, depth) { r =>
+            chain(r.cfg.inboundFilter, depth + 1)
+            chain(r.cfg.outboundFilter, depth + 1)
+            visit[LoadBalancer](r.cfg.loadBalancer, depth + 1) { lb =>
+                lb.vips foreach { vip =>
+                    visit[Pool](vip.poolId, depth + 2) { _ => }
+                }
+            }
+        }
+
+        def chain(id: UUID, depth: Int): Unit =
+            visit[Chain](id, depth) { _ => }
+
+        def portGroup(id: UUID, depth: Int): Unit =
+            visit[PortGroup](id, depth) { g =>
+                if (g.stateful)
+                    g.members foreach (port(_, depth + 1))
+            }
+    }
+}
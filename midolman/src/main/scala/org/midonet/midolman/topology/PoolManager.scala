@@ -48,6 +48,7 @@ class PoolManager(val id: UUID, val clusterClient: Client) extends Actor
     private var poolConfig: Pool = null
     private var simPoolMembers: Array[simulation.PoolMember] = null
     private var disabledPoolMembers: Array[simulation.PoolMember] = null
+    private var simPool: simulation.Pool = null
 
     override def preStart() {
         clusterClient.getPool(id, new PoolBuilderImpl(self))
@@ -80,9 +81,9 @@ class PoolManager(val id: UUID, val clusterClient: Client) extends Actor
         }
         log.debug(s"Publishing update for pool $id.")
 
-        val simPool = new simulation.Pool(
+        simPool = new simulation.Pool(
             id, poolConfig.isAdminStateUp, poolConfig.getLbMethod,
-            simPoolMembers, disabledPoolMembers)
+            simPoolMembers, disabledPoolMembers, simPool)
         VirtualTopologyActor ! simPool
         VirtualTopologyActor ! InvalidateFlowsByTag(FlowTagger.tagForDevice(id))
     }
@@ -33,7 +33,7 @@ class PortGroupMapper(id: UUID, vt: VirtualTopology)
     override def logSource = s"org.midonet.devices.port-group.port-group-$id"
 
     protected override def observable =
-        vt.store.observable(classOf[TopologyPortGroup], id)
+        vt.objectObservable(classOf[TopologyPortGroup], id)
             .distinctUntilChanged
             .map[SimulationPortGroup](
                 makeFunc1(ZoomConvert.fromProto(_, classOf[SimulationPortGroup])))
@@ -29,7 +29,9 @@ import org.midonet.util.functors.{makeAction0, makeFunc1, makeFunc2}
  * A device mapper that exposes an [[rx.Observable]] with notifications for
  * a device port. The port observable combines the latest updates from both the
  * topology port object, and the topology port ownership indicating the active
- * state of the port.
+ * state of the port. With the topology snapshot enabled, both start with the
+ * values from the snapshot, such that the port can be built at start-up
+ * before ZooKeeper replies.
  *
  *                       +-----------------+  +----------------+
  *  store.owners[Port]-->| map(_.nonEmpty) |->| take(distinct) |
@@ -62,12 +64,16 @@ final class PortMapper(id: UUID, vt: VirtualTopology)
                 simPort
             })
 
+    private lazy val activeObservable = vt.stateObservable(
+        classOf[TopologyPort], id,
+        vt.store.ownersObservable(classOf[TopologyPort], id)
+                .map[Boolean](makeFunc1(_.nonEmpty)))
+
     private lazy val portObservable = Observable
         .combineLatest[TopologyPort, Boolean, SimulationPort](
-            vt.store.observable(classOf[TopologyPort], id)
+            vt.objectObservable(classOf[TopologyPort], id)
                 .distinctUntilChanged,
-            vt.store.ownersObservable(classOf[TopologyPort], id)
-                .map[Boolean](makeFunc1(_.nonEmpty))
+            activeObservable
                 .distinctUntilChanged
                 .onErrorResumeNext(Observable.empty),
             combinator)
@@ -125,6 +125,12 @@ class RouterManager(id: UUID, val client: Client, val config: MidolmanConfig)
         client.getRouter(id, new RouterBuilderImpl(id, self))
     }
 
+    override def postStop() {
+        if (arpTable != null)
+            arpTable.stop()
+        super.postStop()
+    }
+
     private def invalidateFlowsByIp(ip: IPv4Addr) {
         VirtualTopologyActor ! InvalidateFlowsByTag(
             FlowTagger.tagForDestinationIp(id, ip))
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology
+
+import java.io._
+import java.lang.{Boolean => JBoolean}
+import java.nio.file.{Files, StandardCopyOption}
+import java.util.UUID
+import java.util.concurrent.{ConcurrentHashMap, Executors, ThreadFactory, TimeUnit}
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+import scala.util.control.NonFatal
+
+import com.google.protobuf.Message
+import rx.Observable
+import rx.functions.Func1
+
+import org.midonet.midolman.logging.MidolmanLogging
+import org.midonet.util.functors.{makeAction0, makeAction1, makeRunnable}
+
+object TopologySnapshot {
+    private final val Magic = 0x4d4e5453
+    private final val FormatVersion = 2
+    private final val CloseTimeoutMillis = 5000L
+
+    private case class Key(clazz: String, id: UUID)
+}
+
+/**
+ * A local snapshot of the topology objects used by this host, which allows
+ * the [[VirtualTopology]] to build the devices at start-up without waiting
+ * for ZooKeeper.
+ *
+ * The snapshot records the latest version of every object loaded through the
+ * observable() method, and periodically writes the objects that are still in
+ * use to the snapshot file. The file is read when the snapshot is created. An
+ * observable for an object found in the file first emits the object from the
+ * file, and then the updates from storage: the first update is skipped when
+ * it is equal to the object from the file, such that the device is not
+ * rebuilt and its flows are not invalidated. Otherwise, the device mappers
+ * handle the update like any other change, invalidating the flows that were
+ * simulated with the stale device. An object that was deleted meanwhile
+ * completes or fails the device observable in the same way.
+ *
+ * The file contains, after a header with a magic number and the format
+ * version, the number of objects and then, for every object, its class name,
+ * its identifier, and its serialized protocol buffer message. The file is
+ * written to a temporary file which replaces the snapshot, such that a crash
+ * while writing does not leave a truncated snapshot.
+ */
+class TopologySnapshot(file: File, interval: Long) extends MidolmanLogging {
+
+    import org.midonet.midolman.topology.TopologySnapshot._
+
+    override def logSource = "org.midonet.devices.topology-snapshot"
+
+    // The objects read from the snapshot file that were not requested yet.
+    private val stored = new ConcurrentHashMap[Key, Array[Byte]]()
+    // The objects in use, with their latest version.
+    private val objects = new ConcurrentHashMap[Key, Message]()
+    // The states read from the snapshot file that were not requested yet.
+    private val storedStates = new ConcurrentHashMap[Key, JBoolean]()
+    // The states in use, with their latest value.
+    private val states = new ConcurrentHashMap[Key, JBoolean]()
+    // The number of subscribers of the objects and states in use: they are
+    // removed from the snapshot when their last subscriber unsubscribes.
+    private val objectSubscribers = new mutable.HashMap[Key, Int]
+    private val stateSubscribers = new mutable.HashMap[Key, Int]
+    @volatile private var changed = false
+
+    private val executor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory {
+            override def newThread(r: Runnable): Thread = {
+                val thread = new Thread(r, "topology-snapshot")
+                thread.setDaemon(true)
+                thread
+            }
+        })
+
+    load()
+    executor.scheduleWithFixedDelay(makeRunnable { writeIfChanged() },
+                                    interval, interval, TimeUnit.MILLISECONDS)
+
+    /** The number of objects read from the snapshot file that were not
+      * requested yet. */
+    def storedCount = stored.size
+
+    /** The number of objects in use recorded by the snapshot. */
+    def objectCount = objects.size
+
+    /** The number of states read from the snapshot file that were not
+      * requested yet. */
+    def storedStateCount = storedStates.size
+
+    /** The number of states in use recorded by the snapshot. */
+    def stateCount = states.size
+
+    /**
+     * Returns an observable for the topology object with the given class and
+     * identifier, where `updates` is the observable of the object from
+     * storage. If the snapshot file contains the object, the observable emits
+     * it before the updates.
+     */
+    def observable[T <: Message](clazz: Class[T], id: UUID,
+                                 updates: Observable[T]): Observable[T] = {
+        val key = Key(clazz.getName, id)
+        val recorded = updates
+            .doOnNext(makeAction1 { obj: T =>
+                objects.put(key, obj)
+                changed = true
+            })
+            .doOnCompleted(makeAction0 { remove(key) })
+            .doOnError(makeAction1 { e: Throwable => remove(key) })
+            .doOnSubscribe(makeAction0 { subscribe(objectSubscribers, key) })
+            .doOnUnsubscribe(makeAction0 {
+                unsubscribe(objectSubscribers, key, remove)
+            })
+
+        val data = stored.remove(key)
+        if (data eq null) {
+            return recorded
+        }
+
+        val cached = try parse(clazz, data) catch {
+            case NonFatal(e) =>
+                log.warn("Failed to read {} {} from the topology snapshot",
+                         clazz.getSimpleName, id, e)
+                return recorded
+        }
+        objects.putIfAbsent(key, cached)
+        log.debug("Loaded {} {} from the topology snapshot",
+                  clazz.getSimpleName, id)
+
+        Observable.concat(Observable.just(cached),
+                          recorded.filter(new Func1[T, JBoolean] {
+            private var revalidated = false
+            override def call(obj: T): JBoolean = {
+                if (revalidated) {
+                    true
+                } else {
+                    revalidated = true
+                    if (obj == cached) {
+                        log.debug("{} {} unchanged since the topology " +
+                                  "snapshot", clazz.getSimpleName, id)
+                        false
+                    } else {
+                        log.debug("{} {} changed since the topology " +
+                                  "snapshot", clazz.getSimpleName, id)
+                        true
+                    }
+                }
+            }
+        }))
+    }
+
+    /**
+     * Returns an observable for a boolean state of the topology object with
+     * the given class and identifier, where `updates` is the observable of
+     * the state from storage. If the snapshot file contains the state, the
+     * observable emits it before the updates. Unlike objects, the first update
+     * is emitted even when it is equal to the state from the file, callers
+     * should drop it with distinctUntilChanged.
+     */
+    def stateObservable(clazz: Class[_], id: UUID,
+                        updates: Observable[Boolean]): Observable[Boolean] = {
+        val key = Key(clazz.getName, id)
+        val recorded = updates
+            .doOnNext(makeAction1 { state: Boolean =>
+                states.put(key, Boolean.box(state))
+                changed = true
+            })
+            .doOnCompleted(makeAction0 { removeState(key) })
+            .doOnError(makeAction1 { e: Throwable => removeState(key) })
+            .doOnSubscribe(makeAction0 { subscribe(stateSubscribers, key) })
+            .doOnUnsubscribe(makeAction0 {
+                unsubscribe(stateSubscribers, key, removeState)
+            })
+
+        val state = storedStates.remove(key)
+        if (state eq null) {
+            return recorded
+        }
+
+        states.putIfAbsent(key, state)
+        log.debug("Loaded the state of {} {} from the topology snapshot",
+                  clazz.getSimpleName, id)
+        Observable.concat(Observable.just(Boolean.unbox(state)), recorded)
+    }
+
+    /** Writes the snapshot file now, if the objects in use changed since the
+      * last write. */
+    def writeIfChanged(): Unit = {
+        if (changed) {
+            changed = false
+            try {
+                write()
+            } catch {
+                case NonFatal(e) =>
+                    log.warn("Failed to write the topology snapshot {}",
+                             file, e)
+                    changed = true
+            }
+        }
+    }
+
+    /** Stops the periodic writes, and writes the snapshot file one last
+      * time if the objects in use changed since the last write. */
+    def close(): Unit = {
+        executor.shutdown()
+        if (!executor.awaitTermination(CloseTimeoutMillis,
+                                       TimeUnit.MILLISECONDS)) {
+            log.warn("Timed out waiting for the topology snapshot {} to be " +
+                     "written", file)
+            return
+        }
+        writeIfChanged()
+    }
+
+    private def subscribe(subscribers: mutable.Map[Key, Int],
+                          key: Key): Unit = subscribers.synchronized {
+        subscribers(key) = subscribers.getOrElse(key, 0) + 1
+    }
+
+    /* Removes the key with the last of its subscribers, before a new
+     * subscriber may record it again. */
+    private def unsubscribe(subscribers: mutable.Map[Key, Int], key: Key,
+                            remove: Key => Unit): Unit =
+        subscribers.synchronized {
+            subscribers.get(key) match {
+                case Some(count) if count > 1 =>
+                    subscribers(key) = count - 1
+                case _ =>
+                    subscribers.remove(key)
+                    remove(key)
+            }
+        }
+
+    private def remove(key: Key): Unit = {
+        if (objects.remove(key) ne null) {
+            changed = true
+        }
+    }
+
+    private def removeState(key: Key): Unit = {
+        if (states.remove(key) ne null) {
+            changed = true
+        }
+    }
+
+    private def parse[T <: Message](clazz: Class[T], data: Array[Byte]): T = {
+        clazz.getMethod("getDefaultInstance").invoke(null).asInstanceOf[Message]
+             .getParserForType.parseFrom(data).asInstanceOf[T]
+    }
+
+    private def load(): Unit = {
+        if (!file.exists()) {
+            log.info("No topology snapshot at {}", file)
+            return
+        }
+        val start = System.nanoTime()
+        val in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)))
+        try {
+            if (in.readInt() != Magic || in.readInt() != FormatVersion) {
+                log.warn("Ignoring the topology snapshot {} with an unknown " +
+                         "format", file)
+                return
+            }
+            var count = in.readInt()
+            while (count > 0) {
+                val clazz = in.readUTF()
+                val id = new UUID(in.readLong(), in.readLong())
+                val data = new Array[Byte](in.readInt())
+                in.readFully(data)
+                stored.put(Key(clazz, id), data)
+                count -= 1
+            }
+            count = in.readInt()
+            while (count > 0) {
+                val clazz = in.readUTF()
+                val id = new UUID(in.readLong(), in.readLong())
+                storedStates.put(Key(clazz, id), Boolean.box(in.readBoolean()))
+                count -= 1
+            }
+            log.info("Read {} objects and {} states from the topology " +
+                     "snapshot {} in {} ms",
+                     Int.box(stored.size), Int.box(storedStates.size), file,
+                     Long.box(TimeUnit.NANOSECONDS.toMillis(
+                         System.nanoTime() - start)))
+        } catch {
+            case NonFatal(e) =>
+                log.warn("Failed to read the topology snapshot {}", file, e)
+                stored.clear()
+                storedStates.clear()
+        } finally {
+            in.close()
+        }
+    }
+
+    private def write(): Unit = {
+        val tmp = new File(file.getPath + ".tmp")
+        val out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp)))
+        try {
+            val entries = objects.entrySet().toSeq
+            out.writeInt(Magic)
+            out.writeInt(FormatVersion)
+            out.writeInt(entries.size)
+            for (entry <- entries) {
+                val data = entry.getValue.toByteArray
+                out.writeUTF(entry.getKey.clazz)
+                out.writeLong(entry.getKey.id.getMostSignificantBits)
+                out.writeLong(entry.getKey.id.getLeastSignificantBits)
+                out.writeInt(data.length)
+                out.write(data)
+            }
+            val stateEntries = states.entrySet().toSeq
+            out.writeInt(stateEntries.size)
+            for (entry <- stateEntries) {
+                out.writeUTF(entry.getKey.clazz)
+                out.writeLong(entry.getKey.id.getMostSignificantBits)
+                out.writeLong(entry.getKey.id.getLeastSignificantBits)
+                out.writeBoolean(entry.getValue)
+            }
+        } finally {
+            out.close()
+        }
+        Files.move(tmp.toPath, file.toPath,
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE)
+        log.debug("Wrote the topology snapshot {}", file)
+    }
+}
@@ -33,7 +33,7 @@ final class TunnelZoneMapper(id: UUID, vt: VirtualTopology)
     override def logSource = s"org.midonet.devices.tunnelzone.tunnelzone-$id"
 
     protected override val observable =
-        vt.store.observable(classOf[TunnelZone], id)
+        vt.objectObservable(classOf[TunnelZone], id)
             .map[SimTunnelZone](
                 makeFunc1(ZoomConvert.fromProto(_, classOf[SimTunnelZone])))
             .distinctUntilChanged()
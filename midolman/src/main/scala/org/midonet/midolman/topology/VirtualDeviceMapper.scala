@@ -20,18 +20,38 @@ import java.util.UUID
 import scala.reflect.ClassTag
 
 import org.midonet.midolman.topology.VirtualTopology.VirtualDevice
+import org.midonet.sdn.flows.FlowTagger.FlowTag
 
 /**
  * A base class for a virtual device mapper. This class subclasses DeviceMapper
  * and generates flow tag invalidations upon receiving notifications from the
  * underlying observable. Virtual devices extend this class.
+ *
+ * By default, every notification invalidates the device tag, i.e. all flows
+ * that traversed the device. Mappers that track which parts of a device
+ * changed may override `invalidationTags` to invalidate narrower tags
+ * instead. Deleting a device always invalidates the device tag.
  */
 abstract class VirtualDeviceMapper[D <: VirtualDevice](id: UUID,
                                                        vt: VirtualTopology)
                                                       (implicit tag: ClassTag[D])
         extends DeviceMapper[D](id, vt)(tag) {
 
+    /**
+     * Returns the tags to invalidate for a device notification. It is called
+     * once per notification, on the VT thread, such that implementations may
+     * clear any change tracking state.
+     */
+    protected def invalidationTags(device: D): Iterable[FlowTag] =
+        Seq(device.deviceTag)
+
     override final protected def onDeviceChanged(device: D) = {
+        for (tag <- invalidationTags(device)) {
+            vt.invalidate(tag)
+        }
+    }
+
+    override final protected def onDeviceDeleted(device: D) = {
         vt.invalidate(device.deviceTag)
     }
-}
\ No newline at end of file
+}
@@ -15,6 +15,7 @@
  */
 package org.midonet.midolman.topology
 
+import java.io.File
 import java.util.UUID
 import java.util.concurrent.{ConcurrentHashMap, Executors, ThreadFactory}
 
@@ -22,6 +23,7 @@ import scala.concurrent.{Future, Promise}
 import scala.reflect._
 
 import com.google.inject.Inject
+import com.google.protobuf.Message
 import rx.Observable
 import rx.schedulers.Schedulers
 
@@ -195,13 +197,51 @@ class VirtualTopology @Inject() (val backend: MidonetBackend,
         classTag[Chain] -> (new ChainMapper(_, this)),
         classTag[IPAddrGroup] -> (new IPAddrGroupMapper(_, this)),
         classTag[PortGroup] -> (new PortGroupMapper(_, this)),
-        classTag[LoadBalancer] -> (new LoadBalancerMapper(_, this))
+        classTag[LoadBalancer] -> (new LoadBalancerMapper(_, this)),
+        classTag[DhcpConfig] -> (new DhcpConfigMapper(_, this))
     )
 
+    private[topology] val snapshot =
+        if (config.topologySnapshotFile.isEmpty) null
+        else new TopologySnapshot(new File(config.topologySnapshotFile),
+                                  config.topologySnapshotInterval)
+
     register(this)
 
     def store = backend.ownershipStore
 
+    /** Writes the topology snapshot one last time, if enabled, and stops its
+      * periodic writes. */
+    def close(): Unit = {
+        if (snapshot ne null) snapshot.close()
+    }
+
+    /**
+     * Returns an observable for the topology object with the specified class
+     * and identifier from storage. If the topology snapshot is enabled and
+     * contains the object, the observable first emits the object from the
+     * snapshot.
+     */
+    private[topology] def objectObservable[T <: Message](clazz: Class[T],
+                                                         id: UUID)
+    : Observable[T] = {
+        if (snapshot eq null) store.observable(clazz, id)
+        else snapshot.observable(clazz, id, store.observable(clazz, id))
+    }
+
+    /**
+     * Returns an observable for a boolean state of the topology object with
+     * the specified class and identifier, given the observable of the state
+     * from storage. If the topology snapshot is enabled and contains the
+     * state, the observable first emits the state from the snapshot.
+     */
+    private[topology] def stateObservable(clazz: Class[_], id: UUID,
+                                          updates: Observable[Boolean])
+    : Observable[Boolean] = {
+        if (snapshot eq null) updates
+        else snapshot.stateObservable(clazz, id, updates)
+    }
+
     private def observableOf[D <: Device](id: UUID,
                                           tag: ClassTag[D]): Observable[D] = {
 
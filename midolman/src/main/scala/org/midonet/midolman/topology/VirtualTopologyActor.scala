@@ -190,6 +190,12 @@ object VirtualTopologyActor extends Referenceable {
         dev
     }
 
+    /**
+     * Returns the device if it is already loaded, or null otherwise. Unlike
+     * tryAsk, this does not request the device.
+     */
+    def cached[D <: AnyRef](id: UUID): D = topology.device[D](id)
+
     private val requestsFactory = Map[ClassTag[_], UUID => DeviceRequest](
         classTag[Port]              -> (new PortRequest(_)),
         classTag[BridgePort]        -> (new PortRequest(_)),
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology.devices
+
+import java.util.UUID
+
+import org.midonet.cluster.data.dhcp.{Host, Subnet}
+import org.midonet.cluster.util.UUIDUtil._
+import org.midonet.midolman.topology.VirtualTopology.Device
+import org.midonet.packets.MAC
+
+object DhcpConfig {
+
+    /**
+     * The identifier of the DHCP configuration of a bridge in the virtual
+     * topology, derived from the bridge identifier so that it doesn't
+     * collide with the bridge device. The derivation is its own inverse.
+     */
+    def idOf(bridgeId: UUID): UUID =
+        bridgeId.asProto.xorWith(0x6d1c34a2f0e94b07L, 0x8ab43e91c05d2f6eL)
+                .asJava
+
+    /** The identifier of the bridge of a DHCP configuration. */
+    def bridgeIdOf(id: UUID): UUID = idOf(id)
+
+    /** A static address assignment, with the subnet it belongs to. */
+    case class Assignment(host: Host, subnet: Subnet)
+
+    /**
+     * Builds the DHCP configuration of a bridge from its enabled subnets, in
+     * storage order, and their hosts. A MAC is assigned by the first subnet
+     * that can build replies and where it has an address.
+     */
+    def apply(bridgeId: UUID, subnets: Seq[(Subnet, Seq[Host])])
+    : DhcpConfig = {
+        val assignments = Map.newBuilder[MAC, Assignment]
+        val assigned = new java.util.HashSet[MAC]()
+        for ((subnet, hosts) <- subnets if subnet.isReplyReady;
+             host <- hosts if (host.getIp ne null) &&
+                              assigned.add(host.getMAC)) {
+            assignments += host.getMAC -> Assignment(host, subnet)
+        }
+        new DhcpConfig(bridgeId, subnets.map(_._1).toList,
+                       assignments.result())
+    }
+}
+
+/**
+ * The DHCP configuration of a bridge: its enabled subnets, and the static
+ * address assignments of its hosts indexed by MAC, such that a DHCP reply
+ * can be built without reading the storage.
+ */
+final class DhcpConfig(val bridgeId: UUID,
+                       val subnets: Seq[Subnet],
+                       assignments: Map[MAC, DhcpConfig.Assignment])
+    extends Device {
+
+    /** Gets the static assignment for a MAC, if any. */
+    def assignment(mac: MAC): Option[DhcpConfig.Assignment] =
+        assignments.get(mac)
+
+    override def toString =
+        s"DhcpConfig [bridgeId=$bridgeId subnets=${subnets.size} " +
+        s"assignments=${assignments.size}]"
+}
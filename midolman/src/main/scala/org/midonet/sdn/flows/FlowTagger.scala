@@ -84,6 +84,29 @@ object FlowTagger {
         tag
     }
 
+    /**
+     * Tag for the flows that evaluated a rule, such that changing a rule only
+     * invalidates the flows that may have been affected by it. Only the rules
+     * that match on the packet fields tag the flows, see Rule.flowTag.
+     */
+    case class RuleTag(rule: UUID) extends FlowTag {
+        override def toString = "rule:" + rule
+    }
+
+    val cachedRuleTags = new ThreadLocal[TagsTrie] {
+        override def initialValue = new TagsTrie
+    }
+
+    def tagForRule(rule: UUID): FlowTag = {
+        val segment = cachedRuleTags.get().getOrAddSegment(rule)
+        var tag = segment.value
+        if (tag eq null) {
+            tag = new RuleTag(rule)
+            segment.value = tag
+        }
+        tag
+    }
+
     case class PortTxTag(port: UUID) extends FlowTag with MeterTag {
         override def toString = "port:tx:" + port
     }
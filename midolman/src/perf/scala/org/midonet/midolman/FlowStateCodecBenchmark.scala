@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.io.ByteArrayInputStream
+import java.lang.management.ManagementFactory
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.FlowStatePackets._
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
+import org.midonet.midolman.state._
+import org.midonet.packets.{FlowStateEthernet, IPv4Addr}
+import org.midonet.rpc.{FlowStateProto => Proto}
+import org.midonet.util.FixedArrayOutputStream
+
+object FlowStateCodecBenchmark {
+    final val Iterations = 100000
+
+    /* Bytes allocated by the current thread, if the JVM reports them. */
+    def allocatedBytes: Long = ManagementFactory.getThreadMXBean match {
+        case mx: com.sun.management.ThreadMXBean =>
+            mx.getThreadAllocatedBytes(Thread.currentThread().getId)
+        case _ => 0L
+    }
+
+    /* Keeps the last keys received, as the tables would. */
+    class Consumer extends FlowStateDecoder.Handler {
+        var conntrack: ConnTrackKey = _
+        var nat: NatKey = _
+        var binding: NatBinding = _
+
+        override def conntrackKey(k: ConnTrackKey): Unit = conntrack = k
+        override def natEntry(k: NatKey, v: NatBinding): Unit = {
+            nat = k
+            binding = v
+        }
+        override def traceEntry(k: TraceKey, ctx: TraceContext): Unit = { }
+    }
+}
+
+/*
+ * Encoding and decoding of the flow state message of a new connection, with
+ * a conntrack key and a NAT entry, using the protobuf generated code as the
+ * replicator did, and the hand-written codec. Run with -prof gc to see the
+ * allocation rates; the tear down also prints the bytes allocated per
+ * message by each of the operations.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Benchmark)
+class FlowStateCodecBenchmark {
+    import org.midonet.midolman.FlowStateCodecBenchmark._
+
+    val sender = UUID.randomUUID()
+    val ingressPort = UUID.randomUUID()
+    val conntrackKey = ConnTrackKey(IPv4Addr.random, 32768, IPv4Addr.random,
+                                    80, 6, UUID.randomUUID())
+    val natKey = NatKey(NatState.FWD_SNAT, IPv4Addr.random, 32768,
+                        IPv4Addr.random, 80, 6, UUID.randomUUID())
+    val natBinding = NatBinding(IPv4Addr.random, 40000)
+
+    val buffer =
+        new Array[Byte](FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH)
+    val stream = new FixedArrayOutputStream(buffer)
+    val txState = Proto.FlowState.newBuilder()
+    val txNatEntry = Proto.NatEntry.newBuilder()
+    val txMessage = Proto.StateMessage.newBuilder()
+    val encoder = new FlowStateEncoder(buffer)
+    val decoder = new FlowStateDecoder
+    val consumer = new Consumer
+    var message: Array[Byte] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        message = buffer.take(codecEncode())
+    }
+
+    @TearDown
+    def tearDown(): Unit = {
+        def perMessage(op: => Any): Long = {
+            val start = allocatedBytes
+            var i = 0
+            while (i < Iterations) {
+                op
+                i += 1
+            }
+            (allocatedBytes - start) / Iterations
+        }
+        println(s"\nBytes allocated per message: protobuf encoding " +
+                s"${perMessage(protobufEncode())}, codec encoding " +
+                s"${perMessage(codecEncode())}, protobuf decoding " +
+                s"${perMessage(protobufDecode())}, codec decoding " +
+                s"${perMessage(codecDecode())}")
+    }
+
+    @Benchmark
+    def protobufEncode(): Int = {
+        txState.clear()
+        txState.setConntrackKey(connTrackKeyToProto(conntrackKey))
+        txNatEntry.clear()
+        txNatEntry.setK(natKeyToProto(natKey))
+                  .setV(natBindingToProto(natBinding))
+        txState.addNatEntries(txNatEntry.build())
+        txState.setIngressPort(uuidToProto(ingressPort))
+        txMessage.clear()
+        txMessage.setSender(uuidToProto(sender)).setEpoch(0L).setSeq(0x1)
+        txMessage.addNewState(txState.build())
+        val built = txMessage.build()
+        stream.reset()
+        built.writeDelimitedTo(stream)
+        built.getSerializedSize
+    }
+
+    @Benchmark
+    def codecEncode(): Int = {
+        encoder.reset()
+        encoder.startMessage(0x1, sender, 0L)
+        encoder.conntrackKey(conntrackKey)
+        encoder.natEntry(natKey, natBinding)
+        encoder.ingressPort(ingressPort)
+        encoder.endMessage()
+    }
+
+    @Benchmark
+    def protobufDecode(): Consumer = {
+        val msg = Proto.StateMessage.parseDelimitedFrom(
+            new ByteArrayInputStream(message))
+        val state = msg.getNewState(0)
+        consumer.conntrackKey(connTrackKeyFromProto(state.getConntrackKey))
+        val nat = state.getNatEntries(0)
+        consumer.natEntry(natKeyFromProto(nat.getK),
+                          natBindingFromProto(nat.getV))
+        consumer
+    }
+
+    @Benchmark
+    def codecDecode(): Consumer = {
+        decoder.decodeDelimited(message, 0, message.length, consumer)
+        consumer
+    }
+}
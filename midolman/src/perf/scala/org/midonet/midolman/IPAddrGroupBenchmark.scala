@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.{ThreadLocalRandom, TimeUnit}
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.simulation.IPAddrGroup
+import org.midonet.packets.{IPAddr, IPv4Addr}
+
+object IPAddrGroupBenchmark {
+    final val Addrs = 100000
+}
+
+/*
+ * Lookups and updates in an IP address group of 100k IPv4 addresses, against
+ * the immutable set of addresses the group used to wrap, rebuilt on every
+ * update.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Benchmark)
+class IPAddrGroupBenchmark {
+    import org.midonet.midolman.IPAddrGroupBenchmark._
+
+    val addrs = Array.fill[IPAddr](Addrs)(IPv4Addr.random)
+    val others = Array.fill[IPAddr](Addrs)(IPv4Addr.random)
+    var group: IPAddrGroup = _
+    var set: Set[IPAddr] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        group = IPAddrGroup(UUID.randomUUID(), addrs)
+        set = addrs.toSet
+    }
+
+    private def randomAddr: IPAddr = {
+        val random = ThreadLocalRandom.current()
+        if (random.nextBoolean()) addrs(random.nextInt(Addrs))
+        else others(random.nextInt(Addrs))
+    }
+
+    @Benchmark
+    def lookup(): Boolean = group.contains(randomAddr)
+
+    @Benchmark
+    def lookupSet(): Boolean = set.contains(randomAddr)
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    def update(): IPAddrGroup = {
+        val random = ThreadLocalRandom.current()
+        group.updated(added = Seq(others(random.nextInt(Addrs))),
+                      removed = Seq(addrs(random.nextInt(Addrs))))
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    def rebuild(): IPAddrGroup = {
+        val random = ThreadLocalRandom.current()
+        addrs(random.nextInt(Addrs)) = others(random.nextInt(Addrs))
+        IPAddrGroup(group.id, addrs)
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    def rebuildSet(): Set[IPAddr] = {
+        val random = ThreadLocalRandom.current()
+        addrs(random.nextInt(Addrs)) = others(random.nextInt(Addrs))
+        addrs.toSet
+    }
+}
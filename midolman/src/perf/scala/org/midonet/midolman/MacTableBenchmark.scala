@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.{ConcurrentHashMap, ThreadLocalRandom, TimeUnit}
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.cluster.client.MacLearningTable
+import org.midonet.midolman.topology.LocalMacTable
+import org.midonet.packets.MAC
+import org.midonet.util.functors.Callback3
+
+object MacTableBenchmark {
+    final val Macs = 100000
+    final val Ports = 16
+
+    /* Stands for the replicated map, without the storage writes. */
+    class ReplicatedTable extends MacLearningTable {
+        val map = new ConcurrentHashMap[MAC, UUID]()
+        override def get(mac: MAC): UUID = map.get(mac)
+        override def add(mac: MAC, port: UUID): Unit = map.put(mac, port)
+        override def remove(mac: MAC, port: UUID): Unit = map.remove(mac, port)
+        override def notify(cb: Callback3[MAC, UUID, UUID]): Unit = { }
+    }
+}
+
+/*
+ * Lookups and learning in a bridge's local MAC table with 100k MACs. The
+ * churn group learns MACs at random ports and forgets others while one
+ * thread flushes the writes, as the bridge manager does.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Benchmark)
+class MacTableBenchmark {
+    import org.midonet.midolman.MacTableBenchmark._
+
+    @Param(Array("0", "2000"))
+    var agingMillis: Long = _
+
+    val macs = Array.fill(Macs)(MAC.random())
+    val ports = Array.fill(Ports)(UUID.randomUUID())
+    val replicated = new ReplicatedTable
+    val tables = Map[Short, MacLearningTable](0.toShort -> replicated)
+    var local: LocalMacTable = _
+    var table: MacLearningTable = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        local = new LocalMacTable(agingMillis)
+        table = local.table(0, replicated)
+        var i = 0
+        while (i < Macs) {
+            local.learn(macs(i), 0, ports(i % Ports), 0)
+            i += 1
+        }
+        local.flush(0, tables)
+    }
+
+    @TearDown
+    def tearDown(): Unit = {
+        println(s"\n${local.writeCount} writes, " +
+                s"${local.suppressedCount} suppressed")
+    }
+
+    private def randomMac = macs(ThreadLocalRandom.current().nextInt(Macs))
+
+    private def randomPort = ports(ThreadLocalRandom.current().nextInt(Ports))
+
+    @Benchmark
+    def lookup(): UUID = table.get(randomMac)
+
+    @Benchmark
+    def lookupReplicated(): UUID = replicated.get(randomMac)
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    def learn(): Boolean = {
+        val now = System.currentTimeMillis()
+        local.forget(randomMac, 0, randomPort, now)
+        local.learn(randomMac, 0, randomPort, now)
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    def flush(): Int = local.flush(System.currentTimeMillis(), tables)
+}
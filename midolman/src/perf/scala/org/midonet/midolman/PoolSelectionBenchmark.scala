@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.{ThreadLocalRandom, TimeUnit}
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.simulation.{Pool, PoolMember}
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPv4Addr, TCP}
+import org.midonet.util.collection.{MaglevSelector, WeightedSelector}
+
+object PoolSelectionBenchmark {
+    final val Flows = 4096
+
+    val memberKey = (pm: PoolMember) =>
+        pm.id.getMostSignificantBits ^ pm.id.getLeastSignificantBits
+
+    def member(i: Int, weight: Int) =
+        new PoolMember(UUID.randomUUID(), IPv4Addr(0x0a000000 + i), 80, weight)
+
+    /* The fraction of a table's hashes that select a different member. */
+    def moved(a: MaglevSelector[PoolMember],
+              b: MaglevSelector[PoolMember]): Double = {
+        var count = 0
+        var hash = 0
+        while (hash < a.size) {
+            if (a.select(hash) ne b.select(hash)) count += 1
+            hash += 1
+        }
+        count.toDouble / a.size
+    }
+}
+
+/*
+ * Selection of a pool member for new flows, with the random weighted
+ * selector of round robin pools and the Maglev table of source hash pools,
+ * including the hash of the flow. The tear down prints the fraction of flows
+ * that move to another member when a member is removed or added, against
+ * the ideal fraction of flows of that member.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Benchmark)
+class PoolSelectionBenchmark {
+    import org.midonet.midolman.PoolSelectionBenchmark._
+
+    @Param(Array("4", "32", "256"))
+    var members: Int = _
+
+    var pool: Array[PoolMember] = _
+    var weighted: WeightedSelector[PoolMember] = _
+    var maglev: MaglevSelector[PoolMember] = _
+    val flows = Array.fill(Flows) {
+        val rand = ThreadLocalRandom.current()
+        new FlowMatch().setNetworkSrc(IPv4Addr(rand.nextInt()))
+                       .setSrcPort(rand.nextInt(65536))
+                       .setNetworkProto(TCP.PROTOCOL_NUMBER)
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        val rand = ThreadLocalRandom.current()
+        pool = Array.tabulate(members)(member(_, rand.nextInt(1, 5)))
+        weighted = WeightedSelector(pool)
+        maglev = MaglevSelector(pool, memberKey)
+    }
+
+    @TearDown
+    def tearDown(): Unit = {
+        val totalWeight = pool.map(_.weight).sum
+        val removed = MaglevSelector(pool.tail, memberKey)
+        val added = MaglevSelector(pool :+ member(members, 1), memberKey)
+        val idealRemoved = pool.head.weight.toDouble / totalWeight
+        val idealAdded = 1.0 / (totalWeight + 1)
+        println(f"\nRemoving a member moves ${moved(maglev, removed)}%.4f " +
+                f"of the flows (ideal $idealRemoved%.4f), adding one " +
+                f"${moved(maglev, added)}%.4f (ideal $idealAdded%.4f)")
+    }
+
+    private def randomFlow =
+        flows(ThreadLocalRandom.current().nextInt(Flows))
+
+    @Benchmark
+    def roundRobin(): PoolMember = weighted.select()
+
+    @Benchmark
+    def sourceHash(): PoolMember =
+        maglev.select(Pool.flowHash(randomFlow, stickySourceIP = false))
+
+    @Benchmark
+    def build(): MaglevSelector[PoolMember] = MaglevSelector(pool, memberKey)
+}
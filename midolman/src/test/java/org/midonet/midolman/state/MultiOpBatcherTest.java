@@ -0,0 +1,263 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.state;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.midonet.cluster.ZookeeperTest;
+import org.midonet.midolman.layer3.Route;
+import org.midonet.midolman.state.zkManagers.RouteZkManager;
+import org.midonet.midolman.state.zkManagers.RouterZkManager;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.slf4j.LoggerFactory.getLogger;
+
+public class MultiOpBatcherTest extends ZookeeperTest {
+
+    private static TestingServer server;
+
+    private ZkManager zk;
+
+    /* Runs the flushes on demand, so that the test controls what is
+     * queued when a batch is written. */
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        zk = injector.getInstance(ZkManager.class);
+    }
+
+    @After // overriding so we can annotate it
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @BeforeClass
+    public static void initZkTestingServer() throws Exception {
+        if (server == null) {
+            server = new TestingServer(ZK_PORT);
+            server.start();
+        }
+    }
+
+    @AfterClass
+    public static void shutdownZkTestingServer() throws Exception {
+        if (server != null) {
+            try {
+                server.close();
+            } catch (Throwable e) {
+                getLogger(MultiOpBatcherTest.class)
+                    .warn("Failed to stop ZK testing server", e);
+            } finally {
+                server = null;
+            }
+        }
+    }
+
+    private MultiOpBatcher batcher() {
+        return new MultiOpBatcher(getDirectory(), 256, 1, executor);
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+    private Op create(String path) {
+        return zk.getPersistentCreateOp(getPath(path), null);
+    }
+
+    private Route route(UUID routerId, int i) {
+        return new Route(0, 0, 0x0a000000 + (i << 8), 24,
+                         Route.NextHop.BLACKHOLE, null, 0, 100, null,
+                         routerId);
+    }
+
+    @Test
+    public void testConcurrentGroupsAreWrittenInOneBatch() throws Exception {
+        MultiOpBatcher batcher = batcher();
+
+        ListenableFuture<List<OpResult>> f1 =
+            batcher.submit(Arrays.asList(create("/a"), create("/a/b")));
+        ListenableFuture<List<OpResult>> f2 =
+            batcher.submit(Arrays.asList(create("/c")));
+        ListenableFuture<OpResult> f3 = batcher.submit(create("/d"));
+        runTasks();
+
+        assertThat(batcher.getBatchCount(), is(1L));
+        assertThat(batcher.getOpCount(), is(4L));
+        assertThat(f1.get().size(), is(2));
+        assertThat(f2.get().size(), is(1));
+        assertThat(f3.get(), instanceOf(OpResult.CreateResult.class));
+        assertThat(zk.exists(getPath("/a/b")), is(true));
+        assertThat(zk.exists(getPath("/c")), is(true));
+        assertThat(zk.exists(getPath("/d")), is(true));
+    }
+
+    @Test
+    public void testFailedGroupDoesNotFailTheBatch() throws Exception {
+        zk.addPersistent(getPath("/exists"), null);
+        MultiOpBatcher batcher = batcher();
+
+        ListenableFuture<List<OpResult>> f1 =
+            batcher.submit(Arrays.asList(create("/a")));
+        ListenableFuture<List<OpResult>> f2 =
+            batcher.submit(Arrays.asList(create("/b"), create("/exists")));
+        ListenableFuture<List<OpResult>> f3 =
+            batcher.submit(Arrays.asList(create("/c")));
+        runTasks();
+
+        assertThat(f1.get().size(), is(1));
+        assertThat(f3.get().size(), is(1));
+        try {
+            f2.get();
+            fail("The group should have failed");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(),
+                       instanceOf(KeeperException.NodeExistsException.class));
+        }
+
+        assertThat(batcher.getBatchCount(), is(2L));
+        assertThat(zk.exists(getPath("/a")), is(true));
+        assertThat(zk.exists(getPath("/b")), is(false));
+        assertThat(zk.exists(getPath("/c")), is(true));
+    }
+
+    @Test
+    public void testBatchesAreBoundedInSize() throws Exception {
+        MultiOpBatcher batcher =
+            new MultiOpBatcher(getDirectory(), 2, 1, executor);
+
+        for (int i = 0; i < 5; i++) {
+            batcher.submit(create("/n" + i));
+        }
+        runTasks();
+
+        assertThat(batcher.getBatchCount(), is(3L));
+        for (int i = 0; i < 5; i++) {
+            assertThat(zk.exists(getPath("/n" + i)), is(true));
+        }
+    }
+
+    @Test
+    public void testBuilderCompletesEachOperation() throws Exception {
+        zk.addPersistent(getPath("/a"), "x".getBytes());
+        MultiOpBatcher.Builder builder = batcher().builder();
+
+        ListenableFuture<OpResult> created =
+            builder.create(getPath("/b"), null, CreateMode.PERSISTENT);
+        ListenableFuture<OpResult> updated =
+            builder.setData(getPath("/a"), "y".getBytes());
+        ListenableFuture<OpResult> deleted = builder.delete(getPath("/b"));
+        builder.commit();
+        runTasks();
+
+        assertThat(created.get(), instanceOf(OpResult.CreateResult.class));
+        assertThat(updated.get(), instanceOf(OpResult.SetDataResult.class));
+        assertThat(deleted.get(), instanceOf(OpResult.DeleteResult.class));
+        assertThat(new String(zk.get(getPath("/a"))), is("y"));
+    }
+
+    @Test
+    public void testAsyncMultiFailsWithStateAccessException() throws Exception {
+        zk.addPersistent(getPath("/exists"), null);
+        try {
+            zk.asyncMulti(Arrays.asList(create("/exists")))
+                .get(10, TimeUnit.SECONDS);
+            fail("The multi should have failed");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(),
+                       instanceOf(StatePathExistsException.class));
+        }
+    }
+
+    @Test
+    public void testManyCallersShareFewBatches() throws Exception {
+        final int count = 2000;
+        zk.addPersistent(getPath("/nodes"), null);
+        MultiOpBatcher batcher = batcher();
+
+        List<ListenableFuture<List<OpResult>>> futures =
+            new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            futures.add(batcher.submit(Arrays.asList(create("/nodes/" + i))));
+        }
+        runTasks();
+
+        assertThat(Futures.allAsList(futures).get().size(), is(count));
+        assertThat(batcher.getBatchCount(), is((count + 255L) / 256));
+        assertThat(batcher.getOpCount(), is((long) count));
+        assertThat(zk.getChildren(getPath("/nodes")).size(), is(count));
+    }
+
+    @Test
+    public void testRouteCreatesAreBatched() throws Exception {
+        final int count = 200;
+        RouteZkManager routes = injector.getInstance(RouteZkManager.class);
+        UUID routerId = injector.getInstance(RouterZkManager.class).create();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            routes.create(route(routerId, i), false);
+        }
+        long blockingNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<ListenableFuture<UUID>> futures = new ArrayList<>(count);
+        for (int i = count; i < 2 * count; i++) {
+            futures.add(routes.asyncCreate(UUID.randomUUID(),
+                                           route(routerId, i), false));
+        }
+        Futures.allAsList(futures).get(30, TimeUnit.SECONDS);
+        long batchedNanos = System.nanoTime() - start;
+
+        getLogger(MultiOpBatcherTest.class).info(
+            "Route creates per second: {} blocking, {} batched",
+            count * 1000000000L / blockingNanos,
+            count * 1000000000L / batchedNanos);
+        assertThat(routes.list(routerId).size(), is(2 * count));
+    }
+}
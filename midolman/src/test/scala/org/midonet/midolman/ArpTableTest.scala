@@ -47,6 +47,8 @@ class ArpTableTest extends MidolmanSpec {
     private final val ARP_TIMEOUT_SECS = 3
     private final val ARP_STALE_SECS = 5
     private final val ARP_EXPIRATION_SECS = 10
+    private final val ARP_NEGATIVE_SECS = 5
+    private final val ARP_MAX_PER_PORT = 2
 
     private val hisIp = "180.0.1.1"
     private val nwAddr = "180.0.1.0"
@@ -65,6 +67,8 @@ class ArpTableTest extends MidolmanSpec {
           |arptable.arp_timeout = ${ARP_TIMEOUT_SECS}s
           |arptable.arp_stale = ${ARP_STALE_SECS}s
           |arptable.arp_expiration = ${ARP_EXPIRATION_SECS}s
+          |arptable.arp_negative_ttl = ${ARP_NEGATIVE_SECS}s
+          |arptable.arp_max_requests_per_port = ${ARP_MAX_PER_PORT}
         """.stripMargin
 
     override protected def fillConfig(config: Config) = {
@@ -266,5 +270,49 @@ class ArpTableTest extends MidolmanSpec {
                         "was " + ex.getMessage, ex)
             }
         }
+
+        scenario("Concurrent misses send a single ARP request") {
+            val mac = MAC.fromString("aa:bb:aa:cc:dd:cc")
+
+            val macTry1 = Try(router.arpTable.get(hisIp, uplinkPort))
+            val macTry2 = Try(router.arpTable.get(hisIp, uplinkPort))
+            expectEmitArp(uplinkPort.id, myMac, myIp, hisIp)
+            arps should be ('empty)
+
+            router.arpTable.set(hisIp, mac)
+            extractMac(macTry1) should be (mac)
+            extractMac(macTry2) should be (mac)
+        }
+
+        scenario("Unreachable addresses are negatively cached") {
+            val mac = MAC.fromString("aa:bb:aa:cc:dd:cc")
+
+            Try(router.arpTable.get(hisIp, uplinkPort))
+            expectEmitArp(uplinkPort.id, myMac, myIp, hisIp)
+            advanceAndGetTime(ARP_RETRY_SECS)
+            expectEmitArp(uplinkPort.id, myMac, myIp, hisIp)
+            advanceAndGetTime(ARP_TIMEOUT_SECS)
+
+            val macTry = Try(router.arpTable.get(hisIp, uplinkPort))
+            arps should be ('empty)
+            intercept[ArpTimeoutException] { extractMac(macTry) }
+
+            advanceAndGetTime(ARP_NEGATIVE_SECS)
+            Try(router.arpTable.get(hisIp, uplinkPort))
+            expectEmitArp(uplinkPort.id, myMac, myIp, hisIp)
+
+            router.arpTable.set(hisIp, mac)
+            router.arpTable.get(hisIp, uplinkPort) should be (mac)
+        }
+
+        scenario("ARP requests are rate limited per port") {
+            for (ip <- Seq("180.0.1.10", "180.0.1.11", "180.0.1.12"))
+                Try(router.arpTable.get(ip, uplinkPort))
+            arps.size() should be (ARP_MAX_PER_PORT)
+            arps.clear()
+
+            advanceAndGetTime(ARP_RETRY_SECS)
+            arps.size() should be (ARP_MAX_PER_PORT)
+        }
     }
 }
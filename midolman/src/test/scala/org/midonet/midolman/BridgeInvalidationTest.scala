@@ -93,6 +93,8 @@ class BridgeInvalidationTest extends MidolmanSpec
         super.fillConfig(config).withValue(
             "bridge.mac_port_mapping_expire",
             ConfigValueFactory.fromAnyRef(s"${macPortExpiration}ms"))
+        .withValue("bridge.mac_table_aging",
+                   ConfigValueFactory.fromAnyRef("0ms"))
     }
 
     registerActors(VirtualTopologyActor -> (() => new VirtualTopologyActor()
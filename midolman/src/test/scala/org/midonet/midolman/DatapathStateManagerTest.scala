@@ -27,7 +27,7 @@ import org.midonet.cluster.data.TunnelZone.{Type => TunnelType}
 import org.midonet.midolman.datapath.DatapathPortEntangler
 import org.midonet.midolman.topology.rcu.{PortBinding, ResolvedHost}
 import org.midonet.odp.DpPort
-import org.midonet.odp.ports.{GreTunnelPort, VxLanTunnelPort}
+import org.midonet.odp.ports.{GreTunnelPort, InternalPort, VxLanTunnelPort}
 import org.midonet.sdn.flows.FlowTagger
 import org.midonet.util.concurrent._
 import org.scalatest.junit.JUnitRunner
@@ -101,6 +101,28 @@ class DatapathStateManagerTest extends Suite with Matchers with BeforeAndAfter {
         }
     }
 
+    def testDpPortUnchanged {
+        stateMgr.initialDpPorts = Map(0 -> "midonet", 1 -> "tngre-overlay",
+                                      2 -> "tnvxlan-overlay", 3 -> "tap0")
+        stateMgr registerInternalPort
+            (DpPort fakeFrom (new InternalPort("midonet"), 0))
+                .asInstanceOf[InternalPort]
+        stateMgr setTunnelOverlayGre
+            (DpPort fakeFrom (GreTunnelPort make "tngre-overlay", 1))
+                .asInstanceOf[GreTunnelPort]
+        stateMgr setTunnelOverlayVxLan
+            (DpPort fakeFrom (VxLanTunnelPort make "tnvxlan-overlay", 4))
+                .asInstanceOf[VxLanTunnelPort]
+
+        stateMgr isDpPortUnchanged 0 shouldBe true
+        stateMgr isDpPortUnchanged 1 shouldBe true
+        // recreated with another number
+        stateMgr isDpPortUnchanged 2 shouldBe false
+        stateMgr isDpPortUnchanged 4 shouldBe false
+        // not recreated yet
+        stateMgr isDpPortUnchanged 3 shouldBe false
+    }
+
     def testHostSet {
         List[ResolvedHost](
             null
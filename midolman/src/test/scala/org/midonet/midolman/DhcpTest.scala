@@ -21,6 +21,8 @@ import java.util.LinkedList
 
 import scala.collection.JavaConversions._
 import scala.collection.mutable
+import scala.concurrent.Await
+import scala.concurrent.duration._
 
 import org.junit.runner.RunWith
 import org.midonet.midolman.config.MidolmanConfig
@@ -36,13 +38,15 @@ import org.midonet.midolman.layer3.Route
 import org.midonet.midolman.layer3.Route._
 import org.midonet.midolman.simulation.DhcpValueParser
 import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
-import org.midonet.midolman.topology.VirtualTopologyActor
+import org.midonet.midolman.topology.{VirtualTopology, VirtualTopologyActor}
+import org.midonet.midolman.topology.devices.DhcpConfig
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.packets._
 import org.midonet.packets.util.PacketBuilder._
+import org.midonet.util.MidonetEventually
 
 @RunWith(classOf[JUnitRunner])
-class DhcpTest extends MidolmanSpec {
+class DhcpTest extends MidolmanSpec with MidonetEventually {
 
     registerActors(VirtualTopologyActor -> (() => new VirtualTopologyActor))
 
@@ -141,11 +145,26 @@ class DhcpTest extends MidolmanSpec {
 
         fetchTopology(router, routerPort1, routerPort2, routerPort3, bridge,
                       bridgeIntPort1, bridgeIntPort2, bridgePort1, bridgePort2)
+        Await.result(VirtualTopology.get[DhcpConfig](dhcpConfigId), 3 seconds)
 
         workflow = packetWorkflow(Map(bridgePortNumber1 -> bridgePort1.getId,
                                       bridgePortNumber2 -> bridgePort2.getId)).underlyingActor
     }
 
+    private def dhcpConfigId = DhcpConfig.idOf(bridge.getId)
+
+    /* Waits for the DHCP configuration to be read again after the update,
+     * before the test sends its DHCP requests. */
+    override def updatedhcpHost(bridge: Bridge, subnet: Subnet,
+                                host: DhcpHost): Unit = {
+        val config = VirtualTopology.tryGet[DhcpConfig](dhcpConfigId)
+        super.updatedhcpHost(bridge, subnet, host)
+        eventually {
+            VirtualTopology.tryGet[DhcpConfig](dhcpConfigId) should not be
+                theSameInstanceAs (config)
+        }
+    }
+
     def extraDhcpOptToDhcpOption(opt: ExtraDhcpOpt): Option[DHCPOption] = for {
         code <- DhcpValueParser.parseDhcpOptionCode(opt.optName)
         value <- DhcpValueParser.parseDhcpOptionValue(code, opt.optValue)
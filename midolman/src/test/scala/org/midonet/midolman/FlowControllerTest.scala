@@ -16,19 +16,25 @@
 
 package org.midonet.midolman
 
-import java.util.{ArrayList, HashSet => JHashSet}
+import java.util.{ArrayList, Arrays, UUID, HashSet => JHashSet}
 
 import scala.collection.JavaConversions._
+import scala.collection.mutable
 import scala.util.Random
 
+import com.typesafe.config.{Config, ConfigFactory}
 import org.junit.runner.RunWith
 import org.midonet.midolman.flows.{ManagedFlow, FlowExpiration, FlowInvalidation}
+import org.midonet.midolman.flows.FlowAdoption.{DumpFlows, EndFlowAdoption}
 import org.scalatest.junit.JUnitRunner
 
+import org.midonet.midolman.DatapathController.DatapathReady
+import org.midonet.midolman.UnderlayResolver.Route
 import org.midonet.midolman.simulation.PacketContext
+import org.midonet.midolman.topology.rcu.ResolvedHost
 import org.midonet.midolman.util.MidolmanSpec
-import org.midonet.odp.flows.{FlowActions, FlowKeys}
-import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows.{FlowAction, FlowActionOutput, FlowActions, FlowKey, FlowKeys}
+import org.midonet.odp.{Datapath, DpPort, Flow, FlowMatch}
 import org.midonet.sdn.flows.FlowTagger.{FlowTag, TunnelKeyTag}
 import org.midonet.sdn.flows._
 import org.midonet.util.functors.Callback0
@@ -42,6 +48,15 @@ class FlowControllerTest extends MidolmanSpec {
 
     def flowController = FlowController.as[FlowController]
 
+    // Room for 11 flows in the flow controller
+    override def fillConfig(config: Config) = {
+        super.fillConfig(ConfigFactory.parseString(
+            """
+              |datapath.warm_restart : true
+              |datapath.max_flow_count : 10
+            """.stripMargin).withFallback(config))
+    }
+
     feature("The flow controller processes wildcard flows") {
         scenario("Addition and removal of a flow") {
 
@@ -154,6 +169,169 @@ class FlowControllerTest extends MidolmanSpec {
         }
     }
 
+    feature("The flow controller adopts the flows of the datapath") {
+        scenario("Flows whose ports are unchanged are adopted") {
+            Given("A datapath flow whose ports are unchanged")
+            unchangedPorts ++= Seq(1, 2)
+            val flow = dumpedFlow(1, inPort = 1, outPort = 2)
+
+            When("The datapath is ready")
+            startAdoption(flow)
+
+            Then("The flow is adopted")
+            flowController.getFlow(flow.getMatch) should not be null
+            flowController.currentDpFlowsMetric.getValue shouldBe 1
+            deletedFlows shouldBe empty
+        }
+
+        scenario("Flows whose ports are not back yet are deferred") {
+            Given("A datapath flow whose output port is not back yet")
+            unchangedPorts += 1
+            val flow = dumpedFlow(1, inPort = 1, outPort = 2)
+
+            When("The datapath is ready")
+            startAdoption(flow)
+
+            Then("The flow is neither adopted nor deleted")
+            flowController.getFlow(flow.getMatch) shouldBe null
+            deletedFlows shouldBe empty
+
+            When("The port is back when the adoption window expires")
+            unchangedPorts += 2
+            FlowController ! EndFlowAdoption
+
+            Then("The flow is adopted")
+            flowController.getFlow(flow.getMatch) should not be null
+            deletedFlows shouldBe empty
+        }
+
+        scenario("Flows are deleted when the adoption window expires") {
+            Given("A datapath flow whose ports never come back")
+            val flow = dumpedFlow(1, inPort = 1, outPort = 2)
+            startAdoption(flow)
+
+            When("The adoption window expires")
+            FlowController ! EndFlowAdoption
+
+            Then("The flow is deleted")
+            flowController.getFlow(flow.getMatch) shouldBe null
+            deletedFlows shouldBe Seq(flow.getMatch)
+        }
+
+        scenario("Flows that don't fit in the flow table are deleted") {
+            Given("More datapath flows than fit in the flow table")
+            unchangedPorts ++= Seq(1, 2)
+            val flows = (1 to 12) map (dumpedFlow(_, inPort = 1, outPort = 2))
+
+            When("The datapath is ready")
+            startAdoption(flows: _*)
+
+            Then("The flows that fit are adopted and the last one is deleted")
+            flowController.currentDpFlowsMetric.getValue shouldBe 11
+            flowController.getFlow(flows.last.getMatch) shouldBe null
+            deletedFlows shouldBe Seq(flows.last.getMatch)
+        }
+
+        scenario("The dump is retried when the flow processor is busy") {
+            Given("A flow processor that rejects the first dump")
+            unchangedPorts ++= Seq(1, 2)
+            val flow = dumpedFlow(1, inPort = 1, outPort = 2)
+            mockFlowEjector.rejectedDumps = 1
+
+            When("The datapath is ready")
+            startAdoption(flow)
+
+            Then("The flow is not adopted yet")
+            flowController.getFlow(flow.getMatch) shouldBe null
+
+            When("The dump is retried")
+            FlowController ! DumpFlows
+
+            Then("The flow is adopted")
+            flowController.getFlow(flow.getMatch) should not be null
+        }
+
+        scenario("Adopted flows are invalidated with the rules") {
+            Given("Two adopted flows")
+            unchangedPorts ++= Seq(1, 2)
+            val flows = (1 to 2) map (dumpedFlow(_, inPort = 1, outPort = 2))
+            startAdoption(flows: _*)
+            flowController.currentDpFlowsMetric.getValue shouldBe 2
+
+            When("A rule is invalidated")
+            flowInvalidator.scheduleInvalidationFor(
+                FlowTagger.tagForRule(UUID.randomUUID()))
+
+            Then("The adopted flows are removed")
+            for (flow <- flows)
+                flowController.getFlow(flow.getMatch) shouldBe null
+            flowController.currentDpFlowsMetric.getValue shouldBe 0
+            deletedFlows should contain theSameElementsAs flows.map(_.getMatch)
+        }
+
+        scenario("Adopted flows are tagged with their ports") {
+            Given("Adopted flows using different datapath ports")
+            val vport = UUID.randomUUID()
+            unchangedPorts ++= Seq(1, 2, 3)
+            vports += 2 -> vport
+            val toPort2 = dumpedFlow(1, inPort = 1, outPort = 2)
+            val toPort3 = dumpedFlow(2, inPort = 1, outPort = 3)
+            startAdoption(toPort2, toPort3)
+
+            Then("They are tagged with their ports and vports")
+            flowController.getFlow(toPort2.getMatch).tags should contain allOf (
+                FlowTagger.tagForDpPort(1), FlowTagger.tagForDpPort(2),
+                FlowTagger.tagForDevice(vport))
+
+            When("The datapath port of one of them is invalidated")
+            flowInvalidator.scheduleInvalidationFor(FlowTagger.tagForDpPort(2))
+
+            Then("Only the flow using that port is removed")
+            flowController.getFlow(toPort2.getMatch) shouldBe null
+            flowController.getFlow(toPort3.getMatch) should not be null
+
+            When("A device is invalidated")
+            flowInvalidator.scheduleInvalidationFor(
+                FlowTagger.tagForDevice(UUID.randomUUID()))
+
+            Then("The other adopted flows are removed")
+            flowController.getFlow(toPort3.getMatch) shouldBe null
+        }
+    }
+
+    private val unchangedPorts = mutable.Set[Int]()
+    private val deletedFlows = mutable.ArrayBuffer[FlowMatch]()
+    private val vports = mutable.Map[Int, UUID]()
+
+    private val dpState = new DatapathState {
+        override def getDpPortForInterface(itfName: String): Option[DpPort] = ???
+        override def dpPortNumberForTunnelKey(tunnelKey: Long): Option[DpPort] = ???
+        override def getVportForDpPortNumber(portNum: Integer): Option[UUID] =
+            vports.get(portNum)
+        override def getDpPortNumberForVport(vportId: UUID): Option[Integer] = ???
+        override def getDpPortName(num: Integer): Option[String] = ???
+        override def host = new ResolvedHost(UUID.randomUUID(), true,
+                                             Map(), Map())
+        override def peerTunnelInfo(peer: UUID): Option[Route] = ???
+        override def isVtepTunnellingPort(portNumber: Integer): Boolean = ???
+        override def isOverlayTunnellingPort(portNumber: Integer): Boolean = ???
+        override def vtepTunnellingOutputAction: FlowActionOutput = ???
+        override def getDescForInterface(itfName: String) = ???
+        override def isDpPortUnchanged(num: Int) = unchangedPorts contains num
+    }
+
+    private def dumpedFlow(key: Int, inPort: Int, outPort: Int): Flow =
+        new Flow(new FlowMatch(Arrays.asList[FlowKey](
+                     FlowKeys.inPort(inPort),
+                     FlowKeys.tunnel(key, key, key, 0))),
+                 Arrays.asList[FlowAction](FlowActions.output(outPort)))
+
+    private def startAdoption(flows: Flow*): Unit = {
+        mockFlowEjector.dumpedFlows = flows
+        mockFlowEjector.flowDeleteSubscribe(deletedFlows += _.getMatch)
+        FlowController ! DatapathReady(new Datapath(0, "midonet"), dpState)
+    }
+
     private def testFlowAdded(flow: TestableFlow,
                               state: MetricsSnapshot): ManagedFlow = {
         Then("The datapath flow metric should be incremented by one")
@@ -15,12 +15,16 @@
  */
 package org.midonet.midolman
 
-import java.util.UUID
+import java.nio.ByteBuffer
+import java.util.{List => JList, UUID}
 
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
 import scala.concurrent.Promise
 
 import akka.actor.Props
 import akka.testkit.TestActorRef
+import com.typesafe.config.{Config, ConfigFactory}
 import org.midonet.sdn.state.ShardedFlowStateTable
 
 import org.slf4j.helpers.NOPLogger
@@ -34,6 +38,7 @@ import org.midonet.midolman.PacketWorkflow._
 import org.midonet.midolman.UnderlayResolver.Route
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
+import org.midonet.midolman.management.{LogLevel, PacketTracer, PacketTracing}
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
@@ -58,6 +63,8 @@ class PacketWorkflowTest extends MidolmanSpec {
     def dda = ddaRef.underlyingActor
     var packetsOut = 0
     var stateMessagesSeen = 0
+    // The number of packets simulated when each state message was handled
+    var packetsSeenByStateMessages = List[Int]()
 
     val NoLogging = Logger(NOPLogger.NOP_LOGGER)
 
@@ -68,11 +75,17 @@ class PacketWorkflowTest extends MidolmanSpec {
 
     val cookie = 42
 
+    override def fillConfig(config: Config) = {
+        super.fillConfig(ConfigFactory.parseString(
+            "midolman.batch_simulation : true").withFallback(config))
+    }
+
     override def beforeTest() {
         createDda()
     }
 
-    def createDda(simulationExpireMillis: Long = 5000L): Unit = {
+    def createDda(simulationExpireMillis: Long = 5000L,
+                  dpPorts: Map[UUID, Int] = Map.empty): Unit = {
         if (ddaRef != null)
             actorSystem.stop(ddaRef)
 
@@ -89,7 +102,8 @@ class PacketWorkflowTest extends MidolmanSpec {
             override def getDpPortForInterface(itfName: String): Option[DpPort] = ???
             override def dpPortNumberForTunnelKey(tunnelKey: Long): Option[DpPort] = ???
             override def getVportForDpPortNumber(portNum: Integer): Option[UUID] = ???
-            override def getDpPortNumberForVport(vportId: UUID): Option[Integer] = ???
+            override def getDpPortNumberForVport(vportId: UUID): Option[Integer] =
+                dpPorts.get(vportId) map Int.box
             override def getDpPortName(num: Integer): Option[String] = ???
             override def host = new ResolvedHost(UUID.randomUUID(), true,
                                                  Map(), Map())
@@ -126,6 +140,28 @@ class PacketWorkflowTest extends MidolmanSpec {
 
     def makeUniquePacket(variation: Short): Packet = makeUniqueFrame(variation)
 
+    def exteriorPort(outboundFilter: Boolean = false): UUID = {
+        val bridge = newBridge("bridge")
+        val port = newBridgePort(bridge)
+        materializePort(port, hostId, "port")
+        if (outboundFilter)
+            newOutboundChainOnPort("chain", port)
+        fetchTopology(bridge, port)
+        port.getId
+    }
+
+    def emit(genPacket: GeneratedPacket, dpPorts: Map[UUID, Int])
+            : Seq[(Packet, JList[FlowAction])] = {
+        createDda(dpPorts = dpPorts)
+        packetsSeen = List()
+        val executed = ArrayBuffer[(Packet, JList[FlowAction])]()
+        mockDpChannel.packetsExecuteSubscribe(
+            (packet, actions) => executed += ((packet, actions)))
+        ddaRef ! PacketWorkflow.HandlePackets(Array(makePacket(1)))
+        dda.completeWithGenerated(Nil, genPacket)
+        executed
+    }
+
     feature("DeduplicationActor handles packets") {
         scenario("state messages are not deduplicated") {
             Given("four identical state packets")
@@ -157,6 +193,39 @@ class PacketWorkflowTest extends MidolmanSpec {
             packetsSeen map (_._2) should be (1 to 4)
         }
 
+        scenario("groups the packets of a batch by ingress port") {
+            Given("packets from two ports, interleaved")
+            val pkts = List(makePacket(1), makePacket(2), makePacket(3),
+                            makePacket(4))
+            for ((pkt, port) <- pkts zip List(2, 1, 2, 1)) {
+                pkt.getMatch.setInputPortNumber(port)
+            }
+
+            When("they are fed to the DDA")
+            ddaRef ! PacketWorkflow.HandlePackets(pkts.toArray)
+
+            Then("the packets are simulated by port, in order")
+            packetsSeen map (_._1) should be (
+                List(pkts(1), pkts(3), pkts(0), pkts(2)))
+            packetsOut should be (4)
+        }
+
+        scenario("handles the state messages of a batch first") {
+            Given("a state message from a higher port between packets")
+            val pkts = List(makePacket(1), makeStatePacket(), makePacket(2))
+            for ((pkt, port) <- pkts zip List(2, 9, 1)) {
+                pkt.getMatch.setInputPortNumber(port)
+            }
+
+            When("they are fed to the DDA")
+            ddaRef ! PacketWorkflow.HandlePackets(pkts.toArray)
+
+            Then("the state message is handled before any packet")
+            packetsSeenByStateMessages should be (List(0))
+            packetsSeen map (_._1) should be (List(pkts(2), pkts(0)))
+            packetsOut should be (3)
+        }
+
         scenario("simulates generated packets") {
             Given("a simulation that generates a packet")
             val pkt = makePacket(1)
@@ -189,6 +258,81 @@ class PacketWorkflowTest extends MidolmanSpec {
             packetsOut should be (3)
         }
     }
+
+    feature("PacketWorkflow emits generated packets") {
+        scenario("to a local exterior port without simulating them") {
+            Given("an exterior port bound to the datapath")
+            val port = exteriorPort()
+            val frame: Ethernet = makeFrame(2)
+
+            When("a packet written from a template egresses the port")
+            val fromTemplate = emit(
+                GeneratedPacket(port, ByteBuffer.wrap(frame.serialize())),
+                Map(port -> 7))
+
+            Then("it is executed with a single output action")
+            packetsSeen should have size 1
+            fromTemplate should have size 1
+            fromTemplate.head._1.getEthernet.serialize() shouldBe frame.serialize()
+            fromTemplate.head._2.asScala shouldBe List(output(7))
+
+            When("an Ethernet packet egresses the port")
+            val fromEthernet = emit(GeneratedPacket(port, frame), Map(port -> 7))
+
+            Then("it is executed with a single output action")
+            fromEthernet should have size 1
+            fromEthernet.head._1.getEthernet shouldBe frame
+            fromEthernet.head._2.asScala shouldBe List(output(7))
+
+            And("only the packet that generated it is simulated")
+            packetsSeen should have size 1
+        }
+
+        scenario("simulates them if the port has an outbound filter") {
+            Given("an exterior port with an outbound filter")
+            val port = exteriorPort(outboundFilter = true)
+
+            When("a generated packet egresses the port")
+            val frame: Ethernet = makeFrame(2)
+            val executed = emit(GeneratedPacket(port, frame), Map(port -> 7))
+
+            Then("the generated packet is simulated")
+            executed should be (empty)
+            packetsSeen.last._1.getEthernet shouldBe frame
+        }
+
+        scenario("simulates them if the port is not bound to the datapath") {
+            Given("an exterior port without a datapath port")
+            val port = exteriorPort()
+
+            When("a generated packet egresses the port")
+            val frame: Ethernet = makeFrame(2)
+            val executed = emit(GeneratedPacket(port, frame), Map.empty)
+
+            Then("the generated packet is simulated")
+            executed should be (empty)
+            packetsSeen.last._1.getEthernet shouldBe frame
+        }
+
+        scenario("simulates them while a tracer is set") {
+            Given("an exterior port bound to the datapath, and a tracer")
+            val port = exteriorPort()
+            PacketTracing.addTracer(PacketTracer(null, null, null, null, null,
+                                                 null, null, null,
+                                                 LogLevel.RECORD, 10))
+            try {
+                When("a generated packet egresses the port")
+                val frame: Ethernet = makeFrame(2)
+                val executed = emit(GeneratedPacket(port, frame), Map(port -> 7))
+
+                Then("the generated packet is simulated")
+                executed should be (empty)
+                packetsSeen.last._1.getEthernet shouldBe frame
+            } finally {
+                PacketTracing.flush()
+            }
+        }
+    }
 /*
     feature("A PacketWorkflow handles results from the simulation layer") {
 
@@ -409,8 +553,10 @@ class PacketWorkflowTest extends MidolmanSpec {
             p success null
         }
 
-        protected override def handleStateMessage(context: PacketContext): Unit =
+        protected override def handleStateMessage(context: PacketContext): Unit = {
             stateMessagesSeen += 1
+            packetsSeenByStateMessages :+= packetsSeen.size
+        }
 
         override def start(pktCtx: PacketContext) = {
             pktCtx.runs += 1
@@ -123,6 +123,49 @@ class DatapathChannelTest extends MidolmanSpec {
                                      FlowActions.reader.deserializeFrom, actions)
         }
 
+        scenario ("Publishes the operations of a batch together") {
+            val cursor = ringBuffer.getCursor
+            val flow = new Flow(packet.getMatch, actions)
+
+            dpChannel.startBatch()
+            dpChannel.createFlow(flow)
+            dpChannel.executePacket(packet, actions)
+            ringBuffer.getCursor should be (cursor)
+
+            dpChannel.endBatch()
+            ringBuffer.getCursor should be (cursor + 2)
+            flow.getMatch.getSequence should be (cursor + 1)
+
+            eventually {
+                nlChannel.packetsWritten.get() should be (2)
+            }
+
+            val bb = nlChannel.written.poll()
+            bb.position(NetlinkMessage.GENL_HEADER_SIZE)
+            bb.getInt() should be (datapathId)
+            attributeListShouldMatch(bb, OpenVSwitch.Flow.Attr.Key,
+                                     flowMatchParser, packet.getMatch)
+        }
+
+        scenario ("A full batch is published before it ends") {
+            val cursor = ringBuffer.getCursor
+
+            dpChannel.startBatch()
+            for (i <- 0 until DisruptorDatapathChannel.BatchCapacity + 1) {
+                dpChannel.executePacket(packet, actions)
+            }
+            ringBuffer.getCursor should be (
+                cursor + DisruptorDatapathChannel.BatchCapacity)
+
+            dpChannel.endBatch()
+            ringBuffer.getCursor should be (
+                cursor + DisruptorDatapathChannel.BatchCapacity + 1)
+            eventually {
+                nlChannel.packetsWritten.get() should be (
+                    DisruptorDatapathChannel.BatchCapacity + 1)
+            }
+        }
+
         scenario ("Channel is bounded and thread spins when ring buffer is full") {
             var i = 0
             while (i < 10000) {
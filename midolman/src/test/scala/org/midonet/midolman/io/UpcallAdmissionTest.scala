@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.io
+
+import java.util.concurrent.TimeUnit
+
+import scala.collection.mutable
+
+import com.codahale.metrics.MetricRegistry
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers, OneInstancePerTest}
+
+import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
+import org.midonet.midolman.state.FlowStatePackets
+import org.midonet.odp.{FlowMatch, Packet}
+import org.midonet.odp.FlowMatch.Field
+import org.midonet.odp.ports.NetDevPort
+import org.midonet.packets.{ARP, IPv4, TCP, UDP}
+import org.midonet.util.{Bucket, StatisticalCounter, TokenBucketTestRate}
+import org.midonet.util.concurrent.MockClock
+
+@RunWith(classOf[JUnitRunner])
+class UpcallAdmissionTest extends FeatureSpec with Matchers
+                          with GivenWhenThen with OneInstancePerTest {
+    import UpcallAdmission._
+
+    val config = MidolmanConfig.forTests(
+        """
+          |datapath.upcall_admission = true
+          |datapath.upcall_queue_limit = 8
+          |datapath.upcall_latency_target = 5ms
+          |datapath.vm_incoming_burst_capacity = 4
+        """.stripMargin)
+    val counter = new StatisticalCounter(config.simulationThreads + 1)
+    val tbPolicy = new TokenBucketPolicy(config, new TokenBucketTestRate, 1,
+                                         new Bucket(_, 1, null, 0, false))
+    val clock = new MockClock
+    val metrics = new PacketPipelineMetrics(new MetricRegistry)
+    val admission = new UpcallAdmission(config, tbPolicy, counter, clock)
+    admission.monitor(1, metrics)
+
+    val queues = new UpcallQueues(admission)
+    val dispatched = mutable.ArrayBuffer[Packet]()
+    val dispatch = (p: Packet) => {
+        dispatched += p
+        admission.dispatched(1)
+    }
+
+    def packet(port: Int, cls: Int): Packet = {
+        val fmatch = new FlowMatch().setInputPortNumber(port)
+        cls match {
+            case State =>
+                fmatch.setTunnelKey(FlowStatePackets.TUNNEL_KEY)
+            case Control =>
+                fmatch.setEtherType(ARP.ETHERTYPE)
+            case Tunnel =>
+                fmatch.setTunnelKey(100).setEtherType(IPv4.ETHERTYPE)
+            case NewFlow =>
+                fmatch.setEtherType(IPv4.ETHERTYPE)
+                      .setNetworkProto(TCP.PROTOCOL_NUMBER)
+        }
+        new Packet(null, fmatch)
+    }
+
+    def interval(latencyMicros: Long): Unit = {
+        metrics.packetSimulated(
+            TimeUnit.MICROSECONDS.toNanos(latencyMicros).toInt)
+        clock.time += ControlInterval
+        admission.budget()
+    }
+
+    def drops(port: Int) = admission.getPortDrops.find(_.portNumber == port).get
+
+    feature("Upcalls are classified") {
+        scenario("By type") {
+            classify(packet(1, State).getMatch) shouldBe State
+            classify(packet(1, Control).getMatch) shouldBe Control
+            classify(packet(1, Tunnel).getMatch) shouldBe Tunnel
+            classify(packet(1, NewFlow).getMatch) shouldBe NewFlow
+
+            val dhcp = new FlowMatch().setEtherType(IPv4.ETHERTYPE)
+                                      .setNetworkProto(UDP.PROTOCOL_NUMBER)
+                                      .setSrcPort(68).setDstPort(67)
+            classify(dhcp) shouldBe Control
+        }
+
+        scenario("Without seeing the fields of the match") {
+            val fmatch = packet(1, NewFlow).getMatch
+            classify(fmatch)
+            fmatch.isSeen(Field.TunnelKey) shouldBe false
+            fmatch.isSeen(Field.EtherType) shouldBe false
+            fmatch.isSeen(Field.NetworkProto) shouldBe false
+        }
+    }
+
+    feature("Upcalls are admitted by priority") {
+        scenario("Upcalls over the queue limit are shed") {
+            Given("Upcalls of every class")
+            val state = packet(1, State)
+            val arp = packet(1, Control)
+            val tunnel = (1 to 4) map (_ => packet(2, Tunnel))
+            val flows = (1 to 4) map (_ => packet(1, NewFlow))
+            for (p <- flows ++ tunnel :+ arp :+ state)
+                queues.add(p)
+
+            When("Draining the queues")
+            queues.drain(dispatch)
+
+            Then("The upcalls are dispatched by priority within the limit")
+            dispatched shouldBe Seq(state, arp) ++ tunnel ++ flows.take(2)
+            queues.isEmpty shouldBe true
+
+            And("The rest are shed, returning their tokens")
+            drops(1).newFlowDrops shouldBe 2
+            drops(1).admitted shouldBe 4
+            drops(2).tunnelDrops shouldBe 0
+            counter.getValue shouldBe 2
+        }
+
+        scenario("State messages and ARP are admitted over the limit") {
+            admission.dispatched(8)
+            queues.add(packet(1, NewFlow))
+            queues.add(packet(1, Control))
+            queues.add(packet(1, State))
+            queues.drain(dispatch)
+
+            dispatched.map(p => classify(p.getMatch)) shouldBe Seq(State, Control)
+            drops(1).newFlowDrops shouldBe 1
+        }
+
+        scenario("Ports are served round robin") {
+            val port1 = (1 to 6) map (_ => packet(1, NewFlow))
+            val port2 = (1 to 2) map (_ => packet(2, NewFlow))
+            admission.dispatched(4)
+            for (p <- port1 ++ port2)
+                queues.add(p)
+            queues.drain(dispatch)
+
+            dispatched shouldBe Seq(port1(0), port2(0), port1(1), port2(1))
+            drops(1).newFlowDrops shouldBe 4
+            drops(2).newFlowDrops shouldBe 0
+        }
+    }
+
+    feature("The admission adapts to the simulation threads") {
+        scenario("The queue limit follows the latency") {
+            admission.getQueueLimit shouldBe 8
+
+            When("The simulation latency is above the target")
+            interval(10000)
+
+            Then("The limit is halved")
+            admission.getQueueLimit shouldBe 4
+            admission.getLatencyMicros shouldBe 10000
+
+            When("The latency is back under the target")
+            for (i <- 1 to 8)
+                interval(100)
+
+            Then("The limit grows back")
+            admission.getQueueLimit shouldBe 8
+        }
+
+        scenario("The budget accounts for the queued upcalls") {
+            admission.dispatched(3)
+            admission.completed(0, 1)
+            admission.getQueueDepth shouldBe 2
+            admission.budget() shouldBe 6
+        }
+
+        scenario("The buckets of shed ports are throttled and restored") {
+            Given("A port with a bucket")
+            val port = new NetDevPort("vm1")
+            tbPolicy.link(port, VirtualMachine)
+            tbPolicy.bind(port, 1)
+
+            When("Its upcalls are shed")
+            admission.dispatched(8)
+            queues.add(packet(1, NewFlow))
+            queues.drain(dispatch)
+            interval(100)
+
+            Then("Its bucket is throttled")
+            tbPolicy.capacity(1) shouldBe 2
+            drops(1).portName shouldBe "vm1"
+            drops(1).bucketCapacity shouldBe 2
+
+            When("Its upcalls are no longer shed")
+            interval(100)
+
+            Then("Its bucket is restored")
+            tbPolicy.capacity(1) shouldBe 4
+        }
+    }
+}
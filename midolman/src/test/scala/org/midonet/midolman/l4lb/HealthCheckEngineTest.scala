@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.l4lb
+
+import java.io.IOException
+import java.net.{InetAddress, ServerSocket}
+import java.util.UUID
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentLinkedQueue, TimeUnit}
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.state.l4lb.LBStatus
+import org.midonet.util.MidonetEventually
+
+@RunWith(classOf[JUnitRunner])
+class HealthCheckEngineTest extends FeatureSpec
+                            with Matchers
+                            with GivenWhenThen
+                            with BeforeAndAfter
+                            with MidonetEventually {
+
+    private val Loopback = "127.0.0.1"
+
+    private var engine: HealthCheckEngine = _
+    private val listeners = new ConcurrentLinkedQueue[ServerSocket]()
+    private val status = new ConcurrentHashMap[UUID, LBStatus]()
+    private val changes = new ConcurrentLinkedQueue[(UUID, LBStatus)]()
+
+    private val listener = new HealthCheckEngine.StatusListener {
+        override def memberStatusChanged(memberId: UUID,
+                                         s: LBStatus): Unit = {
+            status.put(memberId, s)
+            changes.add((memberId, s))
+        }
+    }
+
+    before {
+        engine = new HealthCheckEngine(TimeUnit.MILLISECONDS)
+        engine.start()
+    }
+
+    after {
+        engine.stop()
+        listeners foreach { _.close() }
+        listeners.clear()
+        status.clear()
+        changes.clear()
+    }
+
+    /* A loopback listener that accepts and closes the check connections. */
+    private def listen(): ServerSocket = {
+        val server = new ServerSocket(0, 50, InetAddress.getByName(Loopback))
+        listeners.add(server)
+        val thread = new Thread(new Runnable {
+            override def run(): Unit = {
+                try while (true) server.accept().close()
+                catch { case e: IOException => }
+            }
+        })
+        thread.setDaemon(true)
+        thread.start()
+        server
+    }
+
+    /* A port where nothing is listening. */
+    private def closedPort(): Int = {
+        val server = new ServerSocket(0, 50, InetAddress.getByName(Loopback))
+        val port = server.getLocalPort
+        server.close()
+        port
+    }
+
+    private def member(port: Int) =
+        new PoolMemberConfig(true, UUID.randomUUID(), 10, Loopback, port)
+
+    private def pool(members: PoolMemberConfig*) = {
+        val vip = new VipConfig(true, UUID.randomUUID(), "10.10.10.10", 89,
+                                null)
+        new PoolConfig(UUID.randomUUID(), UUID.randomUUID(), Set(vip),
+                       members.toSet, new HealthMonitorConfig(true, 50, 500, 2),
+                       true, "/etc/midolman/l4lb/", "_MN")
+    }
+
+    feature("The engine checks the members of a pool") {
+        scenario("Members are active when they accept connections") {
+            Given("A member with a listener and one without")
+            val up = member(listen().getLocalPort)
+            val down = member(closedPort())
+
+            When("The engine watches the pool")
+            engine.watch(UUID.randomUUID(), null, pool(up, down), listener)
+
+            Then("The first member becomes active")
+            eventually { status.get(up.id) shouldBe LBStatus.ACTIVE }
+
+            And("The second member becomes inactive")
+            eventually { status.get(down.id) shouldBe LBStatus.INACTIVE }
+        }
+
+        scenario("A member becomes inactive when its listener closes") {
+            Given("A member with a listener")
+            val server = listen()
+            val up = member(server.getLocalPort)
+            engine.watch(UUID.randomUUID(), null, pool(up), listener)
+            eventually { status.get(up.id) shouldBe LBStatus.ACTIVE }
+
+            When("The listener is closed")
+            server.close()
+
+            Then("The member becomes inactive")
+            eventually { status.get(up.id) shouldBe LBStatus.INACTIVE }
+            changes.toList shouldBe List((up.id, LBStatus.ACTIVE),
+                                         (up.id, LBStatus.INACTIVE))
+        }
+
+        scenario("Updating the pool keeps the status of unchanged members") {
+            Given("A pool with an active member")
+            val poolId = UUID.randomUUID()
+            val first = member(listen().getLocalPort)
+            engine.watch(poolId, null, pool(first), listener)
+            eventually { status.get(first.id) shouldBe LBStatus.ACTIVE }
+
+            When("A member is added to the pool")
+            val second = member(listen().getLocalPort)
+            engine.watch(poolId, null, pool(first, second), listener)
+
+            Then("The new member becomes active")
+            eventually { status.get(second.id) shouldBe LBStatus.ACTIVE }
+
+            And("The status of the first member is notified only once")
+            changes.count(_._1 == first.id) shouldBe 1
+        }
+
+        scenario("The engine stops checking unwatched pools") {
+            Given("A pool with an active member")
+            val poolId = UUID.randomUUID()
+            val server = listen()
+            val up = member(server.getLocalPort)
+            engine.watch(poolId, null, pool(up), listener)
+            eventually { status.get(up.id) shouldBe LBStatus.ACTIVE }
+
+            When("The pool is unwatched and the listener closed")
+            engine.unwatch(poolId)
+            Thread.sleep(100)
+            server.close()
+
+            Then("The member status does not change")
+            Thread.sleep(500)
+            status.get(up.id) shouldBe LBStatus.ACTIVE
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.management
+
+import java.util.UUID
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+
+@RunWith(classOf[JUnitRunner])
+class PacketTraceBufferTest extends FeatureSpec with Matchers
+                                    with GivenWhenThen {
+
+    feature("The buffer records trace events") {
+        scenario("The capacity must be a power of two") {
+            intercept[IllegalArgumentException] {
+                new PacketTraceBuffer(10)
+            }
+        }
+
+        scenario("Events are read in order") {
+            Given("A buffer")
+            val buffer = new PacketTraceBuffer(8)
+            val id = UUID.randomUUID
+
+            When("Recording events")
+            buffer.record(1, PacketTraceBuffer.Simulation, 1, id)
+            buffer.record(1, PacketTraceBuffer.RuleMatched, 2, id)
+            buffer.record(-1, PacketTraceBuffer.ActionsChosen, 0, null)
+
+            Then("The buffer returns the events")
+            val events = buffer.read()
+            events.map(_.cookie) shouldBe Seq(1, 1, -1)
+            events.map(_.event) shouldBe Seq("SIMULATION", "RULE_MATCHED",
+                                             "ACTIONS_CHOSEN")
+            events.map(_.id) shouldBe Seq(id.toString, id.toString, null)
+            events.map(_.value) shouldBe Seq(1, 2, 0)
+        }
+
+        scenario("The oldest events are overwritten") {
+            Given("A buffer")
+            val buffer = new PacketTraceBuffer(4)
+
+            When("Recording more events than the capacity")
+            for (cookie <- 0 until 10) {
+                buffer.record(cookie, PacketTraceBuffer.DeviceVisited, 0,
+                              UUID.randomUUID)
+            }
+
+            Then("The buffer returns the latest events")
+            buffer.recorded shouldBe 10
+            buffer.read().map(_.cookie) shouldBe Seq(7, 8, 9)
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.management
+
+import java.util.UUID
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.FlowMatch.Field
+import org.midonet.packets.IPv4Addr
+
+@RunWith(classOf[JUnitRunner])
+class PacketTracingTest extends FeatureSpec with Matchers
+                                with GivenWhenThen with BeforeAndAfter {
+
+    before {
+        PacketTracing.flush()
+    }
+
+    after {
+        PacketTracing.flush()
+    }
+
+    private def tracer(ipDst: String = null, dstPort: Integer = null,
+                       limit: Int = 10) =
+        PacketTracer(null, null, null, null, null, ipDst, null, dstPort,
+                     LogLevel.RECORD, limit)
+
+    private def flowMatch(ipDst: String, dstPort: Int) =
+        new FlowMatch().setNetworkDst(IPv4Addr.fromString(ipDst))
+                       .setDstPort(dstPort)
+
+    feature("The tracer index finds the matching tracers") {
+        scenario("No tracers") {
+            PacketTracing.tracerFor(flowMatch("10.0.0.1", 80)) shouldBe null
+        }
+
+        scenario("Tracers indexed by destination port and address") {
+            Given("Tracers on a port, an address, and any packet to a port")
+            val byPort = tracer(ipDst = "10.0.0.1", dstPort = 80)
+            val byAddress = tracer(ipDst = "10.0.0.2")
+            val any = tracer(limit = 1)
+            PacketTracing.addTracer(byPort)
+            PacketTracing.addTracer(byAddress)
+
+            Then("Packets are matched by their port and address")
+            PacketTracing.tracerFor(flowMatch("10.0.0.1", 80)) shouldBe byPort
+            PacketTracing.tracerFor(flowMatch("10.0.0.2", 80)) shouldBe byAddress
+            PacketTracing.tracerFor(flowMatch("10.0.0.2", 22)) shouldBe byAddress
+            PacketTracing.tracerFor(flowMatch("10.0.0.1", 22)) shouldBe null
+
+            When("Adding a tracer for any packet")
+            PacketTracing.addTracer(any)
+
+            Then("Any other packet matches it until its limit")
+            PacketTracing.tracerFor(flowMatch("10.0.0.1", 22)) shouldBe any
+            PacketTracing.tracerFor(flowMatch("10.0.0.1", 22)) shouldBe null
+        }
+
+        scenario("The lookup marks the fields of the tracers as seen") {
+            Given("A tracer on a port and an address")
+            val traced = tracer(ipDst = "10.0.0.1", dstPort = 80)
+            PacketTracing.addTracer(traced)
+
+            When("A packet that is not traced is looked up")
+            val untraced = flowMatch("10.0.0.1", 22)
+            PacketTracing.tracerFor(untraced) shouldBe null
+
+            Then("Its datapath flow doesn't wildcard the fields of the tracer")
+            untraced.isSeen(Field.DstPort) shouldBe true
+
+            And("A following packet that matches the tracer is traced")
+            val next = flowMatch("10.0.0.1", 80)
+            PacketTracing.tracerFor(next) shouldBe traced
+            next.isSeen(Field.DstPort) shouldBe true
+            next.isSeen(Field.NetworkDst) shouldBe true
+        }
+
+        scenario("Without tracers, the lookup sees no fields") {
+            val fmatch = flowMatch("10.0.0.1", 80)
+            PacketTracing.tracerFor(fmatch) shouldBe null
+            fmatch.getSeenFields shouldBe 0L
+        }
+    }
+
+    feature("Trace events are dumped") {
+        scenario("Events are filtered by identifier") {
+            Given("A trace buffer with events of two packets")
+            val buffer = PacketTracing.newTraceBuffer()
+            val port1 = UUID.randomUUID
+            val port2 = UUID.randomUUID
+            buffer.record(1, PacketTraceBuffer.PortIngress, 0, port1)
+            buffer.record(2, PacketTraceBuffer.PortIngress, 0, port2)
+            buffer.record(1, PacketTraceBuffer.ActionsChosen, 1, null)
+            buffer.record(2, PacketTraceBuffer.ActionsChosen, 0, null)
+
+            Then("All events are dumped without an identifier")
+            PacketTracing.dumpTraceEvents(null, 10) should have size 4
+
+            And("The events of the first packet are dumped with its port")
+            val events = PacketTracing.dumpTraceEvents(port1.toString, 10)
+            events.map(_.cookie).toSeq shouldBe Seq(1, 1)
+            events.map(_.event).toSeq shouldBe Seq("PORT_INGRESS",
+                                                   "ACTIONS_CHOSEN")
+
+            And("The number of events is limited")
+            PacketTracing.dumpTraceEvents(null, 1) should have size 1
+
+            When("The buffer is released")
+            PacketTracing.releaseTraceBuffer(buffer)
+
+            Then("Its events are not dumped")
+            PacketTracing.dumpTraceEvents(null, 10) shouldBe empty
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.management
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+@RunWith(classOf[JUnitRunner])
+class ThreadPlacementTest extends FeatureSpec with Matchers
+                                  with GivenWhenThen with BeforeAndAfter {
+
+    after {
+        ThreadPlacement.configure(Map.empty[String, String])
+    }
+
+    feature("CPU lists are parsed") {
+        scenario("CPU numbers and ranges") {
+            ThreadPlacement.parseCpuList("0-3,8") shouldBe Array(0, 1, 2, 3, 8)
+            ThreadPlacement.parseCpuList(" 5 , 2-2 ,5") shouldBe Array(5, 2)
+            ThreadPlacement.parseCpuList("") shouldBe empty
+        }
+
+        scenario("Invalid CPU lists") {
+            for (list <- Seq("a", "3-1", "1-2-3", "-1", "0,1024")) {
+                intercept[IllegalArgumentException] {
+                    ThreadPlacement.parseCpuList(list)
+                }
+            }
+        }
+    }
+
+    feature("Threads are pinned to the CPUs of their group") {
+        scenario("Groups without CPUs are not pinned") {
+            Given("A configuration with empty CPU sets")
+            ThreadPlacement.configure(Map(ThreadPlacement.Simulation -> "",
+                                          ThreadPlacement.Output -> null))
+
+            Then("Threads of those groups are not pinned")
+            ThreadPlacement.pin(ThreadPlacement.Simulation) shouldBe -1
+            ThreadPlacement.pin(ThreadPlacement.Output) shouldBe -1
+            ThreadPlacement.pin(ThreadPlacement.Input) shouldBe -1
+            ThreadPlacement.getPlacement shouldBe empty
+            ThreadPlacement.dumpPlacement shouldBe "No pinned threads"
+        }
+
+        scenario("An invalid configuration is rejected") {
+            intercept[IllegalArgumentException] {
+                ThreadPlacement.configure(Map(ThreadPlacement.Input -> "x"))
+            }
+        }
+
+        scenario("Unknown CPUs are on the first node") {
+            ThreadPlacement.nodeOf(ThreadPlacement.MaxCpus - 1) shouldBe 0
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+import org.midonet.packets.{IPAddr, IPv4Addr, IPv4Subnet}
+
+@RunWith(classOf[JUnitRunner])
+class IPAddrGroupTest extends FeatureSpec with Matchers {
+
+    private def ip(s: String): IPAddr = IPAddr.fromString(s)
+
+    feature("A group contains its addresses") {
+        scenario("IPv4 and IPv6 addresses") {
+            val group = IPAddrGroup(UUID.randomUUID(), Seq(
+                ip("10.0.0.1"), ip("192.168.0.1"), ip("255.255.255.255"),
+                ip("0.0.0.0"), ip("10.0.0.1"), ip("fe80::1")))
+
+            group.size shouldBe 5
+            group.addrs shouldBe Set(ip("10.0.0.1"), ip("192.168.0.1"),
+                                     ip("255.255.255.255"), ip("0.0.0.0"),
+                                     ip("fe80::1"))
+            for (addr <- group.addrs) group.contains(addr) shouldBe true
+            group.contains(ip("10.0.0.2")) shouldBe false
+            group.contains(ip("fe80::2")) shouldBe false
+            group.contains(null) shouldBe false
+        }
+
+        scenario("An empty group") {
+            val group = IPAddrGroup.fromAddrs(UUID.randomUUID(),
+                                              Array.empty[IPAddr])
+            group.size shouldBe 0
+            group.contains(ip("10.0.0.1")) shouldBe false
+        }
+
+        scenario("Addresses in subnets") {
+            val group = IPAddrGroup(UUID.randomUUID(), Seq(ip("172.16.0.1")),
+                Seq(new IPv4Subnet("10.0.0.0", 8), new IPv4Subnet("10.1.0.0", 16),
+                    new IPv4Subnet("192.168.1.0", 24),
+                    new IPv4Subnet("200.0.0.1", 32)))
+
+            group.ranges shouldBe Seq(
+                (IPv4Addr("10.0.0.0"), IPv4Addr("10.255.255.255")),
+                (IPv4Addr("192.168.1.0"), IPv4Addr("192.168.1.255")),
+                (IPv4Addr("200.0.0.1"), IPv4Addr("200.0.0.1")))
+            group.contains(ip("172.16.0.1")) shouldBe true
+            group.contains(ip("10.0.0.0")) shouldBe true
+            group.contains(ip("10.200.3.4")) shouldBe true
+            group.contains(ip("192.168.1.255")) shouldBe true
+            group.contains(ip("200.0.0.1")) shouldBe true
+            group.contains(ip("9.255.255.255")) shouldBe false
+            group.contains(ip("11.0.0.0")) shouldBe false
+            group.contains(ip("192.168.2.0")) shouldBe false
+            group.contains(ip("200.0.0.2")) shouldBe false
+        }
+
+        scenario("A smaller subnet with the same address comes first") {
+            val group = IPAddrGroup(UUID.randomUUID(), Seq.empty[IPAddr],
+                Seq(new IPv4Subnet("10.0.0.0", 24), new IPv4Subnet("10.0.0.0", 8),
+                    new IPv4Subnet("10.0.0.0", 16)))
+
+            group.ranges shouldBe Seq(
+                (IPv4Addr("10.0.0.0"), IPv4Addr("10.255.255.255")))
+            group.contains(ip("10.0.0.1")) shouldBe true
+            group.contains(ip("10.1.0.1")) shouldBe true
+            group.contains(ip("10.255.255.255")) shouldBe true
+            group.contains(ip("11.0.0.0")) shouldBe false
+        }
+    }
+
+    feature("A group is updated with the changed addresses") {
+        scenario("Adding and removing addresses") {
+            val group = IPAddrGroup(UUID.randomUUID(), Seq(
+                ip("10.0.0.1"), ip("10.0.0.3"), ip("fe80::1")))
+
+            val updated = group.updated(
+                added = Seq(ip("10.0.0.2"), ip("10.0.0.4"), ip("fe80::2")),
+                removed = Seq(ip("10.0.0.3"), ip("10.0.0.5"), ip("fe80::1")))
+
+            updated.id shouldBe group.id
+            updated.addrs shouldBe Set(ip("10.0.0.1"), ip("10.0.0.2"),
+                                       ip("10.0.0.4"), ip("fe80::2"))
+            updated.contains(ip("10.0.0.3")) shouldBe false
+
+            And("The original group does not change")
+            group.addrs shouldBe Set(ip("10.0.0.1"), ip("10.0.0.3"),
+                                     ip("fe80::1"))
+        }
+
+        scenario("An address both removed and added is kept") {
+            val group = IPAddrGroup(UUID.randomUUID(), Seq(ip("10.0.0.1")))
+            val updated = group.updated(added = Seq(ip("10.0.0.1")),
+                                        removed = Seq(ip("10.0.0.1")))
+            updated.addrs shouldBe Set(ip("10.0.0.1"))
+        }
+
+        scenario("Updates match a group built from the same addresses") {
+            val random = new scala.util.Random(7)
+            val addrs = Seq.fill(1000)(IPv4Addr(random.nextInt()): IPAddr)
+            val added = Seq.fill(100)(IPv4Addr(random.nextInt()): IPAddr)
+            val removed = addrs.take(100)
+
+            val group = IPAddrGroup(UUID.randomUUID(), addrs)
+                .updated(added, removed)
+
+            group.addrs shouldBe (addrs.toSet -- removed ++ added)
+        }
+    }
+}
@@ -15,6 +15,8 @@
  */
 package org.midonet.midolman.simulation
 
+import java.util.UUID
+
 import scala.collection.JavaConversions._
 import scala.concurrent.duration._
 
@@ -28,7 +30,7 @@ import org.midonet.cluster.data.ports.RouterPort
 import org.midonet.midolman.PacketWorkflow.{AddVirtualWildcardFlow, SimulationResult}
 import org.midonet.midolman.layer3.Route
 import org.midonet.midolman.state.NatState.{NatKey, NatBinding}
-import org.midonet.midolman.state.l4lb.LBStatus
+import org.midonet.midolman.state.l4lb.{LBStatus, PoolLBMethod}
 import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.midolman.util.mock.MessageAccumulator
@@ -550,6 +552,33 @@ class PoolTest extends MidolmanSpec {
         }
     }
 
+    feature("Source hashing keeps the member table across pool updates") {
+        def member(id: UUID, ip: String, weight: Int = 1) =
+            new PoolMember(id, IPv4Addr(ip), 80, weight)
+
+        val ids = Seq.fill(3)(UUID.randomUUID())
+        def members(weight: Int = 1) = Array(member(ids(0), "10.0.0.1"),
+                                             member(ids(1), "10.0.1.1"),
+                                             member(ids(2), "10.0.2.1", weight))
+        def pool(members: Array[PoolMember], previous: Pool = null) =
+            new Pool(UUID.randomUUID(), true, PoolLBMethod.SOURCE_HASH,
+                     members, Array(), previous)
+
+        scenario("An update with the same members reuses the table") {
+            val first = pool(members())
+            val second = pool(members().reverse, first)
+            second.memberTable should be theSameInstanceAs first.memberTable
+        }
+
+        scenario("An update that changes a member rebuilds the table") {
+            val first = pool(members())
+            val second = pool(members(weight = 2), first)
+            second.memberTable should not be theSameInstanceAs (first.memberTable)
+            val third = pool(members().tail, second)
+            third.memberTable should not be theSameInstanceAs (second.memberTable)
+        }
+    }
+
     feature("Sticky source IP attribute in VIP affects how subsequent connections are balanced") {
         scenario("Without sticky source IP") {
             Given("VIP has sticky source IP disabled")
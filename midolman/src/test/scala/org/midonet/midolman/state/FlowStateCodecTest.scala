@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.io.ByteArrayOutputStream
+import java.util.UUID
+
+import scala.collection.mutable
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.FlowStatePackets._
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
+import org.midonet.packets.{IPv4Addr, IPv6Addr, MAC}
+import org.midonet.rpc.{FlowStateProto => Proto}
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateCodecTest extends FeatureSpec
+                         with Matchers
+                         with GivenWhenThen {
+
+    val sender = UUID.randomUUID()
+    val ingressPort = UUID.randomUUID()
+
+    val conntrackKey = ConnTrackKey(IPv4Addr("10.0.0.1"), 1234,
+                                    IPv4Addr("192.168.0.2"), 22, 6,
+                                    UUID.randomUUID())
+    val natEntries = List(
+        NatKey(NatState.FWD_SNAT, IPv4Addr("192.168.10.1"), 10001,
+               IPv4Addr("17.16.15.1"), 80, 6, UUID.randomUUID()) ->
+            NatBinding(IPv4Addr("200.2.3.4"), 54321),
+        NatKey(NatState.REV_STICKY_DNAT, IPv4Addr("10.0.0.2"), 443,
+               IPv4Addr("172.16.0.1"), 0, 17, UUID.randomUUID()) ->
+            NatBinding(IPv4Addr("4.3.2.1"), 12345))
+    val traceKey = TraceKey(MAC.random(), MAC.random(), 0x86DD.toShort,
+                            IPv6Addr.random, IPv6Addr.random, 58, 0, 0)
+    val traceContext = {
+        val ctx = new TraceContext().enable(UUID.randomUUID())
+        ctx.addRequest(UUID.randomUUID())
+        ctx.addRequest(UUID.randomUUID())
+        ctx
+    }
+
+    def protoMessage(withConntrack: Boolean = true): Proto.StateMessage = {
+        val state = Proto.FlowState.newBuilder()
+        if (withConntrack)
+            state.setConntrackKey(connTrackKeyToProto(conntrackKey))
+        for ((k, v) <- natEntries) {
+            state.addNatEntries(Proto.NatEntry.newBuilder()
+                .setK(natKeyToProto(k)).setV(natBindingToProto(v)))
+        }
+        state.setIngressPort(uuidToProto(ingressPort))
+        val trace = Proto.TraceEntry.newBuilder()
+        traceKeyToProto(traceKey, trace)
+        trace.setFlowTraceId(uuidToProto(traceContext.flowTraceId))
+        for (i <- 0 until traceContext.requests.size)
+            trace.addRequestId(uuidToProto(traceContext.requests.get(i)))
+        state.addTraceEntry(trace)
+
+        Proto.StateMessage.newBuilder().setSender(uuidToProto(sender))
+            .setEpoch(0L).setSeq(0x1).addNewState(state).build()
+    }
+
+    def delimited(message: Proto.StateMessage): Array[Byte] = {
+        val stream = new ByteArrayOutputStream()
+        message.writeDelimitedTo(stream)
+        stream.toByteArray
+    }
+
+    def encode(encoder: FlowStateEncoder,
+               withConntrack: Boolean = true): Int = {
+        encoder.startMessage(0x1, sender, 0L)
+        if (withConntrack)
+            encoder.conntrackKey(conntrackKey)
+        for ((k, v) <- natEntries)
+            encoder.natEntry(k, v)
+        encoder.ingressPort(ingressPort)
+        encoder.traceEntry(traceKey, traceContext)
+        encoder.endMessage()
+    }
+
+    class CollectingHandler extends FlowStateDecoder.Handler {
+        val conntrackKeys = mutable.ListBuffer[ConnTrackKey]()
+        val natEntries = mutable.ListBuffer[(NatKey, NatBinding)]()
+        val traces = mutable.ListBuffer[(TraceKey, TraceContext)]()
+
+        override def conntrackKey(k: ConnTrackKey): Unit =
+            conntrackKeys += k
+        override def natEntry(k: NatKey, v: NatBinding): Unit =
+            natEntries += k -> v
+        override def traceEntry(k: TraceKey, ctx: TraceContext): Unit =
+            traces += k -> ctx
+    }
+
+    feature("The encoder is compatible with the generated code") {
+        scenario("A message is encoded as with protobuf") {
+            Given("An encoder")
+            val encoder = new FlowStateEncoder(new Array[Byte](1500))
+
+            When("A message with every kind of key is encoded")
+            val length = encode(encoder)
+
+            Then("The bytes are those written by protobuf")
+            val expected = delimited(protoMessage())
+            length shouldBe expected.length
+            encoder.buffer.take(length) shouldBe expected
+        }
+
+        scenario("Messages are encoded one after another") {
+            Given("An encoder")
+            val encoder = new FlowStateEncoder(new Array[Byte](1500))
+
+            When("Two messages are encoded")
+            val first = encode(encoder)
+            val second = encode(encoder, withConntrack = false)
+
+            Then("The second message follows the first one")
+            encoder.length shouldBe first + second
+            encoder.buffer.slice(first, first + second) shouldBe
+                delimited(protoMessage(withConntrack = false))
+
+            And("The encoder can be reset")
+            encoder.reset()
+            encoder.length shouldBe 0
+        }
+
+        scenario("Messages without flow state are discarded") {
+            val encoder = new FlowStateEncoder(new Array[Byte](1500))
+            encoder.startMessage(0x1, sender, 0L)
+            encoder.ingressPort(ingressPort)
+            encoder.endMessage() shouldBe 0
+            encoder.length shouldBe 0
+        }
+
+        scenario("Messages that don't fit in the buffer are discarded") {
+            Given("An encoder with a message")
+            val encoder = new FlowStateEncoder(new Array[Byte](600))
+            val first = encode(encoder)
+
+            When("A message that doesn't fit is encoded")
+            encode(encoder) shouldBe -1
+
+            Then("The first message is kept")
+            encoder.length shouldBe first
+            encoder.buffer.take(first) shouldBe delimited(protoMessage())
+        }
+    }
+
+    feature("The decoder is compatible with the generated code") {
+        scenario("A message written by protobuf is decoded") {
+            Given("A message written by protobuf")
+            val bytes = delimited(protoMessage())
+
+            When("The message is decoded")
+            val decoder = new FlowStateDecoder
+            val handler = new CollectingHandler
+            decoder.decodeDelimited(bytes, 0, bytes.length,
+                                    handler) shouldBe true
+
+            Then("The header is decoded")
+            decoder.sender shouldBe sender
+            decoder.seq shouldBe 0x1
+            decoder.epoch shouldBe 0L
+
+            And("The keys are those of the message")
+            handler.conntrackKeys shouldBe List(conntrackKey)
+            handler.natEntries shouldBe natEntries
+            handler.traces shouldBe List(traceKey -> traceContext)
+        }
+
+        scenario("The decoded NAT keys keep their expiration") {
+            val bytes = delimited(protoMessage())
+            val handler = new CollectingHandler
+            new FlowStateDecoder().decodeDelimited(bytes, 0, bytes.length,
+                                                   handler)
+            handler.natEntries.map(_._1.expiresAfter) shouldBe
+                natEntries.map(_._1.expiresAfter)
+        }
+
+        scenario("Unknown fields are skipped") {
+            Given("A message with the acknowledgements of a reliable peer")
+            val message = protoMessage().toBuilder.setAck(10L)
+                .setAckEpoch(42L).addNack(8L).addNack(9L).build()
+            val bytes = delimited(message)
+
+            When("The message is decoded")
+            val handler = new CollectingHandler
+            new FlowStateDecoder().decodeDelimited(bytes, 0, bytes.length,
+                                                   handler) shouldBe true
+
+            Then("The keys are those of the message")
+            handler.conntrackKeys shouldBe List(conntrackKey)
+            handler.natEntries shouldBe natEntries
+        }
+
+        scenario("Truncated messages are rejected") {
+            val bytes = delimited(protoMessage())
+            val decoder = new FlowStateDecoder
+            decoder.decodeDelimited(bytes, 0, bytes.length - 10,
+                                    new CollectingHandler) shouldBe false
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.concurrent.{ExecutionException, Executor}
+import java.util.{ArrayList, UUID}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration._
+
+import com.codahale.metrics.MetricRegistry
+import com.datastax.driver.core._
+import org.junit.runner.RunWith
+import org.mockito.Matchers.{any, anyString}
+import org.mockito.Mockito.{RETURNS_MOCKS, doAnswer, mock, when}
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.cluster.backend.cassandra.CassandraClient
+import org.midonet.midolman.monitoring.metrics.FlowStateStorageMetrics
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.FlowStateStorage.WriteBehind
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.packets.IPv4Addr
+import org.midonet.util.concurrent.MockClock
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateWriteBehindTest extends FeatureSpec
+                               with Matchers
+                               with OneInstancePerTest
+                               with GivenWhenThen {
+
+    implicit def stringToIp(str: String): IPv4Addr = IPv4Addr.fromString(str)
+
+    /* A batch handed over to the session, completed on demand. */
+    class Submitted(val batch: BatchStatement) {
+        val future = mock(classOf[ResultSetFuture])
+        private val listeners = new ArrayList[Runnable]()
+
+        doAnswer(new Answer[Unit] {
+            override def answer(inv: InvocationOnMock): Unit =
+                listeners.add(inv.getArguments()(0).asInstanceOf[Runnable])
+        }).when(future).addListener(any(classOf[Runnable]),
+                                    any(classOf[Executor]))
+
+        def rows = batch.getStatements.size
+
+        def succeed(): Unit = listeners.asScala foreach (_.run())
+
+        def fail(): Unit = {
+            when(future.get()).thenThrow(
+                new ExecutionException(new Exception("write timeout")))
+            listeners.asScala foreach (_.run())
+        }
+    }
+
+    val submitted = new ArrayList[Submitted]()
+
+    val session = mock(classOf[Session])
+    when(session.prepare(anyString())).thenAnswer(new Answer[PreparedStatement] {
+        override def answer(inv: InvocationOnMock) =
+            mock(classOf[PreparedStatement], RETURNS_MOCKS)
+    })
+    when(session.executeAsync(any(classOf[Statement]))).thenAnswer(
+        new Answer[ResultSetFuture] {
+            override def answer(inv: InvocationOnMock) = {
+                val s = new Submitted(
+                    inv.getArguments()(0).asInstanceOf[BatchStatement])
+                submitted.add(s)
+                s.future
+            }
+        })
+
+    val client = mock(classOf[CassandraClient])
+    when(client.session).thenReturn(session)
+
+    val clock = new MockClock
+    val metrics = new FlowStateStorageMetrics(new MetricRegistry)
+
+    val ingressPort = UUID.randomUUID()
+    val egressPorts = List(UUID.randomUUID(), UUID.randomUUID())
+
+    def connTrackKey(srcPort: Int) =
+        ConnTrackKey("10.0.0.1", srcPort, "10.0.0.2", 22, 6, UUID.randomUUID())
+
+    def storage(window: Duration = 100 millis, maxBatchSize: Int = 64,
+                maxInFlight: Int = 32, maxPending: Int = 16384) =
+        new FlowStateStorageImpl(client,
+                                 WriteBehind(window, 0.5, maxBatchSize,
+                                             maxInFlight, maxPending),
+                                 metrics, clock)
+
+    def touch(s: FlowStateStorage, k: ConnTrackKey): Unit =
+        s.touchConnTrackKey(k, ingressPort, egressPorts.asJava.iterator())
+
+    def advance(d: Duration): Unit = clock.time += d.toNanos
+
+    feature("Writes are coalesced within a window") {
+        scenario("Duplicate keys are written once, grouped by port") {
+            Given("A storage with a 100ms write window")
+            val s = storage()
+            val k1 = connTrackKey(1000)
+            val k2 = connTrackKey(1001)
+
+            When("Keys are touched several times within the window")
+            touch(s, k1)
+            touch(s, k2)
+            s.touchConnTrackKey(k1, ingressPort, List[UUID]().asJava.iterator())
+            s.submit()
+
+            Then("Nothing is written before the window elapses")
+            submitted should have size 0
+            s.pendingWrites shouldBe 6
+            metrics.writesCoalesced.getCount shouldBe 1
+
+            When("The window elapses")
+            advance(100 millis)
+            s.submit()
+
+            Then("One batch is written for each port")
+            submitted should have size 3
+            submitted.asScala.map(_.rows) shouldBe Seq(2, 2, 2)
+            s.pendingWrites shouldBe 0
+            s.inFlightBatches shouldBe 3
+            metrics.writesSubmitted.getCount shouldBe 6
+
+            When("The batches complete")
+            submitted.asScala foreach (_.succeed())
+
+            Then("There are no batches in flight")
+            s.inFlightBatches shouldBe 0
+        }
+
+        scenario("A zero window writes on every submit") {
+            val s = storage(window = Duration.Zero)
+            touch(s, connTrackKey(1000))
+            s.submit()
+            submitted should have size 3
+        }
+
+        scenario("NAT keys share the batches of their ports") {
+            val s = storage()
+            touch(s, connTrackKey(1000))
+            s.touchNatKey(NatKey(NatState.FWD_SNAT, "192.168.10.1", 10001,
+                                 "17.16.15.1", 80, 6, UUID.randomUUID()),
+                          NatBinding("1.2.3.4", 54321), ingressPort,
+                          egressPorts.asJava.iterator())
+            advance(100 millis)
+            s.submit()
+            submitted should have size 3
+            submitted.asScala.map(_.rows) shouldBe Seq(2, 2, 2)
+        }
+    }
+
+    feature("Refreshes of recently written keys are suppressed") {
+        scenario("A key is written again only after half its TTL") {
+            Given("A key that was written")
+            val s = storage(window = Duration.Zero)
+            val k = connTrackKey(1000)
+            touch(s, k)
+            s.submit()
+            submitted.asScala foreach (_.succeed())
+            submitted.clear()
+
+            When("The key is touched while most of its TTL remains")
+            advance(k.expiresAfter / 4)
+            touch(s, k)
+            s.submit()
+
+            Then("It is not written again")
+            submitted should have size 0
+            metrics.writesSuppressed.getCount shouldBe 3
+
+            When("The key is touched with less than half its TTL left")
+            advance(k.expiresAfter / 2)
+            touch(s, k)
+            s.submit()
+
+            Then("It is written again")
+            submitted should have size 3
+        }
+
+        scenario("Keys of failed batches are written again") {
+            Given("A key whose batches failed")
+            val s = storage(window = Duration.Zero)
+            val k = connTrackKey(1000)
+            touch(s, k)
+            s.submit()
+            submitted.asScala foreach (_.fail())
+            submitted.clear()
+            metrics.batchesFailed.getCount shouldBe 3
+
+            When("The key is touched again")
+            touch(s, k)
+            s.submit()
+
+            Then("Its rows are written again on the first touch")
+            submitted should have size 3
+        }
+    }
+
+    feature("Writes are bounded") {
+        scenario("Batches in flight are bounded and excess rows dropped") {
+            Given("A storage with one batch in flight and four pending rows")
+            val s = storage(window = Duration.Zero, maxBatchSize = 1,
+                            maxInFlight = 1, maxPending = 4)
+
+            When("Two keys are touched")
+            touch(s, connTrackKey(1000))
+            touch(s, connTrackKey(1001))
+
+            Then("Rows beyond the pending limit are dropped")
+            s.pendingWrites shouldBe 4
+            metrics.writesDropped.getCount shouldBe 2
+            metrics.pendingWrites.getCount shouldBe 4
+
+            When("The storage submits")
+            s.submit()
+
+            Then("A single batch is in flight")
+            submitted should have size 1
+            s.inFlightBatches shouldBe 1
+            s.pendingWrites shouldBe 3
+
+            When("The batch completes")
+            submitted.get(0).succeed()
+            s.submit()
+
+            Then("The next batch goes out")
+            submitted should have size 2
+            s.pendingWrites shouldBe 2
+        }
+    }
+}
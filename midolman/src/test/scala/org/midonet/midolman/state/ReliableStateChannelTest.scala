@@ -0,0 +1,205 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.{Random, UUID}
+
+import scala.collection.mutable
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.midolman.state.FlowStatePackets.uuidToProto
+import org.midonet.rpc.{FlowStateProto => Proto}
+import org.midonet.util.concurrent.MockClock
+
+@RunWith(classOf[JUnitRunner])
+class ReliableStateChannelTest extends FeatureSpec
+                               with Matchers
+                               with GivenWhenThen {
+
+    val AckInterval = 50000000L
+    val DigestInterval = 500000000L
+
+    /*
+     * Two hosts connected by an in-process link that loses a fraction of
+     * the messages in each direction.
+     */
+    class LossyLoopback(var loss: Double, bufferSize: Int = 1024) {
+        val random = new Random(0x5eedL)
+        val clock = new MockClock
+        val hostA = UUID.randomUUID()
+        val hostB = UUID.randomUUID()
+        var channelA =
+            new ReliableStateChannel(bufferSize, DigestInterval, clock)
+        val channelB =
+            new ReliableStateChannel(bufferSize, DigestInterval, clock)
+        val accepted = mutable.Set[Long]()
+        var acceptedTwice = 0
+        var packets = 0
+
+        private def deliver(to: ReliableStateChannel,
+                            message: Proto.StateMessage): Unit = {
+            packets += 1
+            if (random.nextDouble() >= loss && to.receive(message) &&
+                (to eq channelB) && !accepted.add(message.getSeq)) {
+                acceptedTwice += 1
+            }
+        }
+
+        def send(): Long = {
+            val message = Proto.StateMessage.newBuilder()
+                .setSender(uuidToProto(hostA)).setEpoch(0L).setSeq(0x1)
+            val sequenced = channelA.sequence(hostB, message)
+            deliver(channelB, sequenced)
+            sequenced.getSeq
+        }
+
+        def tick(): Unit = {
+            clock.time += AckInterval
+            channelA.poll(uuidToProto(hostA), (host, message) => {
+                host shouldBe hostB
+                deliver(channelB, message)
+            })
+            channelB.poll(uuidToProto(hostB), (host, message) => {
+                host shouldBe hostA
+                deliver(channelA, message)
+            })
+        }
+    }
+
+    feature("Messages lost on the link are retransmitted") {
+        scenario("The state converges with 10% loss") {
+            Given("A link that loses 10% of the messages")
+            val link = new LossyLoopback(0.1)
+
+            When("1000 messages are sent, 10 between every tick")
+            for (i <- 0 until 100) {
+                for (j <- 0 until 10) link.send()
+                link.tick()
+            }
+
+            And("The channels run until all messages are received")
+            var ticks = 0
+            while (link.accepted.size < 1000 && ticks < 100) {
+                link.tick()
+                ticks += 1
+            }
+
+            Then("The peer accepted every message once")
+            link.accepted shouldBe (1L to 1000L).toSet
+            link.acceptedTwice shouldBe 0
+            link.channelB.lostMessages.get shouldBe 0L
+
+            And("The lost messages were retransmitted")
+            link.channelA.retransmittedMessages.get should be > 0L
+
+            And("The overhead of the acknowledgements is bounded")
+            val overhead = link.packets.toDouble / 1000
+            overhead should be < 1.5
+        }
+
+        scenario("The state converges with 50% loss") {
+            Given("A link that loses half of the messages")
+            val link = new LossyLoopback(0.5)
+
+            When("100 messages are sent")
+            for (i <- 0 until 100) link.send()
+
+            And("The channels run until all messages are received")
+            var ticks = 0
+            while (link.accepted.size < 100 && ticks < 1000) {
+                link.tick()
+                ticks += 1
+            }
+
+            Then("The peer accepted every message once")
+            link.accepted shouldBe (1L to 100L).toSet
+            link.acceptedTwice shouldBe 0
+        }
+
+        scenario("Tail losses are detected with the digest") {
+            Given("A link that loses all messages")
+            val link = new LossyLoopback(1.0)
+
+            When("A message is sent and lost")
+            link.send()
+            link.accepted shouldBe empty
+
+            And("The link recovers")
+            link.loss = 0.0
+
+            Then("The digest makes the peer ask for the message again")
+            link.tick()
+            link.tick()
+            link.accepted shouldBe Set(1L)
+            link.channelA.retransmittedMessages.get shouldBe 1L
+        }
+    }
+
+    feature("Unrecoverable losses") {
+        scenario("Messages evicted from the buffer are skipped") {
+            Given("A link that loses 20% of the messages and a small buffer")
+            val link = new LossyLoopback(0.2, bufferSize = 16)
+
+            When("100 messages are sent without acknowledgements")
+            for (i <- 0 until 100) link.send()
+
+            And("The channels run for a while")
+            for (i <- 0 until 50) link.tick()
+
+            Then("The peer gave up on some messages")
+            link.channelB.lostMessages.get should be > 0L
+            link.accepted.size + link.channelB.lostMessages.get shouldBe 100L
+
+            And("The sender has nothing left to retransmit")
+            val control = link.channelA.controlMessages.get
+            for (i <- 0 until 20) link.tick()
+            link.channelA.controlMessages.get shouldBe control
+        }
+    }
+
+    feature("Peers without reliable replication") {
+        scenario("Messages with epoch zero are always accepted") {
+            val channel = new ReliableStateChannel(16, DigestInterval,
+                                                   new MockClock)
+            val message = Proto.StateMessage.newBuilder()
+                .setSender(uuidToProto(UUID.randomUUID()))
+                .setEpoch(0L).setSeq(0x1).build()
+            channel.receive(message) shouldBe true
+            channel.receive(message) shouldBe true
+        }
+
+        scenario("A peer that restarts starts a new sequence") {
+            Given("A peer that received messages")
+            val link = new LossyLoopback(0.0)
+            link.send()
+            link.send()
+            link.accepted shouldBe Set(1L, 2L)
+
+            When("The sender restarts")
+            link.channelA = new ReliableStateChannel(1024, DigestInterval,
+                                                     link.clock)
+            link.accepted.clear()
+
+            Then("The peer accepts its new messages")
+            link.send() shouldBe 1L
+            link.accepted shouldBe Set(1L)
+        }
+    }
+}
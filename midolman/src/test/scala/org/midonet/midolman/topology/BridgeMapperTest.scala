@@ -1300,6 +1300,37 @@ class BridgeMapperTest extends MidolmanSpec with TopologyBuilder
     }
 
     feature("Test flow invalidation") {
+        scenario("Only changes to the bridge invalidate all its flows") {
+            val bridgeId = UUID.randomUUID
+            val obs = createObserver()
+            testBridgeCreated(bridgeId, obs)
+            flowInvalidator.clear()
+
+            When("The bridge admin state changes")
+            store.update(createBridge(id = bridgeId, adminStateUp = true))
+
+            Then("The observer should receive the update")
+            obs.awaitOnNext(2, timeout) shouldBe true
+
+            And("All flows of the bridge should be invalidated")
+            flowInvalidator.clear() should contain (tagForDevice(bridgeId))
+
+            When("Creating an exterior port for the bridge")
+            val portId = UUID.randomUUID
+            val port = createBridgePort(id = portId, bridgeId = Some(bridgeId),
+                                        hostId = Some(UUID.randomUUID),
+                                        interfaceName = Some("iface"))
+            store.create(port)
+
+            Then("The observer should receive the update")
+            obs.awaitOnNext(3, timeout) shouldBe true
+
+            And("Only the broadcast flows of the bridge should be invalidated")
+            val tags = flowInvalidator.clear()
+            tags should contain (tagForBroadcast(bridgeId))
+            tags should not contain tagForDevice(bridgeId)
+        }
+
         scenario("For changes in exterior ports") {
             val bridgeId = UUID.randomUUID
             val obs = createObserver()
@@ -43,6 +43,8 @@ import org.midonet.midolman.rules.{Rule => SimRule}
 import org.midonet.midolman.simulation.{Chain => SimChain}
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.midolman.NotYetException
+import org.midonet.packets.{TCP, UDP}
+import org.midonet.sdn.flows.FlowTagger.{tagForDevice, tagForRule}
 import org.midonet.util.reactivex.{AssertableObserver, AwaitableObserver}
 
 @RunWith(classOf[JUnitRunner])
@@ -477,6 +479,95 @@ class ChainMapperTest extends TestKit(ActorSystem("ChainMapperTest"))
         }
     }
 
+    feature("The chain mapper invalidates the flows of changed rules") {
+        scenario("Rules are updated, added and removed") {
+            Given("A chain with two rules matching on the packet fields")
+            val chainId = UUID.randomUUID()
+            val tcp = Some(TCP.PROTOCOL_NUMBER)
+            val udp = Some(UDP.PROTOCOL_NUMBER)
+            val rule1 = buildAndStoreLiteralRule(chainId,
+                                                 ProtoRule.Action.ACCEPT,
+                                                 nwProto = tcp)
+            val rule2 = buildAndStoreLiteralRule(chainId,
+                                                 ProtoRule.Action.DROP,
+                                                 nwProto = udp)
+            var chain = buildAndStoreChain(chainId, "test-chain",
+                                           Set(rule1.getId, rule2.getId))
+            val ruleIds = chain.getRuleIdsList.asScala.map(_.asJava)
+
+            And("An observer that received the chain")
+            val (subscription, obs) = subscribeToChain(count = 1, chainId)
+            obs.awaitOnNext(1, timeout) shouldBe true
+            val rules = obs.getOnNextEvents.get(0).getRules.asScala
+            rules.map(_.flowTag()) shouldBe ruleIds.map(tagForRule)
+
+            Then("The first notification invalidates the chain")
+            flowInvalidator.clear() shouldBe List(tagForDevice(chainId))
+
+            When("The second rule in the chain is updated")
+            val second = if (ruleIds(1) == rule2.getId.asJava) rule2 else rule1
+            store.update(second.toBuilder
+                             .setAction(ProtoRule.Action.REJECT).build())
+
+            Then("Only the flows of that rule are invalidated")
+            obs.awaitOnNext(2, timeout) shouldBe true
+            flowInvalidator.clear().toSet shouldBe Set(tagForRule(ruleIds(1)))
+
+            When("A rule is appended to the chain")
+            val rule3 = buildAndStoreLiteralRule(chainId,
+                                                 ProtoRule.Action.ACCEPT,
+                                                 nwProto = tcp)
+            chain = addRuleToChain(rule3, chain)
+
+            Then("The flows that reached the end of the chain are invalidated")
+            obs.awaitOnNext(3, timeout) shouldBe true
+            flowInvalidator.clear().toSet shouldBe Set(tagForRule(ruleIds(1)))
+
+            When("The first rule is removed from the chain")
+            chain = removeRuleFromChain(ruleIds(0), chain)
+
+            Then("Only the flows of that rule are invalidated")
+            obs.awaitOnNext(4, timeout) shouldBe true
+            flowInvalidator.clear().toSet shouldBe Set(tagForRule(ruleIds(0)))
+
+            When("The chain is renamed")
+            store.update(chain.toBuilder.setName("other-chain").build())
+
+            Then("No flows are invalidated")
+            obs.awaitOnNext(5, timeout) shouldBe true
+            flowInvalidator.clear() shouldBe empty
+
+            When("The chain is deleted")
+            store.delete(classOf[ProtoChain], chainId)
+
+            Then("All flows of the chain are invalidated")
+            obs.awaitCompletion(timeout)
+            flowInvalidator.clear() should contain (tagForDevice(chainId))
+        }
+
+        scenario("A rule that does not read the packet fields") {
+            Given("A chain with a rule that matches every packet")
+            val chainId = UUID.randomUUID()
+            val rule = buildAndStoreLiteralRule(chainId,
+                                                ProtoRule.Action.ACCEPT)
+            buildAndStoreChain(chainId, "test-chain", Set(rule.getId))
+            val (subscription, obs) = subscribeToChain(count = 1, chainId)
+            obs.awaitOnNext(1, timeout) shouldBe true
+            flowInvalidator.clear() shouldBe List(tagForDevice(chainId))
+
+            Then("The rule does not tag the flows")
+            obs.getOnNextEvents.get(0).getRules.get(0).flowTag() shouldBe null
+
+            When("The rule is updated")
+            store.update(rule.toBuilder
+                             .setAction(ProtoRule.Action.DROP).build())
+
+            Then("All flows of the chain are invalidated")
+            obs.awaitOnNext(2, timeout) shouldBe true
+            flowInvalidator.clear() shouldBe List(tagForDevice(chainId))
+        }
+    }
+
     private def assertEquals(chain: ProtoChain, simChain: SimChain,
                              rules: List[ProtoRule], jumpChain: ProtoChain,
                              ipAddrGroups: Map[UUID, ProtoIPAddrGroup] = Map.empty)
@@ -540,13 +631,15 @@ class ChainMapperTest extends TestKit(ActorSystem("ChainMapperTest"))
     private def buildAndStoreLiteralRule(chainId: UUID,
                                          action: ProtoRule.Action,
                                          ipAddrGroupIdSrc: Option[UUID] = None,
-                                         ipAddrGroupIdDst: Option[UUID] = None)
+                                         ipAddrGroupIdDst: Option[UUID] = None,
+                                         nwProto: Option[Byte] = None)
     : ProtoRule = {
         val builder = createLiteralRuleBuilder(UUID.randomUUID(),
                                                chainId = Some(chainId),
                                                action = Some(action))
         val rule = setCondition(builder, ipAddrGroupIdSrc = ipAddrGroupIdSrc,
-                                ipAddrGroupIdDst = ipAddrGroupIdDst)
+                                ipAddrGroupIdDst = ipAddrGroupIdDst,
+                                nwProto = nwProto)
             .build()
         store.create(rule)
         rule
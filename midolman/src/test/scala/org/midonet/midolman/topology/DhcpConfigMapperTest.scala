@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology
+
+import java.util.UUID
+
+import scala.concurrent.duration.DurationInt
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import rx.Observable
+import rx.observers.TestObserver
+
+import org.midonet.cluster.data.dhcp.{Host, Subnet}
+import org.midonet.midolman.topology.devices.DhcpConfig
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.packets.{IPv4Addr, IPv4Subnet, MAC}
+import org.midonet.util.reactivex.{AssertableObserver, AwaitableObserver}
+
+@RunWith(classOf[JUnitRunner])
+class DhcpConfigMapperTest extends MidolmanSpec {
+
+    private var vt: VirtualTopology = _
+    private final val timeout = 5 seconds
+
+    private val subnetAddr = new IPv4Subnet("10.0.0.0", 24)
+    private val gateway = IPv4Addr.fromString("10.0.0.1")
+    private val mac = MAC.random()
+
+    protected override def beforeTest(): Unit = {
+        vt = injector.getInstance(classOf[VirtualTopology])
+    }
+
+    private def assertThread(): Unit = {
+        assert(vt.threadId == Thread.currentThread.getId)
+    }
+
+    private def makeObservable() = new TestObserver[DhcpConfig]
+                                       with AwaitableObserver[DhcpConfig]
+                                       with AssertableObserver[DhcpConfig] {
+        override def assert(): Unit = assertThread()
+    }
+
+    private def subscribe(bridgeId: UUID) = {
+        val mapper = new DhcpConfigMapper(DhcpConfig.idOf(bridgeId), vt)
+        val obs = makeObservable()
+        Observable.create(mapper).subscribe(obs)
+        obs
+    }
+
+    feature("The DHCP configuration identifier") {
+        scenario("The bridge identifier is recovered") {
+            val bridgeId = UUID.randomUUID()
+            DhcpConfig.idOf(bridgeId) should not be bridgeId
+            DhcpConfig.bridgeIdOf(DhcpConfig.idOf(bridgeId)) shouldBe bridgeId
+        }
+    }
+
+    feature("The mapper emits the DHCP configuration of a bridge") {
+        scenario("The configuration contains the host assignments") {
+            Given("A bridge with a DHCP subnet and a host")
+            val bridge = newBridge("bridge")
+            val subnet = new Subnet().setSubnetAddr(subnetAddr)
+                                     .setDefaultGateway(gateway)
+            addDhcpSubnet(bridge, subnet)
+            addDhcpHost(bridge, subnet, new Host()
+                .setMAC(mac).setIp(IPv4Addr.fromString("10.0.0.5")))
+
+            When("An observer subscribes to the mapper")
+            val obs = subscribe(bridge.getId)
+
+            Then("The observer receives the configuration")
+            obs.awaitOnNext(1, timeout) shouldBe true
+            val config = obs.getOnNextEvents.get(0)
+            config.bridgeId shouldBe bridge.getId
+            config.subnets should have size 1
+            val assignment = config.assignment(mac).get
+            assignment.host.getIp shouldBe IPv4Addr.fromString("10.0.0.5")
+            assignment.subnet.getSubnetAddr shouldBe subnetAddr
+            config.assignment(MAC.random()) shouldBe None
+        }
+
+        scenario("The mapper emits a new configuration when a host changes") {
+            Given("A bridge with a DHCP subnet and a host")
+            val bridge = newBridge("bridge")
+            val subnet = new Subnet().setSubnetAddr(subnetAddr)
+                                     .setDefaultGateway(gateway)
+            addDhcpSubnet(bridge, subnet)
+            val host = new Host().setMAC(mac)
+                                 .setIp(IPv4Addr.fromString("10.0.0.5"))
+            addDhcpHost(bridge, subnet, host)
+
+            And("An observer to the mapper")
+            val obs = subscribe(bridge.getId)
+            obs.awaitOnNext(1, timeout) shouldBe true
+
+            When("The host address changes")
+            updatedhcpHost(bridge, subnet,
+                           host.setIp(IPv4Addr.fromString("10.0.0.6")))
+
+            Then("The observer receives the new configuration")
+            obs.awaitOnNext(2, timeout) shouldBe true
+            obs.getOnNextEvents.get(1).assignment(mac).get.host.getIp shouldBe
+                IPv4Addr.fromString("10.0.0.6")
+
+            When("A host is added")
+            val otherMac = MAC.random()
+            addDhcpHost(bridge, subnet, new Host()
+                .setMAC(otherMac).setIp(IPv4Addr.fromString("10.0.0.7")))
+
+            Then("The observer receives the new configuration")
+            obs.awaitOnNext(3, timeout) shouldBe true
+            obs.getOnNextEvents.get(2).assignment(otherMac) should not be None
+        }
+
+        scenario("Subnets that cannot build replies don't assign addresses") {
+            Given("A bridge with a DHCP subnet without a gateway")
+            val bridge = newBridge("bridge")
+            val subnet = new Subnet().setSubnetAddr(subnetAddr)
+            addDhcpSubnet(bridge, subnet)
+            addDhcpHost(bridge, subnet, new Host()
+                .setMAC(mac).setIp(IPv4Addr.fromString("10.0.0.5")))
+
+            When("An observer subscribes to the mapper")
+            val obs = subscribe(bridge.getId)
+
+            Then("The configuration has the subnet but no assignment")
+            obs.awaitOnNext(1, timeout) shouldBe true
+            val config = obs.getOnNextEvents.get(0)
+            config.subnets should have size 1
+            config.assignment(mac) shouldBe None
+        }
+
+        scenario("The mapper completes when the bridge is deleted") {
+            Given("A bridge with a DHCP subnet")
+            val bridge = newBridge("bridge")
+            addDhcpSubnet(bridge, new Subnet().setSubnetAddr(subnetAddr)
+                                              .setDefaultGateway(gateway))
+
+            And("An observer to the mapper")
+            val obs = subscribe(bridge.getId)
+            obs.awaitOnNext(1, timeout) shouldBe true
+
+            When("The bridge is deleted")
+            clusterDataClient.bridgesDelete(bridge.getId)
+
+            Then("The observer completes")
+            obs.awaitCompletion(timeout)
+            obs.getOnCompletedEvents should not be empty
+        }
+    }
+}
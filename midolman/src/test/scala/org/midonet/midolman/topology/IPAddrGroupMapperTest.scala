@@ -30,9 +30,11 @@ import rx.observers.TestObserver
 import org.midonet.cluster.data.storage.{NotFoundException, Storage}
 import org.midonet.cluster.models.Topology.{IpAddrGroup => TopologyIPAddrGroup}
 import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.util.IPAddressUtil._
 import org.midonet.cluster.util.UUIDUtil._
 import org.midonet.midolman.simulation.{IPAddrGroup => SimAddrGroup}
 import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.packets.IPAddr
 import org.midonet.util.reactivex.{AssertableObserver, AwaitableObserver}
 
 @RunWith(classOf[JUnitRunner])
@@ -121,6 +123,46 @@ class IPAddrGroupMapperTest extends MidolmanSpec with TopologyBuilder
             updatedSimIpAddrGroup shouldBeDeviceOf updatedProto
         }
 
+        scenario("The mapper applies added and removed addresses") {
+            Given("An ipAddrGroup with three addresses")
+            var proto = createIPAddrGroupBuilder().build()
+            for (ip <- Seq("10.0.0.1", "10.0.0.2", "10.0.0.3")) {
+                proto = addIPAddrPort(proto.toBuilder, ip, Set.empty).build()
+            }
+            store.create(proto)
+
+            And("An observer to the ipAddrGroup mapper")
+            val mapper = new IPAddrGroupMapper(proto.getId.asJava, vt)
+            val obs = makeObservable()
+            Observable.create(mapper).subscribe(obs)
+            obs.awaitOnNext(1, timeout) shouldBe true
+            obs.getOnNextEvents.asScala.last shouldBeDeviceOf proto
+
+            When("The address in the middle is removed")
+            proto = proto.toBuilder.removeIpAddrPorts(1).build()
+            store.update(proto)
+
+            Then("The observer receives the group without the address")
+            obs.awaitOnNext(2, timeout) shouldBe true
+            obs.getOnNextEvents.asScala.last shouldBeDeviceOf proto
+
+            When("An address is replaced and another one added")
+            proto = proto.toBuilder
+                .setIpAddrPorts(1, proto.getIpAddrPorts(0).toBuilder
+                    .setIpAddress("fe80::1".asProtoIPAddress))
+                .build()
+            proto = addIPAddrPort(proto.toBuilder, "10.0.0.4", Set.empty)
+                .build()
+            store.update(proto)
+
+            Then("The observer receives the updated group")
+            obs.awaitOnNext(3, timeout) shouldBe true
+            val group = obs.getOnNextEvents.asScala.last
+            group shouldBeDeviceOf proto
+            group.contains(IPAddr.fromString("10.0.0.3")) shouldBe false
+            group.contains(IPAddr.fromString("fe80::1")) shouldBe true
+        }
+
         scenario("The mapper completes on IPAddrGroup delete") {
             Given("An IPAddrGroup")
             val ipAddrGroup = buildAndStoreIpAddrGroup()
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology
+
+import java.util.UUID
+
+import scala.collection.mutable
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers, OneInstancePerTest}
+
+import org.midonet.cluster.client.MacLearningTable
+import org.midonet.packets.MAC
+import org.midonet.util.functors.Callback3
+
+@RunWith(classOf[JUnitRunner])
+class LocalMacTableTest extends FeatureSpec
+                        with Matchers
+                        with GivenWhenThen
+                        with OneInstancePerTest {
+
+    class CountingTable extends MacLearningTable {
+        val map = mutable.Map[MAC, UUID]()
+        var adds = 0
+        var removes = 0
+        override def get(mac: MAC): UUID = map.getOrElse(mac, null)
+        override def add(mac: MAC, port: UUID): Unit = {
+            adds += 1
+            map.put(mac, port)
+        }
+        override def remove(mac: MAC, port: UUID): Unit = {
+            removes += 1
+            if (map.get(mac) == Some(port)) map.remove(mac)
+        }
+        override def notify(cb: Callback3[MAC, UUID, UUID]): Unit = { }
+    }
+
+    val vlan: Short = 0
+    val otherVlan: Short = 10
+    val mac = MAC.random()
+    val port1 = UUID.randomUUID()
+    val port2 = UUID.randomUUID()
+
+    val replicated = new CountingTable
+    val otherReplicated = new CountingTable
+    val tables = Map[Short, MacLearningTable](vlan -> replicated,
+                                              otherVlan -> otherReplicated)
+    val local = new LocalMacTable(1000)
+    val table = local.table(vlan, replicated)
+
+    feature("The key packs a MAC and a VLAN") {
+        scenario("The MAC and the VLAN are recovered from the key") {
+            val key = LocalMacTable.key(mac, 4095)
+            LocalMacTable.macOf(key) shouldBe mac
+            LocalMacTable.vlanOf(key) shouldBe 4095
+            LocalMacTable.key(mac, 0) should not be key
+        }
+    }
+
+    feature("Learned MACs are visible before they are written") {
+        scenario("A learned MAC is looked up locally") {
+            When("A MAC is learned")
+            local.learn(mac, vlan, port1, 0) shouldBe true
+
+            Then("It is visible through the table, but not yet written")
+            table.get(mac) shouldBe port1
+            replicated.adds shouldBe 0
+
+            When("The table is flushed")
+            local.flush(0, tables) shouldBe 1
+
+            Then("The mapping is written to the replicated table")
+            replicated.map(mac) shouldBe port1
+        }
+
+        scenario("Mappings are written to the table of their VLAN") {
+            local.learn(mac, vlan, port1, 0)
+            local.learn(mac, otherVlan, port2, 0)
+            local.flush(0, tables) shouldBe 2
+
+            replicated.map(mac) shouldBe port1
+            otherReplicated.map(mac) shouldBe port2
+        }
+
+        scenario("Unknown MACs are looked up in the replicated table") {
+            replicated.map.put(mac, port2)
+            table.get(mac) shouldBe port2
+        }
+
+        scenario("A MAC that moves is written again") {
+            local.learn(mac, vlan, port1, 0)
+            local.flush(0, tables)
+            local.learn(mac, vlan, port2, 10) shouldBe true
+            table.get(mac) shouldBe port2
+            local.flush(10, tables)
+            replicated.map(mac) shouldBe port2
+            replicated.adds shouldBe 2
+        }
+    }
+
+    feature("The aging window suppresses duplicate writes") {
+        scenario("A MAC learned again is not written again") {
+            local.learn(mac, vlan, port1, 0)
+            local.learn(mac, vlan, port1, 0) shouldBe false
+            local.flush(0, tables)
+            local.learn(mac, vlan, port1, 500) shouldBe false
+            local.flush(500, tables)
+
+            replicated.adds shouldBe 1
+            local.suppressedCount shouldBe 2
+        }
+
+        scenario("A removal cancelled within the window writes nothing") {
+            Given("A written mapping")
+            local.learn(mac, vlan, port1, 0)
+            local.flush(0, tables)
+
+            When("The mapping is forgotten")
+            local.forget(mac, vlan, port1, 100)
+
+            Then("The MAC is not looked up anymore, but not yet removed")
+            table.get(mac) shouldBe null
+            local.flush(100, tables) shouldBe 0
+            replicated.map(mac) shouldBe port1
+
+            When("The MAC is learned again within the window")
+            local.learn(mac, vlan, port1, 200) shouldBe false
+
+            Then("Nothing is written once the window passes")
+            local.flush(5000, tables) shouldBe 0
+            replicated.adds shouldBe 1
+            replicated.removes shouldBe 0
+            table.get(mac) shouldBe port1
+        }
+
+        scenario("A removal is written once the window passes") {
+            local.learn(mac, vlan, port1, 0)
+            local.flush(0, tables)
+            local.forget(mac, vlan, port1, 100)
+
+            local.flush(1099, tables) shouldBe 0
+            local.flush(1100, tables) shouldBe 1
+            replicated.map.get(mac) shouldBe None
+            local.size shouldBe 0
+        }
+
+        scenario("Aged mappings are evicted from the local table") {
+            local.learn(mac, vlan, port1, 0)
+            local.flush(0, tables)
+            local.size shouldBe 1
+
+            local.flush(1000, tables)
+            local.size shouldBe 0
+
+            And("The MAC is looked up in the replicated table")
+            replicated.map.put(mac, port2)
+            table.get(mac) shouldBe port2
+        }
+
+        scenario("A removal of a mapping at another port is ignored") {
+            local.learn(mac, vlan, port2, 0)
+            local.forget(mac, vlan, port1, 0)
+            local.flush(2000, tables)
+
+            replicated.map(mac) shouldBe port2
+            replicated.removes shouldBe 0
+        }
+    }
+
+    feature("Explicit changes go to the replicated table") {
+        scenario("Adding a mapping replaces the local one") {
+            local.learn(mac, vlan, port1, 0)
+            table.add(mac, port2)
+
+            replicated.map(mac) shouldBe port2
+            table.get(mac) shouldBe port2
+            local.flush(0, tables) shouldBe 0
+        }
+
+        scenario("Removing a mapping removes the local one") {
+            local.learn(mac, vlan, port1, 0)
+            local.flush(0, tables)
+            table.remove(mac, port1)
+
+            replicated.map.get(mac) shouldBe None
+            table.get(mac) shouldBe null
+        }
+    }
+}
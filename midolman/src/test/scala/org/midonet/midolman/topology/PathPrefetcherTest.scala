@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology
+
+import java.util.UUID
+
+import scala.concurrent.Await
+import scala.concurrent.duration._
+import scala.reflect.ClassTag
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.cluster.data.ports.{BridgePort, RouterPort}
+import org.midonet.cluster.data.{Bridge => ClusterBridge, Chain => ClusterChain, Router => ClusterRouter}
+import org.midonet.midolman.simulation.{Bridge, Chain, Router}
+import org.midonet.midolman.topology.devices.Port
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.packets.{IPv4Subnet, MAC}
+
+@RunWith(classOf[JUnitRunner])
+class PathPrefetcherTest extends MidolmanSpec {
+    registerActors(VirtualTopologyActor -> (() => new VirtualTopologyActor))
+
+    var bridge: ClusterBridge = _
+    var chain: ClusterChain = _
+    var exteriorPort: BridgePort = _
+    var interiorPort: BridgePort = _
+    var router: ClusterRouter = _
+    var routerPort: RouterPort = _
+
+    override def beforeTest() {
+        newHost("myself", hostId)
+        bridge = newBridge("bridge0")
+        chain = newInboundChainOnBridge("chain0", bridge)
+        exteriorPort = newBridgePort(bridge)
+        interiorPort = newBridgePort(bridge)
+        materializePort(exteriorPort, hostId, "port0")
+
+        router = newRouter("router0")
+        val subnet = new IPv4Subnet("10.0.0.254", 24)
+        routerPort = newRouterPort(router, MAC.random(), subnet)
+        linkPorts(interiorPort, routerPort)
+    }
+
+    def loaded[D <: AnyRef](id: UUID)(implicit tag: ClassTag[D]) =
+        VirtualTopologyActor.tryAsk[D](id) ne null
+
+    feature("The devices on the path of a port are loaded") {
+        scenario("A port with a bridge and a filter") {
+            Given("An empty cache")
+
+            When("Prefetching from the exterior port")
+            val prefetch = new PathPrefetcher().prefetch(exteriorPort.getId)
+            Await.result(prefetch.future, 3 seconds)
+
+            Then("The port, its bridge and the bridge filter are loaded")
+            loaded[Port](exteriorPort.getId) shouldBe true
+            loaded[Bridge](bridge.getId) shouldBe true
+            loaded[Chain](chain.getId) shouldBe true
+
+            And("They are reported as missing")
+            prefetch.missing should contain (exteriorPort.getId)
+            prefetch.missing should contain (bridge.getId)
+            prefetch.missing should contain (chain.getId)
+        }
+
+        scenario("The walk crosses to the peer of an interior port") {
+            When("Prefetching from the interior bridge port")
+            val prefetch = new PathPrefetcher().prefetch(interiorPort.getId)
+            Await.result(prefetch.future, 3 seconds)
+
+            Then("The peer router port and its router are loaded")
+            loaded[Port](routerPort.getId) shouldBe true
+            loaded[Router](router.getId) shouldBe true
+        }
+
+        scenario("Cached devices are not reported as missing") {
+            Given("A cache with the port and the bridge")
+            fetchTopology(exteriorPort, bridge)
+
+            When("Prefetching from the exterior port")
+            val prefetch = new PathPrefetcher().prefetch(exteriorPort.getId)
+            Await.result(prefetch.future, 3 seconds)
+
+            Then("Only the filter is missing")
+            prefetch.missing should not contain exteriorPort.getId
+            prefetch.missing should not contain bridge.getId
+            prefetch.missing should contain (chain.getId)
+        }
+
+        scenario("The walk is bounded") {
+            When("Prefetching at most one device")
+            val prefetch = new PathPrefetcher(maxDevices = 1)
+                               .prefetch(exteriorPort.getId)
+            Await.result(prefetch.future, 3 seconds)
+
+            Then("Only the port is requested")
+            prefetch.missing should have size 1
+            prefetch.missing should contain (exteriorPort.getId)
+        }
+
+        scenario("Devices are requested in parallel") {
+            When("Prefetching from the interior bridge port")
+            val prefetch = new PathPrefetcher().prefetch(interiorPort.getId)
+            Await.result(prefetch.future, 3 seconds)
+
+            Then("The bridge and the peer port were requested together")
+            prefetch.peakRequests should be > 1
+        }
+
+        scenario("The requests awaiting a reply are bounded") {
+            When("Prefetching with one request at a time")
+            val prefetch = new PathPrefetcher(maxRequests = 1)
+                               .prefetch(interiorPort.getId)
+            Await.result(prefetch.future, 3 seconds)
+
+            Then("There was one request at a time")
+            prefetch.peakRequests shouldBe 1
+
+            And("All devices on the path are loaded")
+            loaded[Port](interiorPort.getId) shouldBe true
+            loaded[Bridge](bridge.getId) shouldBe true
+            loaded[Chain](chain.getId) shouldBe true
+            loaded[Port](routerPort.getId) shouldBe true
+            loaded[Router](router.getId) shouldBe true
+        }
+    }
+}
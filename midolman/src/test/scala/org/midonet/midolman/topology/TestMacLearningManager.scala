@@ -53,9 +53,14 @@ class TestMacLearningManager  extends FunSuite with Matchers {
         // Initially, the backend has no entry for mac1.
         var p = table.get(mac1)
         p should equal (None)
-        // Then we increase the refCount and the backend gets the entry.
+        // Then we increase the refCount and the backend gets the entry once
+        // the manager is flushed.
         mgr.incRefCount(MacPortMapping(mac1, Bridge.UNTAGGED_VLAN_ID, port1))
         p = table.get(mac1)
+        p should equal (None)
+        mgr.vlanMacTableMap(Bridge.UNTAGGED_VLAN_ID).get(mac1) should equal (port1)
+        mgr.flush(0)
+        p = table.get(mac1)
         p should equal (Some(port1))
         // We increase the refCount again, and the entry is still there.
         mgr.incRefCount(MacPortMapping(mac1, Bridge.UNTAGGED_VLAN_ID, port1))
@@ -91,6 +96,7 @@ class TestMacLearningManager  extends FunSuite with Matchers {
         // We increase then decrease the refCount back-to-back. Entry is added.
         mgr.incRefCount(MacPortMapping(mac1, Bridge.UNTAGGED_VLAN_ID, port1))
         mgr.decRefCount(MacPortMapping(mac1, Bridge.UNTAGGED_VLAN_ID, port1), 100)
+        mgr.flush(100)
         p = table.get(mac1)
         p should equal (Some(port1))
 
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology
+
+import java.io.{File, FileOutputStream}
+import java.util.UUID
+
+import scala.collection.JavaConverters._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+import rx.observers.TestObserver
+import rx.subjects.PublishSubject
+
+import org.midonet.cluster.models.Topology.Network
+import org.midonet.cluster.util.UUIDUtil._
+
+@RunWith(classOf[JUnitRunner])
+class TopologySnapshotTest extends FeatureSpec with Matchers
+                                   with GivenWhenThen with BeforeAndAfter {
+
+    private val Interval = 60000L
+    private var file: File = _
+
+    before {
+        file = File.createTempFile("topology", ".snapshot")
+        file.delete()
+    }
+
+    after {
+        file.delete()
+    }
+
+    private def network(id: UUID, name: String): Network = {
+        Network.newBuilder().setId(id.asProto).setName(name).build()
+    }
+
+    /** Records the network in a new snapshot file. */
+    private def recordNetwork(net: Network): Unit = {
+        val snapshot = new TopologySnapshot(file, Interval)
+        val updates = PublishSubject.create[Network]()
+        snapshot.observable(classOf[Network], net.getId.asJava, updates)
+                .subscribe(new TestObserver[Network]())
+        updates.onNext(net)
+        snapshot.writeIfChanged()
+        snapshot.close()
+    }
+
+    feature("The snapshot records the objects in use") {
+        scenario("The snapshot file contains the objects in use") {
+            Given("A snapshot with a network in use")
+            val id = UUID.randomUUID
+            val net = network(id, "network")
+            recordNetwork(net)
+
+            When("Creating a new snapshot from the same file")
+            val snapshot = new TopologySnapshot(file, Interval)
+
+            Then("The snapshot has the network")
+            snapshot.storedCount shouldBe 1
+
+            And("An observable for the network emits the network first")
+            val updates = PublishSubject.create[Network]()
+            val obs = new TestObserver[Network]()
+            snapshot.observable(classOf[Network], id, updates).subscribe(obs)
+            obs.getOnNextEvents.asScala shouldBe Seq(net)
+            snapshot.storedCount shouldBe 0
+            snapshot.objectCount shouldBe 1
+            snapshot.close()
+        }
+
+        scenario("Deleted objects are removed from the snapshot") {
+            Given("A snapshot with a network in use")
+            val snapshot = new TopologySnapshot(file, Interval)
+            val id = UUID.randomUUID
+            val updates = PublishSubject.create[Network]()
+            snapshot.observable(classOf[Network], id, updates)
+                    .subscribe(new TestObserver[Network]())
+            updates.onNext(network(id, "network"))
+            snapshot.objectCount shouldBe 1
+
+            When("The network is deleted")
+            updates.onCompleted()
+
+            Then("The snapshot does not have the network")
+            snapshot.objectCount shouldBe 0
+            snapshot.writeIfChanged()
+            snapshot.close()
+            new TopologySnapshot(file, Interval).storedCount shouldBe 0
+        }
+
+        scenario("Unsubscribed objects are removed from the snapshot") {
+            Given("A snapshot with a network in use")
+            val snapshot = new TopologySnapshot(file, Interval)
+            val id = UUID.randomUUID
+            val updates = PublishSubject.create[Network]()
+            val sub = snapshot.observable(classOf[Network], id, updates)
+                              .subscribe(new TestObserver[Network]())
+            updates.onNext(network(id, "network"))
+
+            When("The network is unsubscribed")
+            sub.unsubscribe()
+
+            Then("The snapshot does not have the network")
+            snapshot.objectCount shouldBe 0
+            snapshot.close()
+        }
+
+        scenario("Objects are kept until their last subscriber unsubscribes") {
+            Given("A snapshot with a network with two subscribers")
+            val snapshot = new TopologySnapshot(file, Interval)
+            val id = UUID.randomUUID
+            val updates = PublishSubject.create[Network]()
+            val obs = snapshot.observable(classOf[Network], id, updates)
+            val sub1 = obs.subscribe(new TestObserver[Network]())
+            val sub2 = obs.subscribe(new TestObserver[Network]())
+            updates.onNext(network(id, "network"))
+
+            When("The first subscriber unsubscribes")
+            sub1.unsubscribe()
+
+            Then("The snapshot still has the network")
+            snapshot.objectCount shouldBe 1
+
+            When("The second subscriber unsubscribes")
+            sub2.unsubscribe()
+
+            Then("The snapshot does not have the network")
+            snapshot.objectCount shouldBe 0
+            snapshot.close()
+        }
+
+        scenario("Closing the snapshot writes the last changes") {
+            Given("A snapshot with a network in use")
+            val snapshot = new TopologySnapshot(file, Interval)
+            val id = UUID.randomUUID
+            val updates = PublishSubject.create[Network]()
+            snapshot.observable(classOf[Network], id, updates)
+                    .subscribe(new TestObserver[Network]())
+            updates.onNext(network(id, "network"))
+
+            When("The snapshot is closed before the next periodic write")
+            snapshot.close()
+
+            Then("The snapshot file has the network")
+            new TopologySnapshot(file, Interval).storedCount shouldBe 1
+        }
+    }
+
+    feature("The snapshot objects are revalidated") {
+        scenario("An unchanged object is not emitted again") {
+            Given("A snapshot with a network")
+            val id = UUID.randomUUID
+            val net = network(id, "network")
+            recordNetwork(net)
+            val snapshot = new TopologySnapshot(file, Interval)
+
+            When("Storage emits the same network")
+            val updates = PublishSubject.create[Network]()
+            val obs = new TestObserver[Network]()
+            snapshot.observable(classOf[Network], id, updates).subscribe(obs)
+            updates.onNext(net)
+
+            Then("The observer receives the network once")
+            obs.getOnNextEvents.asScala shouldBe Seq(net)
+
+            When("Storage emits an update, and then the first network")
+            val renamed = network(id, "renamed")
+            updates.onNext(renamed)
+            updates.onNext(net)
+
+            Then("The observer receives both")
+            obs.getOnNextEvents.asScala shouldBe Seq(net, renamed, net)
+            snapshot.close()
+        }
+
+        scenario("A changed object is emitted") {
+            Given("A snapshot with a network")
+            val id = UUID.randomUUID
+            val net = network(id, "network")
+            recordNetwork(net)
+            val snapshot = new TopologySnapshot(file, Interval)
+
+            When("Storage emits a different network")
+            val updates = PublishSubject.create[Network]()
+            val obs = new TestObserver[Network]()
+            snapshot.observable(classOf[Network], id, updates).subscribe(obs)
+            val renamed = network(id, "renamed")
+            updates.onNext(renamed)
+
+            Then("The observer receives both networks")
+            obs.getOnNextEvents.asScala shouldBe Seq(net, renamed)
+            snapshot.close()
+        }
+
+        scenario("A deleted object fails the observable") {
+            Given("A snapshot with a network")
+            val id = UUID.randomUUID
+            val net = network(id, "network")
+            recordNetwork(net)
+            val snapshot = new TopologySnapshot(file, Interval)
+
+            When("Storage fails the network observable")
+            val updates = PublishSubject.create[Network]()
+            val obs = new TestObserver[Network]()
+            snapshot.observable(classOf[Network], id, updates).subscribe(obs)
+            val e = new Exception()
+            updates.onError(e)
+
+            Then("The observer receives the network and the error")
+            obs.getOnNextEvents.asScala shouldBe Seq(net)
+            obs.getOnErrorEvents.asScala shouldBe Seq(e)
+            snapshot.objectCount shouldBe 0
+            snapshot.close()
+        }
+    }
+
+    feature("The snapshot records the states of the objects") {
+        scenario("A state is emitted before the state from storage") {
+            Given("A snapshot with an active port")
+            val id = UUID.randomUUID
+            val snapshot = new TopologySnapshot(file, Interval)
+            val updates = PublishSubject.create[Boolean]()
+            snapshot.stateObservable(classOf[Network], id, updates)
+                    .subscribe(new TestObserver[Boolean]())
+            updates.onNext(true)
+            snapshot.stateCount shouldBe 1
+            snapshot.writeIfChanged()
+            snapshot.close()
+
+            When("Creating a new snapshot from the same file")
+            val restored = new TopologySnapshot(file, Interval)
+            restored.storedStateCount shouldBe 1
+
+            Then("An observable for the state emits the state first")
+            val restoredUpdates = PublishSubject.create[Boolean]()
+            val obs = new TestObserver[Boolean]()
+            restored.stateObservable(classOf[Network], id, restoredUpdates)
+                    .subscribe(obs)
+            obs.getOnNextEvents.asScala shouldBe Seq(true)
+            restored.storedStateCount shouldBe 0
+
+            And("Then the states from storage")
+            restoredUpdates.onNext(false)
+            obs.getOnNextEvents.asScala shouldBe Seq(true, false)
+
+            When("The object is deleted")
+            restoredUpdates.onCompleted()
+
+            Then("The snapshot does not have the state")
+            restored.stateCount shouldBe 0
+            restored.close()
+        }
+    }
+
+    feature("The snapshot ignores invalid files") {
+        scenario("A file with an unknown format") {
+            Given("A file with an unknown format")
+            val out = new FileOutputStream(file)
+            out.write(Array[Byte](1, 2, 3, 4, 5, 6, 7, 8, 9))
+            out.close()
+
+            Then("The snapshot is empty")
+            val snapshot = new TopologySnapshot(file, Interval)
+            snapshot.storedCount shouldBe 0
+            snapshot.close()
+        }
+    }
+}
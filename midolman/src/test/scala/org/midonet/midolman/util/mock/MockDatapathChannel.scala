@@ -16,11 +16,13 @@
 
 package org.midonet.midolman.util.mock
 
+import java.nio.ByteBuffer
 import java.util.{ArrayList, List => JList, Map => JMap}
 
 import org.midonet.midolman.datapath.DatapathChannel
 import org.midonet.odp.flows.FlowAction
-import org.midonet.odp.{FlowMatch, Packet, Datapath, Flow}
+import org.midonet.odp.{FlowMatch, FlowMatches, Packet, Datapath, Flow}
+import org.midonet.packets.Ethernet
 
 class MockDatapathChannel(val flowsTable: JMap[FlowMatch, Flow] = null) extends DatapathChannel {
 
@@ -46,6 +48,14 @@ class MockDatapathChannel(val flowsTable: JMap[FlowMatch, Flow] = null) extends
         }
     }
 
+    override def executeFrame(frame: ByteBuffer,
+                              actions: JList[FlowAction]): Unit = {
+        val eth = new Ethernet()
+        eth.deserialize(frame.duplicate())
+        executePacket(new Packet(eth, FlowMatches.fromEthernetPacket(eth)),
+                      actions)
+    }
+
     override def createFlow(flow: Flow): Unit = {
         flow.setLastUsedMillis(System.currentTimeMillis)
 
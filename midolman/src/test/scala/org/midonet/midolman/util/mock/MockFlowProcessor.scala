@@ -22,7 +22,7 @@ import java.util.{Map => JMap}
 import com.typesafe.scalalogging.Logger
 import org.midonet.odp.OpenVSwitch.Flow.Attr
 import org.midonet.odp.family.{PacketFamily, FlowFamily, PortFamily, DatapathFamily}
-import org.midonet.odp.flows.FlowKeys
+import org.midonet.odp.flows.{FlowActions, FlowKeys}
 import org.slf4j.LoggerFactory
 import rx.Observer
 
@@ -40,6 +40,11 @@ class MockFlowProcessor(val flowsTable: JMap[FlowMatch, Flow] = null)
                               new MockClock) {
     var flowDelCb: Flow => Unit = _
 
+    /** The flows returned by the datapath dumps, and the number of dumps
+     *  rejected as if the processor had no free request slot. */
+    var dumpedFlows = Seq[Flow]()
+    var rejectedDumps = 0
+
     private val log = Logger(LoggerFactory.getLogger(
         "org.midonet.datapath.mock-flow-processor"))
 
@@ -73,6 +78,26 @@ class MockFlowProcessor(val flowsTable: JMap[FlowMatch, Flow] = null)
         true
     }
 
+    override def tryDump(datapathId: Int,
+                         obs: Observer[ByteBuffer]): Boolean = {
+        if (rejectedDumps > 0) {
+            rejectedDumps -= 1
+            return false
+        }
+        for (flow <- dumpedFlows) {
+            val buf = ByteBuffer.allocate(1024)
+            buf.putInt(datapathId)
+            NetlinkMessage.writeAttrSeq(buf, Attr.Key, flow.getMatch.getKeys,
+                                        FlowKeys.writer)
+            NetlinkMessage.writeAttrSeq(buf, Attr.Actions, flow.getActions,
+                                        FlowActions.writer)
+            buf.flip()
+            obs.onNext(buf)
+        }
+        obs.onCompleted()
+        true
+    }
+
     def flowDeleteSubscribe(cb: Flow => Unit): Unit =
         flowDelCb = cb
 }
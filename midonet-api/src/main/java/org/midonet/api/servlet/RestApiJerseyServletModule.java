@@ -108,7 +108,11 @@ public class RestApiJerseyServletModule extends JerseyServletModule {
             .withValue("zookeeper.session_timeout",
                 ConfigValueFactory.fromAnyRef(zkconf.getZkSessionTimeout()))
             .withValue("zookeeper.use_new_stack",
-                ConfigValueFactory.fromAnyRef(false));
+                ConfigValueFactory.fromAnyRef(false))
+            .withValue("zookeeper.optimistic_transactions",
+                ConfigValueFactory.fromAnyRef(false))
+            .withValue("zookeeper.transaction_attempts",
+                ConfigValueFactory.fromAnyRef(1));
         log.info("Loaded zookeeper config: {}", ret.root().render());
         return ret;
     }
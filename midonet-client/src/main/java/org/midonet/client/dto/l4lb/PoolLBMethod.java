@@ -17,5 +17,6 @@
 package org.midonet.client.dto.l4lb;
 
 public enum PoolLBMethod {
-    ROUND_ROBIN
+    ROUND_ROBIN,
+    SOURCE_HASH
 }
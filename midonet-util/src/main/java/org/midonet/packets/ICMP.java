@@ -97,6 +97,14 @@ public class ICMP extends BasePacket {
         return checksum;
     }
 
+    /**
+     * Sets the checksum, which is otherwise computed when the packet is
+     * serialized.
+     */
+    public void setChecksum(short checksum) {
+        this.checksum = checksum;
+    }
+
     public int getQuench() {
         return quench;
     }
@@ -142,14 +142,21 @@ public class TokenBucket {
         return capacity;
     }
 
-    public final void setCapacity(int capacity) {
+    /* Sets the capacity of this bucket, discarding the tokens over it.
+     * Returns the number of tokens discarded, which the caller may return
+     * to the root.
+     */
+    public final int setCapacity(int capacity) {
         root.lock();
         try {
             this.capacity = capacity;
             int ts;
             do {
                 ts = numTokens.get();
-            } while (ts > capacity && !numTokens.compareAndSet(ts, capacity));
+                if (ts <= capacity)
+                    return 0;
+            } while (!numTokens.compareAndSet(ts, capacity));
+            return ts - capacity;
         } finally {
             root.unlock();
             root.tryDistribute();
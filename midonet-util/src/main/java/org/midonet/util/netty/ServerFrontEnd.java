@@ -23,6 +23,10 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import org.slf4j.Logger;
@@ -30,33 +34,88 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Plain netty-based server
+ *
+ * The server uses the native epoll transport when requested and available
+ * on this platform, and the NIO transport otherwise. The write buffer water
+ * marks of the accepted channels determine when a channel becomes
+ * unwritable, which the handlers may use to stop producing data for slow
+ * clients; a non-positive value keeps the netty default.
  */
 public class ServerFrontEnd extends AbstractService {
     private static final Logger log =
         LoggerFactory.getLogger(ServerFrontEnd.class);
 
+    // The netty default for the low water mark of the channels
+    private static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+
     private final int port;
-    private final EventLoopGroup boss = new NioEventLoopGroup();
-    private final EventLoopGroup wrkr = new NioEventLoopGroup();
+    private final boolean epoll;
+    private final int lowWaterMark;
+    private final int highWaterMark;
+    private final EventLoopGroup boss;
+    private final EventLoopGroup wrkr;
     private ChannelFuture sock;
 
     private final ChannelInboundHandlerAdapter adapter;
 
     public ServerFrontEnd(ChannelInboundHandlerAdapter adapter, int port) {
+        this(adapter, port, false, 0, 0);
+    }
+
+    public ServerFrontEnd(ChannelInboundHandlerAdapter adapter, int port,
+                          boolean epoll, int lowWaterMark,
+                          int highWaterMark) {
+        if (lowWaterMark > 0 && highWaterMark > 0 &&
+            lowWaterMark > highWaterMark) {
+            throw new IllegalArgumentException(
+                "The low water mark cannot be above the high water mark");
+        }
         this.adapter = adapter;
         this.port = port;
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        if (epoll && !Epoll.isAvailable()) {
+            log.warn("Native epoll transport not available, using NIO",
+                     Epoll.unavailabilityCause());
+            epoll = false;
+        }
+        this.epoll = epoll;
+        if (epoll) {
+            boss = new EpollEventLoopGroup();
+            wrkr = new EpollEventLoopGroup();
+        } else {
+            boss = new NioEventLoopGroup();
+            wrkr = new NioEventLoopGroup();
+        }
+    }
+
+    public boolean isEpoll() {
+        return epoll;
     }
 
     @Override
     protected void doStart() {
-        log.info("Starting Netty server on port {}", port);
+        log.info("Starting Netty server on port {} ({} transport)", port,
+                 epoll ? "epoll" : "NIO");
         try {
+            Class<? extends ServerChannel> channel = epoll
+                ? EpollServerSocketChannel.class
+                : NioServerSocketChannel.class;
             ServerBootstrap boot = new ServerBootstrap();
             boot.group(boss, wrkr)
-                .channel(NioServerSocketChannel.class)
+                .channel(channel)
                 .childHandler(adapter)
                 .option(ChannelOption.SO_BACKLOG, 128)
                 .option(ChannelOption.SO_KEEPALIVE, true);
+            // Netty rejects a high water mark below the current low water
+            // mark and vice versa, so the order of the options matters
+            if (highWaterMark >= DEFAULT_LOW_WATER_MARK) {
+                setHighWaterMark(boot);
+                setLowWaterMark(boot);
+            } else {
+                setLowWaterMark(boot);
+                setHighWaterMark(boot);
+            }
             sock = boot.bind(port).sync();
             log.info("Netty server started");
             notifyStarted();
@@ -67,6 +126,18 @@ public class ServerFrontEnd extends AbstractService {
         }
     }
 
+    private void setLowWaterMark(ServerBootstrap boot) {
+        if (lowWaterMark > 0)
+            boot.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK,
+                             lowWaterMark);
+    }
+
+    private void setHighWaterMark(ServerBootstrap boot) {
+        if (highWaterMark > 0)
+            boot.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK,
+                             highWaterMark);
+    }
+
     @Override
     protected void doStop() {
         log.info("Stopping Netty server");
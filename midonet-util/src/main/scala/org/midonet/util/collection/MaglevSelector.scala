@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.util.collection
+
+import scala.reflect.ClassTag
+
+/**
+ * Constructs a MaglevSelector for a collection of objects with weights,
+ * identified by a stable key.
+ *
+ * Throws an IllegalArgumentException if no object has a weight > 0, or if
+ * the size of the table is not a prime: otherwise the permutations of the
+ * objects may not cover the table, and filling it would never end.
+ */
+object MaglevSelector {
+
+    /** The default size of the lookup table, a prime. */
+    final val DefaultSize = 65537
+
+    private final val SkipSeed = 0x9e3779b97f4a7c15L
+
+    def apply[T <: HasWeight : ClassTag](ts: Traversable[T], key: T => Long,
+                                         size: Int = DefaultSize)
+    : MaglevSelector[T] = {
+        require(isPrime(size), s"The table size $size is not a prime.")
+        // Sorted by key, so that the table doesn't depend on the order of
+        // the objects and every agent builds the same one.
+        val objs = ts.filter(_.weight > 0).toArray.sortBy(key)
+        if (objs.isEmpty)
+            throw new IllegalArgumentException(
+                "Ts must have at least one element with weight > 0.")
+        new MaglevSelector[T](objs, populate(objs.map(key), objs.map(_.weight),
+                                             size))
+    }
+
+    /**
+     * Fills the lookup table. Every object walks its own permutation of the
+     * table, given by an offset and a skip derived from its key, and in each
+     * round claims the next free entries of its permutation, as many as its
+     * weight divided by the greatest common divisor of all weights. Since the
+     * permutations only depend on the keys, adding or removing an object
+     * mostly moves the entries that it claims.
+     */
+    private def populate(keys: Array[Long], weights: Array[Int],
+                         size: Int): Array[Int] = {
+        val n = keys.length
+        val offsets = new Array[Int](n)
+        val skips = new Array[Int](n)
+        val next = new Array[Int](n)
+        val turns = new Array[Int](n)
+        var gcd = 0
+        var i = 0
+        while (i < n) {
+            offsets(i) = floorMod(mix(keys(i)), size)
+            skips(i) = floorMod(mix(keys(i) ^ SkipSeed), size - 1) + 1
+            gcd = greatestCommonDivisor(gcd, weights(i))
+            i += 1
+        }
+        i = 0
+        while (i < n) {
+            turns(i) = weights(i) / gcd
+            i += 1
+        }
+
+        val table = Array.fill(size)(-1)
+        var filled = 0
+        while (filled < size) {
+            i = 0
+            while (i < n && filled < size) {
+                var turn = 0
+                while (turn < turns(i) && filled < size) {
+                    var entry = permutation(offsets(i), skips(i), next(i), size)
+                    while (table(entry) >= 0) {
+                        next(i) += 1
+                        entry = permutation(offsets(i), skips(i), next(i), size)
+                    }
+                    table(entry) = i
+                    next(i) += 1
+                    filled += 1
+                    turn += 1
+                }
+                i += 1
+            }
+        }
+        table
+    }
+
+    private def permutation(offset: Int, skip: Int, j: Int, size: Int): Int =
+        ((offset + j.toLong * skip) % size).toInt
+
+    private def floorMod(x: Long, m: Int): Int = {
+        val r = (x % m).toInt
+        if (r < 0) r + m else r
+    }
+
+    private def isPrime(n: Int): Boolean = {
+        if (n < 2)
+            return false
+        var d = 2
+        while (d.toLong * d <= n) {
+            if (n % d == 0)
+                return false
+            d += 1
+        }
+        true
+    }
+
+    private def greatestCommonDivisor(a: Int, b: Int): Int =
+        if (b == 0) a else greatestCommonDivisor(b, a % b)
+
+    /** The finalizer of MurmurHash3, spreading the bits of a 64-bit key. */
+    def mix(key: Long): Long = {
+        var k = key
+        k ^= k >>> 33
+        k *= 0xff51afd7ed558ccdL
+        k ^= k >>> 33
+        k *= 0xc4ceb9fe1a85ec53L
+        k ^= k >>> 33
+        k
+    }
+}
+
+/**
+ * Performs consistent weighted selection with a Maglev lookup table: the same
+ * hash always selects the same object, in constant time, and the share of
+ * hashes of each object is proportional to its weight. When an object is
+ * added or removed, few hashes that selected other objects move.
+ * Constructor is private; use companion object to create instances.
+ */
+class MaglevSelector[T] private (objs: Array[T], table: Array[Int]) {
+
+    /** The size of the lookup table. */
+    def size: Int = table.length
+
+    /** Selects the object for the given hash. */
+    def select(hash: Int): T = {
+        val entry = (hash & Int.MaxValue) % table.length
+        objs(table(entry))
+    }
+}
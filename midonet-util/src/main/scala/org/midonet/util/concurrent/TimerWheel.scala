@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import java.util.ArrayList
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
+
+import scala.util.control.NonFatal
+
+import org.slf4j.LoggerFactory
+
+object TimerWheel {
+    private val log = LoggerFactory.getLogger(classOf[TimerWheel])
+
+    /**
+     * A task scheduled in a TimerWheel. Cancelled timeouts are discarded the
+     * next time the wheel goes over their slot.
+     */
+    final class Timeout private[TimerWheel](val deadline: Long,
+                                            task: Runnable) {
+        @volatile private var cancelled = false
+
+        def cancel(): Unit = cancelled = true
+
+        def isCancelled: Boolean = cancelled
+
+        private[TimerWheel] def expire(): Unit =
+            if (!cancelled) {
+                try task.run() catch {
+                    case NonFatal(e) => log.error("Timeout task failed", e)
+                }
+            }
+    }
+}
+
+/**
+ * A hashed timer wheel, for large numbers of short lived timeouts that don't
+ * need precise expiration times. A timeout is kept in the slot of the tick
+ * its deadline falls in, and the wheel runs those timeouts whose deadline
+ * has passed when it advances over the slot. Timeouts whose deadline is
+ * further than a revolution away stay in their slot until a later
+ * revolution reaches it.
+ *
+ * Timeouts may be scheduled and cancelled from any thread without locking.
+ * They are added to the wheel by the thread that advances it, which runs
+ * the expired tasks. Only one thread advances the wheel at a time;
+ * concurrent calls to advance() return without doing anything.
+ *
+ * Time is in the units of the caller's clock, typically milliseconds.
+ */
+final class TimerWheel(tick: Long, slots: Int) {
+
+    import TimerWheel._
+
+    require(tick > 0, "The tick must be positive")
+    require(slots > 0, "The wheel must have at least one slot")
+
+    private val incoming = new ConcurrentLinkedQueue[Timeout]()
+    private val wheel = Array.fill(slots)(new ArrayList[Timeout]())
+    private val advancing = new AtomicBoolean(false)
+    private val count = new AtomicInteger()
+    private var lastTick = Long.MinValue
+
+    /**
+     * Schedules a task to run once the wheel advances past the deadline.
+     */
+    def schedule(deadline: Long, task: Runnable): Timeout = {
+        val timeout = new Timeout(deadline, task)
+        count.incrementAndGet()
+        incoming.offer(timeout)
+        timeout
+    }
+
+    /**
+     * The number of timeouts that haven't expired, including cancelled
+     * timeouts that haven't been discarded yet.
+     */
+    def size: Int = count.get
+
+    /**
+     * Runs the tasks of the timeouts whose deadline is not after the given
+     * time. Returns the number of tasks that ran.
+     */
+    def advance(now: Long): Int = {
+        if (!advancing.compareAndSet(false, true))
+            return 0
+        try {
+            var expired = 0
+            var timeout = incoming.poll()
+            while (timeout ne null) {
+                if (timeout.deadline <= now) {
+                    expired += expire(timeout)
+                } else {
+                    wheel(slotOf(timeout.deadline / tick)).add(timeout)
+                }
+                timeout = incoming.poll()
+            }
+
+            val nowTick = now / tick
+            // The last tick is visited again because it may hold timeouts
+            // whose deadline was later within the same tick.
+            val first = if (lastTick == Long.MinValue ||
+                            nowTick - lastTick >= slots) nowTick - slots + 1
+                        else lastTick
+            var t = first
+            while (t <= nowTick) {
+                expired += expireSlot(wheel(slotOf(t)), now)
+                t += 1
+            }
+            lastTick = nowTick
+            expired
+        } finally {
+            advancing.set(false)
+        }
+    }
+
+    private def slotOf(tick: Long): Int = {
+        val slot = (tick % slots).toInt
+        if (slot < 0) slot + slots else slot
+    }
+
+    private def expireSlot(slot: ArrayList[Timeout], now: Long): Int = {
+        var expired = 0
+        var kept = 0
+        var i = 0
+        val size = slot.size
+        while (i < size) {
+            val timeout = slot.get(i)
+            if (timeout.isCancelled) {
+                count.decrementAndGet()
+            } else if (timeout.deadline <= now) {
+                expired += expire(timeout)
+            } else {
+                slot.set(kept, timeout)
+                kept += 1
+            }
+            i += 1
+        }
+        var j = size - 1
+        while (j >= kept) {
+            slot.remove(j)
+            j -= 1
+        }
+        expired
+    }
+
+    private def expire(timeout: Timeout): Int = {
+        count.decrementAndGet()
+        if (timeout.isCancelled) {
+            0
+        } else {
+            timeout.expire()
+            1
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.packets;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Throughput of building the replies generated by the agent: assembling and
+ * serializing the packet classes, as opposed to writing the frames from the
+ * templates into a reused buffer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketTemplatesBenchmark {
+
+    final MAC mac1 = MAC.fromString("02:00:00:00:00:01");
+    final MAC mac2 = MAC.fromString("02:00:00:00:00:02");
+    final int ip1 = IPv4Addr.stringToInt("10.0.0.1");
+    final int ip2 = IPv4Addr.stringToInt("10.0.0.2");
+    final ByteBuffer buf = ByteBuffer.allocateDirect(2048);
+
+    ICMP request;
+    IPv4 original;
+
+    @Setup
+    public void setup() throws MalformedPacketException {
+        request = new ICMP();
+        request.setEchoRequest((short) 1, (short) 1, new byte[56]);
+        request.deserialize(ByteBuffer.wrap(request.serialize()));
+
+        UDP udp = new UDP();
+        udp.setSourcePort(1234);
+        udp.setDestinationPort(5678);
+        udp.setPayload(new Data(new byte[64]));
+        original = new IPv4();
+        original.setSourceAddress(ip2);
+        original.setDestinationAddress(ip1);
+        original.setProtocol(UDP.PROTOCOL_NUMBER);
+        original.setPayload(udp);
+    }
+
+    private Ethernet ipv4(IPacket payload) {
+        IPv4 ip = new IPv4();
+        ip.setSourceAddress(ip1);
+        ip.setDestinationAddress(ip2);
+        ip.setProtocol(ICMP.PROTOCOL_NUMBER);
+        ip.setPayload(payload);
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(mac1);
+        eth.setDestinationMACAddress(mac2);
+        eth.setEtherType(IPv4.ETHERTYPE);
+        eth.setPayload(ip);
+        return eth;
+    }
+
+    @Benchmark
+    public byte[] arpReplyObjects() {
+        return ARP.makeArpReply(mac1, mac2, IPv4Addr.intToBytes(ip1),
+                                IPv4Addr.intToBytes(ip2)).serialize();
+    }
+
+    @Benchmark
+    public int arpReplyTemplate() {
+        buf.clear();
+        return PacketTemplates.arpReply(buf, mac1, mac2, ip1, ip2);
+    }
+
+    @Benchmark
+    public byte[] icmpEchoReplyObjects() {
+        ICMP reply = new ICMP();
+        reply.setEchoReply(request.getIdentifier(), request.getSequenceNum(),
+                           request.getData());
+        return ipv4(reply).serialize();
+    }
+
+    @Benchmark
+    public int icmpEchoReplyTemplate() {
+        buf.clear();
+        return PacketTemplates.icmpEchoReply(buf, mac1, mac2, ip1, ip2,
+                                             request);
+    }
+
+    @Benchmark
+    public byte[] icmpErrorObjects() {
+        ICMP error = new ICMP();
+        error.setUnreachable(ICMP.UNREACH_CODE.UNREACH_HOST, original);
+        return ipv4(error).serialize();
+    }
+
+    @Benchmark
+    public int icmpErrorTemplate() {
+        buf.clear();
+        return PacketTemplates.icmpError(
+            buf, mac1, mac2, ip1, ip2, ICMP.TYPE_UNREACH,
+            ICMP.UNREACH_CODE.UNREACH_HOST.toByte(), original);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.packets;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPacketTemplates {
+
+    private static final MAC MAC1 = MAC.fromString("02:00:00:00:00:01");
+    private static final MAC MAC2 = MAC.fromString("02:00:00:00:00:02");
+    private static final int IP1 = IPv4Addr.stringToInt("10.0.0.1");
+    private static final int IP2 = IPv4Addr.stringToInt("10.0.0.2");
+
+    private static byte[] written(ByteBuffer buf, int length) {
+        Assert.assertEquals(length, buf.position());
+        return Arrays.copyOf(buf.array(), length);
+    }
+
+    private static Ethernet ipv4(MAC src, MAC dst, int srcIp, int dstIp,
+                                 IPacket payload) {
+        IPv4 ip = new IPv4();
+        ip.setSourceAddress(srcIp);
+        ip.setDestinationAddress(dstIp);
+        ip.setProtocol(ICMP.PROTOCOL_NUMBER);
+        ip.setPayload(payload);
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(src);
+        eth.setDestinationMACAddress(dst);
+        eth.setEtherType(IPv4.ETHERTYPE);
+        eth.setPayload(ip);
+        return eth;
+    }
+
+    private static ICMP echoRequest() throws MalformedPacketException {
+        ICMP icmp = new ICMP();
+        icmp.setEchoRequest((short) 0x1234, (short) 7,
+                            "echo request".getBytes());
+        // Sets the checksum
+        icmp.deserialize(ByteBuffer.wrap(icmp.serialize()));
+        return icmp;
+    }
+
+    @Test
+    public void testArpRequest() {
+        ARP arp = new ARP();
+        arp.setHardwareType(ARP.HW_TYPE_ETHERNET);
+        arp.setProtocolType(ARP.PROTO_TYPE_IP);
+        arp.setHardwareAddressLength((byte) 6);
+        arp.setProtocolAddressLength((byte) 4);
+        arp.setOpCode(ARP.OP_REQUEST);
+        arp.setSenderHardwareAddress(MAC1);
+        arp.setSenderProtocolAddress(IPv4Addr.intToBytes(IP1));
+        arp.setTargetHardwareAddress(MAC.fromString("00:00:00:00:00:00"));
+        arp.setTargetProtocolAddress(IPv4Addr.intToBytes(IP2));
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(MAC1);
+        eth.setDestinationMACAddress(MAC.fromString("ff:ff:ff:ff:ff:ff"));
+        eth.setEtherType(ARP.ETHERTYPE);
+        eth.setPayload(arp);
+
+        ByteBuffer buf = ByteBuffer.allocate(PacketTemplates.ARP_FRAME_LEN);
+        int length = PacketTemplates.arpRequest(buf, MAC1, IP1, IP2);
+        Assert.assertArrayEquals(eth.serialize(), written(buf, length));
+    }
+
+    @Test
+    public void testArpReply() {
+        Ethernet eth = ARP.makeArpReply(MAC1, MAC2, IPv4Addr.intToBytes(IP1),
+                                        IPv4Addr.intToBytes(IP2));
+
+        ByteBuffer buf = ByteBuffer.allocate(PacketTemplates.ARP_FRAME_LEN);
+        int length = PacketTemplates.arpReply(buf, MAC1, MAC2, IP1, IP2);
+        Assert.assertArrayEquals(eth.serialize(), written(buf, length));
+    }
+
+    @Test
+    public void testIcmpEchoReply() throws MalformedPacketException {
+        ICMP request = echoRequest();
+        ICMP reply = new ICMP();
+        reply.setEchoReply(request.getIdentifier(), request.getSequenceNum(),
+                           request.getData());
+        Ethernet eth = ipv4(MAC1, MAC2, IP1, IP2, reply);
+
+        ByteBuffer buf = ByteBuffer.allocate(
+            PacketTemplates.icmpEchoReplyLength(request));
+        int length = PacketTemplates.icmpEchoReply(buf, MAC1, MAC2, IP1, IP2,
+                                                   request);
+        Assert.assertArrayEquals(eth.serialize(), written(buf, length));
+    }
+
+    @Test
+    public void testIcmpEchoReplyWithoutRequestChecksum() {
+        ICMP request = new ICMP();
+        request.setEchoRequest((short) 1, (short) 2, new byte[] { 1, 2, 3 });
+        ICMP reply = new ICMP();
+        reply.setEchoReply((short) 1, (short) 2, new byte[] { 1, 2, 3 });
+        Ethernet eth = ipv4(MAC1, MAC2, IP1, IP2, reply);
+
+        ByteBuffer buf = ByteBuffer.allocate(
+            PacketTemplates.icmpEchoReplyLength(request));
+        int length = PacketTemplates.icmpEchoReply(buf, MAC1, MAC2, IP1, IP2,
+                                                   request);
+        Assert.assertArrayEquals(eth.serialize(), written(buf, length));
+    }
+
+    @Test
+    public void testIcmpError() {
+        UDP udp = new UDP();
+        udp.setSourcePort(1234);
+        udp.setDestinationPort(5678);
+        udp.setPayload(new Data("some payload".getBytes()));
+        IPv4 original = new IPv4();
+        original.setSourceAddress(IP2);
+        original.setDestinationAddress(IPv4Addr.stringToInt("10.0.1.1"));
+        original.setProtocol(UDP.PROTOCOL_NUMBER);
+        original.setPayload(udp);
+
+        ICMP error = new ICMP();
+        error.setUnreachable(ICMP.UNREACH_CODE.UNREACH_HOST, original);
+        Ethernet eth = ipv4(MAC1, MAC2, IP1, IP2, error);
+
+        ByteBuffer buf = ByteBuffer.allocate(PacketTemplates.ICMP_ERROR_MAX_LEN);
+        int length = PacketTemplates.icmpError(
+            buf, MAC1, MAC2, IP1, IP2, ICMP.TYPE_UNREACH,
+            ICMP.UNREACH_CODE.UNREACH_HOST.toByte(), original);
+        Assert.assertArrayEquals(eth.serialize(), written(buf, length));
+    }
+
+    @Test
+    public void testBufferOrderAndPosition() {
+        ByteBuffer buf = ByteBuffer.allocate(2 * PacketTemplates.ARP_FRAME_LEN)
+                                   .order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(PacketTemplates.ARP_FRAME_LEN);
+        PacketTemplates.arpReply(buf, MAC1, MAC2, IP1, IP2);
+        Assert.assertEquals(ByteOrder.LITTLE_ENDIAN, buf.order());
+        Assert.assertEquals(2 * PacketTemplates.ARP_FRAME_LEN, buf.position());
+
+        byte[] frame = Arrays.copyOfRange(buf.array(),
+                                          PacketTemplates.ARP_FRAME_LEN,
+                                          buf.position());
+        Assert.assertArrayEquals(
+            ARP.makeArpReply(MAC1, MAC2, IPv4Addr.intToBytes(IP1),
+                             IPv4Addr.intToBytes(IP2)).serialize(),
+            frame);
+    }
+
+    @Test
+    public void testUpdateChecksum() throws MalformedPacketException {
+        ICMP request = echoRequest();
+        ICMP reply = new ICMP();
+        reply.setEchoReply(request.getIdentifier(), request.getSequenceNum(),
+                           request.getData());
+        reply.deserialize(ByteBuffer.wrap(reply.serialize()));
+
+        short updated = PacketTemplates.updateChecksum(
+            request.getChecksum(), (short) (ICMP.TYPE_ECHO_REQUEST << 8),
+            (short) (ICMP.TYPE_ECHO_REPLY << 8));
+        Assert.assertEquals(reply.getChecksum(), updated);
+    }
+}
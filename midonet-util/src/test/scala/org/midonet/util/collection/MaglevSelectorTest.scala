@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.util.collection
+
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class MaglevSelectorTest extends FeatureSpec with Matchers {
+
+    private class WeightedObject(val key: Long, val weight: Int)
+        extends HasWeight
+
+    private val keyOf = (obj: WeightedObject) => obj.key
+
+    private def objects(weights: Int*) =
+        weights.map(new WeightedObject(Random.nextLong(), _)).toList
+
+    private def table(ws: MaglevSelector[WeightedObject]) =
+        (0 until ws.size).map(ws.select)
+
+    /* The fraction of hashes that select a different object. */
+    private def moved(from: Seq[WeightedObject], to: Seq[WeightedObject]) =
+        from.zip(to).count { case (a, b) => a ne b }.toDouble / from.size
+
+    feature("Selection") {
+        scenario("Attempt to create a MaglevSelector with an empty list.") {
+            intercept[IllegalArgumentException] {
+                MaglevSelector(List[WeightedObject](), keyOf)
+            }
+        }
+
+        scenario("Attempt to create a MaglevSelector with a table size that " +
+                 "is not a prime.") {
+            intercept[IllegalArgumentException] {
+                MaglevSelector(objects(1, 1), keyOf, 100)
+            }
+        }
+
+        scenario("Objects with zero weight are never selected") {
+            val objs = objects(0, 1)
+            val ws = MaglevSelector(objs, keyOf, 101)
+            table(ws) foreach { _ should be theSameInstanceAs objs(1) }
+        }
+
+        scenario("The selection only depends on the hash and the keys") {
+            val objs = objects(1, 2, 3)
+            val ws1 = MaglevSelector(objs, keyOf)
+            val ws2 = MaglevSelector(objs.reverse, keyOf)
+            table(ws1) shouldBe table(ws2)
+        }
+
+        scenario("Negative hashes select objects") {
+            val objs = objects(1, 1)
+            val ws = MaglevSelector(objs, keyOf, 101)
+            objs should contain (ws.select(Int.MinValue))
+            objs should contain (ws.select(-1))
+        }
+
+        scenario("Objects are selected in proportion to their weight") {
+            val objs = objects(List.fill(20)(Random.nextInt(5) + 1): _*)
+            val ws = MaglevSelector(objs, keyOf)
+            val totalWeight = objs.map(_.weight).sum
+            val frequencies = table(ws).groupBy(identity).mapValues(_.size)
+
+            // The table is filled in rounds, so the shares differ from the
+            // weights by at most one round per object.
+            objs foreach { obj =>
+                val expected = obj.weight.toDouble * ws.size / totalWeight
+                frequencies(obj).toDouble should (be > 0.95 * expected and
+                                                  be < 1.05 * expected)
+            }
+        }
+    }
+
+    feature("Disruption") {
+        scenario("Removing an object moves few of the other hashes") {
+            val objs = objects(List.fill(10)(1): _*)
+            val before = table(MaglevSelector(objs, keyOf))
+            val after = table(MaglevSelector(objs.tail, keyOf))
+
+            // 10% of the hashes belonged to the removed object.
+            moved(before, after) should be < 0.15
+        }
+
+        scenario("Adding an object moves few of the other hashes") {
+            val objs = objects(List.fill(11)(1): _*)
+            val before = table(MaglevSelector(objs.tail, keyOf))
+            val after = table(MaglevSelector(objs, keyOf))
+
+            // 9% of the hashes now belong to the added object.
+            moved(before, after) should be < 0.15
+        }
+    }
+}
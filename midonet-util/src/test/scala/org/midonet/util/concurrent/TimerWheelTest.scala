@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import scala.collection.mutable
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers, OneInstancePerTest}
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class TimerWheelTest extends FeatureSpec
+                     with Matchers
+                     with OneInstancePerTest {
+
+    val wheel = new TimerWheel(100, 8)
+    val fired = mutable.ArrayBuffer[Int]()
+
+    def task(id: Int) = new Runnable {
+        override def run(): Unit = fired += id
+    }
+
+    feature("Timeouts expire once their deadline passes") {
+        scenario("Timeouts run in the tick of their deadline") {
+            wheel.advance(0)
+            wheel.schedule(150, task(1))
+            wheel.schedule(250, task(2))
+
+            wheel.advance(100) shouldBe 0
+            wheel.advance(149) shouldBe 0
+            wheel.advance(150) shouldBe 1
+            fired shouldBe Seq(1)
+
+            wheel.advance(300) shouldBe 1
+            fired shouldBe Seq(1, 2)
+            wheel.size shouldBe 0
+        }
+
+        scenario("Overdue timeouts run on the next advance") {
+            wheel.advance(1000)
+            wheel.schedule(500, task(1))
+            wheel.advance(1000) shouldBe 1
+        }
+
+        scenario("Timeouts beyond a revolution wait for their deadline") {
+            wheel.advance(0)
+            wheel.schedule(1000, task(1))
+
+            wheel.advance(300)
+            wheel.advance(600)
+            wheel.advance(900) shouldBe 0
+            wheel.advance(1000) shouldBe 1
+        }
+
+        scenario("The wheel catches up after a long pause") {
+            wheel.advance(0)
+            for (i <- 1 to 20)
+                wheel.schedule(i * 100, task(i))
+            wheel.advance(0)
+
+            wheel.advance(5000) shouldBe 20
+            fired.sorted shouldBe (1 to 20)
+        }
+
+        scenario("Tasks may schedule other timeouts") {
+            wheel.advance(0)
+            wheel.schedule(100, new Runnable {
+                override def run(): Unit =
+                    wheel.schedule(200, task(2))
+            })
+
+            wheel.advance(100) shouldBe 1
+            wheel.advance(200) shouldBe 1
+            fired shouldBe Seq(2)
+        }
+    }
+
+    feature("Timeouts can be cancelled") {
+        scenario("A cancelled timeout doesn't run") {
+            wheel.advance(0)
+            val timeout = wheel.schedule(100, task(1))
+            timeout.cancel()
+
+            wheel.advance(200) shouldBe 0
+            fired shouldBe empty
+            wheel.size shouldBe 0
+        }
+    }
+}
@@ -28,6 +28,7 @@ import com.sun.jna.Native;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import rx.Observer;
 
 import org.midonet.netlink.clib.cLibrary;
 import org.midonet.netlink.exceptions.NetlinkException;
@@ -222,6 +223,19 @@ public abstract class AbstractNetlinkConnection {
                                                 payload, timeoutMillis));
     }
 
+    /** Same as sendMultiAnswerNetlinkMessage(), but the answers are not
+     *  assembled: each one is deserialised and passed to the observer as it
+     *  is read, from the thread reading the channel, and the observer is
+     *  completed once a DONE netlink message is read for the handler seq
+     *  number. */
+    protected <T> void sendStreamingNetlinkMessage(ByteBuffer payload,
+                                                   Observer<? super T> observer,
+                                                   Reader<T> reader,
+                                                   long timeoutMillis) {
+        enqueueRequest(NetlinkRequest.makeStreaming(observer, reader,
+                                                    payload, timeoutMillis));
+    }
+
     private void enqueueRequest(NetlinkRequest req) {
         if (bypassSendQueue) {
             // If this stops being used only for testing, beware
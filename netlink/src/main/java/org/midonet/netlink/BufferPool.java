@@ -16,33 +16,37 @@
 package org.midonet.netlink;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import com.google.common.collect.MapMaker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A pool of reusable, native I/O ready, byte buffers. All operations are
- * guaranteed to be thread-safe and non-blocking.
+ * guaranteed to be thread-safe and lock-free.
+ *
+ * The pool has one or more size classes, each with its own buffer size and
+ * number of buffers, such that large buffers don't take the place of the
+ * small ones. Netlink replies, including flow dumps, are read into the
+ * reply buffer of their connection rather than taken from a pool, so they
+ * need no size class. Within a size class, free buffers are
+ * kept in a lock-free stack of buffer indices, and each thread first tries
+ * the buffer it released last, which stays hot in its cache. Buffers are
+ * tracked by identity in an open addressing table, so that foreign buffers
+ * and buffers released twice are ignored.
+ *
+ * When a size class is exhausted, the pool hands out temporary heap buffers
+ * and counts the event, see exhausted().
  */
 public class BufferPool {
 
     private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
 
-    /** dummy object used as the unique value in the concurrent buffer "set". */
-    private static final Object PRESENT = new Object();
-
-    private final int maxBuffers;
-    private final int bufSize;
-
-    private final ConcurrentMap<ByteBuffer, Object> bufferPool;
-    private final BlockingQueue<ByteBuffer> availPool;
-    private final AtomicInteger numBuffers;
+    private final SizeClass[] classes;
+    private final AtomicLong exhausted = new AtomicLong();
 
     /**
      * @param minBuffers Initial number of buffers to allocate in the pool.
@@ -52,78 +56,258 @@ public class BufferPool {
      * @param bufSize
      */
     public BufferPool(int minBuffers, int maxBuffers, int bufSize) {
-        if ((maxBuffers < minBuffers) || (maxBuffers <= 0) || (minBuffers < 0))
+        this(new int[] { minBuffers }, new int[] { maxBuffers },
+             new int[] { bufSize });
+    }
+
+    /**
+     * Creates a pool with a size class per buffer size, with the initial and
+     * maximum number of buffers at the same position. Buffer sizes must be
+     * in increasing order.
+     */
+    public BufferPool(int[] minBuffers, int[] maxBuffers, int[] bufSizes) {
+        if (bufSizes.length == 0 || minBuffers.length != bufSizes.length ||
+            maxBuffers.length != bufSizes.length)
             throw new IllegalArgumentException();
 
-        this.maxBuffers = maxBuffers;
-        this.bufSize = bufSize;
-        this.availPool = new ArrayBlockingQueue<ByteBuffer>(maxBuffers);
-
-        /* Use a weak-keys map so that keys behave as in an identity HashMap.
-        /*
-        /* An identity map is needed because a ByteBuffer's hashCode() depends
-        /* on the buffer's contents. A normal IdentityHashMap is not suitable
-        /* because there's no concurrent implementation of it. Thus the use
-        /* of the weak-keys concurrent map. */
-        this.bufferPool =
-            new MapMaker().initialCapacity(maxBuffers).weakKeys().makeMap();
-
-        numBuffers = new AtomicInteger(0);
-        do {
-            ByteBuffer buf = BytesUtil.instance.allocateDirect(bufSize);
-            availPool.offer(buf);
-            bufferPool.put(buf, PRESENT);
-        } while (numBuffers.incrementAndGet() < minBuffers);
+        classes = new SizeClass[bufSizes.length];
+        for (int i = 0; i < bufSizes.length; i++) {
+            if ((maxBuffers[i] < minBuffers[i]) || (maxBuffers[i] <= 0) ||
+                (minBuffers[i] < 0) || (bufSizes[i] <= 0) ||
+                (i > 0 && bufSizes[i] <= bufSizes[i - 1]))
+                throw new IllegalArgumentException();
+            classes[i] = new SizeClass(minBuffers[i], maxBuffers[i],
+                                       bufSizes[i]);
+        }
     }
 
-    /** Take a byte buffer from the pool. The caller is responsible of calling
-     *  release() once for the returned buffer to return it to the pool.
+    /** Take a byte buffer of the smallest size class from the pool. The
+     *  caller is responsible of calling release() once for the returned
+     *  buffer to return it to the pool.
      */
     public ByteBuffer take() {
-        ByteBuffer buffer = availPool.poll();
+        return take(classes[0], classes[0].bufSize);
+    }
+
+    /** Take a byte buffer of at least the given size from the pool, from the
+     *  smallest size class that fits it.
+     */
+    public ByteBuffer take(int size) {
+        for (SizeClass sizeClass : classes) {
+            if (sizeClass.bufSize >= size)
+                return take(sizeClass, sizeClass.bufSize);
+        }
+        return take(null, size);
+    }
+
+    private ByteBuffer take(SizeClass sizeClass, int size) {
+        ByteBuffer buffer = (sizeClass != null) ? sizeClass.take() : null;
         if (buffer != null)
             return buffer;
 
-        if (numBuffers.incrementAndGet() <= maxBuffers) {
-            log.debug("increasing buffer pool size to {}", numBuffers.get());
-            ByteBuffer buf = BytesUtil.instance.allocateDirect(bufSize);
-            bufferPool.put(buf, PRESENT);
-            return buf;
-        } else {
-            numBuffers.decrementAndGet();
-            /* Temporary buffers are non-direct because the NIO library has its
-             * own cache for them, managing this case more cleverly than we
-             * we can from here. The library will get the buffer from its cache
-             * when a write is requested, so it will be able to release it
-             * immediately, whereas we would leave the task up to the garbage
-             * collector.
-             *
-             * The price we pay for allocating a non-direct buffer is one extra
-             * copy at write-time.
-             */
-            log.info("pool is empty, allocating a temporary buffer");
-            return  BytesUtil.instance.allocate(bufSize);
+        /* Temporary buffers are non-direct because the NIO library has its
+         * own cache for them, managing this case more cleverly than we
+         * we can from here. The library will get the buffer from its cache
+         * when a write is requested, so it will be able to release it
+         * immediately, whereas we would leave the task up to the garbage
+         * collector.
+         *
+         * The price we pay for allocating a non-direct buffer is one extra
+         * copy at write-time.
+         */
+        long count = exhausted.incrementAndGet();
+        if (Long.bitCount(count) == 1) {
+            log.info("pool is empty, allocating a temporary buffer of {} " +
+                     "bytes ({} times so far)", size, count);
         }
+        return BytesUtil.instance.allocate(size);
     }
 
-    /** Release a buffer that was previously taken from the pool.
-     *
-     *  NOTE: this method will assume that the given buffer is currently taken,
-     *  callers must be careful not to call release() twice on the same buffer.
+    /** Release a buffer that was previously taken from the pool. Buffers
+     *  that don't belong to the pool, and buffers already released, are
+     *  ignored.
      */
     public void release(ByteBuffer buf) {
-        if (buf != null && bufferPool.containsKey(buf)) {
-            availPool.offer(buf);
-            log.trace("released buffer ({}/{} free buffers)",
-                     availPool.size(), numBuffers.get());
+        if (buf == null)
+            return;
+        for (SizeClass sizeClass : classes) {
+            if (sizeClass.bufSize == buf.capacity()) {
+                if (sizeClass.release(buf)) {
+                    log.trace("released buffer ({}/{} free buffers)",
+                              sizeClass.numFree.get(),
+                              sizeClass.numBuffers.get());
+                }
+                return;
+            }
         }
     }
 
     public int available() {
-        return availPool.size();
+        int available = 0;
+        for (SizeClass sizeClass : classes)
+            available += sizeClass.numFree.get();
+        return available;
     }
 
     public int allocated() {
-        return bufferPool.size();
+        int allocated = 0;
+        for (SizeClass sizeClass : classes)
+            allocated += sizeClass.numBuffers.get();
+        return allocated;
+    }
+
+    /** The number of times a temporary buffer was allocated because the
+     *  pool was exhausted, or the requested size exceeded every size class.
+     */
+    public long exhausted() {
+        return exhausted.get();
+    }
+
+    /**
+     * The buffers of a size, with their index in the order they were
+     * allocated. The free indices are kept in a Treiber stack whose head packs
+     * a stamp, against ABA, with the top index. An index is pushed at most
+     * once, and a thread that claims a buffer from its last released index
+     * leaves that index in the stack, so that popped indices whose buffer is
+     * taken are skipped.
+     */
+    private static final class SizeClass {
+
+        private static final int EMPTY = -1;
+
+        final int bufSize;
+        final int maxBuffers;
+        final AtomicInteger numBuffers = new AtomicInteger(0);
+        final AtomicInteger numFree = new AtomicInteger(0);
+
+        private final AtomicReferenceArray<ByteBuffer> buffers;
+        private final AtomicIntegerArray free;
+        private final AtomicIntegerArray stacked;
+        private final AtomicIntegerArray next;
+        private final AtomicLong head = new AtomicLong(pack(0, EMPTY));
+
+        /* Identity hash table of the buffers, holding their index plus one. */
+        private final AtomicIntegerArray owners;
+        private final int ownersMask;
+
+        private final ThreadLocal<int[]> lastReleased =
+            new ThreadLocal<int[]>() {
+                @Override
+                protected int[] initialValue() {
+                    return new int[] { EMPTY };
+                }
+            };
+
+        SizeClass(int minBuffers, int maxBuffers, int bufSize) {
+            this.bufSize = bufSize;
+            this.maxBuffers = maxBuffers;
+            buffers = new AtomicReferenceArray<>(maxBuffers);
+            free = new AtomicIntegerArray(maxBuffers);
+            stacked = new AtomicIntegerArray(maxBuffers);
+            next = new AtomicIntegerArray(maxBuffers);
+            owners = new AtomicIntegerArray(
+                Integer.highestOneBit(maxBuffers * 2 - 1) << 1);
+            ownersMask = owners.length() - 1;
+
+            while (numBuffers.get() < minBuffers) {
+                int index = numBuffers.getAndIncrement();
+                own(index, BytesUtil.instance.allocateDirect(bufSize));
+                free.set(index, 1);
+                numFree.incrementAndGet();
+                stacked.set(index, 1);
+                push(index);
+            }
+        }
+
+        ByteBuffer take() {
+            int[] last = lastReleased.get();
+            if (last[0] != EMPTY && free.compareAndSet(last[0], 1, 0))
+                return claimed(last[0]);
+
+            int index;
+            while ((index = pop()) != EMPTY) {
+                stacked.set(index, 0);
+                if (free.compareAndSet(index, 1, 0))
+                    return claimed(index);
+            }
+
+            int count = numBuffers.incrementAndGet();
+            if (count <= maxBuffers) {
+                log.debug("increasing buffer pool size to {}", count);
+                ByteBuffer buf = BytesUtil.instance.allocateDirect(bufSize);
+                own(count - 1, buf);
+                return buf;
+            } else {
+                numBuffers.decrementAndGet();
+                return null;
+            }
+        }
+
+        boolean release(ByteBuffer buf) {
+            int index = indexOf(buf);
+            if (index == EMPTY || !free.compareAndSet(index, 0, 1))
+                return false;
+            numFree.incrementAndGet();
+            lastReleased.get()[0] = index;
+            if (stacked.compareAndSet(index, 0, 1))
+                push(index);
+            return true;
+        }
+
+        private ByteBuffer claimed(int index) {
+            numFree.decrementAndGet();
+            return buffers.get(index);
+        }
+
+        private void push(int index) {
+            long h;
+            do {
+                h = head.get();
+                next.set(index, top(h));
+            } while (!head.compareAndSet(h, pack(stamp(h) + 1, index)));
+        }
+
+        private int pop() {
+            long h;
+            int index;
+            do {
+                h = head.get();
+                index = top(h);
+                if (index == EMPTY)
+                    return EMPTY;
+            } while (!head.compareAndSet(h, pack(stamp(h) + 1,
+                                                 next.get(index))));
+            return index;
+        }
+
+        private void own(int index, ByteBuffer buf) {
+            buffers.set(index, buf);
+            int slot = System.identityHashCode(buf) & ownersMask;
+            while (!owners.compareAndSet(slot, 0, index + 1))
+                slot = (slot + 1) & ownersMask;
+        }
+
+        private int indexOf(ByteBuffer buf) {
+            int slot = System.identityHashCode(buf) & ownersMask;
+            int index;
+            while ((index = owners.get(slot) - 1) != EMPTY) {
+                if (buffers.get(index) == buf)
+                    return index;
+                slot = (slot + 1) & ownersMask;
+            }
+            return EMPTY;
+        }
+
+        private static long pack(int stamp, int index) {
+            return ((long) stamp << 32) | (index & 0xFFFFFFFFL);
+        }
+
+        private static int stamp(long head) {
+            return (int) (head >>> 32);
+        }
+
+        private static int top(long head) {
+            return (int) head;
+        }
     }
 }
@@ -119,6 +119,13 @@ public final class NetlinkMessage {
         return writeAttrWithId(buf, id, value, bytesSerializer);
     }
 
+    /** Writes the remaining bytes of the value buffer, without changing its
+     *  position. */
+    public static int writeRawAttribute(ByteBuffer buf, short id,
+                                        ByteBuffer value) {
+        return writeAttrWithId(buf, id, value, byteBufferSerializer);
+    }
+
     public static int writeEthernetAttribute(ByteBuffer buf, short id,
                                              Ethernet eth) {
         return writeAttrWithId(buf, id, eth, ethernetSerializer);
@@ -249,6 +256,19 @@ public final class NetlinkMessage {
         }
     };
 
+    private static final Writer<ByteBuffer> byteBufferSerializer =
+            new Writer<ByteBuffer>() {
+                public short attrIdOf(ByteBuffer any) {
+                    throw new UnsupportedOperationException();
+                }
+                public int serializeInto(ByteBuffer receiver,
+                                         ByteBuffer value) {
+                    int length = value.remaining();
+                    receiver.put(value.duplicate());
+                    return length;
+                }
+            };
+
     private static final Writer<Ethernet> ethernetSerializer =
             new Writer<Ethernet>() {
                 public short attrIdOf(Ethernet any) {
@@ -24,6 +24,8 @@ import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import rx.Observer;
+
 import org.midonet.netlink.exceptions.NetlinkException;
 
 /** Class used by AbstractNetlinkRequest to manage reply handlers and user given
@@ -169,6 +171,21 @@ public abstract class NetlinkRequest implements Runnable {
         return new MultiAnswerNetlinkRequest(cb, func, data, timeoutMillis);
     }
 
+    /** Factory method to create a NetlinkRequest which will be answered by a
+     *  sequence of replies (enumerate requests), each of which is
+     *  deserialised and passed to the observer as soon as it is read. The
+     *  observer is completed once the whole sequence is read. */
+    public static <T> NetlinkRequest makeStreaming(Observer<? super T> observer,
+                                                   Reader<T> reader,
+                                                   ByteBuffer data,
+                                                   long timeoutMillis) {
+        @SuppressWarnings("unchecked")
+        Observer<Object> obs = (Observer<Object>) observer;
+        @SuppressWarnings("unchecked")
+        Reader<Object> func = (Reader<Object>) reader;
+        return new StreamingNetlinkRequest(obs, func, data, timeoutMillis);
+    }
+
     static class SingleAnswerNetlinkRequest extends NetlinkRequest {
         public SingleAnswerNetlinkRequest(Callback<Object> callback,
                                           Reader<Object> reader,
@@ -210,6 +227,40 @@ public abstract class NetlinkRequest implements Runnable {
         }
     }
 
+    /* The replies are passed to the observer from the thread reading the
+     * netlink channel, so that they are not accumulated in memory. */
+    static class StreamingNetlinkRequest extends NetlinkRequest {
+        private final Observer<Object> observer;
+
+        public StreamingNetlinkRequest(final Observer<Object> observer,
+                                       Reader<Object> reader,
+                                       ByteBuffer data,
+                                       long timeoutMillis) {
+            super(new Callback<Object>() {
+                @Override
+                public void onSuccess(Object data) {
+                    observer.onCompleted();
+                }
+                @Override
+                public void onError(NetlinkException e) {
+                    observer.onError(e);
+                }
+            }, reader, data, timeoutMillis);
+            this.observer = observer;
+        }
+
+        @Override
+        public void addAnswerFragment(ByteBuffer buf) {
+            if (buf == null)
+                return;
+            try {
+                observer.onNext(reader.deserializeFrom(buf));
+            } catch (Exception e) {
+                log.error("Error trying to stream a reply to the observer", e);
+            }
+        }
+    }
+
     // A null value is interpreted by the comparator as a netlinkrequest with
     // infinite timeout, and is therefore "larger" than any non-null request.
     public static final Comparator<NetlinkRequest> comparator =
@@ -84,6 +84,10 @@ public interface cLibrary extends Library {
     public static final int NETLINK_BROADCAST_ERROR = 4;
     public static final int NETLINK_NO_ENOBUFS = 5;
 
+    public static final int O_RDONLY = 0;
+
+    public static final int CLONE_NEWNET = 0x40000000;
+
     int socket(int domain, int type, int protocol);
 
     int connect(int fd, NetlinkSockAddress addrSockAddress, int size);
@@ -110,7 +114,21 @@ public interface cLibrary extends Library {
 
     int getpagesize();
 
+    int open(String path, int flags);
+
+    int setns(int fd, int nstype);
+
     int close(long l);
 
+    /**
+     * Sets the CPU affinity mask of a thread, where a pid of 0 is the
+     * calling thread. The mask is an array of 64 bit words, with the CPU n
+     * in the bit n % 64 of the word n / 64, and cpusetsize is its size in
+     * bytes.
+     */
+    int sched_setaffinity(int pid, long cpusetsize, long[] mask);
+
+    int sched_getaffinity(int pid, long cpusetsize, long[] mask);
+
     String strerror(int errno);
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.netlink
+
+import java.nio.ByteBuffer
+import java.util.concurrent.{ArrayBlockingQueue, ConcurrentMap, TimeUnit}
+
+import com.google.common.collect.MapMaker
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+object BufferPoolBenchmark {
+
+    /* The pool as it was before it was made lock-free: a blocking queue of
+     * free buffers, with ownership tracked in a weak-keys map. */
+    class QueueBufferPool(minBuffers: Int, maxBuffers: Int, bufSize: Int) {
+        private val owned: ConcurrentMap[ByteBuffer, AnyRef] =
+            new MapMaker().initialCapacity(maxBuffers).weakKeys().makeMap()
+        private val avail = new ArrayBlockingQueue[ByteBuffer](maxBuffers)
+        for (i <- 0 until minBuffers) {
+            val buf = BytesUtil.instance.allocateDirect(bufSize)
+            avail.offer(buf)
+            owned.put(buf, this)
+        }
+
+        def take(): ByteBuffer = {
+            val buf = avail.poll()
+            if (buf ne null) buf else BytesUtil.instance.allocate(bufSize)
+        }
+
+        def release(buf: ByteBuffer): Unit =
+            if ((buf ne null) && owned.containsKey(buf)) avail.offer(buf)
+    }
+}
+
+/*
+ * Take and release of a buffer by several threads, as the upcall channels
+ * do, with a pool of 8 buffers of 8 KB, against the former queue-based pool.
+ * The exhausted pools have fewer buffers than threads.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@Threads(4)
+@State(Scope.Benchmark)
+class BufferPoolBenchmark {
+    import org.midonet.netlink.BufferPoolBenchmark._
+
+    var pool: BufferPool = _
+    var queuePool: QueueBufferPool = _
+    var exhaustedPool: BufferPool = _
+    var exhaustedQueuePool: QueueBufferPool = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        pool = new BufferPool(8, 8, 8 * 1024)
+        queuePool = new QueueBufferPool(8, 8, 8 * 1024)
+        exhaustedPool = new BufferPool(2, 2, 8 * 1024)
+        exhaustedQueuePool = new QueueBufferPool(2, 2, 8 * 1024)
+    }
+
+    @TearDown
+    def tearDown(): Unit = {
+        println(s"\nexhausted ${exhaustedPool.exhausted} times")
+    }
+
+    @Benchmark
+    def takeAndRelease(): Int = {
+        val buf = pool.take()
+        buf.putInt(0, 1)
+        pool.release(buf)
+        buf.capacity
+    }
+
+    @Benchmark
+    def takeAndReleaseQueue(): Int = {
+        val buf = queuePool.take()
+        buf.putInt(0, 1)
+        queuePool.release(buf)
+        buf.capacity
+    }
+
+    @Benchmark
+    def takeAndReleaseExhausted(): Int = {
+        val buf = exhaustedPool.take()
+        buf.putInt(0, 1)
+        exhaustedPool.release(buf)
+        buf.capacity
+    }
+
+    @Benchmark
+    def takeAndReleaseExhaustedQueue(): Int = {
+        val buf = exhaustedQueuePool.take()
+        buf.putInt(0, 1)
+        exhaustedQueuePool.release(buf)
+        buf.capacity
+    }
+}
@@ -87,7 +87,70 @@ class BufferPoolTest extends FunSpec with Matchers {
             }
         }
 
+        it("should count the events of exhaustion") {
+            val pool = new BufferPool(2,2,128)
+            (1 to 2) foreach { _ => buffers += pool.take }
+            pool.exhausted shouldBe 0
+            val tmp = pool.take
+            tmp.isDirect shouldBe false
+            tmp.capacity shouldBe 128
+            pool.exhausted shouldBe 1
+            pool release tmp
+            pool.available shouldBe 0
+        }
+
+        describe("with size classes") {
+            it("should serve buffers from the smallest class that fits") {
+                val pool = new BufferPool(Array(2, 0), Array(4, 2),
+                                          Array(128, 4096))
+                checkAllocs(pool, 2, 2)
+                pool.take.capacity shouldBe 128
+                pool.take(100).capacity shouldBe 128
+                val large = pool.take(1000)
+                large.capacity shouldBe 4096
+                large.isDirect shouldBe true
+                checkAllocs(pool, 3, 0)
+                pool release large
+                checkAllocs(pool, 3, 1)
+                pool.take(2000) should be theSameInstanceAs large
+                pool.exhausted shouldBe 0
+            }
+
+            it("should allocate temporary buffers beyond the largest class") {
+                val pool = new BufferPool(Array(1, 1), Array(1, 1),
+                                          Array(128, 256))
+                val buf = pool.take(1024)
+                buf.capacity shouldBe 1024
+                pool.exhausted shouldBe 1
+            }
+
+            it("can't be created with invalid parameters") {
+                intercept[IllegalArgumentException] {
+                    new BufferPool(Array(1, 1), Array(2, 2), Array(256, 128))
+                }
+                intercept[IllegalArgumentException] {
+                    new BufferPool(Array(1), Array(2, 2), Array(128, 256))
+                }
+                intercept[IllegalArgumentException] {
+                    new BufferPool(Array.empty[Int], Array.empty[Int],
+                                   Array.empty[Int])
+                }
+            }
+        }
+
         describe("when returning buffers") {
+            it("should ignore buffers returned twice") {
+                val pool = new BufferPool(2,2,128)
+                val buf = pool.take
+                pool release buf
+                pool release buf
+                pool.available shouldBe 2
+                val bufs = List.fill(2) { pool.take }
+                bufs(0) should not be theSameInstanceAs bufs(1)
+                pool.available shouldBe 0
+            }
+
+
             it("should recycle buffers") {
                 val pool = new BufferPool(10,10,128)
                 val bufs1 = List.fill(10) { pool.take }
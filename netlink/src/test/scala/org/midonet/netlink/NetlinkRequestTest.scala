@@ -190,6 +190,54 @@ class NetlinkRequestTest extends FunSpec with Matchers {
         }
     }
 
+    describe("StreamingNetlinkRequest") {
+
+        it("passes each deserialized answer fragment as it gets it") {
+            val obs = new ListObserver
+            val req = NetlinkRequest makeStreaming (obs, reader, null, 1000)
+            val buf = ByteBuffer allocate 256
+
+            (1 to 10) foreach { i =>
+                buf.putInt(i)
+                buf.flip
+                req.addAnswerFragment(buf)
+                buf.flip
+                obs.items should have size i
+                obs.items.last shouldBe i
+            }
+            obs.completed shouldBe false
+
+            req.successful.run
+
+            obs.completed shouldBe true
+            obs.items shouldBe (1 to 10)
+        }
+
+        it("completes without items when there is no answers") {
+            val obs = new ListObserver
+            (NetlinkRequest makeStreaming (obs, reader, null, 1000)).successful.run
+            obs.items shouldBe empty
+            obs.completed shouldBe true
+        }
+
+        it("passes the error to the observer") {
+            val obs = new ListObserver
+            val req = NetlinkRequest makeStreaming (obs, reader, null, 1000)
+            req.failed(new NetlinkException(10, "foo")).run
+            obs.error should not be null
+            obs.completed shouldBe false
+        }
+
+        class ListObserver extends rx.Observer[Int] {
+            var items = List[Int]()
+            var completed = false
+            var error: Throwable = null
+            override def onNext(i: Int) { items :+= i }
+            override def onCompleted() { completed = true }
+            override def onError(e: Throwable) { error = e }
+        }
+    }
+
     describe("SingleNetlinkRequest") {
 
         it("forces a deserialisation call with null when ACK only") {
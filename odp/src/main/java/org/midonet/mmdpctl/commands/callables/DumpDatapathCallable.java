@@ -15,10 +15,13 @@
  */
 package org.midonet.mmdpctl.commands.callables;
 
-import java.util.Collections;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 
+import com.google.common.util.concurrent.SettableFuture;
+import rx.Observer;
+
 import org.midonet.mmdpctl.commands.results.DumpDatapathResult;
 import org.midonet.odp.Datapath;
 import org.midonet.odp.Flow;
@@ -38,15 +41,33 @@ public class DumpDatapathCallable implements Callable<DumpDatapathResult> {
     public DumpDatapathResult call() throws Exception {
         try {
             Datapath datapath = connection.futures.datapathsGet(datapathName).get();
-            Set<Flow> flows = null;
+            List<Flow> flows = new ArrayList<>();
             if (datapath != null) {
-                flows  = connection.futures.flowsEnumerate(datapath).get();
-            } else {
-                flows = Collections.emptySet();
+                dumpFlows(datapath, flows);
             }
             return new DumpDatapathResult(datapath, flows);
         } catch (Exception e) {
             throw new Exception("Could not find datapath: " + datapathName);
         }
     }
+
+    private void dumpFlows(Datapath datapath, final List<Flow> flows)
+            throws Exception {
+        final SettableFuture<Boolean> done = SettableFuture.create();
+        connection.flowsDump(datapath, new Observer<Flow>() {
+            @Override
+            public void onNext(Flow flow) {
+                flows.add(flow);
+            }
+            @Override
+            public void onCompleted() {
+                done.set(true);
+            }
+            @Override
+            public void onError(Throwable e) {
+                done.setException(e);
+            }
+        });
+        done.get();
+    }
 }
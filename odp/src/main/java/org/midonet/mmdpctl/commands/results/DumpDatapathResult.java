@@ -28,15 +28,15 @@ public class DumpDatapathResult implements Result {
         boolean predicate(Flow flow);
     }
 
-    Set<Flow> flows;
+    Collection<Flow> flows;
     Datapath datapath;
 
-    public DumpDatapathResult(Datapath datapath, Set<Flow> flows) {
+    public DumpDatapathResult(Datapath datapath, Collection<Flow> flows) {
         this.flows = flows;
         this.datapath = datapath;
     }
 
-    public ArrayList<Flow> sortFlows(Set<Flow> flows) {
+    public ArrayList<Flow> sortFlows(Collection<Flow> flows) {
         ArrayList<Flow> toPrint = new ArrayList<>(flows);
 
         Collections.sort(toPrint, new Comparator<Flow>() {
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.odp.flows;
+
+/**
+ * A cached flow key that keeps its netlink attribute, header and padding
+ * included, serialised once when it is cached, such that writing the key
+ * into a request is a copy of these bytes.
+ */
+interface EncodedFlowKey extends CachedFlowKey {
+
+    /** The serialised attribute of the key, or null if not cached. */
+    byte[] encoded();
+}
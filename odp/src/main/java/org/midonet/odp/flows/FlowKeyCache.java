@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.odp.flows;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.midonet.netlink.NetlinkMessage;
+
+/**
+ * A bounded, per-thread cache of the most recurring flow keys: in_port,
+ * ethertype and tunnel keys. Each key type has a direct-mapped table, where a
+ * key evicts the key with which it collides, so lookups don't lock and hits
+ * don't allocate. Cached keys keep their serialised netlink attribute, which
+ * FlowKeys.writeKeys copies instead of serialising the key again.
+ *
+ * Cached keys are shared, possibly across threads once they are published in
+ * a flow match, and must not be modified.
+ */
+final class FlowKeyCache {
+
+    /* The number of entries per key type; a power of two. */
+    static final int SIZE = 1024;
+    private static final int MASK = SIZE - 1;
+
+    private static final ThreadLocal<FlowKeyCache> cache =
+        new ThreadLocal<FlowKeyCache>() {
+            @Override
+            protected FlowKeyCache initialValue() {
+                return new FlowKeyCache();
+            }
+        };
+
+    static FlowKeyCache get() {
+        return cache.get();
+    }
+
+    private final FlowKeyInPort[] inPorts = new FlowKeyInPort[SIZE];
+    private final FlowKeyEtherType[] etherTypes = new FlowKeyEtherType[SIZE];
+    private final FlowKeyTunnel[] tunnels = new FlowKeyTunnel[SIZE];
+    private final ByteBuffer buf =
+        ByteBuffer.allocate(256).order(ByteOrder.nativeOrder());
+
+    private FlowKeyCache() { }
+
+    FlowKeyInPort inPort(int portNo) {
+        int i = index(portNo);
+        FlowKeyInPort key = inPorts[i];
+        if (key == null || key.portNo != portNo) {
+            key = new FlowKeyInPort(portNo);
+            key.encodedAttr = encode(key);
+            inPorts[i] = key;
+        }
+        return key;
+    }
+
+    FlowKeyEtherType etherType(short etherType) {
+        int i = index(etherType);
+        FlowKeyEtherType key = etherTypes[i];
+        if (key == null || key.etherType != etherType) {
+            key = new FlowKeyEtherType(etherType);
+            key.encodedAttr = encode(key);
+            etherTypes[i] = key;
+        }
+        return key;
+    }
+
+    FlowKeyTunnel tunnel(long id, int srcIpv4, int dstIpv4, byte tos,
+                         byte ttl) {
+        int i = index(tunnelHash(id, srcIpv4, dstIpv4));
+        FlowKeyTunnel key = tunnels[i];
+        if (key == null || key.tun_id != id || key.ipv4_src != srcIpv4 ||
+            key.ipv4_dst != dstIpv4 || key.tun_flags != 0 ||
+            key.ipv4_tos != tos || key.ipv4_ttl != ttl) {
+            key = new FlowKeyTunnel(id, srcIpv4, dstIpv4, tos, ttl);
+            key.encodedAttr = encode(key);
+            tunnels[i] = key;
+        }
+        return key;
+    }
+
+    /**
+     * Interns a key built elsewhere, typically deserialised from the
+     * datapath, returning the cached key if it is equal or caching this one.
+     */
+    FlowKey intern(FlowKey key) {
+        if (key instanceof FlowKeyInPort) {
+            FlowKeyInPort k = (FlowKeyInPort) key;
+            int i = index(k.portNo);
+            return inPorts[i] = intern(inPorts[i], k);
+        } else if (key instanceof FlowKeyEtherType) {
+            FlowKeyEtherType k = (FlowKeyEtherType) key;
+            int i = index(k.etherType);
+            return etherTypes[i] = intern(etherTypes[i], k);
+        } else if (key instanceof FlowKeyTunnel) {
+            FlowKeyTunnel k = (FlowKeyTunnel) key;
+            int i = index(tunnelHash(k.tun_id, k.ipv4_src, k.ipv4_dst));
+            return tunnels[i] = intern(tunnels[i], k);
+        }
+        return key;
+    }
+
+    private <T extends EncodedFlowKey> T intern(T cached, T key) {
+        if (key.equals(cached))
+            return cached;
+        if (key.encoded() == null)
+            setEncoded(key, encode(key));
+        return key;
+    }
+
+    private static void setEncoded(FlowKey key, byte[] encoded) {
+        if (key instanceof FlowKeyInPort)
+            ((FlowKeyInPort) key).encodedAttr = encoded;
+        else if (key instanceof FlowKeyEtherType)
+            ((FlowKeyEtherType) key).encodedAttr = encoded;
+        else if (key instanceof FlowKeyTunnel)
+            ((FlowKeyTunnel) key).encodedAttr = encoded;
+    }
+
+    private byte[] encode(FlowKey key) {
+        buf.clear();
+        NetlinkMessage.writeAttr(buf, key, FlowKeys.writer);
+        buf.flip();
+        byte[] encoded = new byte[buf.remaining()];
+        buf.get(encoded);
+        return encoded;
+    }
+
+    private static int tunnelHash(long id, int srcIpv4, int dstIpv4) {
+        return 31 * (31 * (int)(id ^ (id >>> 32)) + srcIpv4) + dstIpv4;
+    }
+
+    private static int index(int hash) {
+        return (hash ^ (hash >>> 16)) & MASK;
+    }
+}
@@ -20,7 +20,7 @@ import java.nio.ByteBuffer;
 import org.midonet.netlink.BytesUtil;
 import org.midonet.odp.OpenVSwitch;
 
-public class FlowKeyEtherType implements CachedFlowKey {
+public class FlowKeyEtherType implements EncodedFlowKey {
 
     public enum Type {
         /**
@@ -55,6 +55,9 @@ public class FlowKeyEtherType implements CachedFlowKey {
 
     /* be16 */ public short etherType;
 
+    // The serialised attribute, set when the key is cached.
+    byte[] encodedAttr;
+
     // This is used for deserialization purposes only.
     FlowKeyEtherType() { }
 
@@ -77,6 +80,11 @@ public class FlowKeyEtherType implements CachedFlowKey {
        etherType = 0;
     }
 
+    @Override
+    public byte[] encoded() {
+        return encodedAttr;
+    }
+
     public short attrId() {
         return OpenVSwitch.FlowKey.Attr.Ethertype;
     }
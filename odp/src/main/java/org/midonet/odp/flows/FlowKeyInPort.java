@@ -19,10 +19,13 @@ import java.nio.ByteBuffer;
 
 import org.midonet.odp.OpenVSwitch;
 
-public class FlowKeyInPort implements CachedFlowKey {
+public class FlowKeyInPort implements EncodedFlowKey {
 
     /*__u32*/ public int portNo;
 
+    // The serialised attribute, set when the key is cached.
+    byte[] encodedAttr;
+
     // This is used for deserialization purposes only.
     public FlowKeyInPort() { }
 
@@ -44,6 +47,11 @@ public class FlowKeyInPort implements CachedFlowKey {
         portNo = 0;
     }
 
+    @Override
+    public byte[] encoded() {
+        return encodedAttr;
+    }
+
     public short attrId() {
         return OpenVSwitch.FlowKey.Attr.InPort;
     }
@@ -27,7 +27,7 @@ import org.midonet.odp.OpenVSwitch.FlowKey.TunnelAttr;
 import org.midonet.odp.OpenVSwitch;
 import org.midonet.packets.IPv4Addr;
 
-public class FlowKeyTunnel implements CachedFlowKey,
+public class FlowKeyTunnel implements EncodedFlowKey,
                                       Randomize, AttributeHandler {
 
     // maintaining the names of field to be the same as ovs_key_ipv4_tunnel
@@ -39,6 +39,9 @@ public class FlowKeyTunnel implements CachedFlowKey,
     /* u8 */    public byte ipv4_tos;
     /* u8 */    public byte ipv4_ttl;
 
+    // The serialised attribute, set when the key is cached.
+    byte[] encodedAttr;
+
     // same size as the tun_flags
     public static final short OVS_TNL_F_DONT_FRAGMENT = 1 << 0;
     public static final short OVS_TNL_F_CSUM = 1 << 1;
@@ -69,6 +72,11 @@ public class FlowKeyTunnel implements CachedFlowKey,
         ipv4_tos = tos;
     }
 
+    @Override
+    public byte[] encoded() {
+        return encodedAttr;
+    }
+
     public short attrId() {
         return OpenVSwitch.FlowKey.Attr.Tunnel_N;
     }
@@ -45,10 +45,15 @@ public class FlowKeys {
         new WeakObjectPool<>();
 
     public static <T extends FlowKey> T intern(T flowKey) {
-        if (flowKey instanceof CachedFlowKey)
+        if (flowKey instanceof EncodedFlowKey) {
+            @SuppressWarnings("unchecked")
+            T cached = (T) FlowKeyCache.get().intern(flowKey);
+            return cached;
+        } else if (flowKey instanceof CachedFlowKey) {
             return sharedReferenceOf(flowKey);
-        else
+        } else {
             return flowKey;
+        }
     }
 
     public static <T extends FlowKey> T sharedReferenceOf(T flowKey) {
@@ -58,7 +63,7 @@ public class FlowKeys {
     }
 
     public static FlowKeyInPort inPort(int portNumber) {
-        return intern(new FlowKeyInPort(portNumber));
+        return FlowKeyCache.get().inPort(portNumber);
     }
 
     public static FlowKeyEthernet ethernet(byte[] src, byte[] dst) {
@@ -66,7 +71,7 @@ public class FlowKeys {
     }
 
     public static FlowKeyEtherType etherType(short value) {
-        return intern(new FlowKeyEtherType(value));
+        return FlowKeyCache.get().etherType(value);
     }
 
     public static FlowKeyEtherType etherType(FlowKeyEtherType.Type type) {
@@ -168,7 +173,7 @@ public class FlowKeys {
     }
 
     public static FlowKeyTunnel tunnel(long id, int srcIpv4, int dstIpv4, byte tos) {
-        return intern(new FlowKeyTunnel(id, srcIpv4, dstIpv4, tos));
+        return FlowKeyCache.get().tunnel(id, srcIpv4, dstIpv4, tos, (byte)-1);
     }
 
     public static FlowKey newBlankInstance(short type) {
@@ -242,6 +247,28 @@ public class FlowKeys {
         }
     };
 
+    /** Writes a sequence of flow keys as a netlink nested attribute, like
+     *  NetlinkMessage.writeAttrSeq with the FlowKeys writer, but copying the
+     *  serialised attribute of cached keys. Returns the total number of bytes
+     *  written in the buffer. */
+    public static int writeKeys(ByteBuffer buf, short id,
+                                Iterable<FlowKey> keys) {
+        int start = buf.position();
+        NetlinkMessage.setAttrHeader(buf, NetlinkMessage.nested(id), 0);
+        for (FlowKey key : keys) {
+            byte[] encoded = (key instanceof EncodedFlowKey)
+                             ? ((EncodedFlowKey) key).encoded() : null;
+            if (encoded != null) {
+                buf.put(encoded);
+            } else {
+                NetlinkMessage.writeAttr(buf, key, writer);
+            }
+        }
+        int nBytes = buf.position() - start;
+        buf.putShort(start, (short) nBytes);
+        return nBytes;
+    }
+
     public static List<FlowKey> randomKeys() {
         List<FlowKey> keys = new ArrayList<>();
         while (ThreadLocalRandom.current().nextInt(100) >= 30 && keys.size() <= 10) {
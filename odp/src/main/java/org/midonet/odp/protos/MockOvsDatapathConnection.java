@@ -28,6 +28,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import rx.Observer;
+
 import org.midonet.netlink.BufferPool;
 import org.midonet.netlink.Callback;
 import org.midonet.netlink.NetlinkChannel;
@@ -280,6 +282,16 @@ public class MockOvsDatapathConnection extends OvsDatapathConnection {
         callback.onSuccess(flows);
     }
 
+    @Override
+    protected void _doFlowsDump(@Nonnull Datapath datapath,
+                                @Nonnull Observer<? super Flow> observer,
+                                long timeoutMillis) {
+        for (Flow flow : new ArrayList<>(flowsTable.values())) {
+            observer.onNext(flow);
+        }
+        observer.onCompleted();
+    }
+
     @Override
     protected void _doFlowsCreate(@Nonnull Datapath datapath, @Nonnull Flow flow, Callback<Flow> callback, long timeout) {
         flow.setLastUsedMillis(System.currentTimeMillis());
@@ -28,6 +28,7 @@ import com.google.common.util.concurrent.SettableFuture;
 import org.midonet.odp.ports.NetDevPort;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import rx.Observer;
 
 import org.midonet.netlink.AbstractNetlinkConnection;
 import org.midonet.netlink.BufferPool;
@@ -486,6 +487,37 @@ public abstract class OvsDatapathConnection extends AbstractNetlinkConnection {
                                               @Nonnull final Callback<Set<Flow>> callback,
                                               long timeoutMillis);
 
+    /**
+     * Streaming api for dumping flows. Unlike flowsEnumerate(), the flows
+     * are not collected: each one is passed to the observer as soon as it is
+     * read from the netlink channel, on the thread reading the channel, and
+     * the observer completes once the whole flow table was dumped.
+     *
+     * @param datapath the datapath to dump flows from
+     * @param observer the observer that will receive the flows.
+     */
+    public void flowsDump(@Nonnull final Datapath datapath,
+                          @Nonnull final Observer<? super Flow> observer) {
+        flowsDump(datapath, observer, DEF_REPLY_TIMEOUT);
+    }
+
+    /**
+     * Streaming api for dumping flows.
+     *
+     * @param datapath      the datapath to dump flows from
+     * @param observer      the observer that will receive the flows.
+     * @param timeoutMillis the timeout we are willing to wait for response.
+     */
+    public void flowsDump(@Nonnull final Datapath datapath,
+                          @Nonnull final Observer<? super Flow> observer,
+                          long timeoutMillis) {
+        _doFlowsDump(datapath, observer, timeoutMillis);
+    }
+
+    protected abstract void _doFlowsDump(@Nonnull Datapath datapath,
+                                         @Nonnull Observer<? super Flow> observer,
+                                         long timeoutMillis);
+
     /**
      * Callback based api for for flushing all the flows belonging to a datapath.
      *
@@ -25,6 +25,7 @@ import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import rx.Observer;
 
 import org.midonet.netlink.AttributeHandler;
 import org.midonet.netlink.BufferPool;
@@ -333,6 +334,25 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
                                       timeoutMillis);
     }
 
+    @Override
+    protected void _doFlowsDump(@Nonnull Datapath datapath,
+                                @Nonnull Observer<? super Flow> observer,
+                                long timeoutMillis) {
+        int datapathId = datapath.getIndex();
+
+        if (datapathId == 0) {
+            observer.onError(
+                new OvsDatapathInvalidParametersException(
+                    "The datapath to dump flows for needs a valid datapath id"));
+            return;
+        }
+
+        ByteBuffer buf = getBuffer();
+        protocol.prepareFlowEnum(datapathId, buf);
+        sendStreamingNetlinkMessage(buf, observer, Flow.deserializer,
+                                    timeoutMillis);
+    }
+
     @Override
     protected void _doFlowsCreate(@Nonnull final Datapath datapath,
                                   @Nonnull final Flow flow,
@@ -21,6 +21,9 @@ import scala.collection.JavaConverters._
 import scala.concurrent._
 import scala.concurrent.duration._
 
+import rx.Observable.OnSubscribe
+import rx.{Observable, Subscriber}
+
 import org.midonet.netlink.Callback
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.odp.flows._
@@ -63,6 +66,14 @@ class OvsConnectionOps(val ovsCon: OvsDatapathConnection) {
     def enumFlows(dp: Datapath)(implicit ec: ExecutionContext) =
         toFuture[java.util.Set[Flow]] { ovsCon flowsEnumerate(dp, _) } map { _ toSet }
 
+    /** Streams the flows of the datapath as they are read, without
+     *  collecting them. */
+    def dumpFlows(dp: Datapath): Observable[Flow] =
+        Observable.create(new OnSubscribe[Flow] {
+            override def call(s: Subscriber[_ >: Flow]): Unit =
+                ovsCon.flowsDump(dp, s)
+        })
+
     def flushFlows(dp: Datapath) =
         toFuture[java.lang.Boolean] { ovsCon flowsFlush(dp, _) }
 
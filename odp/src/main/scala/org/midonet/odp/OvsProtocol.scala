@@ -129,7 +129,7 @@ sealed class OvsProtocol(pid: Int,
 
         val message = messageFor(buf, datapathId, flowFamily.contextGet)
             .withFlags(NLFlag.REQUEST)
-        NetlinkMessage.writeAttrSeq(buf, Attr.Key, fmatch.getKeys, FlowKeys.writer)
+        FlowKeys.writeKeys(buf, Attr.Key, fmatch.getKeys)
         message.finalize(pid)
     }
 
@@ -142,7 +142,7 @@ sealed class OvsProtocol(pid: Int,
 
         val message = messageFor(buf, datapathId, flowFamily.contextNew)
             .withFlags(NLFlag.REQUEST | NLFlag.New.CREATE)
-        NetlinkMessage.writeAttrSeq(buf, Attr.Key, flow.getMatch.getKeys, FlowKeys.writer)
+        FlowKeys.writeKeys(buf, Attr.Key, flow.getMatch.getKeys)
         // the actions list is allowed to be empty (drop flow). Nevertheless the
         // actions nested attribute header needs to be written otherwise the
         // datapath will answer back with EINVAL
@@ -159,7 +159,7 @@ sealed class OvsProtocol(pid: Int,
 
         val message = messageFor(buf, datapathId, flowFamily.contextSet)
             .withFlags(NLFlag.REQUEST | NLFlag.ECHO)
-        NetlinkMessage.writeAttrSeq(buf, Attr.Key, flow.getMatch.getKeys, FlowKeys.writer)
+        FlowKeys.writeKeys(buf, Attr.Key, flow.getMatch.getKeys)
         // the actions list is allowed to be empty (drop flow). Nevertheless the
         // actions nested attribute header needs to be written otherwise the
         // datapath will answer back with EINVAL
@@ -176,7 +176,7 @@ sealed class OvsProtocol(pid: Int,
 
         val message = messageFor(buf, datapathId, flowFamily.contextDel)
             .withFlags(NLFlag.REQUEST | NLFlag.ECHO)
-        NetlinkMessage.writeAttrSeq(buf, Attr.Key, keys, FlowKeys.writer)
+        FlowKeys.writeKeys(buf, Attr.Key, keys)
         message.finalize(pid)
     }
 
@@ -197,10 +197,29 @@ sealed class OvsProtocol(pid: Int,
         // datapathId. I examined the ByteBuffers constructed with that
         // ordering of attributes and compared it to this one, and found
         // only the expected difference.
-        NetlinkMessage.writeAttrSeq(buf, Attr.Key, packet.getMatch.getKeys, FlowKeys.writer)
+        FlowKeys.writeKeys(buf, Attr.Key, packet.getMatch.getKeys)
         NetlinkMessage.writeAttrSeq(buf, Attr.Actions, actions, FlowActions.writer)
         NetlinkMessage.writeRawAttribute(buf, Attr.Packet, packet.getEthernet.serialize())
 
         message.finalize(pid)
     }
+
+    /**
+     * Prepares the execution of a serialized frame, such as one written from
+     * a template, which has no flow match. The kernel only takes the
+     * metadata (input port, tunnel, etc.) from the flow key of an executed
+     * packet and extracts the rest from the frame, so the key is empty.
+     */
+    def prepareFrameExecute(datapathId: Int, frame: ByteBuffer,
+                            actions: JList[FlowAction], buf: ByteBuffer): Unit = {
+        import org.midonet.odp.OpenVSwitch.Packet.Attr
+
+        val message = messageFor(buf, datapathId, packetFamily.contextExec)
+            .withFlags(NLFlag.REQUEST)
+        FlowKeys.writeKeys(buf, Attr.Key, java.util.Collections.emptyList[FlowKey]())
+        NetlinkMessage.writeAttrSeq(buf, Attr.Actions, actions, FlowActions.writer)
+        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, frame)
+
+        message.finalize(pid)
+    }
 }
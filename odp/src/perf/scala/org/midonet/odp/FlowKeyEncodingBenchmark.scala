@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.odp
+
+import java.nio.ByteBuffer
+import java.util.concurrent.{ThreadLocalRandom, TimeUnit}
+
+import scala.collection.JavaConversions._
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.netlink.{BytesUtil, NetlinkMessage}
+import org.midonet.odp.OpenVSwitch.Flow.Attr
+import org.midonet.odp.family.{DatapathFamily, FlowFamily, PacketFamily, PortFamily}
+import org.midonet.odp.flows._
+import org.midonet.packets.TCP
+
+/*
+ * Building the recurring flow keys of a tunnelled flow, and encoding the
+ * flow create request, with the keys copied from their cached attribute or
+ * serialised one by one. Run with -prof gc to see the allocation rate.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Thread)
+class FlowKeyEncodingBenchmark {
+
+    final val Ports = 64
+    final val Tunnels = 256
+
+    val rand = ThreadLocalRandom.current()
+    val tunnelIds = Array.fill(Tunnels)(rand.nextLong() & 0xffffff)
+    val tunnelDsts = Array.fill(Tunnels)(rand.nextInt())
+
+    val protocol = new OvsProtocol(0, new OvsNetlinkFamilies(
+        new DatapathFamily(0), new PortFamily(0), new FlowFamily(0),
+        new PacketFamily(0), 0, 0))
+    val buf = BytesUtil.instance.allocateDirect(2 * 1024)
+    var flow: Flow = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        flow = new Flow(
+            new FlowMatch(List(
+                FlowKeys.tunnel(tunnelIds(0), 0x0a000001, tunnelDsts(0), 0),
+                FlowKeys.inPort(1),
+                FlowKeys.ethernet(new Array[Byte](6), new Array[Byte](6)),
+                FlowKeys.etherType(FlowKeyEtherType.Type.ETH_P_IP),
+                new FlowKeyIPv4(rand.nextInt(), rand.nextInt(),
+                                TCP.PROTOCOL_NUMBER, 0, -1, 0),
+                new FlowKeyTCP(rand.nextInt() & 0xffff,
+                               rand.nextInt() & 0xffff))),
+            List(FlowActions.output(1)))
+    }
+
+    @Benchmark
+    def buildKeys(): FlowKey = {
+        val rand = ThreadLocalRandom.current()
+        val i = rand.nextInt(Tunnels)
+        FlowKeys.inPort(rand.nextInt(Ports))
+        FlowKeys.etherType(FlowKeyEtherType.Type.ETH_P_IP)
+        FlowKeys.tunnel(tunnelIds(i), 0x0a000001, tunnelDsts(i), 0)
+    }
+
+    @Benchmark
+    def encodeFlowCreate(): ByteBuffer = {
+        buf.clear()
+        protocol.prepareFlowCreate(0, false, flow, buf)
+        buf
+    }
+
+    @Benchmark
+    def encodeFlowCreateSerialisingKeys(): ByteBuffer = {
+        buf.clear()
+        NetlinkMessage.writeAttrSeq(buf, Attr.Key, flow.getMatch.getKeys,
+                                    FlowKeys.writer)
+        NetlinkMessage.writeAttrSeq(buf, Attr.Actions, flow.getActions,
+                                    FlowActions.writer)
+        buf
+    }
+
+    @Benchmark
+    def encodeFlowCreateCopyingKeys(): ByteBuffer = {
+        buf.clear()
+        FlowKeys.writeKeys(buf, Attr.Key, flow.getMatch.getKeys)
+        NetlinkMessage.writeAttrSeq(buf, Attr.Actions, flow.getActions,
+                                    FlowActions.writer)
+        buf
+    }
+}
@@ -31,7 +31,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import org.midonet.odp.flows.FlowKey;
-import org.midonet.odp.flows.FlowKeyEtherType;
+import org.midonet.odp.flows.FlowKeyInPort;
+import org.midonet.odp.flows.FlowKeyTunnel;
 import org.midonet.odp.flows.FlowKeys;
 import org.midonet.packets.ARP;
 import org.midonet.packets.IPv4Addr;
@@ -41,16 +42,10 @@ import org.midonet.packets.Net;
 public class FlowKeyInterningTest {
 
     private List<Callable<FlowKey>> flowKeys = Arrays.asList(
-        new Callable<FlowKey>() { public FlowKey call() throws Exception {
-            return FlowKeys.inPort(53362);
-        }},
         new Callable<FlowKey>() { public FlowKey call() throws Exception {
             return FlowKeys.ethernet(MAC.fromString("ae:b3:35:8c:a1:48").getAddress(),
                     MAC.fromString("33:33:00:00:00:16").getAddress());
         }},
-        new Callable<FlowKey>() { public FlowKey call() throws Exception {
-            return FlowKeys.etherType((short) 1234);
-        }},
         new Callable<FlowKey>() { public FlowKey call() throws Exception {
             return FlowKeys.arp(MAC.fromString("ae:b3:77:8d:c1:48").getAddress(),
                     MAC.fromString("ae:b3:78:8d:c1:48").getAddress(),
@@ -64,9 +59,24 @@ public class FlowKeyInterningTest {
         }},
         new Callable<FlowKey>() { public FlowKey call() throws Exception {
             return FlowKeys.vlan((short) 0x03015);
+        }}
+    );
+
+    private List<Callable<FlowKey>> threadCachedFlowKeys = Arrays.asList(
+        new Callable<FlowKey>() { public FlowKey call() throws Exception {
+            return FlowKeys.inPort(53362);
+        }},
+        new Callable<FlowKey>() { public FlowKey call() throws Exception {
+            return FlowKeys.etherType((short) 1234);
         }},
         new Callable<FlowKey>() { public FlowKey call() throws Exception {
             return FlowKeys.tunnel(11L, 101, 202, (byte)0);
+        }},
+        new Callable<FlowKey>() { public FlowKey call() throws Exception {
+            return FlowKeys.intern(new FlowKeyInPort(53362));
+        }},
+        new Callable<FlowKey>() { public FlowKey call() throws Exception {
+            return FlowKeys.intern(new FlowKeyTunnel(11L, 101, 202, (byte)0));
         }}
     );
 
@@ -110,6 +120,35 @@ public class FlowKeyInterningTest {
         }
     }
 
+    @Test
+    public void testThreadCachingOfFlowKeys() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(NUM_THREADS);
+        final FlowKey[][] keys = new FlowKey[NUM_THREADS][];
+
+        for (int i = 0; i < NUM_THREADS; ++i) {
+            final int x = i;
+            testSlaves.execute(new Runnable() {
+                @Override
+                public void run() {
+                    keys[x] = new FlowKey[threadCachedFlowKeys.size()];
+                    for (int j = 0; j < keys[x].length; ++j) {
+                        keys[x][j] = verifyInterning(
+                            threadCachedFlowKeys.get(j)).get();
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        latch.await();
+
+        // Keys built or interned on the same thread are the same instance.
+        for (FlowKey[] threadKeys : keys) {
+            Assert.assertSame(threadKeys[0], threadKeys[3]);
+            Assert.assertSame(threadKeys[2], threadKeys[4]);
+        }
+    }
+
     private WeakReference<FlowKey> verifyInterning(Callable<FlowKey> c) {
         try {
             FlowKey original = c.call();
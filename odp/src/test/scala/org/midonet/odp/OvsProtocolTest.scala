@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.odp
+
+import java.nio.ByteBuffer
+import java.util.{List => JList}
+
+import scala.collection.JavaConversions.seqAsJavaList
+import scala.collection.mutable.ArrayBuffer
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.netlink.{AttributeHandler, BytesUtil, NetlinkMessage}
+import org.midonet.odp.OpenVSwitch.Packet.Attr
+import org.midonet.odp.family.{DatapathFamily, FlowFamily, PacketFamily, PortFamily}
+import org.midonet.odp.flows.{FlowAction, FlowActions}
+
+@RunWith(classOf[JUnitRunner])
+class OvsProtocolTest extends FunSpec with Matchers {
+
+    val families = new OvsNetlinkFamilies(new DatapathFamily(0),
+                                          new PortFamily(0),
+                                          new FlowFamily(0),
+                                          new PacketFamily(0), 0, 0)
+    val protocol = new OvsProtocol(0, families)
+    val buf = BytesUtil.instance allocate 1024
+
+    describe("A frame execution") {
+        val frame = ByteBuffer.wrap(Array.tabulate[Byte](60)(_.toByte))
+        val actions: JList[FlowAction] =
+            List[FlowAction](FlowActions.output(3), FlowActions.output(4))
+
+        buf.clear
+        protocol.prepareFrameExecute(42, frame, actions, buf)
+        buf.position(NetlinkMessage.GENL_HEADER_SIZE)
+        val datapathId = buf.getInt
+
+        val ids = ArrayBuffer[Short]()
+        var keyLength = -1
+        var readActions: JList[FlowAction] = null
+        var packet: Array[Byte] = null
+        NetlinkMessage scanAttributes (buf, new AttributeHandler {
+            override def use(buffer: ByteBuffer, id: Short): Unit = {
+                ids += id
+                id match {
+                    case Attr.Key =>
+                        keyLength = buffer.remaining
+                    case Attr.Actions =>
+                        readActions = FlowActions.reader deserializeFrom buffer
+                    case Attr.Packet =>
+                        packet = new Array[Byte](buffer.remaining)
+                        buffer.get(packet)
+                    case _ =>
+                }
+            }
+        })
+
+        it("is addressed to the datapath") {
+            datapathId shouldBe 42
+        }
+
+        it("writes the attributes in the order of a packet execution") {
+            ids shouldBe Seq(Attr.Key, Attr.Actions, Attr.Packet)
+        }
+
+        it("writes an empty flow key") {
+            keyLength shouldBe 0
+        }
+
+        it("writes the actions") {
+            readActions shouldBe actions
+        }
+
+        it("writes the frame without consuming it") {
+            packet shouldBe frame.array
+            frame.position shouldBe 0
+            frame.remaining shouldBe 60
+        }
+    }
+}
@@ -19,7 +19,7 @@ import java.nio.ByteBuffer
 import java.util
 import java.util.{List => JList}
 
-import scala.collection.JavaConversions.asScalaBuffer
+import scala.collection.JavaConversions.{asScalaBuffer, seqAsJavaList}
 
 import org.junit.runner.RunWith
 import org.scalatest._
@@ -52,6 +52,33 @@ class FlowTest extends FunSpec with Matchers {
         }
     }
 
+    describe("FlowKeys.writeKeys") {
+        it("writes the same attribute as writing every key") {
+            val cachedKeys = List[FlowKey](
+                FlowKeys.inPort(7),
+                FlowKeys.etherType(FlowKeyEtherType.Type.ETH_P_IP),
+                FlowKeys.tunnel(42L, 0x0a000001, 0x0a000002, 0.toByte),
+                FlowKeys.intern(new FlowKeyInPort(8)))
+            val other = BytesUtil.instance allocate 1024
+            val id = 42.toShort
+            (seqAsJavaList(cachedKeys) :: keyLists) foreach { keys =>
+                buf.clear
+                other.clear
+                val n = FlowKeys.writeKeys(buf, id, keys)
+                NetlinkMessage.writeAttrSeq(other, id, keys, FlowKeys.writer) shouldBe n
+                buf.flip
+                other.flip
+                buf shouldBe other
+            }
+        }
+
+        it("copies the serialised attribute of cached keys") {
+            FlowKeys.inPort(7).encoded() should not be null
+            FlowKeys.tunnel(1L, 2, 3, 0.toByte).encoded() should not be null
+            new FlowKeyInPort(7).encoded() shouldBe null
+        }
+    }
+
     describe("a List of FlowActions") {
         it("can be serialized in a ByteBuffer and deserialized back from it") {
             actLists foreach {